@@ -82,21 +82,31 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private static final String[] SHOWVALUES = {"Yes", "No"};
    private static final String FFT_UPPER_CUTOFF = "FFTUpperCutoff(%)";
    private static final String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
+   private static final String SEARCH_METHOD = "SearchMethod";
+   private static final String BRENT = "Brent";
+   private static final String PIPELINED = "Pipelined";
+   private static final String[] SEARCH_METHODS = {BRENT, PIPELINED};
+   private static final String COARSE_STEPS = "CoarseSteps";
+   private static final String COARSE_BINNING = "CoarseBinning";
+   private static final String USE_Z_SEQUENCE = "UseZSequence";
 
    private final ImgSharpnessAnalysis fcsAnalysis_ = new ImgSharpnessAnalysis();
    private final BrentFocusOptimizer afOptimizer_;
+   private final PipelinedFocusOptimizer pipelinedOptimizer_;
 
    private String channel_ = "";
    private double exposure_ = 100;
    private boolean displayImages_ = false;
    private double cropFactor_ = 1;
+   private boolean pipelined_ = false;
 
 
    public OughtaFocus() {
       afOptimizer_ = new BrentFocusOptimizer(
             fcsAnalysis_::compute
       );
-      
+      pipelinedOptimizer_ = new PipelinedFocusOptimizer(fcsAnalysis_::compute);
+
       super.createProperty(SEARCH_RANGE,
             NumberUtils.doubleToDisplayString(afOptimizer_.getSearchRange()));
       super.createProperty(TOLERANCE,
@@ -115,6 +125,10 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
               ImgSharpnessAnalysis.Method.getNames()
       );
       super.createProperty(CHANNEL, "");
+      super.createProperty(SEARCH_METHOD, BRENT, SEARCH_METHODS);
+      super.createProperty(COARSE_STEPS, NumberUtils.intToDisplayString(11));
+      super.createProperty(COARSE_BINNING, NumberUtils.intToDisplayString(4));
+      super.createProperty(USE_Z_SEQUENCE, SHOWVALUES[1], SHOWVALUES);
    }
 
    @Override
@@ -139,6 +153,16 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
                ImgSharpnessAnalysis.Method.valueOf(getPropertyValue(SCORING_METHOD)));
          displayImages_ = getPropertyValue(SHOW_IMAGES).contentEquals("Yes");
          afOptimizer_.setDisplayImages(displayImages_);
+         pipelined_ = getPropertyValue(SEARCH_METHOD).contentEquals(PIPELINED);
+         pipelinedOptimizer_.setSearchRange(afOptimizer_.getSearchRange());
+         pipelinedOptimizer_.setAbsoluteTolerance(afOptimizer_.getAbsoluteTolerance());
+         pipelinedOptimizer_.setCoarseSteps(
+               NumberUtils.displayStringToInt(getPropertyValue(COARSE_STEPS)));
+         pipelinedOptimizer_.setCoarseBinning(
+               NumberUtils.displayStringToInt(getPropertyValue(COARSE_BINNING)));
+         pipelinedOptimizer_.setUseZSequence(
+               getPropertyValue(USE_Z_SEQUENCE).contentEquals("Yes"));
+         pipelinedOptimizer_.setDisplayImages(displayImages_);
       } catch (MMException | ParseException ex) {
          studio_.logs().logError(ex);
       }
@@ -170,7 +194,8 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       final double oldExposure = core.getExposure();
       core.setExposure(exposure_);
 
-      final double z = afOptimizer_.runAutofocusAlgorithm();
+      final double z = pipelined_ ? pipelinedOptimizer_.runAutofocusAlgorithm()
+            : afOptimizer_.runAutofocusAlgorithm();
 
       if (cropFactor_ < 1.0) {
          studio_.app().setROI(oldROI);
@@ -192,7 +217,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
 
    @Override
    public int getNumberOfImages() {
-      return afOptimizer_.getImageCount();
+      return pipelined_ ? pipelinedOptimizer_.getImageCount() : afOptimizer_.getImageCount();
    }
 
    @Override
@@ -232,6 +257,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       studio_ = app;
       studio_.events().registerForEvents(this);
       afOptimizer_.setContext(studio_);
+      pipelinedOptimizer_.setContext(studio_);
    }
 
    @Override
@@ -263,6 +289,39 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       return super.getProperties();
    }
 
+   static ImageProcessor makeMonochromeProcessor(int w, int h, Object pixels) {
+      //TODO replace these methods with studio_.data().getImageJConverter().toProcessor()
+      if (pixels instanceof byte[]) {
+         return new ByteProcessor(w, h, (byte[]) pixels, null);
+      } else if (pixels instanceof short[]) {
+         return new ShortProcessor(w, h, (short[]) pixels, null);
+      } else {
+         return null;
+      }
+   }
+
+   static Object getMonochromePixels(TaggedImage image) throws Exception {
+      if (MDUtils.isRGB32(image)) {
+         final byte[][] planes = ImageUtils.getColorPlanesFromRGB32((byte[]) image.pix);
+         final int numPixels = planes[0].length;
+         byte[] monochrome = new byte[numPixels];
+         for (int j = 0; j < numPixels; ++j) {
+            monochrome[j] = (byte) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
+         }
+         return monochrome;
+      } else if (MDUtils.isRGB64(image)) {
+         final short[][] planes = ImageUtils.getColorPlanesFromRGB64((short[]) image.pix);
+         final int numPixels = planes[0].length;
+         short[] monochrome = new short[numPixels];
+         for (int j = 0; j < numPixels; ++j) {
+            monochrome[j] = (short) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
+         }
+         return monochrome;
+      } else {
+         return image.pix;  // Presumably already a gray image.
+      }
+   }
+
    private static double clip(double min, double val, double max) {
       return Math.min(Math.max(min, val), max);
    }
@@ -459,7 +518,8 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
             }
 
             long tI = System.currentTimeMillis() - start - tZ;
-            ImageProcessor proc = makeMonochromeProcessor(core, getMonochromePixels(img));
+            ImageProcessor proc = makeMonochromeProcessor((int) core.getImageWidth(),
+                  (int) core.getImageHeight(), getMonochromePixels(img));
             double score = imgScoringFunction_.apply(proc);
             long tC = System.currentTimeMillis() - start - tZ - tI;
             studio_.logs().logMessage("OughtaFocus: image=" + imageCount_++
@@ -473,41 +533,5 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
             throw new Exception(e.getMessage() + ". Position: " + zString, e);
          }
       }
-
-
-      private static ImageProcessor makeMonochromeProcessor(CMMCore core, Object pixels) {
-         //TODO replace these methods with studio_.data().getImageJConverter().toProcessor()
-         int w = (int) core.getImageWidth();
-         int h = (int) core.getImageHeight();
-         if (pixels instanceof byte[]) {
-            return new ByteProcessor(w, h, (byte[]) pixels, null);
-         } else if (pixels instanceof short[]) {
-            return new ShortProcessor(w, h, (short[]) pixels, null);
-         } else {
-            return null;
-         }
-      }
-
-      private static Object getMonochromePixels(TaggedImage image) throws Exception {
-         if (MDUtils.isRGB32(image)) {
-            final byte[][] planes = ImageUtils.getColorPlanesFromRGB32((byte[]) image.pix);
-            final int numPixels = planes[0].length;
-            byte[] monochrome = new byte[numPixels];
-            for (int j = 0; j < numPixels; ++j) {
-               monochrome[j] = (byte) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
-            }
-            return monochrome;
-         } else if (MDUtils.isRGB64(image)) {
-            final short[][] planes = ImageUtils.getColorPlanesFromRGB64((short[]) image.pix);
-            final int numPixels = planes[0].length;
-            short[] monochrome = new short[numPixels];
-            for (int j = 0; j < numPixels; ++j) {
-               monochrome[j] = (short) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
-            }
-            return monochrome;
-         } else {
-            return image.pix;  // Presumably already a gray image.
-         }
-      }
    }
 }
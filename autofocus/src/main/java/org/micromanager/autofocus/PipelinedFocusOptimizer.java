@@ -0,0 +1,344 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           PipelinedFocusOptimizer.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      Autofocusing plug-in for micro-manager and ImageJ
+//-----------------------------------------------------------------------------
+//
+//LICENSE:        This file is distributed under the BSD license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.autofocus;
+
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.swing.SwingUtilities;
+import mmcorej.CMMCore;
+import mmcorej.DoubleVector;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
+import org.micromanager.Studio;
+import org.micromanager.internal.utils.TextUtils;
+
+/**
+ * Autofocus search that keeps the stage and camera busy while images are scored.
+ *
+ * <p>A coarse scan over the search range is scored on binned images, after which
+ * the best position is refined with scans of 5 positions at full resolution, each
+ * scan half the spacing of the previous one, until the spacing is smaller than the
+ * tolerance.  The final position is the vertex of a parabola through the best score
+ * and its neighbours.  Scoring of an image runs on a worker thread while the stage
+ * moves to the next position and the next image is taken.  Scores are cached by z
+ * position, so that a position is never imaged twice within a run.  When requested,
+ * and supported by the focus stage, each scan is executed as a hardware triggered
+ * stage sequence.
+ */
+class PipelinedFocusOptimizer {
+   private static final int FINE_STEPS = 5;
+
+   private final Function<ImageProcessor, Double> imgScoringFunction_;
+   private Studio studio_;
+   private boolean displayImages_ = false;
+   private double searchRange_ = 10;
+   private double absoluteTolerance_ = 1.0;
+   private int coarseSteps_ = 11;
+   private int coarseBinning_ = 4;
+   private boolean useZSequence_ = false;
+   private int imageCount_;
+
+   // state of a single run
+   private ExecutorService scorer_;
+   private int width_;
+   private int height_;
+   private long moveMs_;
+   private long snapMs_;
+   private long waitMs_;
+   private final AtomicLong scoreMs_ = new AtomicLong();
+
+   /**
+    * The constructor takes a function that calculates a focus score.
+    *
+    * @param imgScoringFunction A function that takes an ImageJ `ImageProcessor`
+    *     and returns a double indicating a measure of the images sharpness. A large
+    *     value indicates a sharper image.  Only called from a single worker thread.
+    */
+   PipelinedFocusOptimizer(Function<ImageProcessor, Double> imgScoringFunction) {
+      imgScoringFunction_ = imgScoringFunction;
+   }
+
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   public void setDisplayImages(boolean display) {
+      displayImages_ = display;
+   }
+
+   public int getImageCount() {
+      return imageCount_;
+   }
+
+   public void setSearchRange(double searchRange) {
+      searchRange_ = searchRange;
+   }
+
+   public void setAbsoluteTolerance(double tolerance) {
+      absoluteTolerance_ = tolerance;
+   }
+
+   /**
+    * Sets the number of positions of the coarse scan, at least 3.
+    */
+   public void setCoarseSteps(int steps) {
+      coarseSteps_ = Math.max(3, steps);
+   }
+
+   /**
+    * Sets the binning applied to images of the coarse scan before scoring.
+    */
+   public void setCoarseBinning(int binning) {
+      coarseBinning_ = Math.max(1, binning);
+   }
+
+   /**
+    * Whether to use hardware triggered z sequences when the focus stage supports them.
+    */
+   public void setUseZSequence(boolean use) {
+      useZSequence_ = use;
+   }
+
+   /**
+    * Runs the actual algorithm.
+    *
+    * @return In focus z position.
+    * @throws Exception A common exception is failure to set the Z position in the hardware
+    */
+   public double runAutofocusAlgorithm() throws Exception {
+      final long startTimeMs = System.currentTimeMillis();
+      CMMCore core = studio_.getCMMCore();
+      imageCount_ = 0;
+      moveMs_ = 0;
+      snapMs_ = 0;
+      waitMs_ = 0;
+      scoreMs_.set(0);
+      width_ = (int) core.getImageWidth();
+      height_ = (int) core.getImageHeight();
+      scorer_ = Executors.newSingleThreadExecutor();
+      try {
+         final double z0 = core.getPosition(core.getFocusDevice());
+         final double min = z0 - searchRange_ / 2;
+         final double max = z0 + searchRange_ / 2;
+
+         // coarse scan on binned images, scores are not comparable with full size ones
+         final Map<Long, Double> coarseScores = new HashMap<>();
+         final double step = searchRange_ / (coarseSteps_ - 1);
+         double[] zs = new double[coarseSteps_];
+         for (int i = 0; i < coarseSteps_; i++) {
+            zs[i] = min + i * step;
+         }
+         double[] scores = scan(zs, coarseBinning_, coarseScores);
+         double best = zs[argMax(scores)];
+
+         // refine at full resolution
+         final Map<Long, Double> fineScores = new HashMap<>();
+         double spacing = step / 2;
+         while (true) {
+            zs = new double[FINE_STEPS];
+            for (int i = 0; i < FINE_STEPS; i++) {
+               zs[i] = clip(min, best + (i - FINE_STEPS / 2) * spacing, max);
+            }
+            scores = scan(zs, 1, fineScores);
+            best = parabolicPeak(zs, scores, spacing);
+            if (spacing <= absoluteTolerance_) {
+               break;
+            }
+            spacing /= 2;
+         }
+         studio_.logs().logMessage("OughtaFocus pipelined: images=" + imageCount_
+               + ", z=" + TextUtils.FMT2.format(best)
+               + ", dz=" + TextUtils.FMT2.format(best - z0)
+               + ", t=" + (System.currentTimeMillis() - startTimeMs)
+               + ", Tmove=" + moveMs_ + ", Tsnap=" + snapMs_
+               + ", Tscore=" + scoreMs_.get() + ", Twait=" + waitMs_);
+         return best;
+      } finally {
+         scorer_.shutdownNow();
+         scorer_ = null;
+      }
+   }
+
+   /**
+    * Images and scores all positions that are not yet in the cache.
+    *
+    * @return scores of all positions, in the order of zs
+    */
+   private double[] scan(double[] zs, int binning, Map<Long, Double> cache) throws Exception {
+      List<Double> todo = new ArrayList<>();
+      Set<Long> keys = new HashSet<>();
+      for (double z : zs) {
+         if (!cache.containsKey(key(z)) && keys.add(key(z))) {
+            todo.add(z);
+         }
+      }
+      List<Future<Double>> futures = new ArrayList<>(todo.size());
+      CMMCore core = studio_.getCMMCore();
+      String focusDevice = core.getFocusDevice();
+      if (useZSequence_ && todo.size() > 1 && core.isStageSequenceable(focusDevice)
+            && core.getStageSequenceMaxLength(focusDevice) >= todo.size()) {
+         acquireSequence(todo, binning, futures);
+      } else {
+         for (double z : todo) {
+            long start = System.currentTimeMillis();
+            core.setPosition(z);
+            core.waitForDevice(focusDevice);
+            long moved = System.currentTimeMillis();
+            core.waitForDevice(core.getCameraDevice());
+            core.snapImage();
+            TaggedImage img = core.getTaggedImage();
+            snapMs_ += System.currentTimeMillis() - moved;
+            moveMs_ += moved - start;
+            futures.add(submitScore(z, img, binning));
+         }
+      }
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < futures.size(); i++) {
+         cache.put(key(todo.get(i)), futures.get(i).get());
+      }
+      waitMs_ += System.currentTimeMillis() - start;
+      double[] scores = new double[zs.length];
+      for (int i = 0; i < zs.length; i++) {
+         scores[i] = cache.get(key(zs[i]));
+      }
+      return scores;
+   }
+
+   private void acquireSequence(List<Double> zs, int binning, List<Future<Double>> futures)
+         throws Exception {
+      CMMCore core = studio_.getCMMCore();
+      String focusDevice = core.getFocusDevice();
+      long start = System.currentTimeMillis();
+      core.setPosition(zs.get(0));
+      core.waitForDevice(focusDevice);
+      DoubleVector positions = new DoubleVector();
+      for (double z : zs) {
+         positions.add(z);
+      }
+      core.loadStageSequence(focusDevice, positions);
+      moveMs_ += System.currentTimeMillis() - start;
+      start = System.currentTimeMillis();
+      try {
+         core.startStageSequence(focusDevice);
+         core.startSequenceAcquisition(zs.size(), 0, true);
+         while (futures.size() < zs.size()) {
+            if (core.getRemainingImageCount() > 0) {
+               TaggedImage img = core.popNextTaggedImage();
+               futures.add(submitScore(zs.get(futures.size()), img, binning));
+            } else if (core.isSequenceRunning()) {
+               Thread.sleep(1);
+            } else {
+               throw new Exception("Z sequence ended after " + futures.size() + " of "
+                     + zs.size() + " images");
+            }
+         }
+      } finally {
+         if (core.isSequenceRunning()) {
+            core.stopSequenceAcquisition();
+         }
+         core.stopStageSequence(focusDevice);
+         snapMs_ += System.currentTimeMillis() - start;
+      }
+   }
+
+   private Future<Double> submitScore(final double z, final TaggedImage img, final int binning) {
+      final int imageNr = imageCount_++;
+      if (displayImages_) {
+         SwingUtilities.invokeLater(() -> {
+            try {
+               studio_.live().displayImage(studio_.data().convertTaggedImage(img));
+            } catch (JSONException | IllegalArgumentException e) {
+               studio_.logs().showError(e);
+            }
+         });
+      }
+      return scorer_.submit(() -> {
+         long start = System.currentTimeMillis();
+         ImageProcessor proc = OughtaFocus.makeMonochromeProcessor(width_, height_,
+               OughtaFocus.getMonochromePixels(img));
+         if (binning > 1) {
+            proc = proc.bin(binning);
+         }
+         double score = imgScoringFunction_.apply(proc);
+         long duration = System.currentTimeMillis() - start;
+         scoreMs_.addAndGet(duration);
+         studio_.logs().logMessage("OughtaFocus: image=" + imageNr
+               + ", z=" + TextUtils.FMT2.format(z)
+               + ", binning=" + binning
+               + ", score=" + TextUtils.FMT2.format(score)
+               + ", Tc=" + duration);
+         return score;
+      });
+   }
+
+   /**
+    * Vertex of the parabola through the highest score and its neighbours, limited
+    * to within spacing of the highest score.
+    */
+   private static double parabolicPeak(double[] zs, double[] scores, double spacing) {
+      int best = argMax(scores);
+      if (best == 0 || best == zs.length - 1) {
+         return zs[best];
+      }
+      double x1 = zs[best - 1];
+      double x2 = zs[best];
+      double x3 = zs[best + 1];
+      double y1 = scores[best - 1];
+      double y2 = scores[best];
+      double y3 = scores[best + 1];
+      double denominator = (x1 - x2) * (x1 - x3) * (x2 - x3);
+      double a = (x3 * (y2 - y1) + x2 * (y1 - y3) + x1 * (y3 - y2)) / denominator;
+      double b = (x3 * x3 * (y1 - y2) + x2 * x2 * (y3 - y1) + x1 * x1 * (y2 - y3))
+            / denominator;
+      if (!(a < 0.0)) {
+         return x2;
+      }
+      return clip(x2 - spacing, -b / (2 * a), x2 + spacing);
+   }
+
+   private static int argMax(double[] values) {
+      int best = 0;
+      for (int i = 1; i < values.length; i++) {
+         if (values[i] > values[best]) {
+            best = i;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Cache key for a z position, positions within 1 nm are considered the same.
+    */
+   private static long key(double z) {
+      return Math.round(z * 1000.0);
+   }
+
+   private static double clip(double min, double val, double max) {
+      return Math.min(Math.max(min, val), max);
+   }
+}
@@ -40,11 +40,12 @@
 package edu.ucsf.valelab.gaussianfit;
 
 import com.google.common.eventbus.Subscribe;
+import edu.ucsf.valelab.gaussianfit.data.ColumnarSpotFormat;
 import edu.ucsf.valelab.gaussianfit.data.LoadAndSave;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import edu.ucsf.valelab.gaussianfit.datasetdisplay.ImageRenderer;
 import edu.ucsf.valelab.gaussianfit.datasetdisplay.ParticlePairLister;
+import edu.ucsf.valelab.gaussianfit.datasetdisplay.TiledImageRenderer;
 import edu.ucsf.valelab.gaussianfit.datasetdisplay.TrackPlotter;
 import edu.ucsf.valelab.gaussianfit.datasettransformations.CoordinateMapper;
 import edu.ucsf.valelab.gaussianfit.datasettransformations.DriftCorrector;
@@ -150,7 +151,8 @@ public class DataCollectionForm extends JFrame {
             {"1x", "2x", "4x", "8x", "16x", "32x", "64x", "128x"};
    private final String[] c2CorrectAlgorithms_ =
             {"NR-Similarity", "Affine", "Piecewise-Affine", "LWM"};
-   private final String[] fileFormats_ = {"Binary", "Text"};
+   private final String[] fileFormats_ =
+            {"Binary", "Text", "Columnar", "Columnar (compressed)"};
 
    public static final String EXTENSION = ".tsf";
 
@@ -174,6 +176,7 @@ public class DataCollectionForm extends JFrame {
    private static final String RENDERMAG = "VisualizationMagnification";
    private static final String PAIRSMAXDISTANCE = "PairsMaxDistance";
    private static final String METHOD2C = "MethodFor2CCorrection";
+   private static final String USE2CGRID = "Use2CGrid";
    private static final String COL0WIDTH = "Col0Width";
    private static final String COL1WIDTH = "Col1Width";
    private static final String COL2WIDTH = "Col2Width";
@@ -189,7 +192,7 @@ public class DataCollectionForm extends JFrame {
    private static final FileType TSF_FILE = new FileType("TSF File",
          "Tagged Spot Format file",
          "./data.tsf",
-         false, new String[]{"txt", "tsf"});
+         false, new String[]{"txt", "tsf", "csf"});
 
    private static CoordinateMapper c2t_;
    private static String loadTSFDir_ = "";
@@ -205,6 +208,7 @@ public class DataCollectionForm extends JFrame {
    private JComboBox saveFormatBox_;
    private JTextField pairsMaxDistanceField_;
    private JComboBox method2CBox_;
+   private JCheckBox use2CGridCheckBox_;
    private JLabel reference2CName_;
    private JCheckBox logLogCheckBox_;
    private JComboBox plotComboBox_;
@@ -236,11 +240,14 @@ public class DataCollectionForm extends JFrame {
 
    /**
     * Method to allow scripts to tune the jitter corrector
+    * 0 - fixed number of frames per sub-image, 1 - frames and spots limited by
+    * setJitterMaxFrames and setJitterMaxSpots, 2 - same as 1, but
+    * multi-threaded, 3 - multi-threaded redundant cross-correlation (RCC)
     *
     * @param jm
     */
    public void setJitterMethod(int jm) {
-      if (jm == 0 || jm == 1) {
+      if (jm >= 0 && jm <= 3) {
          jitterMethod_ = jm;
       }
    }
@@ -344,6 +351,7 @@ public class DataCollectionForm extends JFrame {
       visualizationMagnification_.setSelectedIndex(up.getInt(oc, RENDERMAG, 0));
       pairsMaxDistanceField_.setText(settings_.getString(PAIRSMAXDISTANCE, "500"));
       method2CBox_.setSelectedItem(settings_.getString(METHOD2C, "LWM"));
+      use2CGridCheckBox_.setSelected(settings_.getBoolean(USE2CGRID, false));
 
       mainTable_.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
       TableColumnModel cm = mainTable_.getColumnModel();
@@ -461,6 +469,7 @@ public class DataCollectionForm extends JFrame {
       pairsMaxDistanceField_ = new JTextField();
       reference2CName_ = new JLabel("  ");
       method2CBox_ = new JComboBox();
+      use2CGridCheckBox_ = new JCheckBox("Fast (grid interpolation)");
       saveFormatBox_ = new JComboBox();
       mainTable_ = new DataTable();
 
@@ -646,6 +655,9 @@ public class DataCollectionForm extends JFrame {
       c2CorrectButton.setMaximumSize(buttonSize);
       c2Panel.add(c2CorrectButton, "span 2, gapleft 40, gapright 40, wrap");
 
+      use2CGridCheckBox_.setFont(gFont);
+      c2Panel.add(use2CGridCheckBox_, "span 2, gapleft 40, wrap");
+
       JButton listPairsButton = new JButton("List Pairs");
       listPairsButton.setFont(gFont);
       listPairsButton.addActionListener(new java.awt.event.ActionListener() {
@@ -1128,6 +1140,8 @@ public class DataCollectionForm extends JFrame {
             LoadAndSave.loadTSF(selectedFile, this);
          } else if (selectedFile.getName().endsWith(".bin")) {
             LoadAndSave.loadBin(selectedFile, this);
+         } else if (selectedFile.getName().endsWith(ColumnarSpotFormat.EXTENSION)) {
+            LoadAndSave.loadColumnar(selectedFile, this);
          } else {
             JOptionPane.showMessageDialog(this, "Unrecognized file extension");
          }
@@ -1144,8 +1158,12 @@ public class DataCollectionForm extends JFrame {
          }
          if (saveFormatBox_.getSelectedIndex() == 0) {
             dir_ = LoadAndSave.saveData(rowData, false, dir_, this);
-         } else {
+         } else if (saveFormatBox_.getSelectedIndex() == 1) {
             dir_ = LoadAndSave.saveDataAsText(rowData, dir_, this);
+         } else {
+            // uncompressed files are memory mapped when read, compressed ones are smaller
+            dir_ = LoadAndSave.saveDataAsColumnar(rowData, dir_,
+                  saveFormatBox_.getSelectedIndex() == 3, this);
          }
 
       } else {
@@ -1309,6 +1327,9 @@ public class DataCollectionForm extends JFrame {
             public void run() {
                if (jitterMethod_ == 0) {
                   DriftCorrector.unJitter(mainTableModel_.getRow(row));
+               } else if (jitterMethod_ == 2 || jitterMethod_ == 3) {
+                  new DriftCorrector().unJitterParallel(mainTableModel_.getRow(row),
+                        jitterMaxFrames_, jitterMaxSpots_, jitterMethod_ == 3);
                } else {
                   new DriftCorrector().unJitter2(mainTableModel_.getRow(row),
                         jitterMaxFrames_, jitterMaxSpots_);
@@ -1329,6 +1350,7 @@ public class DataCollectionForm extends JFrame {
       settings_.putInteger(FRAMEHEIGHT, getHeight());
 
       settings_.putBoolean(USESIGMA, filterSigmaCheckBox_.isSelected());
+      settings_.putBoolean(USE2CGRID, use2CGridCheckBox_.isSelected());
       settings_.putString(SIGMAMIN, sigmaMin_.getText());
       settings_.putString(SIGMAMAX, sigmaMax_.getText());
       settings_.putBoolean(USEINT, filterIntensityCheckBox_.isSelected());
@@ -1446,7 +1468,7 @@ public class DataCollectionForm extends JFrame {
                   final String title = ttmp;
                   ImagePlus sp;
                   if (rowData.hasZ_) {
-                     ImageStack is = ImageRenderer.renderData3D(rowData,
+                     ImageStack is = new TiledImageRenderer().render3D(rowData,
                            visualizationModel_.getSelectedIndex(), mag, null, sf);
                      sp = new ImagePlus(title, is);
                      DisplayUtils.autoStretch(sp);
@@ -1454,7 +1476,7 @@ public class DataCollectionForm extends JFrame {
                      sp.show();
 
                   } else {
-                     ImageProcessor ip = ImageRenderer.renderData(rowData,
+                     ImageProcessor ip = new TiledImageRenderer().render(rowData,
                            visualizationModel_.getSelectedIndex(), mag, null, sf);
                      sp = new ImagePlus(title, ip);
 
@@ -2326,40 +2348,61 @@ public class DataCollectionForm extends JFrame {
          @Override
          public void run() {
 
-            List<SpotData> correctedData =
-                  Collections.synchronizedList(new ArrayList<SpotData>());
-            Iterator it = rowData.spotList_.iterator();
-            int frameNr = 0;
-            while (it.hasNext()) {
-               SpotData gs = (SpotData) it.next();
-               if (gs.getFrame() != frameNr) {
-                  frameNr = gs.getFrame();
-                  ij.IJ.showStatus("Executing color correction...");
-                  ij.IJ.showProgress(frameNr, rowData.nrFrames_);
+            List<SpotData> ch1Spots = new ArrayList<SpotData>();
+            for (SpotData gs : rowData.spotList_) {
+               if (gs.getChannel() == 1) {
+                  ch1Spots.add(gs);
+               }
+            }
+            final double[] xs = new double[ch1Spots.size()];
+            final double[] ys = new double[ch1Spots.size()];
+            for (int i = 0; i < xs.length; i++) {
+               xs[i] = ch1Spots.get(i).getXCenter();
+               ys[i] = ch1Spots.get(i).getYCenter();
+            }
+
+            double[][] corPoints;
+            try {
+               // Interpolating in a grid of precomputed transforms is approximate, so
+               // only done when asked for, and only pays off when there are more spots
+               // than grid nodes
+               if (!use2CGridCheckBox_.isSelected()) {
+                  c2t_.clearGrid();
+               } else if (c2t_.getGridNodeCount() == 0 && xs.length
+                     > CoordinateMapper.DEFAULT_GRID_SIZE * CoordinateMapper.DEFAULT_GRID_SIZE) {
+                  ij.IJ.showStatus("Precomputing color correction grid...");
+                  c2t_.precomputeGrid();
                }
+               ij.IJ.showStatus("Executing color correction...");
+               corPoints = c2t_.transform(xs, ys);
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+               ij.IJ.showStatus("");
+               semaphore_.release();
+               return;
+            }
+
+            List<SpotData> correctedData = new ArrayList<SpotData>(rowData.spotList_.size());
+            int ch1Index = 0;
+            for (SpotData gs : rowData.spotList_) {
                if (gs.getChannel() == 1) {
-                  Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                  try {
-                     Point2D.Double corPoint = c2t_.transform(point);
+                  final double x = corPoints[0][ch1Index];
+                  final double y = corPoints[1][ch1Index];
+                  ch1Index++;
+                  if (!Double.isNaN(x) && !Double.isNaN(y)) {
                      SpotData gsn = new SpotData(gs);
-                     if (corPoint != null) {
-                        gsn.setXCenter(corPoint.x);
-                        gsn.setYCenter(corPoint.y);
-                        correctedData.add(gsn);
-                     } else {
-                        ReportingUtils.logError(
-                              "Failed to match spot in channel 1, at "
-                                    + gs.getX() + "-" + gs.getY() + ", micron: "
-                                    + gs.getXCenter() + "-" + gs.getYCenter());
-                     }
-
-                  } catch (Exception ex) {
-                     ReportingUtils.logError(ex);
+                     gsn.setXCenter(x);
+                     gsn.setYCenter(y);
+                     correctedData.add(gsn);
+                  } else {
+                     ReportingUtils.logError(
+                           "Failed to match spot in channel 1, at "
+                                 + gs.getX() + "-" + gs.getY() + ", micron: "
+                                 + gs.getXCenter() + "-" + gs.getYCenter());
                   }
                } else if (gs.getChannel() == 2) {
                   correctedData.add(gs);
                }
-
             }
 
             // Add transformed data to data overview window
@@ -33,11 +33,21 @@ package edu.ucsf.valelab.gaussianfit;
 
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import edu.ucsf.valelab.gaussianfit.datasetdisplay.TiledImageRenderer;
+import edu.ucsf.valelab.gaussianfit.utils.DisplayUtils;
 import ij.ImagePlus;
 import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
 import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Image;
 import java.awt.Rectangle;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Nico Stuurman
@@ -54,6 +64,38 @@ public class GaussCanvas extends ImageCanvas {
    final int orImageHeight_;
    SpotDataFilter sf_;
 
+   /**
+    * Visible area rendered at the resolution of the screen, drawn instead of
+    * the enlarged pixels of the image when zoomed in.
+    */
+   private static class Viewport {
+
+      final Rectangle srcRect_;
+      final double magnification_;
+      final Image image_;
+
+      Viewport(Rectangle srcRect, double magnification, Image image) {
+         srcRect_ = srcRect;
+         magnification_ = magnification;
+         image_ = image;
+      }
+
+      boolean shows(Rectangle srcRect, double magnification) {
+         return srcRect_.equals(srcRect) && magnification_ == magnification;
+      }
+   }
+
+   private final TiledImageRenderer renderer_ = new TiledImageRenderer();
+   // renders viewports one at a time, the thread exits when idle
+   private final ThreadPoolExecutor viewportExecutor_ = new ThreadPoolExecutor(1, 1,
+         5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "GaussCanvas viewport renderer");
+            t.setDaemon(true);
+            return t;
+         });
+   private volatile Viewport viewport_;
+   private Viewport requested_;
+
 
    public GaussCanvas(ImagePlus sp, RowData rowData,
          int renderMode, double initialMag, SpotDataFilter sf) {
@@ -65,6 +107,57 @@ public class GaussCanvas extends ImageCanvas {
       sf_ = sf;
       orImageWidth_ = sp.getWidth();
       orImageHeight_ = sp.getHeight();
+      viewportExecutor_.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * When zoomed in, draws the visible area re-rendered from the spot data
+    * rather than enlarged pixels.  Rendering happens in the background; until
+    * it is done, the enlarged image is shown.
+    */
+   @Override
+   public void paint(Graphics g) {
+      final Viewport viewport = viewport_;
+      if (magnification > 1.0 && viewport != null
+            && viewport.shows(srcRect, magnification)) {
+         g.drawImage(viewport.image_, 0, 0, null);
+         Roi roi = imp.getRoi();
+         if (roi != null) {
+            roi.draw(g);
+         }
+         return;
+      }
+      super.paint(g);
+      if (magnification > 1.0) {
+         requestViewport(new Rectangle(srcRect), magnification);
+      }
+   }
+
+   private synchronized void requestViewport(final Rectangle rect, final double mag) {
+      if (requested_ != null && requested_.shows(rect, mag)) {
+         return;
+      }
+      final Viewport request = new Viewport(rect, mag, null);
+      requested_ = request;
+      viewportExecutor_.execute(() -> {
+         synchronized (GaussCanvas.this) {
+            // zoomed or scrolled again in the meantime
+            if (requested_ != request) {
+               return;
+            }
+         }
+         ImageProcessor ip = renderer_.renderViewport(rowData_, renderMethod_,
+               originalMag_, mag, rect, sf_);
+         if (ip == null) {
+            return;
+         }
+         if (!(ip instanceof ColorProcessor)) {
+            ip.setColorModel(imp.getProcessor().getColorModel());
+            DisplayUtils.autoStretch(new ImagePlus("", ip));
+         }
+         viewport_ = new Viewport(rect, mag, ip.createImage());
+         repaint();
+      });
    }
 
    /**
@@ -0,0 +1,356 @@
+/*
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import ij.process.FHT;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Thread-safe variant of the JitterDetector that works on raw float arrays.
+ *
+ * <p>Images are square with a power of 2 edge size, and are transformed
+ * in place into the Hartley domain.  Each worker thread keeps its own FHT
+ * (which caches the sin/cos and bit reversal tables, i.e. the "plan") and its
+ * own product buffer, so that no tables or buffers are allocated per
+ * correlation.
+ *
+ * <p>Shifts are returned in pixels and follow the sign convention of the
+ * JitterDetector as used by the DriftCorrector: a positive value means that the
+ * test image is displaced in the positive direction relative to the reference.
+ *
+ * <p>Besides correlation against a single reference, this class implements
+ * redundant cross-correlation (RCC, Wang et al., Optics Express 2014): all
+ * pairs of images are correlated, and the drift of each image is found as the
+ * least squares solution of the over-determined system of pairwise shifts,
+ * after removing pairs that do not agree with the global solution.
+ */
+public class ParallelJitterDetector {
+
+   private final int size_;
+   private final int searchSize_;
+   private final ExecutorService threadPool_;
+   private final ThreadLocal<Workspace> workspace_;
+
+   private static class Workspace {
+
+      final FHT plan_;
+      final float[] product_;
+
+      Workspace(int size) {
+         plan_ = new FHT();
+         plan_.setShowProgress(false);
+         product_ = new float[size * size];
+      }
+   }
+
+   /**
+    * @param size       - edge size of the images, should be a power of 2
+    * @param searchSize - edge size of the square around zero displacement in
+    *                   which the correlation peak is searched
+    * @param threadPool - executor used to run correlations in parallel
+    */
+   public ParallelJitterDetector(final int size, int searchSize, ExecutorService threadPool) {
+      if (!FHT.isPowerOf2(size)) {
+         throw new IllegalArgumentException("Image size should be a power of 2");
+      }
+      size_ = size;
+      searchSize_ = Math.min(searchSize, size);
+      threadPool_ = threadPool;
+      workspace_ = new ThreadLocal<Workspace>() {
+         @Override
+         protected Workspace initialValue() {
+            return new Workspace(size);
+         }
+      };
+   }
+
+   public int getSize() {
+      return size_;
+   }
+
+   /**
+    * Transforms the given image in place into the Hartley domain.
+    *
+    * @param image - size x size pixels, row major
+    */
+   public void transform(float[] image) {
+      workspace_.get().plan_.rc2DFHT(image, false, size_);
+   }
+
+   /**
+    * Determines the displacement of test relative to ref.
+    *
+    * @param ref  - Hartley transform of the reference image
+    * @param test - Hartley transform of the test image
+    * @return displacement in pixels
+    */
+   public Point2D.Double getShift(float[] ref, float[] test) {
+      Workspace ws = workspace_.get();
+      conjugateMultiply(ref, test, ws.product_, size_);
+      ws.plan_.rc2DFHT(ws.product_, true, size_);
+      Point2D.Double peak = findPeak(ws.product_, size_, searchSize_);
+      // the correlation peak is located opposite to the displacement
+      peak.x = -peak.x;
+      peak.y = -peak.y;
+      return peak;
+   }
+
+   /**
+    * Determines the displacement of every image relative to the first one.
+    * Correlations are executed in parallel.
+    *
+    * @param transforms - Hartley transforms of the images
+    * @return displacement of every image in pixels
+    * @throws InterruptedException when interrupted while waiting for results
+    * @throws ExecutionException   when one of the correlations failed
+    */
+   public Point2D.Double[] driftToReference(final float[][] transforms)
+         throws InterruptedException, ExecutionException {
+      List<Future<Point2D.Double>> futures = new ArrayList<Future<Point2D.Double>>();
+      for (int i = 1; i < transforms.length; i++) {
+         final int index = i;
+         futures.add(threadPool_.submit(new Callable<Point2D.Double>() {
+            @Override
+            public Point2D.Double call() {
+               return getShift(transforms[0], transforms[index]);
+            }
+         }));
+      }
+      Point2D.Double[] result = new Point2D.Double[transforms.length];
+      result[0] = new Point2D.Double(0.0, 0.0);
+      for (int i = 1; i < transforms.length; i++) {
+         result[i] = futures.get(i - 1).get();
+      }
+      return result;
+   }
+
+   /**
+    * Determines the displacement of every image relative to the first one
+    * using redundant cross-correlation.  All n(n-1)/2 pairwise correlations are
+    * executed in parallel, after which the drift is solved for globally.
+    *
+    * @param transforms  - Hartley transforms of the images
+    * @param maxResidual - pairs whose shift deviates more than this amount
+    *                    (in pixels) from the global solution are discarded and
+    *                    the drift is solved again
+    * @return displacement of every image in pixels
+    * @throws InterruptedException when interrupted while waiting for results
+    * @throws ExecutionException   when one of the correlations failed
+    */
+   public Point2D.Double[] driftRCC(final float[][] transforms, double maxResidual)
+         throws InterruptedException, ExecutionException {
+      final int n = transforms.length;
+      if (n < 2) {
+         return driftToReference(transforms);
+      }
+      List<int[]> pairs = new ArrayList<int[]>();
+      List<Future<Point2D.Double>> futures = new ArrayList<Future<Point2D.Double>>();
+      for (int i = 0; i < n - 1; i++) {
+         for (int j = i + 1; j < n; j++) {
+            final int first = i;
+            final int second = j;
+            pairs.add(new int[] {i, j});
+            futures.add(threadPool_.submit(new Callable<Point2D.Double>() {
+               @Override
+               public Point2D.Double call() {
+                  return getShift(transforms[first], transforms[second]);
+               }
+            }));
+         }
+      }
+      Point2D.Double[] shifts = new Point2D.Double[pairs.size()];
+      for (int p = 0; p < shifts.length; p++) {
+         shifts[p] = futures.get(p).get();
+      }
+
+      boolean[] use = new boolean[pairs.size()];
+      Arrays.fill(use, true);
+      Point2D.Double[] drift = solveRCC(n, pairs, shifts, use);
+      boolean removed = false;
+      for (int p = 0; p < pairs.size(); p++) {
+         int[] pair = pairs.get(p);
+         double dx = drift[pair[1]].x - drift[pair[0]].x - shifts[p].x;
+         double dy = drift[pair[1]].y - drift[pair[0]].y - shifts[p].y;
+         if (Math.sqrt(dx * dx + dy * dy) > maxResidual) {
+            use[p] = false;
+            removed = true;
+         }
+      }
+      if (removed) {
+         Point2D.Double[] refined = solveRCC(n, pairs, shifts, use);
+         if (refined != null) {
+            drift = refined;
+         }
+      }
+      return drift;
+   }
+
+   /**
+    * Least squares solution of drift[j] - drift[i] = shift(i,j) with drift[0] = 0.
+    *
+    * @return drift per image, or null if the used pairs do not connect all images
+    */
+   private static Point2D.Double[] solveRCC(int n, List<int[]> pairs, Point2D.Double[] shifts,
+         boolean[] use) {
+      RealMatrix a = new Array2DRowRealMatrix(n - 1, n - 1);
+      RealVector bx = new ArrayRealVector(n - 1);
+      RealVector by = new ArrayRealVector(n - 1);
+      for (int p = 0; p < pairs.size(); p++) {
+         if (!use[p]) {
+            continue;
+         }
+         // unknowns are drift[1] .. drift[n-1]
+         int i = pairs.get(p)[0] - 1;
+         int j = pairs.get(p)[1] - 1;
+         a.addToEntry(j, j, 1.0);
+         bx.addToEntry(j, shifts[p].x);
+         by.addToEntry(j, shifts[p].y);
+         if (i >= 0) {
+            a.addToEntry(i, i, 1.0);
+            a.addToEntry(i, j, -1.0);
+            a.addToEntry(j, i, -1.0);
+            bx.addToEntry(i, -shifts[p].x);
+            by.addToEntry(i, -shifts[p].y);
+         }
+      }
+      Point2D.Double[] drift = new Point2D.Double[n];
+      drift[0] = new Point2D.Double(0.0, 0.0);
+      try {
+         DecompositionSolver solver = new LUDecomposition(a).getSolver();
+         RealVector x = solver.solve(bx);
+         RealVector y = solver.solve(by);
+         for (int i = 1; i < n; i++) {
+            drift[i] = new Point2D.Double(x.getEntry(i - 1), y.getEntry(i - 1));
+         }
+      } catch (SingularMatrixException sme) {
+         if (allPairsUsed(use)) {
+            // should never happen with a complete set of pairs
+            throw sme;
+         }
+         return null;
+      }
+      return drift;
+   }
+
+   private static boolean allPairsUsed(boolean[] use) {
+      for (boolean u : use) {
+         if (!u) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Multiplies the Hartley transform h1 with the complex conjugate of h2.
+    * Equivalent to ij.process.FHT.conjugateMultiply, but writes into a
+    * pre-allocated buffer.
+    */
+   static void conjugateMultiply(float[] h1, float[] h2, float[] result, int maxN) {
+      for (int r = 0; r < maxN; r++) {
+         int rowMod = (maxN - r) % maxN;
+         for (int c = 0; c < maxN; c++) {
+            int colMod = (maxN - c) % maxN;
+            double h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
+            double h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+            result[r * maxN + c] = (float) (h1[r * maxN + c] * h2e
+                  - h1[rowMod * maxN + colMod] * h2o);
+         }
+      }
+   }
+
+   /**
+    * Finds the sub-pixel position of the correlation maximum within searchSize
+    * of zero displacement.  The correlation image is not quadrant swapped, so
+    * negative displacements wrap around.
+    */
+   static Point2D.Double findPeak(float[] corr, int size, int searchSize) {
+      int half = searchSize / 2;
+      int bestX = 0;
+      int bestY = 0;
+      float max = Float.NEGATIVE_INFINITY;
+      for (int dy = -half; dy < half; dy++) {
+         int row = ((dy + size) % size) * size;
+         for (int dx = -half; dx < half; dx++) {
+            float value = corr[row + (dx + size) % size];
+            if (value > max) {
+               max = value;
+               bestX = dx;
+               bestY = dy;
+            }
+         }
+      }
+      double subX = interpolate(value(corr, size, bestX - 1, bestY), max,
+            value(corr, size, bestX + 1, bestY));
+      double subY = interpolate(value(corr, size, bestX, bestY - 1), max,
+            value(corr, size, bestX, bestY + 1));
+      return new Point2D.Double(bestX + subX, bestY + subY);
+   }
+
+   private static float value(float[] corr, int size, int x, int y) {
+      return corr[((y + size) % size) * size + (x + size) % size];
+   }
+
+   /**
+    * Sub-pixel offset of a maximum from three neighbouring values.  Uses a
+    * Gaussian fit when all values are positive, and a parabola otherwise.
+    */
+   private static double interpolate(double left, double center, double right) {
+      if (left > 0 && center > 0 && right > 0) {
+         double ll = Math.log(left);
+         double lc = Math.log(center);
+         double lr = Math.log(right);
+         double denominator = 2.0 * (ll - 2.0 * lc + lr);
+         if (denominator < 0.0) {
+            return (ll - lr) / denominator;
+         }
+      }
+      double denominator = 2.0 * (left - 2.0 * center + right);
+      if (denominator < 0.0) {
+         return (left - right) / denominator;
+      }
+      return 0.0;
+   }
+
+}
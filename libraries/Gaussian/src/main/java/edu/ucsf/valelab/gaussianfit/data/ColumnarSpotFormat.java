@@ -0,0 +1,669 @@
+/*
+ * Chunked, column oriented binary storage of localization data
+ *
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes spot data in a chunked, column oriented binary format.
+ *
+ * <p>Spots are written in chunks of a fixed number of spots.  Within a chunk,
+ * every field of SpotData is stored as a contiguous block of ints or doubles,
+ * so that a chunk can be converted with bulk buffer operations rather than
+ * spot by spot.  Chunks can optionally be compressed (Deflate).  An index at
+ * the end of the file records the location and frame range of each chunk,
+ * which makes it possible to only read the chunks containing the frames of
+ * interest.  Uncompressed chunks are read through memory mapping.
+ *
+ * <p>File layout (big endian):
+ * <pre>
+ * int magic, int version, int flags, int chunkSize, long indexOffset,
+ * int metadataLength, byte[metadataLength] metadata,
+ * chunks...,
+ * int nrChunks, nrChunks * (long offset, int storedLength, int rawLength,
+ *                           int nrSpots, int minFrame, int maxFrame)
+ * </pre>
+ *
+ * <p>Values stored in the SpotData key-value map are written as extra double
+ * columns, where NaN indicates that a spot does not have that key.
+ */
+public class ColumnarSpotFormat {
+
+   public static final String EXTENSION = ".csf";
+   public static final int DEFAULT_CHUNK_SIZE = 65536;
+
+   private static final int MAGIC = 0x4D4D4353; // "MMCS"
+   private static final int VERSION = 1;
+   private static final int FLAG_COMPRESSED = 1;
+   private static final int INDEX_OFFSET_POSITION = 16;
+   private static final int INDEX_ENTRY_SIZE = 8 + 5 * 4;
+
+   // int columns
+   private static final int FRAME = 0;
+   private static final int CHANNEL = 1;
+   private static final int SLICE = 2;
+   private static final int POSITION = 3;
+   private static final int NR = 4;
+   private static final int X = 5;
+   private static final int Y = 6;
+   private static final int NRLINKS = 7;
+   private static final int ORIGINALFRAME = 8;
+   private static final int NR_INT_COLUMNS = 9;
+
+   // double columns
+   private static final int INTENSITY = 0;
+   private static final int BACKGROUND = 1;
+   private static final int XCENTER = 2;
+   private static final int YCENTER = 3;
+   private static final int ZCENTER = 4;
+   private static final int XORI = 5;
+   private static final int YORI = 6;
+   private static final int ZORI = 7;
+   private static final int WIDTH = 8;
+   private static final int A = 9;
+   private static final int THETA = 10;
+   private static final int SIGMA = 11;
+   private static final int NR_DOUBLE_COLUMNS = 12;
+
+   private ColumnarSpotFormat() {
+   }
+
+   /**
+    * Location and content description of a single chunk.
+    */
+   private static class ChunkInfo {
+
+      long offset_;
+      int storedLength_;
+      int rawLength_;
+      int nrSpots_;
+      int minFrame_;
+      int maxFrame_;
+   }
+
+   /**
+    * Summary of a file, read from its index.
+    */
+   public static final class FileInfo {
+
+      private final long nrSpots_;
+      private final int nrChunks_;
+      private final int firstFrame_;
+      private final int lastFrame_;
+
+      FileInfo(long nrSpots, int nrChunks, int firstFrame, int lastFrame) {
+         nrSpots_ = nrSpots;
+         nrChunks_ = nrChunks;
+         firstFrame_ = firstFrame;
+         lastFrame_ = lastFrame;
+      }
+
+      public long getNrSpots() {
+         return nrSpots_;
+      }
+
+      public int getNrChunks() {
+         return nrChunks_;
+      }
+
+      public int getFirstFrame() {
+         return firstFrame_;
+      }
+
+      public int getLastFrame() {
+         return lastFrame_;
+      }
+   }
+
+   /**
+    * Writes the given row to file.
+    *
+    * @param rowData   - data to be saved
+    * @param file      - destination file, will be overwritten
+    * @param compress  - whether to compress chunks
+    * @param chunkSize - maximum number of spots per chunk
+    * @throws IOException when writing failed
+    */
+   public static void write(RowData rowData, File file, boolean compress, int chunkSize)
+         throws IOException {
+      if (chunkSize < 1) {
+         throw new IllegalArgumentException("Chunk size should be larger than 0");
+      }
+      List<SpotData> spots = new ArrayList<SpotData>(rowData.spotList_.size());
+      Set<String> keySet = new TreeSet<String>();
+      for (SpotData spot : rowData.spotList_) {
+         if (spot != null) {
+            spots.add(spot);
+            for (String key : spot.getKeys()) {
+               keySet.add(key);
+            }
+         }
+      }
+      final String[] keys = keySet.toArray(new String[keySet.size()]);
+
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         FileChannel fc = raf.getChannel();
+         byte[] metadata = encodeMetadata(rowData, keys);
+         ByteBuffer header = ByteBuffer.allocate(INDEX_OFFSET_POSITION + 8 + 4);
+         header.putInt(MAGIC).putInt(VERSION).putInt(compress ? FLAG_COMPRESSED : 0)
+               .putInt(chunkSize).putLong(0L).putInt(metadata.length);
+         header.flip();
+         writeFully(fc, header);
+         writeFully(fc, ByteBuffer.wrap(metadata));
+
+         List<ChunkInfo> chunks = new ArrayList<ChunkInfo>();
+         Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+         try {
+            for (int start = 0; start < spots.size(); start += chunkSize) {
+               int end = Math.min(start + chunkSize, spots.size());
+               ChunkInfo chunk = new ChunkInfo();
+               ByteBuffer raw = encodeChunk(spots.subList(start, end), keys, chunk);
+               chunk.offset_ = fc.position();
+               chunk.rawLength_ = raw.limit();
+               if (deflater != null) {
+                  byte[] packed = deflate(deflater, raw.array(), raw.limit());
+                  chunk.storedLength_ = packed.length;
+                  writeFully(fc, ByteBuffer.wrap(packed));
+               } else {
+                  chunk.storedLength_ = raw.limit();
+                  writeFully(fc, raw);
+               }
+               chunks.add(chunk);
+               ij.IJ.showProgress(end, spots.size());
+            }
+         } finally {
+            if (deflater != null) {
+               deflater.end();
+            }
+         }
+
+         long indexOffset = fc.position();
+         ByteBuffer index = ByteBuffer.allocate(4 + chunks.size() * INDEX_ENTRY_SIZE);
+         index.putInt(chunks.size());
+         for (ChunkInfo chunk : chunks) {
+            index.putLong(chunk.offset_).putInt(chunk.storedLength_).putInt(chunk.rawLength_)
+                  .putInt(chunk.nrSpots_).putInt(chunk.minFrame_).putInt(chunk.maxFrame_);
+         }
+         index.flip();
+         writeFully(fc, index);
+
+         ByteBuffer offset = ByteBuffer.allocate(8);
+         offset.putLong(indexOffset);
+         offset.flip();
+         fc.position(INDEX_OFFSET_POSITION);
+         writeFully(fc, offset);
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads all spots from the given file.
+    *
+    * @param file - file in columnar spot format
+    * @return builder with all metadata and spots, ready to be added to the
+    *         DataCollectionForm
+    * @throws IOException when the file can not be read or has the wrong format
+    */
+   public static RowData.Builder read(File file) throws IOException {
+      return read(file, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Reads the spots in the given frame range from file.  Only chunks that
+    * contain frames in the range are read from disk.
+    *
+    * @param file       - file in columnar spot format
+    * @param firstFrame - first frame to be included (inclusive)
+    * @param lastFrame  - last frame to be included (inclusive)
+    * @return builder with all metadata and selected spots
+    * @throws IOException when the file can not be read or has the wrong format
+    */
+   public static RowData.Builder read(File file, final int firstFrame, final int lastFrame)
+         throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         final FileChannel fc = raf.getChannel();
+         ByteBuffer header = readHeader(fc);
+         final boolean compressed = (header.getInt() & FLAG_COMPRESSED) != 0;
+         header.getInt(); // chunk size, not needed for reading
+         long indexOffset = header.getLong();
+         int metadataLength = header.getInt();
+         if (indexOffset == 0L) {
+            throw new IOException("Columnar spot file was not completely written");
+         }
+         byte[] metadata = new byte[metadataLength];
+         readFully(fc, INDEX_OFFSET_POSITION + 8 + 4, metadataLength).get(metadata);
+         List<String> keys = new ArrayList<String>();
+         RowData.Builder builder = decodeMetadata(metadata, keys);
+         final String[] keyArray = keys.toArray(new String[keys.size()]);
+
+         List<ChunkInfo> selected = new ArrayList<ChunkInfo>();
+         for (ChunkInfo chunk : readChunkIndex(fc, indexOffset)) {
+            if (chunk.maxFrame_ >= firstFrame && chunk.minFrame_ <= lastFrame) {
+               selected.add(chunk);
+            }
+         }
+
+         // chunks are independent, so decode them in parallel
+         ExecutorService threadPool = Executors.newFixedThreadPool(
+               Math.max(1, Math.min(selected.size(),
+                     Runtime.getRuntime().availableProcessors())));
+         List<SpotData> spotList = new ArrayList<SpotData>();
+         try {
+            List<Future<List<SpotData>>> futures = new ArrayList<Future<List<SpotData>>>();
+            for (final ChunkInfo chunk : selected) {
+               futures.add(threadPool.submit(new Callable<List<SpotData>>() {
+                  @Override
+                  public List<SpotData> call() throws IOException {
+                     ByteBuffer raw = loadChunk(fc, chunk, compressed);
+                     return decodeChunk(raw, chunk.nrSpots_, keyArray, firstFrame, lastFrame);
+                  }
+               }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+               spotList.addAll(futures.get(i).get());
+               ij.IJ.showProgress(i + 1, futures.size());
+            }
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file.getName());
+         } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+               throw (IOException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+         } finally {
+            threadPool.shutdown();
+         }
+
+         builder.setSpotList(spotList).setMaxNrSpots(spotList.size());
+         if (firstFrame != Integer.MIN_VALUE || lastFrame != Integer.MAX_VALUE) {
+            // z range may be smaller than that of the complete dataset
+            double minZ = Double.POSITIVE_INFINITY;
+            double maxZ = Double.NEGATIVE_INFINITY;
+            for (SpotData spot : spotList) {
+               minZ = Math.min(minZ, spot.getZCenter());
+               maxZ = Math.max(maxZ, spot.getZCenter());
+            }
+            if (!spotList.isEmpty()) {
+               builder.setMinZ(minZ).setMaxZ(maxZ);
+            }
+         }
+         return builder;
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads the number of spots, chunks and the frame range of a file from its
+    * index, without reading any spots.
+    *
+    * @param file - file in columnar spot format
+    * @return summary of the file content
+    * @throws IOException when the file can not be read or has the wrong format
+    */
+   public static FileInfo readInfo(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         final FileChannel fc = raf.getChannel();
+         ByteBuffer header = readHeader(fc);
+         header.getInt(); // flags
+         header.getInt(); // chunk size
+         long indexOffset = header.getLong();
+         if (indexOffset == 0L) {
+            throw new IOException("Columnar spot file was not completely written");
+         }
+         List<ChunkInfo> chunks = readChunkIndex(fc, indexOffset);
+         long nrSpots = 0;
+         int firstFrame = Integer.MAX_VALUE;
+         int lastFrame = Integer.MIN_VALUE;
+         for (ChunkInfo chunk : chunks) {
+            nrSpots += chunk.nrSpots_;
+            if (chunk.nrSpots_ > 0) {
+               firstFrame = Math.min(firstFrame, chunk.minFrame_);
+               lastFrame = Math.max(lastFrame, chunk.maxFrame_);
+            }
+         }
+         if (nrSpots == 0) {
+            firstFrame = 0;
+            lastFrame = 0;
+         }
+         return new FileInfo(nrSpots, chunks.size(), firstFrame, lastFrame);
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads the fixed size header and checks magic number and version.  The
+    * returned buffer is positioned at the flags.
+    */
+   private static ByteBuffer readHeader(FileChannel fc) throws IOException {
+      ByteBuffer header = readFully(fc, 0, INDEX_OFFSET_POSITION + 8 + 4);
+      if (header.getInt() != MAGIC) {
+         throw new IOException("Not a columnar spot file");
+      }
+      int version = header.getInt();
+      if (version > VERSION) {
+         throw new IOException("Unsupported columnar spot file version: " + version);
+      }
+      return header;
+   }
+
+   private static List<ChunkInfo> readChunkIndex(FileChannel fc, long indexOffset)
+         throws IOException {
+      ByteBuffer indexHeader = readFully(fc, indexOffset, 4);
+      int nrChunks = indexHeader.getInt();
+      ByteBuffer index = readFully(fc, indexOffset + 4, nrChunks * INDEX_ENTRY_SIZE);
+      List<ChunkInfo> chunks = new ArrayList<ChunkInfo>(nrChunks);
+      for (int i = 0; i < nrChunks; i++) {
+         ChunkInfo chunk = new ChunkInfo();
+         chunk.offset_ = index.getLong();
+         chunk.storedLength_ = index.getInt();
+         chunk.rawLength_ = index.getInt();
+         chunk.nrSpots_ = index.getInt();
+         chunk.minFrame_ = index.getInt();
+         chunk.maxFrame_ = index.getInt();
+         chunks.add(chunk);
+      }
+      return chunks;
+   }
+
+   private static byte[] encodeMetadata(RowData rowData, String[] keys) throws IOException {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(bos);
+      dos.writeUTF(nonNull(rowData.getName()));
+      dos.writeUTF(nonNull(rowData.title_));
+      dos.writeUTF(nonNull(rowData.colCorrRef_));
+      dos.writeInt(rowData.width_);
+      dos.writeInt(rowData.height_);
+      dos.writeFloat(rowData.pixelSizeNm_);
+      dos.writeFloat(rowData.zStackStepSizeNm_);
+      dos.writeInt(rowData.shape_);
+      dos.writeInt(rowData.halfSize_);
+      dos.writeInt(rowData.nrChannels_);
+      dos.writeInt(rowData.nrFrames_);
+      dos.writeInt(rowData.nrSlices_);
+      dos.writeInt(rowData.nrPositions_);
+      dos.writeLong(rowData.maxNrSpots_);
+      dos.writeBoolean(rowData.isTrack_);
+      dos.writeUTF(rowData.coordinate_.name());
+      dos.writeBoolean(rowData.hasZ_);
+      dos.writeDouble(rowData.minZ_);
+      dos.writeDouble(rowData.maxZ_);
+      if (rowData.timePoints_ == null) {
+         dos.writeInt(-1);
+      } else {
+         dos.writeInt(rowData.timePoints_.size());
+         for (Double timePoint : rowData.timePoints_) {
+            dos.writeDouble(timePoint);
+         }
+      }
+      dos.writeInt(keys.length);
+      for (String key : keys) {
+         dos.writeUTF(key);
+      }
+      dos.close();
+      return bos.toByteArray();
+   }
+
+   private static RowData.Builder decodeMetadata(byte[] metadata, List<String> keys)
+         throws IOException {
+      DataInputStream dis = new DataInputStream(new ByteArrayInputStream(metadata));
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName(dis.readUTF()).setTitle(dis.readUTF()).setColColorRef(dis.readUTF())
+            .setWidth(dis.readInt()).setHeight(dis.readInt())
+            .setPixelSizeNm(dis.readFloat()).setZStackStepSizeNm(dis.readFloat())
+            .setShape(dis.readInt()).setHalfSize(dis.readInt())
+            .setNrChannels(dis.readInt()).setNrFrames(dis.readInt())
+            .setNrSlices(dis.readInt()).setNrPositions(dis.readInt())
+            .setMaxNrSpots(dis.readLong()).setIsTrack(dis.readBoolean());
+      try {
+         builder.setCoordinate(DataCollectionForm.Coordinates.valueOf(dis.readUTF()));
+      } catch (IllegalArgumentException iae) {
+         throw new IOException("Unknown coordinate system in columnar spot file");
+      }
+      builder.setHasZ(dis.readBoolean()).setMinZ(dis.readDouble()).setMaxZ(dis.readDouble());
+      int nrTimePoints = dis.readInt();
+      if (nrTimePoints >= 0) {
+         ArrayList<Double> timePoints = new ArrayList<Double>(nrTimePoints);
+         for (int i = 0; i < nrTimePoints; i++) {
+            timePoints.add(dis.readDouble());
+         }
+         builder.setTimePoints(timePoints);
+      }
+      int nrKeys = dis.readInt();
+      for (int i = 0; i < nrKeys; i++) {
+         keys.add(dis.readUTF());
+      }
+      return builder;
+   }
+
+   private static int chunkLength(int nrSpots, int nrKeys) {
+      return nrSpots * (4 * NR_INT_COLUMNS + 8 * (NR_DOUBLE_COLUMNS + nrKeys));
+   }
+
+   /**
+    * Converts spots into column blocks, and records frame range and number of
+    * spots in chunk.
+    */
+   private static ByteBuffer encodeChunk(List<SpotData> spots, String[] keys, ChunkInfo chunk) {
+      final int n = spots.size();
+      int[][] ints = new int[NR_INT_COLUMNS][n];
+      double[][] doubles = new double[NR_DOUBLE_COLUMNS + keys.length][n];
+      int minFrame = Integer.MAX_VALUE;
+      int maxFrame = Integer.MIN_VALUE;
+      for (int i = 0; i < n; i++) {
+         SpotData spot = spots.get(i);
+         ints[FRAME][i] = spot.getFrame();
+         ints[CHANNEL][i] = spot.getChannel();
+         ints[SLICE][i] = spot.getSlice();
+         ints[POSITION][i] = spot.getPosition();
+         ints[NR][i] = spot.getNr();
+         ints[X][i] = spot.getX();
+         ints[Y][i] = spot.getY();
+         ints[NRLINKS][i] = spot.nrLinks_;
+         ints[ORIGINALFRAME][i] = spot.originalFrame_;
+         doubles[INTENSITY][i] = spot.getIntensity();
+         doubles[BACKGROUND][i] = spot.getBackground();
+         doubles[XCENTER][i] = spot.getXCenter();
+         doubles[YCENTER][i] = spot.getYCenter();
+         doubles[ZCENTER][i] = spot.getZCenter();
+         doubles[XORI][i] = spot.getXOri();
+         doubles[YORI][i] = spot.geYOri();
+         doubles[ZORI][i] = spot.getZOri();
+         doubles[WIDTH][i] = spot.getWidth();
+         doubles[A][i] = spot.getA();
+         doubles[THETA][i] = spot.getTheta();
+         doubles[SIGMA][i] = spot.getSigma();
+         for (int k = 0; k < keys.length; k++) {
+            doubles[NR_DOUBLE_COLUMNS + k][i] = spot.getValue(keys[k], Double.NaN);
+         }
+         minFrame = Math.min(minFrame, spot.getFrame());
+         maxFrame = Math.max(maxFrame, spot.getFrame());
+      }
+      chunk.nrSpots_ = n;
+      chunk.minFrame_ = minFrame;
+      chunk.maxFrame_ = maxFrame;
+
+      ByteBuffer raw = ByteBuffer.allocate(chunkLength(n, keys.length));
+      IntBuffer ib = raw.asIntBuffer();
+      for (int[] column : ints) {
+         ib.put(column);
+      }
+      raw.position(4 * NR_INT_COLUMNS * n);
+      DoubleBuffer db = raw.slice().asDoubleBuffer();
+      for (double[] column : doubles) {
+         db.put(column);
+      }
+      raw.position(0);
+      return raw;
+   }
+
+   private static List<SpotData> decodeChunk(ByteBuffer raw, int n, String[] keys,
+         int firstFrame, int lastFrame) throws IOException {
+      if (raw.remaining() < chunkLength(n, keys.length)) {
+         throw new IOException("Truncated chunk in columnar spot file");
+      }
+      int[][] ints = new int[NR_INT_COLUMNS][n];
+      double[][] doubles = new double[NR_DOUBLE_COLUMNS + keys.length][n];
+      IntBuffer ib = raw.asIntBuffer();
+      for (int[] column : ints) {
+         ib.get(column);
+      }
+      raw.position(raw.position() + 4 * NR_INT_COLUMNS * n);
+      DoubleBuffer db = raw.slice().asDoubleBuffer();
+      for (double[] column : doubles) {
+         db.get(column);
+      }
+
+      List<SpotData> spots = new ArrayList<SpotData>(n);
+      for (int i = 0; i < n; i++) {
+         int frame = ints[FRAME][i];
+         if (frame < firstFrame || frame > lastFrame) {
+            continue;
+         }
+         SpotData spot = new SpotData(null, ints[CHANNEL][i], ints[SLICE][i], frame,
+               ints[POSITION][i], ints[NR][i], ints[X][i], ints[Y][i]);
+         spot.setData(doubles[INTENSITY][i], doubles[BACKGROUND][i], doubles[XCENTER][i],
+               doubles[YCENTER][i], doubles[ZCENTER][i], doubles[WIDTH][i], doubles[A][i],
+               doubles[THETA][i], doubles[SIGMA][i]);
+         spot.setZCenter(doubles[ZCENTER][i]);
+         spot.setOriginalPosition(doubles[XORI][i], doubles[YORI][i], doubles[ZORI][i]);
+         spot.nrLinks_ = ints[NRLINKS][i];
+         spot.originalFrame_ = ints[ORIGINALFRAME][i];
+         for (int k = 0; k < keys.length; k++) {
+            double value = doubles[NR_DOUBLE_COLUMNS + k][i];
+            if (!Double.isNaN(value)) {
+               spot.addKeyValue(keys[k], value);
+            }
+         }
+         spots.add(spot);
+      }
+      return spots;
+   }
+
+   private static ByteBuffer loadChunk(FileChannel fc, ChunkInfo chunk, boolean compressed)
+         throws IOException {
+      ByteBuffer stored = fc.map(FileChannel.MapMode.READ_ONLY, chunk.offset_,
+            chunk.storedLength_);
+      if (!compressed) {
+         return stored;
+      }
+      byte[] packed = new byte[chunk.storedLength_];
+      stored.get(packed);
+      byte[] raw = new byte[chunk.rawLength_];
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(packed);
+         int length = 0;
+         while (length < raw.length && !inflater.finished()) {
+            int inflated = inflater.inflate(raw, length, raw.length - length);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+            length += inflated;
+         }
+         if (length != raw.length) {
+            throw new IOException("Corrupted chunk in columnar spot file");
+         }
+      } catch (DataFormatException dfe) {
+         throw new IOException("Corrupted chunk in columnar spot file", dfe);
+      } finally {
+         inflater.end();
+      }
+      return ByteBuffer.wrap(raw);
+   }
+
+   private static byte[] deflate(Deflater deflater, byte[] input, int length) {
+      deflater.reset();
+      deflater.setInput(input, 0, length);
+      deflater.finish();
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, length / 2));
+      byte[] buffer = new byte[65536];
+      while (!deflater.finished()) {
+         int count = deflater.deflate(buffer);
+         bos.write(buffer, 0, count);
+      }
+      return bos.toByteArray();
+   }
+
+   private static ByteBuffer readFully(FileChannel fc, long position, int length)
+         throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+         if (fc.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of columnar spot file");
+         }
+      }
+      buffer.flip();
+      return buffer;
+   }
+
+   private static void writeFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+         fc.write(buffer);
+      }
+   }
+
+   private static String nonNull(String value) {
+      return value == null ? "" : value;
+   }
+
+}
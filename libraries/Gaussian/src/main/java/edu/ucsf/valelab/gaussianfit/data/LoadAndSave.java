@@ -38,6 +38,7 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.LittleEndianDataInputStream;
 import edu.ucsf.valelab.tsf.MMLocM;
 import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import ij.gui.GenericDialog;
 import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
@@ -485,6 +486,52 @@ public class LoadAndSave {
       }
    }
 
+   /**
+    * Load spot data saved in the columnar spot format (see ColumnarSpotFormat).
+    * When the data are stored in more than one chunk, the user can choose to
+    * only load a range of frames, in which case only the chunks holding those
+    * frames are read.
+    *
+    * @param selectedFile - file in columnar spot format
+    * @param caller       - Calling JFrame (used to set wait cursor)
+    */
+   public static void loadColumnar(File selectedFile, JFrame caller) {
+      try {
+         ColumnarSpotFormat.FileInfo info = ColumnarSpotFormat.readInfo(selectedFile);
+         int firstFrame = info.getFirstFrame();
+         int lastFrame = info.getLastFrame();
+         if (info.getNrChunks() > 1 && lastFrame > firstFrame) {
+            GenericDialog gd = new GenericDialog("Load " + selectedFile.getName());
+            gd.addMessage(info.getNrSpots() + " spots in frames " + firstFrame + " - "
+                  + lastFrame);
+            gd.addNumericField("First frame", firstFrame, 0);
+            gd.addNumericField("Last frame", lastFrame, 0);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+               return;
+            }
+            firstFrame = (int) gd.getNextNumber();
+            lastFrame = (int) gd.getNextNumber();
+         }
+         ij.IJ.showStatus("Loading data..");
+         caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+         RowData.Builder builder = firstFrame <= info.getFirstFrame()
+               && lastFrame >= info.getLastFrame()
+               ? ColumnarSpotFormat.read(selectedFile)
+               : ColumnarSpotFormat.read(selectedFile, firstFrame, lastFrame);
+         DataCollectionForm.getInstance().addSpotData(builder);
+      } catch (FileNotFoundException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "File not found");
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Error while reading " + selectedFile.getName());
+         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } finally {
+         caller.setCursor(Cursor.getDefaultCursor());
+         ij.IJ.showStatus("");
+         ij.IJ.showProgress(1.0);
+      }
+   }
+
    /**
     * Save data set in TSF (Tagged Spot File) format
     *
@@ -660,6 +707,67 @@ public class LoadAndSave {
       return dir;
    }
 
+   /**
+    * Save data set in the columnar spot format (see ColumnarSpotFormat).
+    *
+    * @param rows     - rows with spot data to be saved
+    * @param dir      - directory last used
+    * @param compress - whether or not to compress the data
+    * @param caller   - JFrame of calling code to provide visual feedback
+    * @return directory last used
+    */
+   public static String saveDataAsColumnar(final RowData[] rows, String dir,
+         final boolean compress, final JFrame caller) {
+      final FileDialog fd = new FileDialog(caller, "Save Spot Data", FileDialog.SAVE);
+      String[] parts = rows[0].getName().split(File.separator);
+      String name = parts[parts.length - 1];
+      fd.setFile(name + ColumnarSpotFormat.EXTENSION);
+      fd.setVisible(true);
+      String selectedItem = fd.getFile();
+      if (selectedItem == null) {
+         return dir;
+      }
+      String fn = fd.getFile();
+      if (!fn.contains(".")) {
+         fn += ColumnarSpotFormat.EXTENSION;
+      }
+      final File selectedFile = new File(fd.getDirectory() + File.separator + fn);
+
+      Runnable doWorkRunnable = new Runnable() {
+
+         @Override
+         public void run() {
+            try {
+               caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+               for (int rowNr = 0; rowNr < rows.length; rowNr++) {
+                  File file = selectedFile;
+                  if (rowNr > 0) {
+                     String[] nameParts = rows[rowNr].getName().split(File.separator);
+                     String tmpName = nameParts[nameParts.length - 1];
+                     file = new File(fd.getDirectory() + File.separator + tmpName
+                           + ColumnarSpotFormat.EXTENSION);
+                  }
+                  ij.IJ.showStatus("Saving spotData...");
+                  ColumnarSpotFormat.write(rows[rowNr], file, compress,
+                        ColumnarSpotFormat.DEFAULT_CHUNK_SIZE);
+               }
+               ij.IJ.showProgress(1);
+               ij.IJ.showStatus("Finished saving spotData...");
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex, "Error while saving data in columnar format");
+               JOptionPane.showMessageDialog(getInstance(),
+                     "Error while saving data in columnar format");
+            } finally {
+               caller.setCursor(Cursor.getDefaultCursor());
+            }
+         }
+      };
+
+      (new Thread(doWorkRunnable)).start();
+
+      return fd.getDirectory();
+   }
+
    /**
     * Save data set as a text file
     *
@@ -0,0 +1,463 @@
+/*
+ * Multi-threaded, tiled renderer for localization microscopy data
+
+
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.datasetdisplay;
+
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders localization data using multiple threads.
+ *
+ * <p>The output image is partitioned into square tiles.  Spots are first
+ * binned into every tile that their footprint overlaps, after which each tile
+ * is rendered independently on a worker thread.  Since tiles never overlap,
+ * workers write directly into the shared pixel array without locking.
+ * Gaussians are separable, so every spot is drawn from two precomputed 1D
+ * kernels (one along x, one along y) rather than by evaluating the exponential
+ * for every pixel of its footprint.
+ *
+ * <p>Render methods are the same as those used by {@link ImageRenderer}:
+ * 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian.
+ * Datasets with z information rendered in 2D as scatter plots are colored by z,
+ * which is delegated to {@link ImageRenderer}.
+ */
+public class TiledImageRenderer {
+
+   public static final int DEFAULT_TILE_SIZE = 256;
+
+   private final int nrThreads_;
+   private final int tileSize_;
+
+   public TiledImageRenderer() {
+      this(Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_SIZE);
+   }
+
+   /**
+    * @param nrThreads - number of worker threads used to render tiles
+    * @param tileSize  - width and height (in rendered pixels) of a single tile
+    */
+   public TiledImageRenderer(int nrThreads, int tileSize) {
+      if (nrThreads < 1 || tileSize < 1) {
+         throw new IllegalArgumentException(
+               "Number of threads and tile size should be larger than 0");
+      }
+      nrThreads_ = nrThreads;
+      tileSize_ = tileSize;
+   }
+
+   /**
+    * Spot parameters in rendered pixel coordinates, relative to the top-left
+    * corner of the area being rendered.
+    */
+   private static class RenderSpots {
+
+      final int nrSpots_;
+      final double[] x_;
+      final double[] y_;
+      final double[] sigma_;
+      final int[] halfWidth_;
+      final double[] z_;
+
+      RenderSpots(int capacity, boolean withZ) {
+         x_ = new double[capacity];
+         y_ = new double[capacity];
+         sigma_ = new double[capacity];
+         halfWidth_ = new int[capacity];
+         z_ = withZ ? new double[capacity] : null;
+         nrSpots_ = capacity;
+      }
+   }
+
+   /**
+    * Growable list of spot indices belonging to a single tile.
+    */
+   private static class TileBin {
+
+      int[] indices_ = new int[16];
+      int size_ = 0;
+
+      void add(int index) {
+         if (size_ == indices_.length) {
+            indices_ = Arrays.copyOf(indices_, 2 * size_);
+         }
+         indices_[size_++] = index;
+      }
+   }
+
+   /**
+    * Renders spotdata using various renderModes.
+    *
+    * @param rowData       - MyRowData structure to be rendered
+    * @param method        - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
+    * @param magnification - factor x original size
+    * @param rect          - roi in the magnified image that should be rendered, null renders
+    *                      the complete image
+    * @param sf            - filter used to select spots
+    * @return rendered image
+    */
+   public ImageProcessor render(final RowData rowData, final int method,
+         final double magnification, Rectangle rect, final SpotDataFilter sf) {
+      if (method == 0 && rowData.hasZ_) {
+         return ImageRenderer.renderData(rowData, method, magnification, rect, sf);
+      }
+      if (rect == null) {
+         rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
+               (int) (rowData.height_ * magnification));
+      }
+      final int width = rect.width;
+      final int height = rect.height;
+      final ImageProcessor ip;
+      try {
+         ij.IJ.showStatus("Rendering Image...");
+         final RenderSpots spots = collectSpots(rowData, method, magnification, rect, sf,
+               false);
+         final TileBin[] bins = binSpots(spots, width, height);
+         if (method == 0) {
+            final short[] pixels = new short[width * height];
+            renderTiles(bins, width, height, new TileRenderer() {
+               @Override
+               public void render(TileBin bin, Rectangle tile) {
+                  renderScatterTile(spots, bin, tile, pixels, width);
+               }
+            });
+            ip = new ShortProcessor(width, height, pixels, null);
+         } else if (method == 1 || method == 2) {
+            final boolean normalize = method == 2;
+            final float[] pixels = new float[width * height];
+            renderTiles(bins, width, height, new TileRenderer() {
+               @Override
+               public void render(TileBin bin, Rectangle tile) {
+                  renderGaussianTile(spots, bin, tile, pixels, width, normalize);
+               }
+            });
+            ip = new FloatProcessor(width, height, pixels, null);
+         } else {
+            return null;
+         }
+         ij.IJ.showStatus("Rendered image using " + spots.nrSpots_ + " spots.");
+      } catch (OutOfMemoryError ome) {
+         ij.IJ.showMessage("Out of Memory", "Not enough memory to draw image at this resolution");
+         return null;
+      } finally {
+         ij.IJ.showProgress(1.0);
+      }
+      ip.resetMinAndMax();
+      return ip;
+   }
+
+   /**
+    * Renders only the part of the dataset that is visible in a viewer, at the
+    * resolution of the screen rather than that of the displayed image.
+    *
+    * @param rowData            - MyRowData structure to be rendered
+    * @param method             - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
+    * @param imageMagnification - factor x original size of the displayed image
+    * @param viewMagnification  - factor by which the viewer enlarges the displayed image
+    * @param srcRect            - visible area, in pixels of the displayed image
+    * @param sf                 - filter used to select spots
+    * @return image of size srcRect * viewMagnification
+    */
+   public ImageProcessor renderViewport(final RowData rowData, final int method,
+         final double imageMagnification, final double viewMagnification,
+         final Rectangle srcRect, final SpotDataFilter sf) {
+      Rectangle rect = new Rectangle(
+            (int) Math.floor(srcRect.x * viewMagnification),
+            (int) Math.floor(srcRect.y * viewMagnification),
+            (int) Math.ceil(srcRect.width * viewMagnification),
+            (int) Math.ceil(srcRect.height * viewMagnification));
+      return render(rowData, method, imageMagnification * viewMagnification, rect, sf);
+   }
+
+   /**
+    * Renders spotdata with z information into a stack.  Only the scatter plot
+    * (method 0) is supported, as in {@link ImageRenderer#renderData3D}.
+    *
+    * @param rowData       - MyRowData structure to be rendered
+    * @param method        - 0 = 2D scatter
+    * @param magnification - factor x original size
+    * @param rect          - roi in the magnified image that should be rendered
+    * @param sf            - filter used to select spots
+    * @return rendered stack
+    */
+   public ImageStack render3D(final RowData rowData, final int method,
+         final double magnification, Rectangle rect, final SpotDataFilter sf) {
+      if (rect == null) {
+         rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
+               (int) (rowData.height_ * magnification));
+      }
+      final int width = rect.width;
+      final int height = rect.height;
+      final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
+      final int nrZs = (int) (1000.0 * (rowData.maxZ_ - rowData.minZ_)
+            / (2 * renderedPixelInNm));
+      final ImageStack is = new ImageStack(width, height);
+      if (method != 0) {
+         return is;
+      }
+      final short[][] pixels = new short[nrZs][width * height];
+      for (int i = 0; i < nrZs; i++) {
+         is.addSlice(new ShortProcessor(width, height, pixels[i], null));
+      }
+      final RenderSpots spots = collectSpots(rowData, method, magnification, rect, sf, true);
+      final TileBin[] bins = binSpots(spots, width, height);
+      renderTiles(bins, width, height, new TileRenderer() {
+         @Override
+         public void render(TileBin bin, Rectangle tile) {
+            for (int b = 0; b < bin.size_; b++) {
+               int s = bin.indices_[b];
+               int x = (int) Math.floor(spots.x_[s]);
+               int y = (int) Math.floor(spots.y_[s]);
+               int z = (int) spots.z_[s];
+               if (z > 0 && z < nrZs && tile.contains(x, y)) {
+                  int index = y * width + x;
+                  if (pixels[z][index] != -1) {
+                     pixels[z][index] += 1;
+                  }
+               }
+            }
+         }
+      });
+      ij.IJ.showProgress(1.0);
+      return is;
+   }
+
+   /**
+    * Copies the parameters of all spots that pass the filter and may be visible
+    * in rect into primitive arrays.  Coordinates are expressed in rendered pixels
+    * relative to the corner of rect.
+    */
+   private RenderSpots collectSpots(final RowData rowData, final int method,
+         final double magnification, final Rectangle rect, final SpotDataFilter sf,
+         final boolean withZ) {
+      final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
+      final double factor = magnification / rowData.pixelSizeNm_;
+      List<SpotData> spotList = rowData.spotList_;
+      RenderSpots tmp = new RenderSpots(spotList.size(), withZ);
+      int count = 0;
+      for (SpotData spot : spotList) {
+         if (!sf.filter(spot)) {
+            continue;
+         }
+         double x = spot.getXCenter() / renderedPixelInNm - rect.x;
+         double y = spot.getYCenter() / renderedPixelInNm - rect.y;
+         double sigma = spot.getSigma() / renderedPixelInNm;
+         int halfWidth = 0;
+         if (method != 0) {
+            // same footprint as used by ImageRenderer
+            halfWidth = (int) (2 * sigma);
+            if (halfWidth == 0) {
+               halfWidth = 2;
+            }
+         }
+         if (x + halfWidth < 0 || x - halfWidth >= rect.width
+               || y + halfWidth < 0 || y - halfWidth >= rect.height) {
+            continue;
+         }
+         tmp.x_[count] = x;
+         tmp.y_[count] = y;
+         tmp.sigma_[count] = sigma;
+         tmp.halfWidth_[count] = halfWidth;
+         if (withZ) {
+            tmp.z_[count] = factor * (spot.getZCenter() - rowData.minZ_) * 500.0;
+         }
+         count++;
+      }
+      RenderSpots spots = new RenderSpots(count, withZ);
+      System.arraycopy(tmp.x_, 0, spots.x_, 0, count);
+      System.arraycopy(tmp.y_, 0, spots.y_, 0, count);
+      System.arraycopy(tmp.sigma_, 0, spots.sigma_, 0, count);
+      System.arraycopy(tmp.halfWidth_, 0, spots.halfWidth_, 0, count);
+      if (withZ) {
+         System.arraycopy(tmp.z_, 0, spots.z_, 0, count);
+      }
+      return spots;
+   }
+
+   /**
+    * Adds every spot to the bins of all tiles that its footprint overlaps.
+    */
+   private TileBin[] binSpots(RenderSpots spots, int width, int height) {
+      final int tilesX = (width + tileSize_ - 1) / tileSize_;
+      final int tilesY = (height + tileSize_ - 1) / tileSize_;
+      TileBin[] bins = new TileBin[tilesX * tilesY];
+      for (int i = 0; i < bins.length; i++) {
+         bins[i] = new TileBin();
+      }
+      for (int s = 0; s < spots.nrSpots_; s++) {
+         int x = (int) Math.floor(spots.x_[s]);
+         int y = (int) Math.floor(spots.y_[s]);
+         int hw = spots.halfWidth_[s];
+         int tx0 = Math.max(0, Math.floorDiv(x - hw, tileSize_));
+         int tx1 = Math.min(tilesX - 1, Math.floorDiv(x + hw, tileSize_));
+         int ty0 = Math.max(0, Math.floorDiv(y - hw, tileSize_));
+         int ty1 = Math.min(tilesY - 1, Math.floorDiv(y + hw, tileSize_));
+         for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+               bins[ty * tilesX + tx].add(s);
+            }
+         }
+      }
+      return bins;
+   }
+
+   private interface TileRenderer {
+
+      void render(TileBin bin, Rectangle tile);
+   }
+
+   /**
+    * Runs the tileRenderer for every non-empty tile on the thread pool and waits
+    * for all of them to finish.
+    */
+   private void renderTiles(final TileBin[] bins, final int width, final int height,
+         final TileRenderer tileRenderer) {
+      final int tilesX = (width + tileSize_ - 1) / tileSize_;
+      final AtomicInteger done = new AtomicInteger(0);
+      final int nrTiles = bins.length;
+      ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads_);
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>(nrTiles);
+         for (int t = 0; t < nrTiles; t++) {
+            if (bins[t].size_ == 0) {
+               done.incrementAndGet();
+               continue;
+            }
+            final TileBin bin = bins[t];
+            final int x = (t % tilesX) * tileSize_;
+            final int y = (t / tilesX) * tileSize_;
+            final Rectangle tile = new Rectangle(x, y,
+                  Math.min(tileSize_, width - x), Math.min(tileSize_, height - y));
+            futures.add(threadPool.submit(new Runnable() {
+               @Override
+               public void run() {
+                  tileRenderer.render(bin, tile);
+                  ij.IJ.showProgress(done.incrementAndGet(), nrTiles);
+               }
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         threadPool.shutdownNow();
+      }
+   }
+
+   private static void renderScatterTile(RenderSpots spots, TileBin bin, Rectangle tile,
+         short[] pixels, int width) {
+      for (int b = 0; b < bin.size_; b++) {
+         int s = bin.indices_[b];
+         int x = (int) Math.floor(spots.x_[s]);
+         int y = (int) Math.floor(spots.y_[s]);
+         if (tile.contains(x, y)) {
+            int index = y * width + x;
+            if (pixels[index] != -1) {
+               pixels[index] += 1;
+            }
+         }
+      }
+   }
+
+   private static void renderGaussianTile(RenderSpots spots, TileBin bin, Rectangle tile,
+         float[] pixels, int width, boolean normalize) {
+      final int tileEndX = tile.x + tile.width;
+      final int tileEndY = tile.y + tile.height;
+      // kernels are re-used between spots to avoid allocations
+      double[] kernelX = new double[16];
+      double[] kernelY = new double[16];
+      for (int b = 0; b < bin.size_; b++) {
+         final int s = bin.indices_[b];
+         final double xc = spots.x_[s];
+         final double yc = spots.y_[s];
+         final int hw = spots.halfWidth_[s];
+         final int size = 2 * hw;
+         if (kernelX.length < size) {
+            kernelX = new double[size];
+            kernelY = new double[size];
+         }
+         final int xStart = (int) Math.floor(xc) - hw;
+         final int yStart = (int) Math.floor(yc) - hw;
+         final double twoSigmaSq = 2.0 * spots.sigma_[s] * spots.sigma_[s];
+         double sumX = 0.0;
+         double sumY = 0.0;
+         for (int i = 0; i < size; i++) {
+            double dx = xStart + i - xc;
+            double dy = yStart + i - yc;
+            kernelX[i] = Math.exp(-(dx * dx) / twoSigmaSq);
+            kernelY[i] = Math.exp(-(dy * dy) / twoSigmaSq);
+            sumX += kernelX[i];
+            sumY += kernelY[i];
+         }
+         double scale = 1.0;
+         if (normalize) {
+            if (sumX * sumY <= 0.0) {
+               continue;
+            }
+            scale = 1.0 / (sumX * sumY);
+         }
+         final int x0 = Math.max(xStart, tile.x);
+         final int x1 = Math.min(xStart + size, tileEndX);
+         final int y0 = Math.max(yStart, tile.y);
+         final int y1 = Math.min(yStart + size, tileEndY);
+         for (int y = y0; y < y1; y++) {
+            final double rowFactor = scale * kernelY[y - yStart];
+            final int rowOffset = y * width;
+            for (int x = x0; x < x1; x++) {
+               pixels[rowOffset + x] += (float) (rowFactor * kernelX[x - xStart]);
+            }
+         }
+      }
+   }
+
+}
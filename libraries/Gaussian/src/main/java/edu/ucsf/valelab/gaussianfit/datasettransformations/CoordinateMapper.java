@@ -38,6 +38,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
 import org.apache.commons.math.linear.DecompositionSolver;
 import org.apache.commons.math.linear.LUDecompositionImpl;
@@ -70,9 +74,12 @@ public class CoordinateMapper {
    public static final int NONRFEFLECTIVESIMILARITY = 3;
    public static final int PIECEWISEAFFINE = 4;
 
+   public static final int DEFAULT_GRID_SIZE = 256;
+
    private int method_ = LWM;
    private int pieceWiseAffineMaxControlPoints_ = 100;
    private double pieceWiseAffineMaxDistance_ = 5000.0;
+   private volatile MappingGrid grid_ = null;
 
    /**
     * Shorthand name
@@ -247,7 +254,8 @@ public class CoordinateMapper {
          ExponentPairs exponentPairs = polynomialExponents(order);
          List<Point2D.Double> neighbors = kdTree.nearestNeighbor(srcPoint,
                exponentPairs.size(), true);
-         rnormalized = neighbors.get(0).distance(srcPoint);
+         // neighbors are ordered nearest first, the first one is srcPoint itself
+         rnormalized = neighbors.get(neighbors.size() - 1).distance(srcPoint);
          polynomialCoefficients = fitPolynomial(exponentPairs, selectPoints(pointMap, neighbors));
       }
    }
@@ -301,9 +309,10 @@ public class CoordinateMapper {
 
    public static double evaluatePolynomial(double x, double y, double[] coeffs,
          ExponentPairs exponentPairs) {
+      final double[] powerTerms = powerTerms(x, y, exponentPairs);
       double result = 0;
       for (int i = 0; i < coeffs.length; ++i) {
-         result += coeffs[i] * powerTerms(x, y, exponentPairs)[i];
+         result += coeffs[i] * powerTerms[i];
       }
       return result;
    }
@@ -342,21 +351,23 @@ public class CoordinateMapper {
       double sumWeights = 0;
       double sumWeightedPolyX = 0;
       double sumWeightedPolyY = 0;
-      int count = 0;
+      final double[] powerTerms = powerTerms(testPoint.x, testPoint.y, exponentPairs);
       for (Point2D.Double srcPoint : neighbors) {
          final ControlPoint controlPoint = controlPoints.get(srcPoint);
          final double r = testPoint.distance(controlPoint.point) / controlPoint.rnormalized;
          final double weight = weightFunction(r);
          if (weight > 0) {
-            count++;
             sumWeights += weight;
-            sumWeightedPolyX += weight * evaluatePolynomial(testPoint.x, testPoint.y,
-                  controlPoint.polynomialCoefficients.polyX, exponentPairs);
-            sumWeightedPolyY += weight * evaluatePolynomial(testPoint.x, testPoint.y,
-                  controlPoint.polynomialCoefficients.polyY, exponentPairs);
+            double polyX = 0.0;
+            double polyY = 0.0;
+            for (int i = 0; i < powerTerms.length; i++) {
+               polyX += controlPoint.polynomialCoefficients.polyX[i] * powerTerms[i];
+               polyY += controlPoint.polynomialCoefficients.polyY[i] * powerTerms[i];
+            }
+            sumWeightedPolyX += weight * polyX;
+            sumWeightedPolyY += weight * polyY;
          }
       }
-      System.out.println("Used " + count + "  controlpoints in computeTransform");
       return new Point2D.Double(sumWeightedPolyX / sumWeights,
             sumWeightedPolyY / sumWeights);
    }
@@ -469,9 +480,15 @@ public class CoordinateMapper {
     */
    public AffineTransform generateLocalAffineTransform(
          Point2D.Double srcTestPoint, int maxNrControlPoints, double maxDistance) {
+      return generateLocalAffineTransform(kdTree_, srcTestPoint, maxNrControlPoints,
+            maxDistance);
+   }
+
+   private AffineTransform generateLocalAffineTransform(EnhancedKDTree kdTree,
+         Point2D.Double srcTestPoint, int maxNrControlPoints, double maxDistance) {
 
       List<Point2D.Double> nearestNeighbors
-            = kdTree_.nearestNeighbor(srcTestPoint, maxNrControlPoints, maxDistance);
+            = kdTree.nearestNeighbor(srcTestPoint, maxNrControlPoints, maxDistance);
       if (nearestNeighbors.size() > 10) {
          PointMap localMap = selectPoints(pointMap_, nearestNeighbors);
          return generateAffineTransformFromPointPairs(localMap);
@@ -479,6 +496,175 @@ public class CoordinateMapper {
       return null;
    }
 
+   /**
+    * Grid of displacement vectors, sampled at regular intervals over the area covered by the
+    * control points.  Points inside the grid are mapped by bilinear interpolation of the four
+    * surrounding displacements.
+    */
+   private static class MappingGrid {
+
+      final int method_;
+      final double x0_;
+      final double y0_;
+      final double spacing_;
+      final int nx_;
+      final int ny_;
+      final double[] dx_;
+      final double[] dy_;
+
+      MappingGrid(int method, double x0, double y0, double spacing, int nx, int ny) {
+         method_ = method;
+         x0_ = x0;
+         y0_ = y0;
+         spacing_ = spacing;
+         nx_ = nx;
+         ny_ = ny;
+         dx_ = new double[nx * ny];
+         dy_ = new double[nx * ny];
+      }
+
+      /**
+       * @param x      x coordinate of the point to be mapped
+       * @param y      y coordinate of the point to be mapped
+       * @param result array of length 2 that will receive the mapped x and y
+       * @return false when the point lies outside the grid, or next to a grid node for which no
+       *     transform could be calculated
+       */
+      boolean interpolate(double x, double y, double[] result) {
+         final double fx = (x - x0_) / spacing_;
+         final double fy = (y - y0_) / spacing_;
+         if (!(fx >= 0.0 && fy >= 0.0 && fx <= nx_ - 1 && fy <= ny_ - 1)) {
+            return false;
+         }
+         final int ix = Math.min((int) fx, nx_ - 2);
+         final int iy = Math.min((int) fy, ny_ - 2);
+         final double wx = fx - ix;
+         final double wy = fy - iy;
+         final int i00 = iy * nx_ + ix;
+         final int i10 = i00 + 1;
+         final int i01 = i00 + nx_;
+         final int i11 = i01 + 1;
+         final double dx = (1.0 - wy) * ((1.0 - wx) * dx_[i00] + wx * dx_[i10])
+               + wy * ((1.0 - wx) * dx_[i01] + wx * dx_[i11]);
+         final double dy = (1.0 - wy) * ((1.0 - wx) * dy_[i00] + wx * dy_[i10])
+               + wy * ((1.0 - wx) * dy_[i01] + wx * dy_[i11]);
+         // NaN at any of the corners propagates
+         if (Double.isNaN(dx) || Double.isNaN(dy)) {
+            return false;
+         }
+         result[0] = x + dx;
+         result[1] = y + dy;
+         return true;
+      }
+   }
+
+   /**
+    * Precomputes a mapping grid with DEFAULT_GRID_SIZE nodes along the longest side of the area
+    * covered by the control points.
+    *
+    * @throws InterruptedException
+    * @throws ExecutionException
+    * @see #precomputeGrid(int)
+    */
+   public void precomputeGrid() throws InterruptedException, ExecutionException {
+      precomputeGrid(DEFAULT_GRID_SIZE);
+   }
+
+   /**
+    * Evaluates the current (LWM or piecewise affine) transform on a regular grid covering the
+    * control points.  Subsequent calls to transform look up the displacement in this grid, and
+    * only fall back to the full calculation outside the grid or where the grid has holes.  The
+    * grid is only used as long as the method is not changed.  Affine and non-reflective
+    * similarity transforms are cheap to calculate and do not use a grid.
+    *
+    * @param gridSize number of grid nodes along the longest side of the area covered by the
+    *                 control points
+    * @throws InterruptedException
+    * @throws ExecutionException
+    */
+   public void precomputeGrid(int gridSize) throws InterruptedException, ExecutionException {
+      if (method_ != LWM && method_ != PIECEWISEAFFINE) {
+         return;
+      }
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (Point2D.Double point : kdTree_.points_) {
+         minX = Math.min(minX, point.x);
+         minY = Math.min(minY, point.y);
+         maxX = Math.max(maxX, point.x);
+         maxY = Math.max(maxY, point.y);
+      }
+      final double spacing = Math.max(maxX - minX, maxY - minY) / (Math.max(gridSize, 2) - 1);
+      if (!(spacing > 0.0)) {
+         return;
+      }
+      final int nx = Math.max(2, (int) Math.ceil((maxX - minX) / spacing) + 1);
+      final int ny = Math.max(2, (int) Math.ceil((maxY - minY) / spacing) + 1);
+      final MappingGrid grid = new MappingGrid(method_, minX, minY, spacing, nx, ny);
+
+      final int nrThreads = Runtime.getRuntime().availableProcessors();
+      ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads);
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int t = 0; t < nrThreads; t++) {
+            final int firstRow = t;
+            futures.add(threadPool.submit(new Runnable() {
+               @Override
+               public void run() {
+                  // the kd tree keeps search state in its nodes, every thread needs its own
+                  final EnhancedKDTree kdTree = new EnhancedKDTree(kdTree_.points_);
+                  final Point2D.Double node = new Point2D.Double();
+                  for (int row = firstRow; row < ny; row += nrThreads) {
+                     for (int col = 0; col < nx; col++) {
+                        node.setLocation(grid.x0_ + col * spacing, grid.y0_ + row * spacing);
+                        Point2D.Double corPoint = transform(node, kdTree, grid.method_);
+                        final int index = row * nx + col;
+                        if (corPoint != null && !Double.isNaN(corPoint.x)
+                              && !Double.isNaN(corPoint.y)) {
+                           grid.dx_[index] = corPoint.x - node.x;
+                           grid.dy_[index] = corPoint.y - node.y;
+                        } else {
+                           grid.dx_[index] = Double.NaN;
+                           grid.dy_[index] = Double.NaN;
+                        }
+                     }
+                  }
+               }
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         threadPool.shutdown();
+      }
+      grid_ = grid;
+      if (log_) {
+         ij.IJ.log("Precomputed " + nx + " x " + ny + " 2C mapping grid, spacing: "
+               + spacing);
+      }
+   }
+
+   /**
+    * Discards the grid calculated by precomputeGrid
+    */
+   public void clearGrid() {
+      grid_ = null;
+   }
+
+   /**
+    * @return Number of nodes in the current mapping grid, or 0 when there is no usable grid
+    */
+   public int getGridNodeCount() {
+      final MappingGrid grid = grid_;
+      if (grid == null || grid.method_ != method_) {
+         return 0;
+      }
+      return grid.nx_ * grid.ny_;
+   }
+
    // General methods 
 
 
@@ -487,35 +673,118 @@ public class CoordinateMapper {
     * @return
     */
    public Point2D.Double transform(Point2D.Double srcTestPoint) {
-      if (method_ == LWM) {
-         return computeTransformation(kdTree_, srcTestPoint, controlPoints_, exponentPairs_);
+      final MappingGrid grid = grid_;
+      if (grid != null && grid.method_ == method_) {
+         final double[] result = new double[2];
+         if (grid.interpolate(srcTestPoint.x, srcTestPoint.y, result)) {
+            return new Point2D.Double(result[0], result[1]);
+         }
       }
-      if (method_ == AFFINE) {
-         try {
-            if (cleanedPointMap_ == null) {
-               cleanedPointMap_ = makeCleanedPointMap();
-               af_ = generateAffineTransformFromPointPairs(cleanedPointMap_);
-               if (log_) {
-                  logAffineTransform(af_);
+      synchronized (kdTree_) {
+         return transform(srcTestPoint, kdTree_, method_);
+      }
+   }
+
+   /**
+    * Transforms a batch of points using the current method.  Work is divided over all
+    * available processors.  Uses the precomputed mapping grid when one is available.
+    *
+    * @param xs x coordinates of the points to be transformed
+    * @param ys y coordinates of the points to be transformed
+    * @return array with the transformed x coordinates at index 0 and y coordinates at index 1.
+    *     Points that could not be transformed are set to NaN
+    * @throws InterruptedException
+    * @throws ExecutionException
+    */
+   public double[][] transform(final double[] xs, final double[] ys)
+         throws InterruptedException, ExecutionException {
+      if (xs.length != ys.length) {
+         throw new IllegalArgumentException("Number of x and y coordinates differ");
+      }
+      final double[] xOut = new double[xs.length];
+      final double[] yOut = new double[ys.length];
+      final int method = method_;
+      final MappingGrid grid = (grid_ != null && grid_.method_ == method) ? grid_ : null;
+      final AffineTransform af;
+      if (method == AFFINE) {
+         af = getCleanedAffineTransform();
+      } else if (method == NONRFEFLECTIVESIMILARITY) {
+         af = rbAf_;
+      } else {
+         af = null;
+      }
+
+      final int nrThreads = Runtime.getRuntime().availableProcessors();
+      final int chunkSize = Math.max(1024, xs.length / (4 * nrThreads) + 1);
+      ExecutorService threadPool = Executors.newFixedThreadPool(nrThreads);
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int start = 0; start < xs.length; start += chunkSize) {
+            final int first = start;
+            final int last = Math.min(xs.length, start + chunkSize);
+            futures.add(threadPool.submit(new Runnable() {
+               @Override
+               public void run() {
+                  EnhancedKDTree kdTree = null;
+                  final Point2D.Double point = new Point2D.Double();
+                  final double[] result = new double[2];
+                  for (int i = first; i < last; i++) {
+                     if (grid != null && grid.interpolate(xs[i], ys[i], result)) {
+                        xOut[i] = result[0];
+                        yOut[i] = result[1];
+                        continue;
+                     }
+                     point.setLocation(xs[i], ys[i]);
+                     Point2D.Double corPoint = null;
+                     try {
+                        if (af != null) {
+                           corPoint = (Point2D.Double) af.transform(point, null);
+                        } else {
+                           if (kdTree == null) {
+                              kdTree = new EnhancedKDTree(kdTree_.points_);
+                           }
+                           corPoint = transform(point, kdTree, method);
+                        }
+                     } catch (Exception ex) {
+                        // leave corPoint null
+                     }
+                     xOut[i] = corPoint != null ? corPoint.x : Double.NaN;
+                     yOut[i] = corPoint != null ? corPoint.y : Double.NaN;
+                  }
                }
-               ij.IJ.log("Used " + cleanedPointMap_.size()
-                     + " spot pairs to calculate 2C reference");
-            }
-            return (Point2D.Double) af_.transform(srcTestPoint, null);
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         threadPool.shutdown();
+      }
+      return new double[][]{xOut, yOut};
+   }
+
+   private Point2D.Double transform(Point2D.Double srcTestPoint, EnhancedKDTree kdTree,
+         int method) {
+      if (method == LWM) {
+         return computeTransformation(kdTree, srcTestPoint, controlPoints_, exponentPairs_);
+      }
+      if (method == AFFINE) {
+         try {
+            return (Point2D.Double) getCleanedAffineTransform().transform(srcTestPoint, null);
          } catch (Exception ex) {
             return null;
          }
       }
-      if (method_ == NONRFEFLECTIVESIMILARITY) {
+      if (method == NONRFEFLECTIVESIMILARITY) {
          try {
             return (Point2D.Double) rbAf_.transform(srcTestPoint, null);
          } catch (Exception ex) {
             return null;
          }
       }
-      if (method_ == PIECEWISEAFFINE) {
+      if (method == PIECEWISEAFFINE) {
          try {
-            AffineTransform piecewiseAf = generateLocalAffineTransform(srcTestPoint,
+            AffineTransform piecewiseAf = generateLocalAffineTransform(kdTree, srcTestPoint,
                   pieceWiseAffineMaxControlPoints_, pieceWiseAffineMaxDistance_);
             if (piecewiseAf != null) {
                Point2D result = piecewiseAf.transform(srcTestPoint, null);
@@ -528,15 +797,41 @@ public class CoordinateMapper {
       return null;
    }
 
+   /**
+    * Lazily calculates the affine transform from the point map after removal of outliers
+    */
+   private synchronized AffineTransform getCleanedAffineTransform() {
+      if (cleanedPointMap_ == null) {
+         cleanedPointMap_ = makeCleanedPointMap();
+         af_ = generateAffineTransformFromPointPairs(cleanedPointMap_);
+         if (log_) {
+            logAffineTransform(af_);
+         }
+         ij.IJ.log("Used " + cleanedPointMap_.size()
+               + " spot pairs to calculate 2C reference");
+      }
+      return af_;
+   }
+
    public void setMethod(int method) {
       method_ = method;
    }
 
+   /**
+    * Changing a piecewise affine parameter discards the mapping grid, whatever the
+    * current method, since a grid is re-used when switching back to its method.
+    */
    public void setPieceWiseAffineMaxControlPoints(int max) {
+      if (max != pieceWiseAffineMaxControlPoints_) {
+         grid_ = null;
+      }
       pieceWiseAffineMaxControlPoints_ = max;
    }
 
    public void setPieceWiseAffineMaxDistance(double max) {
+      if (max != pieceWiseAffineMaxDistance_) {
+         grid_ = null;
+      }
       pieceWiseAffineMaxDistance_ = max;
    }
 
@@ -33,8 +33,10 @@ import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
+import edu.ucsf.valelab.gaussianfit.algorithm.ParallelJitterDetector;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
@@ -43,6 +45,11 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 
 /**
@@ -50,8 +57,11 @@ import javax.swing.JOptionPane;
  */
 public class DriftCorrector {
 
+   // pairs deviating more than this (in rendered pixels) from the RCC solution are rejected
+   private static final double RCC_MAX_RESIDUAL = 1.0;
+
    // storage of stage movement data
-   class StageMovementData {
+   static class StageMovementData {
 
       Point2D.Double pos_;
       Point frameRange_;
@@ -119,18 +129,6 @@ public class DriftCorrector {
                }
             }
 
-            // storage of stage movement data
-            class StageMovementData {
-
-               Point2D.Double pos_;
-               Point frameRange_;
-
-               StageMovementData(Point2D.Double pos, Point frameRange) {
-                  pos_ = pos;
-                  frameRange_ = frameRange;
-               }
-            }
-
             ArrayList<StageMovementData> stagePos = new ArrayList<>();
 
             try {
@@ -278,19 +276,7 @@ public class DriftCorrector {
                stageMovementData.add(sm);
 
                // calculate moving average for stageposition
-               ArrayList<StageMovementData> stagePosMA = new ArrayList<StageMovementData>();
-               int windowSize = 5;
-               for (int i = 0; i < stagePos.size() - windowSize; i++) {
-                  Point2D.Double avg = new Point2D.Double(0.0, 0.0);
-                  for (int j = 0; j < windowSize; j++) {
-                     avg.x += stagePos.get(i + j).pos_.x;
-                     avg.y += stagePos.get(i + j).pos_.y;
-                  }
-                  avg.x /= windowSize;
-                  avg.y /= windowSize;
-
-                  stagePosMA.add(new StageMovementData(avg, stagePos.get(i).frameRange_));
-               }
+               List<StageMovementData> stagePosMA = movingAverage(stagePos, 5);
 
                for (int i = 0; i < stagePosMA.size(); i++) {
                   StageMovementData smd = stagePosMA.get(i);
@@ -521,6 +507,233 @@ public class DriftCorrector {
          testNr++;
       }
 
+      addJitterCorrectedData(rowData, stagePos, useSlices);
+   }
+
+   /**
+    * Jitter correction that renders the sub-images and calculates their
+    * cross-correlations concurrently on a pool of worker threads.  Frames are
+    * grouped in the same way as in unJitter2.  Either every group is correlated
+    * with the first group, or, when useRCC is true, all pairs of groups are
+    * correlated and the drift is solved for globally (redundant
+    * cross-correlation).  Timings of each phase are written to the ImageJ log.
+    *
+    * @param rowData   - dataset to be corrected
+    * @param maxFrames - maximum number of frames combined into one sub-image
+    * @param maxSpots  - maximum number of spots combined into one sub-image
+    * @param useRCC    - use redundant cross-correlation
+    */
+   public void unJitterParallel(final RowData rowData, int maxFrames, int maxSpots,
+         boolean useRCC) {
+      if (rowData.spotList_.size() <= 1) {
+         return;
+      }
+
+      ij.IJ.showStatus("Executing jitter correction");
+
+      int mag = (int) (rowData.pixelSizeNm_ / 40.0);
+      while (mag % 2 != 0) {
+         mag += 1;
+      }
+
+      final int width = mag * rowData.width_;
+      final int height = mag * rowData.height_;
+      // the correlation needs a square with a size that is a power of 2,
+      // sub-images are padded with zeros to that size
+      int paddedSize = 1;
+      while (paddedSize < Math.max(width, height)) {
+         paddedSize *= 2;
+      }
+      final int size = paddedSize;
+
+      final boolean useSlices = rowData.nrFrames_ <= 1;
+      final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
+      final double factor = (double) mag / rowData.pixelSizeNm_;
+      final Map<Integer, List<SpotData>> frameIndexSpotList =
+            rowData.getSpotListIndexedByFrame();
+
+      // group frames (0-based, inclusive ranges) into sub-images
+      final List<Point> windows = new ArrayList<Point>();
+      int frameNr = 0;
+      while (frameNr < nrImages) {
+         int firstFrame = frameNr;
+         int spotNr = 0;
+         while (spotNr < maxSpots && frameNr - firstFrame < maxFrames && frameNr < nrImages) {
+            List<SpotData> frameSpots = frameIndexSpotList.get(frameNr + 1);
+            if (frameSpots != null) {
+               spotNr += frameSpots.size();
+            }
+            frameNr++;
+         }
+         windows.add(new Point(firstFrame, frameNr - 1));
+      }
+      if (windows.size() < 2) {
+         JOptionPane.showMessageDialog(DataCollectionForm.getInstance(),
+               "Not enough frames to perform jitter correction");
+         ij.IJ.showStatus(" ");
+         return;
+      }
+
+      if (useRCC) {
+         long needed = (long) windows.size() * size * size * 4L;
+         Runtime rt = Runtime.getRuntime();
+         long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+         if (needed > available) {
+            JOptionPane.showMessageDialog(DataCollectionForm.getInstance(),
+                  "Not enough memory for redundant cross-correlation of "
+                  + windows.size() + " sub-images.  Use more frames per sub-image.");
+            ij.IJ.showStatus(" ");
+            return;
+         }
+      }
+
+      ExecutorService threadPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+      final ParallelJitterDetector jd = new ParallelJitterDetector(size, 32, threadPool);
+      Point2D.Double[] drift;
+      final long startTime = System.nanoTime();
+      long renderTime;
+      try {
+         if (useRCC) {
+            final float[][] transforms = new float[windows.size()][];
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < windows.size(); i++) {
+               final int index = i;
+               futures.add(threadPool.submit(new Runnable() {
+                  @Override
+                  public void run() {
+                     float[] pixels = new float[size * size];
+                     renderWindow(frameIndexSpotList, windows.get(index), pixels, factor, size);
+                     jd.transform(pixels);
+                     transforms[index] = pixels;
+                  }
+               }));
+            }
+            for (Future<?> future : futures) {
+               future.get();
+            }
+            renderTime = System.nanoTime() - startTime;
+            ij.IJ.showStatus("Executing redundant cross-correlation...");
+            drift = jd.driftRCC(transforms, RCC_MAX_RESIDUAL);
+         } else {
+            final float[] reference = new float[size * size];
+            renderWindow(frameIndexSpotList, windows.get(0), reference, factor, size);
+            jd.transform(reference);
+            renderTime = System.nanoTime() - startTime;
+            List<Future<Point2D.Double>> futures = new ArrayList<Future<Point2D.Double>>();
+            for (int i = 1; i < windows.size(); i++) {
+               final int index = i;
+               futures.add(threadPool.submit(new Callable<Point2D.Double>() {
+                  @Override
+                  public Point2D.Double call() {
+                     float[] pixels = new float[size * size];
+                     renderWindow(frameIndexSpotList, windows.get(index), pixels, factor, size);
+                     jd.transform(pixels);
+                     return jd.getShift(reference, pixels);
+                  }
+               }));
+            }
+            drift = new Point2D.Double[windows.size()];
+            drift[0] = new Point2D.Double(0.0, 0.0);
+            for (int i = 1; i < windows.size(); i++) {
+               drift[i] = futures.get(i - 1).get();
+               ij.IJ.showStatus("Executing jitter correction..." + i + "/" + windows.size());
+               ij.IJ.showProgress(i, windows.size());
+            }
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         ij.IJ.showStatus("Jitter correction interrupted");
+         return;
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            ij.IJ.error("Out of Memory");
+         } else {
+            ReportingUtils.showError(ee.getCause(), "Jitter correction failed");
+         }
+         return;
+      } finally {
+         threadPool.shutdownNow();
+      }
+      final long totalTime = System.nanoTime() - startTime;
+      ij.IJ.log(String.format("Jitter correction (%s) of %d sub-images of %dx%d pixels: "
+                  + "rendering %d ms, total %d ms",
+            useRCC ? "RCC" : "reference", windows.size(), size, size,
+            renderTime / 1000000, totalTime / 1000000));
+
+      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
+      for (int i = 1; i < windows.size(); i++) {
+         stagePos.add(new StageMovementData(
+               new Point2D.Double(drift[i].x / factor, drift[i].y / factor),
+               windows.get(i)));
+      }
+
+      addJitterCorrectedData(rowData, stagePos, useSlices);
+   }
+
+   /**
+    * Renders a 2D scattergram of the spots in the given (0-based, inclusive)
+    * frame range, in a square image of the given size.
+    */
+   private static void renderWindow(Map<Integer, List<SpotData>> frameIndexSpotList,
+         Point window, float[] pixels, double factor, int size) {
+      for (int frame = window.x; frame <= window.y; frame++) {
+         List<SpotData> frameSpots = frameIndexSpotList.get(frame + 1);
+         if (frameSpots != null) {
+            for (SpotData spot : frameSpots) {
+               int x = (int) (factor * spot.getXCenter());
+               int y = (int) (factor * spot.getYCenter());
+               if (x >= 0 && x < size && y >= 0 && y < size) {
+                  pixels[y * size + x] += 1.0f;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Calculates the moving average of stage positions using a running sum.
+    * Every average covers windowSize entries, and is assigned the frame range of
+    * the first entry in its window.
+    *
+    * @param stagePos   - stage positions
+    * @param windowSize - number of positions to average
+    * @return list with stagePos.size() - windowSize averaged positions
+    */
+   static List<StageMovementData> movingAverage(List<StageMovementData> stagePos,
+         int windowSize) {
+      List<StageMovementData> stagePosMA = new ArrayList<StageMovementData>();
+      double sumX = 0.0;
+      double sumY = 0.0;
+      for (int i = 0; i < stagePos.size(); i++) {
+         sumX += stagePos.get(i).pos_.x;
+         sumY += stagePos.get(i).pos_.y;
+         if (i >= windowSize) {
+            sumX -= stagePos.get(i - windowSize).pos_.x;
+            sumY -= stagePos.get(i - windowSize).pos_.y;
+         }
+         // the original implementation never included the last position
+         int first = i - windowSize + 1;
+         if (first >= 0 && first < stagePos.size() - windowSize) {
+            stagePosMA.add(new StageMovementData(
+                  new Point2D.Double(sumX / windowSize, sumY / windowSize),
+                  stagePos.get(first).frameRange_));
+         }
+      }
+      return stagePosMA;
+   }
+
+   /**
+    * Adds the stage movement as a track, and the corrected dataset to the
+    * DataCollectionForm.  Spots in frames not covered by stagePos are not
+    * corrected.
+    *
+    * @param rowData   - original dataset
+    * @param stagePos  - movement for ranges of frames (0-based, inclusive)
+    * @param useSlices - whether stagePos refers to slices rather than frames
+    */
+   private static void addJitterCorrectedData(RowData rowData,
+         List<StageMovementData> stagePos, boolean useSlices) {
       // Assemble stage movement data into a track
       try {
          List<SpotData> stageMovementData = new ArrayList<SpotData>();
@@ -528,8 +741,6 @@ public class DriftCorrector {
          sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
          stageMovementData.add(sm);
 
-         //stagePos = movingAverage(stagePos, 5);
-
          for (int i = 0; i < stagePos.size(); i++) {
             StageMovementData smd = stagePos.get(i);
             SpotData s =
@@ -552,40 +763,31 @@ public class DriftCorrector {
          ij.IJ.showStatus("Assembling jitter corrected dataset...");
          ij.IJ.showProgress(1);
 
-         List<SpotData> correctedData = new ArrayList<SpotData>();
-         Iterator it = rowData.spotList_.iterator();
-
-         testNr = 0;
-         StageMovementData smd = stagePos.get(0);
-         while (it.hasNext()) {
-            SpotData gs = (SpotData) it.next();
-            int test;
-            if (useSlices) {
-               test = gs.getSlice();
-            } else {
-               test = gs.getFrame();
-            }
-            if (test != testNr) {
-               testNr = test - 1;
-            }
-            boolean found = false;
-            if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-               found = true;
-            }
-            if (!found) {
-               for (int i = 0; i < stagePos.size() && !found; i++) {
-                  smd = stagePos.get(i);
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
+         // lookup table from frame to stage position, avoids a search per spot
+         int lastFrame = -1;
+         for (StageMovementData smd : stagePos) {
+            lastFrame = Math.max(lastFrame, smd.frameRange_.y);
+         }
+         StageMovementData[] frameLookup = new StageMovementData[lastFrame + 1];
+         for (StageMovementData smd : stagePos) {
+            for (int f = Math.max(0, smd.frameRange_.x); f <= smd.frameRange_.y; f++) {
+               if (frameLookup[f] == null) {
+                  frameLookup[f] = smd;
                }
             }
-            if (found) {
-               Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                     gs.getYCenter() - smd.pos_.y);
+         }
+
+         List<SpotData> correctedData = new ArrayList<SpotData>(rowData.spotList_.size());
+         for (SpotData gs : rowData.spotList_) {
+            int testNr = (useSlices ? gs.getSlice() : gs.getFrame()) - 1;
+            StageMovementData smd = null;
+            if (testNr >= 0 && testNr < frameLookup.length) {
+               smd = frameLookup[testNr];
+            }
+            if (smd != null) {
                SpotData gsn = new SpotData(gs);
-               gsn.setXCenter(point.x);
-               gsn.setYCenter(point.y);
+               gsn.setXCenter(gs.getXCenter() - smd.pos_.x);
+               gsn.setYCenter(gs.getYCenter() - smd.pos_.y);
                correctedData.add(gsn);
             } else {
                correctedData.add(gs);
@@ -604,5 +806,4 @@ public class DriftCorrector {
       }
    }
 
-
-}
\ No newline at end of file
+}
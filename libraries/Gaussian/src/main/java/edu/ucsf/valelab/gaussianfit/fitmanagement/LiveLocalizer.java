@@ -0,0 +1,385 @@
+package edu.ucsf.valelab.gaussianfit.fitmanagement;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
+import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.datasetdisplay.TiledImageRenderer;
+import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
+import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import javax.swing.SwingUtilities;
+
+/**
+ * Localizes spots in images as they arrive, rather than in a finished dataset as done by
+ * FitAllThread.  Every submitted image is analyzed (local maxima detection followed by fitting of
+ * all maxima) as a single task on a pool of worker threads.  Results are appended to a growing
+ * spot list, and new spots are periodically added to a rendered super-resolution preview.
+ *
+ * <p>When the workers can not keep up, submit blocks until one of them is free, so that no image
+ * is left out.  Alternatively, images can be skipped so that the acquisition itself is never
+ * slowed down.  The number of skipped images is shown with the preview and reported when done.
+ *
+ * <p>Fit parameters are set through the GaussianInfo setters (or copy) before submitting the first
+ * image.
+ */
+public class LiveLocalizer extends GaussianInfo {
+
+   public static final long DEFAULT_PREVIEW_INTERVAL_MS = 1000;
+   public static final double DEFAULT_PREVIEW_MAGNIFICATION = 4.0;
+   // longest side of the preview image, in pixels
+   private static final int MAX_PREVIEW_SIZE = 4096;
+
+   private final ExecutorService threadPool_;
+   private final Semaphore pending_;
+   private final FindLocalMaxima.FilterType preFilterType_;
+   private final String title_;
+   private final long previewIntervalMs_;
+   private final double requestedMagnification_;
+   private final ThreadLocal<GaussianFit> fitter_;
+   private final boolean skipWhenBusy_;
+   private final AtomicInteger nrSkippedFrames_ = new AtomicInteger(0);
+   private final AtomicInteger nrFrames_ = new AtomicInteger(0);
+   private final AtomicInteger nrChannels_ = new AtomicInteger(1);
+   private final AtomicInteger nrSlices_ = new AtomicInteger(1);
+   private final AtomicInteger nrPositions_ = new AtomicInteger(1);
+   private final ReentrantLock previewLock_ = new ReentrantLock();
+
+   private volatile boolean finished_ = false;
+   private volatile int width_ = 0;
+   private volatile int height_ = 0;
+   private volatile long lastPreview_ = 0;
+   // accessed while holding previewLock_
+   private int nrRenderedSpots_ = 0;
+   private FloatProcessor preview_ = null;
+   private ImagePlus previewPlus_ = null;
+   private double magnification_;
+
+   /**
+    * @param title              - name of the dataset, used for the preview and the spot table
+    * @param nrThreads          - number of threads used for fitting
+    * @param preFilterType      - prefilter used by the local maxima detection
+    * @param previewMagnification - magnification of the super-resolution preview, or 0 to not
+    *                           show a preview
+    * @param previewIntervalMs  - minimum time between updates of the preview
+    * @param skipWhenBusy       - skip images when all worker threads are busy, rather than
+    *                           waiting for one to become available
+    */
+   public LiveLocalizer(String title, int nrThreads, FindLocalMaxima.FilterType preFilterType,
+         double previewMagnification, long previewIntervalMs, boolean skipWhenBusy) {
+      title_ = title;
+      skipWhenBusy_ = skipWhenBusy;
+      preFilterType_ = preFilterType;
+      requestedMagnification_ = previewMagnification;
+      previewIntervalMs_ = previewIntervalMs;
+      threadPool_ = Executors.newFixedThreadPool(nrThreads);
+      // one frame in flight and one waiting for each thread
+      pending_ = new Semaphore(2 * nrThreads);
+      resultList_ = Collections.synchronizedList(new ArrayList<SpotData>());
+      fitter_ = new ThreadLocal<GaussianFit>() {
+         @Override
+         protected GaussianFit initialValue() {
+            return new GaussianFit(getShape(), getFitMode(), getUseFixedWidth(),
+                  getFixedWidthNm() / getPixelSize() / 2);
+         }
+      };
+   }
+
+   /**
+    * Hands an image to the worker threads for localization.
+    *
+    * @param ip       - image to be analyzed.  Should not be changed by the caller afterwards
+    * @param channel  - 1-based channel index
+    * @param slice    - 1-based slice index
+    * @param frame    - 1-based frame index
+    * @param position - 1-based position index
+    * @return false when the image was skipped
+    */
+   public boolean submit(final ImageProcessor ip, int channel, int slice, int frame,
+         int position) {
+      return submit(() -> ip, channel, slice, frame, position);
+   }
+
+   /**
+    * Hands an image to the worker threads for localization.  Blocks while all worker threads
+    * are busy, unless images are to be skipped in that case.  The image is only obtained from
+    * the source once it is certain to be analyzed.
+    *
+    * @param source   - provides the image to be analyzed
+    * @param channel  - 1-based channel index
+    * @param slice    - 1-based slice index
+    * @param frame    - 1-based frame index
+    * @param position - 1-based position index
+    * @return false when the image was skipped
+    */
+   public boolean submit(Supplier<ImageProcessor> source, final int channel, final int slice,
+         final int frame, final int position) {
+      if (finished_) {
+         return false;
+      }
+      if (skipChannels_ && channelsToSkip_ != null) {
+         for (int c : channelsToSkip_) {
+            if (c == channel) {
+               return true;
+            }
+         }
+      }
+      if (skipWhenBusy_) {
+         if (!pending_.tryAcquire()) {
+            nrSkippedFrames_.incrementAndGet();
+            return false;
+         }
+      } else {
+         try {
+            pending_.acquire();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            nrSkippedFrames_.incrementAndGet();
+            return false;
+         }
+      }
+      final ImageProcessor ip;
+      try {
+         ip = source.get();
+      } catch (RuntimeException ex) {
+         pending_.release();
+         throw ex;
+      }
+      width_ = ip.getWidth();
+      height_ = ip.getHeight();
+      updateMax(nrFrames_, frame);
+      updateMax(nrChannels_, channel);
+      updateMax(nrSlices_, slice);
+      updateMax(nrPositions_, position);
+      threadPool_.submit(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               localize(ip, channel, slice, frame, position);
+               if (System.currentTimeMillis() - lastPreview_ > previewIntervalMs_) {
+                  updatePreview();
+               }
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+            } finally {
+               pending_.release();
+            }
+         }
+      });
+      return true;
+   }
+
+   private static void updateMax(AtomicInteger value, int candidate) {
+      int current = value.get();
+      while (candidate > current && !value.compareAndSet(current, candidate)) {
+         current = value.get();
+      }
+   }
+
+   /**
+    * Finds local maxima in the image, and fits a Gaussian to each of them
+    */
+   private void localize(ImageProcessor ip, int channel, int slice, int frame, int position) {
+      final int halfSize = getHalfBoxSize();
+      final ImagePlus siPlus = new ImagePlus("", ip);
+      Polygon p;
+      if (preFilterType_ == FindLocalMaxima.FilterType.NONE) {
+         p = FindLocalMaxima.findMax(siPlus, 2 * halfSize, noiseTolerance_, preFilterType_);
+      } else {
+         // the prefilter uses shared ImageJ objects
+         synchronized (SpotData.LOCK_IP) {
+            p = FindLocalMaxima.findMax(siPlus, 2 * halfSize, noiseTolerance_, preFilterType_);
+         }
+      }
+
+      final GaussianFit gs = fitter_.get();
+      final ZCalibrator zc = DataCollectionForm.zc_;
+      for (int j = 0; j < p.npoints; j++) {
+         final int x = p.xpoints[j];
+         final int y = p.ypoints[j];
+         // filter out spots too close to the edge
+         if (x <= halfSize || x >= ip.getWidth() - halfSize
+               || y <= halfSize || y >= ip.getHeight() - halfSize) {
+            continue;
+         }
+         // ip is only used by this thread, so there is no need to use SpotData.getSpotProcessor
+         ip.setRoi(x - halfSize, y - halfSize, 2 * halfSize, 2 * halfSize);
+         final ImageProcessor sp = ip.crop();
+         SpotData spot = new SpotData(sp, channel, slice, frame, position, j, x, y);
+         GaussianFit.Data fitResult = gs.dogaussianfit(sp, maxIterations_);
+         SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
+         if (fitResult.getParms().length > 1
+               && (!useWidthFilter_
+               || (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
+               && (!useNrPhotonsFilter_
+               || (spotData.getIntensity() > nrPhotonsMin_
+               && spotData.getIntensity() < nrPhotonsMax_))) {
+            resultList_.add(spotData);
+         }
+      }
+   }
+
+   /**
+    * Renders the spots found since the previous update and adds them to the preview image.
+    * Rendering is additive, so only new spots need to be rendered.
+    */
+   private void updatePreview() {
+      if (requestedMagnification_ <= 0.0 || !previewLock_.tryLock()) {
+         return;
+      }
+      try {
+         lastPreview_ = System.currentTimeMillis();
+         final List<SpotData> newSpots;
+         synchronized (resultList_) {
+            if (resultList_.size() == nrRenderedSpots_) {
+               return;
+            }
+            newSpots = new ArrayList<SpotData>(
+                  resultList_.subList(nrRenderedSpots_, resultList_.size()));
+            nrRenderedSpots_ = resultList_.size();
+         }
+         if (preview_ == null) {
+            magnification_ = Math.min(requestedMagnification_,
+                  (double) MAX_PREVIEW_SIZE / Math.max(width_, height_));
+            preview_ = new FloatProcessor((int) (width_ * magnification_),
+                  (int) (height_ * magnification_));
+         }
+         RowData.Builder builder = new RowData.Builder();
+         builder.setName(title_).setWidth(width_).setHeight(height_)
+               .setPixelSizeNm(pixelSize_).setSpotList(newSpots)
+               .setCoordinate(DataCollectionForm.Coordinates.NM);
+         // the preview should not compete with the fitting threads
+         ImageProcessor rendered = new TiledImageRenderer(1, TiledImageRenderer.DEFAULT_TILE_SIZE)
+               .render(builder.build(), 1, magnification_, null, new SpotDataFilter());
+         if (rendered == null) {
+            return;
+         }
+         final float[] previewPixels = (float[]) preview_.getPixels();
+         final float[] newPixels = (float[]) rendered.getPixels();
+         for (int i = 0; i < previewPixels.length && i < newPixels.length; i++) {
+            previewPixels[i] += newPixels[i];
+         }
+         final ImageProcessor snapshot = preview_.duplicate();
+         snapshot.resetMinAndMax();
+         final int nrSpots = nrRenderedSpots_;
+         final int nrSkipped = nrSkippedFrames_.get();
+         SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+               if (previewPlus_ == null) {
+                  previewPlus_ = new ImagePlus(title_ + "-live", snapshot);
+                  previewPlus_.show();
+               } else {
+                  previewPlus_.setProcessor(snapshot);
+                  previewPlus_.updateAndDraw();
+               }
+               ij.IJ.showStatus(title_ + ": " + nrSpots + " spots"
+                     + (nrSkipped > 0 ? ", " + nrSkipped + " images skipped" : ""));
+            }
+         });
+      } finally {
+         previewLock_.unlock();
+      }
+   }
+
+   /**
+    * @return Number of spots localized so far
+    */
+   public int getNrSpots() {
+      return resultList_.size();
+   }
+
+   /**
+    * @return Number of images that were not analyzed because the worker threads were busy,
+    * or because submit was interrupted
+    */
+   public int getNrSkippedFrames() {
+      return nrSkippedFrames_.get();
+   }
+
+   /**
+    * Stops accepting new images, waits for all submitted images to be analyzed, and updates the
+    * preview one last time.
+    *
+    * @return Builder for the spot table with all localizations, or null when no spots were found
+    * @throws InterruptedException
+    */
+   public RowData.Builder finish() throws InterruptedException {
+      finished_ = true;
+      threadPool_.shutdown();
+      threadPool_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      updatePreview();
+      if (nrSkippedFrames_.get() > 0) {
+         ij.IJ.log(title_ + ": " + nrSkippedFrames_.get()
+               + " images were not localized because fitting could not keep up");
+      }
+
+      List<SpotData> spotList;
+      synchronized (resultList_) {
+         spotList = new ArrayList<SpotData>(resultList_);
+      }
+      if (spotList.isEmpty()) {
+         return null;
+      }
+      double zMax = spotList.get(0).getZCenter();
+      if (zMax < 0.0) {
+         zMax = 0.0;
+      }
+      double zMin = zMax;
+      ZCalibrator zc = DataCollectionForm.zc_;
+      if (zc != null) {
+         for (SpotData spot : spotList) {
+            double zTmp = spot.getZCenter();
+            if (zMax < zTmp) {
+               zMax = zTmp;
+            }
+            if (zMin > zTmp && zTmp > 0.0) {
+               zMin = zTmp;
+            }
+         }
+      }
+
+      ArrayList<Double> timePoints = new ArrayList<Double>();
+      // ugly code to deal with 1-based frame numbers and their relation to timePoints
+      timePoints.add(0.0);
+      for (int i = 1; i <= nrFrames_.get(); i++) {
+         timePoints.add((i - 1) * timeIntervalMs_);
+      }
+
+      // make incomplete datasets recognizable in the spot table
+      String name = title_;
+      if (nrSkippedFrames_.get() > 0) {
+         name += " (" + nrSkippedFrames_.get() + " images skipped)";
+      }
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName(name).setTitle(title_)
+            .setWidth(width_).setHeight(height_)
+            .setPixelSizeNm(pixelSize_).setZStackStepSizeNm(zStackStepSize_)
+            .setShape(super.getShape()).setHalfSize(super.getHalfBoxSize())
+            .setNrChannels(nrChannels_.get()).setNrFrames(nrFrames_.get())
+            .setNrSlices(nrSlices_.get()).setNrPositions(nrPositions_.get())
+            .setMaxNrSpots(spotList.size()).setSpotList(spotList)
+            .setTimePoints(timePoints).setIsTrack(false)
+            .setCoordinate(DataCollectionForm.Coordinates.NM)
+            .setHasZ(zc != null && zc.hasFitFunctions())
+            .setMinZ(zMin).setMaxZ(zMax);
+      return builder;
+   }
+
+}
@@ -0,0 +1,319 @@
+package org.micromanager.imageprocessing;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Two-dimensional radix-2 FFT of a fixed size.  The bit reversal permutation
+ * and the twiddle factors are computed once per size, and plans are cached,
+ * so that transforming many images of the same size (for instance one per
+ * frame while tracking) only costs the butterflies.
+ *
+ * <p>Plans are immutable and can be used from several threads at once.
+ * Large transforms spread their rows and columns over several threads.</p>
+ */
+public final class FFTPlan {
+   private static final Map<Long, FFTPlan> PLANS = new ConcurrentHashMap<>();
+   private static final int PARALLEL_THRESHOLD = 1 << 16;
+   private static final int COLUMNS_PER_BAND = 16;
+
+   private final int width_;
+   private final int height_;
+   private final Table rows_;
+   private final Table columns_;
+
+   /**
+    * Bit reversal and twiddle factors for one dimension.  The twiddle factors
+    * of the stage that combines transforms of length half are stored at
+    * [half, 2 * half), so that every stage reads them in order.
+    */
+   private static final class Table {
+      private final int n_;
+      private final int[] reverse_;
+      private final float[] cos_;
+      private final float[] sin_;
+      private final float[] inverseSin_;
+
+      Table(int n) {
+         n_ = n;
+         reverse_ = new int[n];
+         final int bits = Integer.numberOfTrailingZeros(n);
+         for (int i = 0; i < n; i++) {
+            reverse_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+         }
+         cos_ = new float[n];
+         sin_ = new float[n];
+         inverseSin_ = new float[n];
+         for (int half = 1; half < n; half <<= 1) {
+            for (int k = 0; k < half; k++) {
+               final double angle = Math.PI * k / half;
+               cos_[half + k] = (float) Math.cos(angle);
+               sin_[half + k] = (float) -Math.sin(angle);
+               inverseSin_[half + k] = (float) Math.sin(angle);
+            }
+         }
+      }
+
+      /**
+       * In place transform of n values starting at offset.
+       */
+      void transform(float[] re, float[] im, int offset, boolean inverse) {
+         final int n = n_;
+         final int end = offset + n;
+         for (int i = 0; i < n; i++) {
+            final int j = reverse_[i];
+            if (i < j) {
+               float t = re[offset + i];
+               re[offset + i] = re[offset + j];
+               re[offset + j] = t;
+               t = im[offset + i];
+               im[offset + i] = im[offset + j];
+               im[offset + j] = t;
+            }
+         }
+         // the first stage has no multiplications
+         for (int i = offset; i + 1 < end; i += 2) {
+            final float tRe = re[i + 1];
+            final float tIm = im[i + 1];
+            re[i + 1] = re[i] - tRe;
+            im[i + 1] = im[i] - tIm;
+            re[i] += tRe;
+            im[i] += tIm;
+         }
+         final float[] cos = cos_;
+         final float[] sin = inverse ? inverseSin_ : sin_;
+         for (int half = 2; half < n; half <<= 1) {
+            for (int block = offset; block < end; block += 2 * half) {
+               for (int k = 0; k < half; k++) {
+                  final int i = block + k;
+                  final int j = i + half;
+                  final float wRe = cos[half + k];
+                  final float wIm = sin[half + k];
+                  final float tRe = re[j] * wRe - im[j] * wIm;
+                  final float tIm = re[j] * wIm + im[j] * wRe;
+                  re[j] = re[i] - tRe;
+                  im[j] = im[i] - tIm;
+                  re[i] += tRe;
+                  im[i] += tIm;
+               }
+            }
+         }
+      }
+   }
+
+   private FFTPlan(int width, int height) {
+      width_ = width;
+      height_ = height;
+      rows_ = new Table(width);
+      columns_ = height == width ? rows_ : new Table(height);
+   }
+
+   /**
+    * Returns the (cached) plan for images of the given size.
+    *
+    * @param width width of the images, a power of 2
+    * @param height height of the images, a power of 2
+    * @return the plan
+    */
+   public static FFTPlan get(int width, int height) {
+      if (width < 1 || height < 1
+            || Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1) {
+         throw new IllegalArgumentException("Size has to be a power of 2: "
+               + width + "x" + height);
+      }
+      return PLANS.computeIfAbsent(((long) width << 32) | height,
+            k -> new FFTPlan(width, height));
+   }
+
+   /**
+    * Smallest power of 2 that is at least n.
+    */
+   public static int nextPowerOfTwo(int n) {
+      return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * In place 2D FFT, rows first, then columns.  The inverse is not scaled,
+    * so a forward and inverse transform multiply the values by
+    * width * height.
+    *
+    * @param re real parts, row by row
+    * @param im imaginary parts, row by row
+    * @param inverse whether to do the inverse transform
+    */
+   public void transform(float[] re, float[] im, boolean inverse) {
+      checkLength(re.length, im.length);
+      IntStream rows = IntStream.range(0, height_);
+      if (isParallel()) {
+         rows = rows.parallel();
+      }
+      rows.forEach(y -> rows_.transform(re, im, y * width_, inverse));
+      transformColumns(re, im, width_, inverse);
+   }
+
+   /**
+    * Forward FFT of real values, about twice as fast as transform().  Two
+    * rows at a time are transformed as the real and imaginary part of one
+    * complex row, and only the columns that are not known from the symmetry
+    * of the spectrum are transformed.
+    *
+    * @param values real input, row by row, not modified
+    * @param re receives the real parts of the spectrum
+    * @param im receives the imaginary parts of the spectrum
+    */
+   public void transformReal(float[] values, float[] re, float[] im) {
+      checkLength(values.length, re.length, im.length);
+      if (width_ < 2 || height_ % 2 != 0) {
+         System.arraycopy(values, 0, re, 0, values.length);
+         Arrays.fill(im, 0.0f);
+         transform(re, im, false);
+         return;
+      }
+      final int w = width_;
+      IntStream pairs = IntStream.range(0, height_ / 2);
+      if (isParallel()) {
+         pairs = pairs.parallel();
+      }
+      pairs.forEach(p -> {
+         final int a = 2 * p * w;
+         final int b = a + w;
+         System.arraycopy(values, a, re, a, w);
+         System.arraycopy(values, b, im, a, w);
+         rows_.transform(re, im, a, false);
+         // Z = A + iB, with A and B the spectra of the two real rows
+         for (int u = 0; u <= w / 2; u++) {
+            final int v = (w - u) % w;
+            final float zRe = re[a + u];
+            final float zIm = im[a + u];
+            final float nRe = re[a + v];
+            final float nIm = im[a + v];
+            final float aRe = 0.5f * (zRe + nRe);
+            final float aIm = 0.5f * (zIm - nIm);
+            final float bRe = 0.5f * (zIm + nIm);
+            final float bIm = 0.5f * (nRe - zRe);
+            re[a + u] = aRe;
+            im[a + u] = aIm;
+            re[a + v] = aRe;
+            im[a + v] = -aIm;
+            re[b + u] = bRe;
+            im[b + u] = bIm;
+            re[b + v] = bRe;
+            im[b + v] = -bIm;
+         }
+      });
+      final int half = w / 2 + 1;
+      transformColumns(re, im, half, false);
+      // the other half of the spectrum is the complex conjugate of this one
+      for (int y = 0; y < height_; y++) {
+         final int mirror = ((height_ - y) % height_) * w;
+         for (int u = half; u < w; u++) {
+            re[y * w + u] = re[mirror + w - u];
+            im[y * w + u] = -im[mirror + w - u];
+         }
+      }
+   }
+
+   /**
+    * Inverse FFT of a spectrum whose inverse is real (such as the product of
+    * spectra from transformReal() with the conjugate of another), about twice
+    * as fast as transform().  The inverse is not scaled.
+    *
+    * @param re real parts of the spectrum, used as scratch space
+    * @param im imaginary parts of the spectrum, used as scratch space
+    * @param values receives the real result
+    */
+   public void inverseTransformReal(float[] re, float[] im, float[] values) {
+      checkLength(re.length, im.length, values.length);
+      if (width_ < 2 || height_ % 2 != 0) {
+         transform(re, im, true);
+         System.arraycopy(re, 0, values, 0, values.length);
+         return;
+      }
+      final int w = width_;
+      transformColumns(re, im, w / 2 + 1, true);
+      IntStream pairs = IntStream.range(0, height_ / 2);
+      if (isParallel()) {
+         pairs = pairs.parallel();
+      }
+      pairs.forEach(p -> {
+         final int a = 2 * p * w;
+         final int b = a + w;
+         // rows now hold the spectra of real rows, so A(w - u) = conj(A(u));
+         // transform Z = A + iB to get both rows at once
+         for (int u = 0; u <= w / 2; u++) {
+            final int v = (w - u) % w;
+            final float aRe = re[a + u];
+            final float aIm = im[a + u];
+            final float bRe = re[b + u];
+            final float bIm = im[b + u];
+            re[a + v] = aRe + bIm;
+            im[a + v] = bRe - aIm;
+            re[a + u] = aRe - bIm;
+            im[a + u] = aIm + bRe;
+         }
+         rows_.transform(re, im, a, true);
+         System.arraycopy(re, a, values, a, w);
+         System.arraycopy(im, a, values, b, w);
+      });
+   }
+
+   private boolean isParallel() {
+      return width_ * height_ >= PARALLEL_THRESHOLD;
+   }
+
+   private void checkLength(int... lengths) {
+      for (int length : lengths) {
+         if (length != width_ * height_) {
+            throw new IllegalArgumentException("Expected " + width_ + "x" + height_
+                  + " values");
+         }
+      }
+   }
+
+   /**
+    * Transforms the first count columns.  Columns are copied in groups into
+    * contiguous buffers, which is friendlier to the cache than walking down
+    * the image column by column.
+    */
+   private void transformColumns(float[] re, float[] im, int count, boolean inverse) {
+      if (height_ == 1) {
+         return;
+      }
+      final int bands = (count + COLUMNS_PER_BAND - 1) / COLUMNS_PER_BAND;
+      IntStream columns = IntStream.range(0, bands);
+      if (isParallel()) {
+         columns = columns.parallel();
+      }
+      columns.forEach(b -> {
+         final int x0 = b * COLUMNS_PER_BAND;
+         final int bandWidth = Math.min(COLUMNS_PER_BAND, count - x0);
+         final float[] colRe = new float[bandWidth * height_];
+         final float[] colIm = new float[bandWidth * height_];
+         for (int y = 0; y < height_; y++) {
+            for (int c = 0; c < bandWidth; c++) {
+               colRe[c * height_ + y] = re[y * width_ + x0 + c];
+               colIm[c * height_ + y] = im[y * width_ + x0 + c];
+            }
+         }
+         for (int c = 0; c < bandWidth; c++) {
+            columns_.transform(colRe, colIm, c * height_, inverse);
+         }
+         for (int y = 0; y < height_; y++) {
+            for (int c = 0; c < bandWidth; c++) {
+               re[y * width_ + x0 + c] = colRe[c * height_ + y];
+               im[y * width_ + x0 + c] = colIm[c * height_ + y];
+            }
+         }
+      });
+   }
+}
@@ -0,0 +1,296 @@
+package org.micromanager.imageprocessing;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Zero-normalized cross correlation of a template with every position in a
+ * part of an image (Lewis, "Fast Normalized Cross-Correlation", 1995).
+ *
+ * <p>Because the template has zero mean, the numerator is a plain cross
+ * correlation, which is computed with FFTs (or directly when the template or
+ * the search range are small).  The mean and variance of the image under
+ * every position of the template come from summed area tables in constant
+ * time, instead of being summed again for every position.</p>
+ */
+public final class FastNormalizedCrossCorrelation {
+   private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+   /**
+    * Correlation of the template at every position where it fits inside the
+    * search area.  Positions are those of the top left corner of the template,
+    * in image coordinates.
+    */
+   public static final class Result {
+      private final float[] values_;
+      private final int x_;
+      private final int y_;
+      private final int width_;
+      private final int height_;
+      private final int peak_;
+
+      Result(float[] values, int x, int y, int width, int height) {
+         values_ = values;
+         x_ = x;
+         y_ = y;
+         width_ = width;
+         height_ = height;
+         int peak = 0;
+         for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[peak] || Float.isNaN(values[peak])) {
+               peak = i;
+            }
+         }
+         peak_ = peak;
+      }
+
+      /**
+       * Leftmost position of the template.
+       */
+      public int getX() {
+         return x_;
+      }
+
+      /**
+       * Topmost position of the template.
+       */
+      public int getY() {
+         return y_;
+      }
+
+      /**
+       * Number of positions in x.
+       */
+      public int getWidth() {
+         return width_;
+      }
+
+      /**
+       * Number of positions in y.
+       */
+      public int getHeight() {
+         return height_;
+      }
+
+      /**
+       * Correlation with the template at (x, y), between -1 and 1, NaN for
+       * positions outside of the search area, or where the image is flat.
+       */
+      public float getValue(int x, int y) {
+         if (x < x_ || y < y_ || x >= x_ + width_ || y >= y_ + height_) {
+            return Float.NaN;
+         }
+         return values_[(y - y_) * width_ + (x - x_)];
+      }
+
+      /**
+       * Highest correlation found.
+       */
+      public float getPeakValue() {
+         return values_[peak_];
+      }
+
+      /**
+       * Position with the highest correlation, refined to a fraction of a
+       * pixel with parabolas through its neighbours.
+       */
+      public Point2D.Double getPeak() {
+         final int px = peak_ % width_;
+         final int py = peak_ / width_;
+         final double subX = px == 0 || px == width_ - 1 ? 0.0
+               : parabolicOffset(values_[peak_ - 1], values_[peak_], values_[peak_ + 1]);
+         final double subY = py == 0 || py == height_ - 1 ? 0.0
+               : parabolicOffset(values_[peak_ - width_], values_[peak_],
+                     values_[peak_ + width_]);
+         return new Point2D.Double(x_ + px + subX, y_ + py + subY);
+      }
+
+      private static double parabolicOffset(float left, float center, float right) {
+         final double denominator = left - 2.0 * center + right;
+         if (!(denominator < 0.0)) {
+            return 0.0;
+         }
+         return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator));
+      }
+   }
+
+   private final float[] template_;
+   private final int templateWidth_;
+   private final int templateHeight_;
+   private final double templateNorm_;
+
+   /**
+    * Prepares the template.
+    *
+    * @param template pixels of the template, row by row
+    * @param width width of the template
+    * @param height height of the template
+    */
+   public FastNormalizedCrossCorrelation(float[] template, int width, int height) {
+      if (template.length != width * height || template.length == 0) {
+         throw new IllegalArgumentException("Template should have " + width + "x" + height
+               + " pixels");
+      }
+      templateWidth_ = width;
+      templateHeight_ = height;
+      double sum = 0.0;
+      for (float v : template) {
+         sum += v;
+      }
+      final double mean = sum / template.length;
+      template_ = new float[template.length];
+      double sumOfSquares = 0.0;
+      for (int i = 0; i < template.length; i++) {
+         template_[i] = (float) (template[i] - mean);
+         sumOfSquares += (double) template_[i] * template_[i];
+      }
+      templateNorm_ = Math.sqrt(sumOfSquares);
+   }
+
+   /**
+    * Correlates the template with all positions inside an area of the image.
+    *
+    * @param image pixels, row by row
+    * @param width width of the image
+    * @param height height of the image
+    * @param area part of the image to search, the template is only placed
+    *             where it fits entirely inside this area and the image
+    * @return the correlations, or null when the template does not fit
+    */
+   public Result correlate(float[] image, int width, int height, Rectangle area) {
+      final Rectangle inside = area.intersection(new Rectangle(0, 0, width, height));
+      final int outWidth = inside.width - templateWidth_ + 1;
+      final int outHeight = inside.height - templateHeight_ + 1;
+      if (outWidth < 1 || outHeight < 1) {
+         return null;
+      }
+      // the mean of the area is subtracted, which does not change the
+      // numerator (the template has zero mean) but keeps the floats small
+      final int areaWidth = inside.width;
+      final int areaHeight = inside.height;
+      final float[] pixels = new float[areaWidth * areaHeight];
+      double sum = 0.0;
+      for (int y = 0; y < areaHeight; y++) {
+         System.arraycopy(image, (inside.y + y) * width + inside.x, pixels, y * areaWidth,
+               areaWidth);
+      }
+      for (float v : pixels) {
+         sum += v;
+      }
+      final float mean = (float) (sum / pixels.length);
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] -= mean;
+      }
+
+      final float[] numerator = useFft(areaWidth, areaHeight, outWidth, outHeight)
+            ? numeratorByFft(pixels, areaWidth, areaHeight, outWidth, outHeight)
+            : numeratorDirect(pixels, areaWidth, outWidth, outHeight);
+
+      // summed area tables of the pixels and their squares
+      final int tableWidth = areaWidth + 1;
+      final double[] sums = new double[tableWidth * (areaHeight + 1)];
+      final double[] squares = new double[tableWidth * (areaHeight + 1)];
+      for (int y = 0; y < areaHeight; y++) {
+         double rowSum = 0.0;
+         double rowSquares = 0.0;
+         for (int x = 0; x < areaWidth; x++) {
+            final double v = pixels[y * areaWidth + x];
+            rowSum += v;
+            rowSquares += v * v;
+            sums[(y + 1) * tableWidth + x + 1] = sums[y * tableWidth + x + 1] + rowSum;
+            squares[(y + 1) * tableWidth + x + 1] = squares[y * tableWidth + x + 1]
+                  + rowSquares;
+         }
+      }
+      final int count = templateWidth_ * templateHeight_;
+      final float[] values = new float[outWidth * outHeight];
+      for (int y = 0; y < outHeight; y++) {
+         for (int x = 0; x < outWidth; x++) {
+            final int a = y * tableWidth + x;
+            final int b = a + templateWidth_;
+            final int c = a + templateHeight_ * tableWidth;
+            final int d = c + templateWidth_;
+            final double s = sums[d] - sums[b] - sums[c] + sums[a];
+            final double s2 = squares[d] - squares[b] - squares[c] + squares[a];
+            final double variance = s2 - s * s / count;
+            final int i = y * outWidth + x;
+            values[i] = variance > 1.0e-12 * s2 && templateNorm_ > 0.0
+                  ? (float) Math.max(-1.0, Math.min(1.0,
+                        numerator[i] / (Math.sqrt(variance) * templateNorm_)))
+                  : Float.NaN;
+         }
+      }
+      return new Result(values, inside.x, inside.y, outWidth, outHeight);
+   }
+
+   private boolean useFft(int areaWidth, int areaHeight, int outWidth, int outHeight) {
+      final double direct = (double) outWidth * outHeight * templateWidth_ * templateHeight_;
+      final double size = (double) FFTPlan.nextPowerOfTwo(areaWidth)
+            * FFTPlan.nextPowerOfTwo(areaHeight);
+      // three transforms, a few operations per butterfly
+      return direct > 3.0 * 4.0 * size * Math.max(1.0, Math.log(size) / Math.log(2.0));
+   }
+
+   private float[] numeratorDirect(float[] pixels, int areaWidth, int outWidth,
+         int outHeight) {
+      final float[] numerator = new float[outWidth * outHeight];
+      IntStream rows = IntStream.range(0, outHeight);
+      if ((long) outWidth * outHeight * template_.length >= PARALLEL_THRESHOLD) {
+         rows = rows.parallel();
+      }
+      rows.forEach(y -> {
+         for (int x = 0; x < outWidth; x++) {
+            double sum = 0.0;
+            for (int ty = 0; ty < templateHeight_; ty++) {
+               final int row = (y + ty) * areaWidth + x;
+               final int templateRow = ty * templateWidth_;
+               for (int tx = 0; tx < templateWidth_; tx++) {
+                  sum += pixels[row + tx] * template_[templateRow + tx];
+               }
+            }
+            numerator[y * outWidth + x] = (float) sum;
+         }
+      });
+      return numerator;
+   }
+
+   private float[] numeratorByFft(float[] pixels, int areaWidth, int areaHeight,
+         int outWidth, int outHeight) {
+      final FFTPlan plan = FFTPlan.get(FFTPlan.nextPowerOfTwo(areaWidth),
+            FFTPlan.nextPowerOfTwo(areaHeight));
+      final int fftWidth = plan.getWidth();
+      final int n = fftWidth * plan.getHeight();
+      final float[] padded = new float[n];
+      for (int y = 0; y < areaHeight; y++) {
+         System.arraycopy(pixels, y * areaWidth, padded, y * fftWidth, areaWidth);
+      }
+      final float[] re = new float[n];
+      final float[] im = new float[n];
+      plan.transformReal(padded, re, im);
+      Arrays.fill(padded, 0.0f);
+      for (int y = 0; y < templateHeight_; y++) {
+         System.arraycopy(template_, y * templateWidth_, padded, y * fftWidth,
+               templateWidth_);
+      }
+      final float[] templateRe = new float[n];
+      final float[] templateIm = new float[n];
+      plan.transformReal(padded, templateRe, templateIm);
+      // cross correlation: image * conj(template)
+      for (int i = 0; i < n; i++) {
+         final float pRe = re[i] * templateRe[i] + im[i] * templateIm[i];
+         final float pIm = im[i] * templateRe[i] - re[i] * templateIm[i];
+         re[i] = pRe;
+         im[i] = pIm;
+      }
+      plan.inverseTransformReal(re, im, padded);
+      final float[] numerator = new float[outWidth * outHeight];
+      for (int y = 0; y < outHeight; y++) {
+         for (int x = 0; x < outWidth; x++) {
+            numerator[y * outWidth + x] = padded[y * fftWidth + x] / n;
+         }
+      }
+      return numerator;
+   }
+}
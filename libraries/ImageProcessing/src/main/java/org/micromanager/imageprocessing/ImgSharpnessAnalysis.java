@@ -32,8 +32,10 @@
 package org.micromanager.imageprocessing;
 
 import ij.gui.OvalRoi;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
 import java.util.Arrays;
 
 /**
@@ -85,11 +87,19 @@ public class ImgSharpnessAnalysis {
 
    /**
     * Compute the sharpness of `proc` using the current `Method` set with `setComputationMethod`.
+    * 8 and 16-bit images without ROI are handled by {@link SharpnessKernels}, other images
+    * by the ImageJ based implementations below.
     *
     * @param proc
     * @return
     */
    public double compute(ImageProcessor proc) {
+      if (method_ != Method.FFTBandpass && SharpnessKernels.isSupported(proc.getPixels())
+            && proc.getMask() == null
+            && proc.getRoi().width == proc.getWidth()
+            && proc.getRoi().height == proc.getHeight()) {
+         return computeFromPixels(proc.getPixels(), proc.getWidth(), proc.getHeight());
+      }
       switch (method_) {
          case Edges:
             return computeEdges(proc);
@@ -118,6 +128,47 @@ public class ImgSharpnessAnalysis {
       }
    }
 
+   /**
+    * Compute the sharpness of an 8-bit (byte[]) or 16-bit (short[]) image using the
+    * current `Method`.  The pixels are not modified.
+    *
+    * @param pixels byte[] or short[] pixel array
+    * @param width  width of the image
+    * @param height height of the image
+    * @return sharpness score
+    */
+   public double computeFromPixels(Object pixels, int width, int height) {
+      switch (method_) {
+         case Edges:
+            return SharpnessKernels.edges(pixels, width, height);
+         case StdDev:
+            return SharpnessKernels.normalizedStdDev(pixels, width, height);
+         case Mean:
+            return SharpnessKernels.mean(pixels, width, height);
+         case NormalizedVariance:
+            return SharpnessKernels.normalizedVariance(pixels, width, height);
+         case SharpEdges:
+            return SharpnessKernels.sharpEdges(pixels, width, height);
+         case Redondo:
+            return SharpnessKernels.redondo(pixels, width, height);
+         case Volath:
+            return SharpnessKernels.volath(pixels, width, height);
+         case Volath5:
+            return SharpnessKernels.volath5(pixels, width, height);
+         case MedianEdges:
+            return SharpnessKernels.medianEdges(pixels, width, height);
+         case Tenengrad:
+            return SharpnessKernels.tenengrad(pixels, width, height);
+         case FFTBandpass:
+            ImageProcessor proc = pixels instanceof byte[]
+                  ? new ByteProcessor(width, height, (byte[]) pixels)
+                  : new ShortProcessor(width, height, (short[]) pixels, null);
+            return computeFFTBandpass(proc, fftLowerCutoff_, fftUpperCutoff_);
+         default:
+            throw new AssertionError(method_.name());
+      }
+   }
+
    public static double computeEdges(ImageProcessor proc) {
       // mean intensity for the original image
       double meanIntensity = proc.getStatistics().mean;
@@ -226,13 +277,13 @@ public class ImgSharpnessAnalysis {
 
       for (int i = 1; i < w - 1; ++i) {
          for (int j = 0; j < h; ++j) {
-            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
+            sum1 += (double) proc.getPixel(i, j) * proc.getPixel(i + 1, j);
          }
       }
 
       for (int i = 0; i < w - 2; ++i) {
          for (int j = 0; j < h; ++j) {
-            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
+            sum2 += (double) proc.getPixel(i, j) * proc.getPixel(i + 2, j);
          }
       }
 
@@ -250,7 +301,7 @@ public class ImgSharpnessAnalysis {
 
       for (int i = 0; i < w - 1; ++i) {
          for (int j = 0; j < h; ++j) {
-            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
+            sum += (double) proc.getPixel(i, j) * proc.getPixel(i + 1, j);
          }
       }
 
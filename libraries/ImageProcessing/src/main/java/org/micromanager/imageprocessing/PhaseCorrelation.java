@@ -0,0 +1,268 @@
+package org.micromanager.imageprocessing;
+
+import java.util.stream.IntStream;
+
+/**
+ * Finds the translation between images of the same size with phase
+ * correlation, to a fraction of a pixel.
+ *
+ * <p>The reference image is transformed once, after which every image that
+ * is registered against it takes two FFTs (one forward, one inverse) of a
+ * cached {@link FFTPlan}.  Images are windowed (mean subtracted, Hann window)
+ * to suppress their edges.  The integer peak of the correlation is refined
+ * by evaluating the inverse DFT of the cross power spectrum on a grid of
+ * 1/upsampling pixel around the peak, with matrix multiplications (Guizar-Sicairos
+ * et al., Opt. Lett. 33, 156 (2008)), which is far cheaper than upsampling
+ * the whole correlation.</p>
+ */
+public final class PhaseCorrelation {
+   private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+   /**
+    * Result of a registration.
+    */
+   public static final class Shift {
+      private final double dx_;
+      private final double dy_;
+      private final double peak_;
+
+      Shift(double dx, double dy, double peak) {
+         dx_ = dx;
+         dy_ = dy;
+         peak_ = peak;
+      }
+
+      /**
+       * Shift in x, such that image(x, y) = reference(x - dx, y - dy).
+       */
+      public double getDx() {
+         return dx_;
+      }
+
+      public double getDy() {
+         return dy_;
+      }
+
+      /**
+       * Height of the correlation peak, 1 for identical images, near 0 when
+       * the images have nothing in common.
+       */
+      public double getPeak() {
+         return peak_;
+      }
+   }
+
+   private final FFTPlan plan_;
+   private final int width_;
+   private final int height_;
+   private final int upsampling_;
+   private final float[] windowX_;
+   private final float[] windowY_;
+   private float[] referenceRe_;
+   private float[] referenceIm_;
+
+   /**
+    * Creates the correlator.
+    *
+    * @param width width of the images, a power of 2
+    * @param height height of the images, a power of 2
+    * @param upsampling the shift is found to 1 / upsampling pixel, 1 for
+    *                   whole pixels only
+    */
+   public PhaseCorrelation(int width, int height, int upsampling) {
+      if (upsampling < 1) {
+         throw new IllegalArgumentException("Upsampling has to be at least 1");
+      }
+      plan_ = FFTPlan.get(width, height);
+      width_ = width;
+      height_ = height;
+      upsampling_ = upsampling;
+      windowX_ = hann(width);
+      windowY_ = hann(height);
+   }
+
+   /**
+    * Registers image against reference in one go.  Use an instance with
+    * setReference() when registering several images against the same
+    * reference.
+    *
+    * @see #register(float[], double)
+    */
+   public static Shift register(float[] reference, float[] image, int width, int height,
+         int upsampling, double maxShift) {
+      PhaseCorrelation correlation = new PhaseCorrelation(width, height, upsampling);
+      correlation.setReference(reference);
+      return correlation.register(image, maxShift);
+   }
+
+   /**
+    * Sets the image that other images are registered against.
+    *
+    * @param reference pixels, row by row
+    */
+   public void setReference(float[] reference) {
+      float[] windowed = new float[width_ * height_];
+      float[] re = new float[width_ * height_];
+      float[] im = new float[width_ * height_];
+      window(reference, windowed);
+      plan_.transformReal(windowed, re, im);
+      referenceRe_ = re;
+      referenceIm_ = im;
+   }
+
+   /**
+    * Finds the shift of an image relative to the reference.
+    *
+    * @param image pixels, row by row, same size as the reference
+    * @param maxShift largest shift (in x and in y) to consider; the shift can
+    *                 not be determined beyond half the image size
+    * @return the shift
+    */
+   public Shift register(float[] image, double maxShift) {
+      if (referenceRe_ == null) {
+         throw new IllegalStateException("No reference image");
+      }
+      final int n = width_ * height_;
+      final float[] correlation = new float[n];
+      final float[] re = new float[n];
+      final float[] im = new float[n];
+      window(image, correlation);
+      plan_.transformReal(correlation, re, im);
+      // normalized cross power spectrum, image * conj(reference)
+      for (int i = 0; i < n; i++) {
+         final float pRe = re[i] * referenceRe_[i] + im[i] * referenceIm_[i];
+         final float pIm = im[i] * referenceRe_[i] - re[i] * referenceIm_[i];
+         final float magnitude = (float) Math.sqrt(pRe * pRe + pIm * pIm);
+         re[i] = magnitude > 1.0e-20f ? pRe / magnitude : 0.0f;
+         im[i] = magnitude > 1.0e-20f ? pIm / magnitude : 0.0f;
+      }
+      final float[] spectrumRe = upsampling_ > 1 ? re.clone() : null;
+      final float[] spectrumIm = upsampling_ > 1 ? im.clone() : null;
+      plan_.inverseTransformReal(re, im, correlation);
+
+      final int rangeX = (int) Math.min(width_ / 2, Math.floor(maxShift));
+      final int rangeY = (int) Math.min(height_ / 2, Math.floor(maxShift));
+      int peakX = 0;
+      int peakY = 0;
+      float peak = -Float.MAX_VALUE;
+      for (int dy = -rangeY; dy <= rangeY; dy++) {
+         final int row = ((dy + height_) % height_) * width_;
+         for (int dx = -rangeX; dx <= rangeX; dx++) {
+            final float value = correlation[row + (dx + width_) % width_];
+            if (value > peak) {
+               peak = value;
+               peakX = dx;
+               peakY = dy;
+            }
+         }
+      }
+      if (upsampling_ == 1) {
+         return new Shift(peakX, peakY, peak / n);
+      }
+      return refine(spectrumRe, spectrumIm, peakX, peakY);
+   }
+
+   /**
+    * Evaluates the inverse DFT of the cross power spectrum on a grid with
+    * spacing 1 / upsampling over 1.5 pixel around the integer peak, and
+    * returns the maximum.  The spectrum is Hermitian, so rows ky and -ky
+    * contribute the same, and only half of the rows are needed.
+    */
+   private Shift refine(float[] re, float[] im, int peakX, int peakY) {
+      final int points = (int) Math.ceil(1.5 * upsampling_);
+      final int center = points / 2;
+      final double[] offsets = new double[points];
+      for (int u = 0; u < points; u++) {
+         offsets[u] = (double) (u - center) / upsampling_;
+      }
+      // kernelX[kx * points + u], kernelY[ky * points + v]
+      final float[] kernelXRe = new float[width_ * points];
+      final float[] kernelXIm = new float[width_ * points];
+      dftKernel(kernelXRe, kernelXIm, width_, peakX, offsets);
+      final float[] kernelYRe = new float[height_ * points];
+      final float[] kernelYIm = new float[height_ * points];
+      dftKernel(kernelYRe, kernelYIm, height_, peakY, offsets);
+
+      // first along the rows: partial[ky][u] = sum over kx of spectrum * kernelX
+      final int rows = height_ / 2 + 1;
+      final float[] partialRe = new float[rows * points];
+      final float[] partialIm = new float[rows * points];
+      IntStream stream = IntStream.range(0, Math.min(rows, height_));
+      if (width_ * rows * points >= PARALLEL_THRESHOLD) {
+         stream = stream.parallel();
+      }
+      stream.forEach(ky -> {
+         final int row = ky * width_;
+         final int out = ky * points;
+         for (int kx = 0; kx < width_; kx++) {
+            final float sRe = re[row + kx];
+            final float sIm = im[row + kx];
+            final int k = kx * points;
+            for (int u = 0; u < points; u++) {
+               partialRe[out + u] += sRe * kernelXRe[k + u] - sIm * kernelXIm[k + u];
+               partialIm[out + u] += sRe * kernelXIm[k + u] + sIm * kernelXRe[k + u];
+            }
+         }
+      });
+      // then along the columns, only the real part is needed
+      final double[] sums = new double[points * points];
+      for (int ky = 0; ky < Math.min(rows, height_); ky++) {
+         final double weight = ky == 0 || 2 * ky == height_ ? 1.0 : 2.0;
+         for (int v = 0; v < points; v++) {
+            final double kRe = weight * kernelYRe[ky * points + v];
+            final double kIm = weight * kernelYIm[ky * points + v];
+            for (int u = 0; u < points; u++) {
+               sums[v * points + u] += partialRe[ky * points + u] * kRe
+                     - partialIm[ky * points + u] * kIm;
+            }
+         }
+      }
+      int best = center * points + center;
+      for (int i = 0; i < sums.length; i++) {
+         if (sums[i] > sums[best]) {
+            best = i;
+         }
+      }
+      return new Shift(peakX + offsets[best % points], peakY + offsets[best / points],
+            sums[best] / (width_ * height_));
+   }
+
+   // kernel[k * offsets.length + u] = exp(2 pi i f(k) (peak + offsets[u]) / n), with
+   // f(k) the signed frequency
+   private static void dftKernel(float[] kernelRe, float[] kernelIm, int n, int peak,
+         double[] offsets) {
+      for (int k = 0; k < n; k++) {
+         final int frequency = k < (n + 1) / 2 ? k : k - n;
+         for (int u = 0; u < offsets.length; u++) {
+            final double angle = 2.0 * Math.PI * frequency * (peak + offsets[u]) / n;
+            kernelRe[k * offsets.length + u] = (float) Math.cos(angle);
+            kernelIm[k * offsets.length + u] = (float) Math.sin(angle);
+         }
+      }
+   }
+
+   private void window(float[] in, float[] out) {
+      if (in.length != width_ * height_) {
+         throw new IllegalArgumentException("Expected " + width_ + "x" + height_ + " pixels");
+      }
+      double sum = 0.0;
+      for (float v : in) {
+         sum += v;
+      }
+      final float mean = (float) (sum / in.length);
+      for (int y = 0; y < height_; y++) {
+         for (int x = 0; x < width_; x++) {
+            final int i = y * width_ + x;
+            out[i] = (in[i] - mean) * windowX_[x] * windowY_[y];
+         }
+      }
+   }
+
+   private static float[] hann(int n) {
+      float[] w = new float[n];
+      for (int i = 0; i < n; i++) {
+         w[i] = n == 1 ? 1.0f : (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / n));
+      }
+      return w;
+   }
+}
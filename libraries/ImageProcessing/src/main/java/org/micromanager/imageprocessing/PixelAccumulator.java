@@ -0,0 +1,136 @@
+package org.micromanager.imageprocessing;
+
+import java.util.Set;
+
+/**
+ * Running per-pixel sums, sums of squares, minima and maxima of a series of
+ * 8 or 16 bit images of the same size.  Images are added one at a time, so
+ * that they do not need to be kept, and memory use does not depend on the
+ * number of images.  Only the statistics asked for are kept.
+ *
+ * <p>The arrays with the statistics are kept when the accumulator is reset,
+ * so that it can be used for the next series without allocating them
+ * again.</p>
+ */
+public final class PixelAccumulator {
+
+   /**
+    * What is accumulated for every pixel.
+    */
+   public enum Statistic {
+      SUM, SUM_OF_SQUARES, MIN, MAX
+   }
+
+   private final int length_;
+   private final boolean parallel_;
+   private final long[] sum_;
+   private final long[] sumOfSquares_;
+   private final int[] min_;
+   private final int[] max_;
+   private int count_ = 0;
+
+   /**
+    * Creates an empty accumulator.
+    *
+    * @param length number of pixels of the images
+    * @param statistics what to accumulate
+    * @param parallel whether to spread the work on an image over several threads
+    */
+   public PixelAccumulator(int length, Set<Statistic> statistics, boolean parallel) {
+      length_ = length;
+      parallel_ = parallel;
+      sum_ = statistics.contains(Statistic.SUM) ? new long[length] : null;
+      sumOfSquares_ = statistics.contains(Statistic.SUM_OF_SQUARES) ? new long[length] : null;
+      min_ = statistics.contains(Statistic.MIN) ? new int[length] : null;
+      max_ = statistics.contains(Statistic.MAX) ? new int[length] : null;
+   }
+
+   public int getLength() {
+      return length_;
+   }
+
+   /**
+    * Number of images added since the accumulator was created or reset.
+    */
+   public int getCount() {
+      return count_;
+   }
+
+   /**
+    * Adds an image.
+    *
+    * @param pixels byte[] or short[] with getLength() pixels, taken as unsigned
+    */
+   public void add(Object pixels) {
+      if (!(pixels instanceof byte[] || pixels instanceof short[])) {
+         throw new IllegalArgumentException("Can only accumulate 8 and 16 bit pixels");
+      }
+      final boolean first = count_ == 0;
+      PixelBands.forEach(length_, PixelBands.PIXELS_PER_BAND, parallel_, (band, start, end) -> {
+         if (pixels instanceof short[]) {
+            final short[] values = (short[]) pixels;
+            for (int i = start; i < end; i++) {
+               add(i, values[i] & 0xffff, first);
+            }
+         } else {
+            final byte[] values = (byte[]) pixels;
+            for (int i = start; i < end; i++) {
+               add(i, values[i] & 0xff, first);
+            }
+         }
+      });
+      count_++;
+   }
+
+   private void add(int i, int value, boolean first) {
+      if (sum_ != null) {
+         sum_[i] = first ? value : sum_[i] + value;
+      }
+      if (sumOfSquares_ != null) {
+         final long square = (long) value * value;
+         sumOfSquares_[i] = first ? square : sumOfSquares_[i] + square;
+      }
+      if (min_ != null) {
+         min_[i] = first ? value : Math.min(min_[i], value);
+      }
+      if (max_ != null) {
+         max_[i] = first ? value : Math.max(max_[i], value);
+      }
+   }
+
+   /**
+    * Sums of the pixel values, or null when not accumulated.  Only valid when
+    * at least one image was added.
+    */
+   public long[] getSum() {
+      return sum_;
+   }
+
+   /**
+    * Sums of the squared pixel values, or null when not accumulated.
+    */
+   public long[] getSumOfSquares() {
+      return sumOfSquares_;
+   }
+
+   /**
+    * Minimum pixel values, or null when not accumulated.
+    */
+   public int[] getMin() {
+      return min_;
+   }
+
+   /**
+    * Maximum pixel values, or null when not accumulated.
+    */
+   public int[] getMax() {
+      return max_;
+   }
+
+   /**
+    * Starts a new series.  The next image added replaces the statistics.
+    */
+   public void reset() {
+      count_ = 0;
+   }
+}
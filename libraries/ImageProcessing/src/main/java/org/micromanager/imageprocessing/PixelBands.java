@@ -0,0 +1,93 @@
+package org.micromanager.imageprocessing;
+
+import java.util.stream.IntStream;
+
+/**
+ * Divides the pixels of an image in bands of consecutive pixels, usually a
+ * number of whole rows, and runs a piece of code on every band, in parallel
+ * for large images.  Bands are large enough that the overhead of handing them
+ * to threads does not matter, and small enough to stay in the cache.
+ */
+public final class PixelBands {
+   /**
+    * Rows in a band, for code that divides images by rows.
+    */
+   public static final int ROWS_PER_BAND = 64;
+
+   /**
+    * Pixels in a band, for code that does not know the width of the image.
+    */
+   public static final int PIXELS_PER_BAND = 1 << 14;
+
+   /**
+    * Images with at least this many pixels are processed in parallel.
+    */
+   public static final int PARALLEL_THRESHOLD = 1 << 17;
+
+   /**
+    * Code that processes the pixels from start (inclusive) to end (exclusive).
+    */
+   @FunctionalInterface
+   public interface Band {
+      /**
+       * Processes one band.
+       *
+       * @param band index of the band, from 0 to count() - 1
+       * @param start index of the first pixel of the band
+       * @param end index after the last pixel of the band
+       */
+      void run(int band, int start, int end);
+   }
+
+   private PixelBands() {
+   }
+
+   /**
+    * Number of pixels in a band of ROWS_PER_BAND rows.
+    *
+    * @param width width of the image
+    * @return band length, at least 1
+    */
+   public static int rows(int width) {
+      return Math.max(1, ROWS_PER_BAND * width);
+   }
+
+   /**
+    * Number of bands that forEach runs.
+    *
+    * @param length number of pixels
+    * @param bandLength number of pixels in a band
+    * @return number of bands
+    */
+   public static int count(int length, int bandLength) {
+      return (length + bandLength - 1) / bandLength;
+   }
+
+   /**
+    * Runs the band on all pixels, in parallel when there are at least
+    * PARALLEL_THRESHOLD of them.
+    *
+    * @param length number of pixels
+    * @param bandLength number of pixels in a band
+    * @param band code to run
+    */
+   public static void forEach(int length, int bandLength, Band band) {
+      forEach(length, bandLength, length >= PARALLEL_THRESHOLD, band);
+   }
+
+   /**
+    * Runs the band on all pixels.
+    *
+    * @param length number of pixels
+    * @param bandLength number of pixels in a band
+    * @param parallel whether bands run on several threads
+    * @param band code to run
+    */
+   public static void forEach(int length, int bandLength, boolean parallel, Band band) {
+      IntStream stream = IntStream.range(0, count(length, bandLength));
+      if (parallel) {
+         stream = stream.parallel();
+      }
+      stream.forEach(b -> band.run(b, b * bandLength, Math.min(length, (b + 1) * bandLength)));
+   }
+}
@@ -0,0 +1,518 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           SharpnessKernels.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      Autofocusing plug-in for micro-manager and ImageJ
+//-----------------------------------------------------------------------------
+//
+//LICENSE:        This file is distributed under the BSD license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.imageprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sharpness measures of {@link ImgSharpnessAnalysis} computed directly on 8-bit
+ * (byte[]) and 16-bit (short[]) pixel arrays.
+ *
+ * <p>The image is divided in bands of rows that are processed in parallel.  Rows are
+ * read into small int buffers (padded by one pixel on either side), and the 3x3
+ * filters used by some measures are evaluated row by row, so no temporary images
+ * are created and the input is never modified.  Results are the same as those of
+ * the ImageJ (1.51) based implementations, including the clipping of filter results
+ * to the range of the pixel type and the treatment of border pixels.
+ */
+public final class SharpnessKernels {
+
+   private static final int TILE_HEIGHT = 64;
+   private static final int MIN_PARALLEL_PIXELS = 1 << 18;
+   private static final int NR_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(NR_THREADS,
+         r -> {
+            Thread thread = new Thread(r, "Sharpness calculation");
+            thread.setDaemon(true);
+            return thread;
+         });
+
+   private static final int[] SOBEL_X = {-1, 0, 1, -2, 0, 2, -1, 0, 1};
+   private static final int[] SOBEL_Y = {1, 2, 1, 0, 0, 0, -1, -2, -1};
+   private static final int[] DIAGONAL_1 = {2, 1, 0, 1, 0, -1, 0, -1, -2};
+   private static final int[] DIAGONAL_2 = {0, 1, 2, -1, 0, 1, -2, -1, 0};
+   private static final int[] SHARPEN = {-1, -1, -1, -1, 12, -1, -1, -1, -1};
+
+   private SharpnessKernels() {
+   }
+
+   /**
+    * Partial result of a band of rows.
+    */
+   private interface TileKernel {
+      /**
+       * Adds the contributions of rows y0 (inclusive) to y1 (exclusive) to sums.
+       */
+      void apply(int y0, int y1, double[] sums);
+   }
+
+   /**
+    * Whether the pixel array can be handled by this class.
+    */
+   public static boolean isSupported(Object pixels) {
+      return pixels instanceof byte[] || pixels instanceof short[];
+   }
+
+   public static double mean(Object pixels, int width, int height) {
+      double[] sums = sumTiles(pixels, width, height, 1, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         long sum = 0;
+         for (int y = y0; y < y1; y++) {
+            int[] row = rows.get(y);
+            for (int x = 1; x <= width; x++) {
+               sum += row[x];
+            }
+         }
+         s[0] += sum;
+      });
+      return sums[0] / ((double) width * height);
+   }
+
+   /**
+    * Standard deviation (as calculated by ImageJ, i.e. with n - 1) divided by the mean.
+    */
+   public static double normalizedStdDev(Object pixels, int width, int height) {
+      double[] stats = meanAndVariance(pixels, width, height);
+      return Math.sqrt(stats[1]) / stats[0];
+   }
+
+   public static double normalizedVariance(Object pixels, int width, int height) {
+      double[] stats = meanAndVariance(pixels, width, height);
+      return stats[1] / stats[0];
+   }
+
+   /**
+    * Mean of the Sobel edge map divided by the mean intensity.
+    */
+   public static double edges(Object pixels, int width, int height) {
+      final int max = maxValue(pixels);
+      double[] sums = sumTiles(pixels, width, height, 2, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         s[0] += sumEdges(rows, y0, y1, width, max);
+         s[1] += sumRows(rows, y0, y1, width);
+      });
+      return sums[0] / sums[1];
+   }
+
+   /**
+    * Mean of the Sobel edge map of the sharpened image divided by the mean intensity.
+    */
+   public static double sharpEdges(Object pixels, int width, int height) {
+      final int max = maxValue(pixels);
+      double[] sums = sumTiles(pixels, width, height, 2, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         s[0] += sumEdges(new ConvolvedRows(rows, SHARPEN, max), y0, y1, width, max);
+         s[1] += sumRows(rows, y0, y1, width);
+      });
+      return sums[0] / sums[1];
+   }
+
+   public static double redondo(Object pixels, int width, int height) {
+      if (width < 3 || height < 3) {
+         return 0.0;
+      }
+      double[] sums = sumTiles(pixels, width, height, 1, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         long sum = 0;
+         for (int y = Math.max(y0, 1); y < Math.min(y1, height - 1); y++) {
+            final int[] a = rows.get(y - 1);
+            final int[] b = rows.get(y);
+            final int[] c = rows.get(y + 1);
+            // padded rows: pixel x is at index x + 1
+            for (int x = 2; x < width; x++) {
+               long p = b[x - 1] + b[x + 1] + a[x] + c[x] - 4 * b[x - 1];
+               sum += p * p;
+            }
+         }
+         s[0] += sum;
+      });
+      return sums[0];
+   }
+
+   public static double tenengrad(Object pixels, int width, int height) {
+      final int max = maxValue(pixels);
+      double[] sums = sumTiles(pixels, width, height, 1, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         long sum = 0;
+         for (int y = y0; y < y1; y++) {
+            final int[] a = rows.get(y - 1);
+            final int[] b = rows.get(y);
+            final int[] c = rows.get(y + 1);
+            for (int x = 1; x <= width; x++) {
+               long gx = convolve(SOBEL_X, 1, a, b, c, x, max);
+               long gy = convolve(SOBEL_Y, 1, a, b, c, x, max);
+               sum += gx * gx + gy * gy;
+            }
+         }
+         s[0] += sum;
+      });
+      return sums[0];
+   }
+
+   public static double volath(Object pixels, int width, int height) {
+      double[] sums = sumTiles(pixels, width, height, 1, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         long sum1 = 0;
+         long sum2 = 0;
+         for (int y = y0; y < y1; y++) {
+            final int[] row = rows.get(y);
+            for (int x = 2; x < width; x++) {
+               sum1 += (long) row[x] * row[x + 1];
+            }
+            for (int x = 1; x < width - 1; x++) {
+               sum2 += (long) row[x] * row[x + 2];
+            }
+         }
+         s[0] += sum1 - sum2;
+      });
+      return sums[0];
+   }
+
+   public static double volath5(Object pixels, int width, int height) {
+      double[] sums = sumTiles(pixels, width, height, 2, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         long sum = 0;
+         long total = 0;
+         for (int y = y0; y < y1; y++) {
+            final int[] row = rows.get(y);
+            for (int x = 1; x < width; x++) {
+               sum += (long) row[x] * row[x + 1];
+               total += row[x];
+            }
+            total += row[width];
+         }
+         s[0] += sum;
+         s[1] += total;
+      });
+      final double mean = sums[1] / ((double) width * height);
+      return sums[0] - ((width - 1) * height * mean * mean);
+   }
+
+   /**
+    * Sum of the magnitude of the diagonal edge maps of the 3x3 median filtered image.
+    * As in ImageJ 1.51, where medianFilter() does nothing for 16-bit images, only
+    * 8-bit images are median filtered.
+    */
+   public static double medianEdges(Object pixels, int width, int height) {
+      final int max = maxValue(pixels);
+      double[] sums = sumTiles(pixels, width, height, 1, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         if (pixels instanceof byte[]) {
+            rows = new MedianRows(rows);
+         }
+         double sum = 0.0;
+         for (int y = y0; y < y1; y++) {
+            final int[] a = rows.get(y - 1);
+            final int[] b = rows.get(y);
+            final int[] c = rows.get(y + 1);
+            for (int x = 1; x <= width; x++) {
+               long g1 = convolve(DIAGONAL_1, 1, a, b, c, x, max);
+               long g2 = convolve(DIAGONAL_2, 1, a, b, c, x, max);
+               sum += Math.sqrt(g1 * g1 + g2 * g2);
+            }
+         }
+         s[0] += sum;
+      });
+      return sums[0];
+   }
+
+   private static double[] meanAndVariance(Object pixels, int width, int height) {
+      double[] sums = sumTiles(pixels, width, height, 2, (y0, y1, s) -> {
+         Rows rows = new PixelRows(pixels, width, height);
+         long sum = 0;
+         long sumSq = 0;
+         for (int y = y0; y < y1; y++) {
+            int[] row = rows.get(y);
+            for (int x = 1; x <= width; x++) {
+               sum += row[x];
+               sumSq += (long) row[x] * row[x];
+            }
+         }
+         s[0] += sum;
+         s[1] += sumSq;
+      });
+      final double n = (double) width * height;
+      final double mean = sums[0] / n;
+      final double variance = n > 1 ? (n * sums[1] - sums[0] * sums[0]) / n / (n - 1.0) : 0.0;
+      return new double[] {mean, variance};
+   }
+
+   private static long sumRows(Rows rows, int y0, int y1, int width) {
+      long sum = 0;
+      for (int y = y0; y < y1; y++) {
+         int[] row = rows.get(y);
+         for (int x = 1; x <= width; x++) {
+            sum += row[x];
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * Sum of ImageJ's "Find Edges" (Sobel magnitude, truncated and clipped) over the rows.
+    */
+   private static long sumEdges(Rows rows, int y0, int y1, int width, int max) {
+      long sum = 0;
+      for (int y = y0; y < y1; y++) {
+         final int[] a = rows.get(y - 1);
+         final int[] b = rows.get(y);
+         final int[] c = rows.get(y + 1);
+         for (int x = 1; x <= width; x++) {
+            int sum1 = a[x - 1] + 2 * a[x] + a[x + 1] - c[x - 1] - 2 * c[x] - c[x + 1];
+            int sum2 = a[x - 1] + 2 * b[x - 1] + c[x - 1] - a[x + 1] - 2 * b[x + 1] - c[x + 1];
+            int edge = (int) Math.sqrt((double) sum1 * sum1 + (double) sum2 * sum2);
+            sum += Math.min(edge, max);
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * ImageJ's convolve3x3: weighted sum divided by the sum of the kernel (rounded),
+    * clipped to the range of the pixel type.
+    */
+   private static int convolve(int[] k, int scale, int[] a, int[] b, int[] c, int x, int max) {
+      int sum = k[0] * a[x - 1] + k[1] * a[x] + k[2] * a[x + 1]
+            + k[3] * b[x - 1] + k[4] * b[x] + k[5] * b[x + 1]
+            + k[6] * c[x - 1] + k[7] * c[x] + k[8] * c[x + 1];
+      if (scale != 1) {
+         sum = (sum + scale / 2) / scale;
+      }
+      return sum < 0 ? 0 : (sum > max ? max : sum);
+   }
+
+   private static int maxValue(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return 255;
+      } else if (pixels instanceof short[]) {
+         return 65535;
+      }
+      throw new IllegalArgumentException("Only 8 and 16 bit pixel arrays are supported");
+   }
+
+   /**
+    * Runs the kernel over bands of rows, in parallel for larger images, and adds up the
+    * partial sums in a fixed order so that results do not depend on the scheduling.
+    */
+   private static double[] sumTiles(Object pixels, int width, int height, int nrSums,
+                                    TileKernel kernel) {
+      maxValue(pixels);
+      final int nrTiles = (height + TILE_HEIGHT - 1) / TILE_HEIGHT;
+      final double[] result = new double[nrSums];
+      if (nrTiles < 2 || (long) width * height < MIN_PARALLEL_PIXELS || NR_THREADS < 2) {
+         kernel.apply(0, height, result);
+         return result;
+      }
+      List<Future<double[]>> futures = new ArrayList<>(nrTiles);
+      for (int t = 0; t < nrTiles; t++) {
+         final int y0 = t * TILE_HEIGHT;
+         final int y1 = Math.min(height, y0 + TILE_HEIGHT);
+         futures.add(EXECUTOR.submit((Callable<double[]>) () -> {
+            double[] sums = new double[nrSums];
+            kernel.apply(y0, y1, sums);
+            return sums;
+         }));
+      }
+      try {
+         for (Future<double[]> future : futures) {
+            double[] sums = future.get();
+            for (int i = 0; i < nrSums; i++) {
+               result[i] += sums[i];
+            }
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
+      return result;
+   }
+
+   /**
+    * Supplies rows of an image padded with one replicated pixel on either side,
+    * with rows outside the image replaced by the nearest row.  The last four rows are
+    * cached, so that sliding a 3 row window down the image computes every row once.
+    */
+   private abstract static class Rows {
+      final int width_;
+      final int height_;
+      private final int[][] cache_ = new int[4][];
+      private final int[] cachedY_ = {-1, -1, -1, -1};
+
+      Rows(int width, int height) {
+         width_ = width;
+         height_ = height;
+      }
+
+      final int[] get(int y) {
+         y = y < 0 ? 0 : (y >= height_ ? height_ - 1 : y);
+         final int slot = y & 3;
+         if (cachedY_[slot] != y) {
+            if (cache_[slot] == null) {
+               cache_[slot] = new int[width_ + 2];
+            }
+            compute(y, cache_[slot]);
+            cache_[slot][0] = cache_[slot][1];
+            cache_[slot][width_ + 1] = cache_[slot][width_];
+            cachedY_[slot] = y;
+         }
+         return cache_[slot];
+      }
+
+      /**
+       * Fills dst[1] to dst[width] with row y.
+       */
+      abstract void compute(int y, int[] dst);
+   }
+
+   private static final class PixelRows extends Rows {
+      private final byte[] bytes_;
+      private final short[] shorts_;
+
+      PixelRows(Object pixels, int width, int height) {
+         super(width, height);
+         bytes_ = pixels instanceof byte[] ? (byte[]) pixels : null;
+         shorts_ = pixels instanceof short[] ? (short[]) pixels : null;
+      }
+
+      @Override
+      void compute(int y, int[] dst) {
+         final int offset = y * width_;
+         if (bytes_ != null) {
+            for (int x = 0; x < width_; x++) {
+               dst[x + 1] = bytes_[offset + x] & 0xff;
+            }
+         } else {
+            for (int x = 0; x < width_; x++) {
+               dst[x + 1] = shorts_[offset + x] & 0xffff;
+            }
+         }
+      }
+   }
+
+   private static final class ConvolvedRows extends Rows {
+      private final Rows source_;
+      private final int[] kernel_;
+      private final int scale_;
+      private final int max_;
+
+      ConvolvedRows(Rows source, int[] kernel, int max) {
+         super(source.width_, source.height_);
+         source_ = source;
+         kernel_ = kernel;
+         int scale = 0;
+         for (int k : kernel) {
+            scale += k;
+         }
+         scale_ = scale == 0 ? 1 : scale;
+         max_ = max;
+      }
+
+      @Override
+      void compute(int y, int[] dst) {
+         final int[] a = source_.get(y - 1);
+         final int[] b = source_.get(y);
+         final int[] c = source_.get(y + 1);
+         for (int x = 1; x <= width_; x++) {
+            dst[x] = convolve(kernel_, scale_, a, b, c, x, max_);
+         }
+      }
+   }
+
+   /**
+    * 3x3 median filter.  Like ImageJ 1.51 for 8-bit images, the border pixels are
+    * not filtered but set to 0.
+    */
+   private static final class MedianRows extends Rows {
+      private final Rows source_;
+      private final int[] values_ = new int[9];
+
+      MedianRows(Rows source) {
+         super(source.width_, source.height_);
+         source_ = source;
+      }
+
+      @Override
+      void compute(int y, int[] dst) {
+         if (y == 0 || y == height_ - 1 || width_ < 3) {
+            Arrays.fill(dst, 0);
+            return;
+         }
+         dst[1] = 0;
+         dst[width_] = 0;
+         final int[] a = source_.get(y - 1);
+         final int[] b = source_.get(y);
+         final int[] c = source_.get(y + 1);
+         final int[] v = values_;
+         for (int x = 2; x < width_; x++) {
+            v[0] = a[x - 1];
+            v[1] = a[x];
+            v[2] = a[x + 1];
+            v[3] = b[x - 1];
+            v[4] = b[x];
+            v[5] = b[x + 1];
+            v[6] = c[x - 1];
+            v[7] = c[x];
+            v[8] = c[x + 1];
+            dst[x] = median9(v);
+         }
+      }
+
+      /**
+       * Median of 9 values with a fixed sorting network, the array is modified.
+       */
+      private static int median9(int[] p) {
+         sort2(p, 1, 2);
+         sort2(p, 4, 5);
+         sort2(p, 7, 8);
+         sort2(p, 0, 1);
+         sort2(p, 3, 4);
+         sort2(p, 6, 7);
+         sort2(p, 1, 2);
+         sort2(p, 4, 5);
+         sort2(p, 7, 8);
+         sort2(p, 0, 3);
+         sort2(p, 5, 8);
+         sort2(p, 4, 7);
+         sort2(p, 3, 6);
+         sort2(p, 1, 4);
+         sort2(p, 2, 5);
+         sort2(p, 4, 7);
+         sort2(p, 4, 2);
+         sort2(p, 6, 4);
+         sort2(p, 4, 2);
+         return p[4];
+      }
+
+      private static void sort2(int[] p, int i, int j) {
+         if (p[i] > p[j]) {
+            int tmp = p[i];
+            p[i] = p[j];
+            p[j] = tmp;
+         }
+      }
+   }
+}
@@ -0,0 +1,103 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the pixel array implementations in SharpnessKernels agree with the
+ * ImageJ based implementations in ImgSharpnessAnalysis.
+ */
+public class ImgSharpnessAnalysisTest {
+
+   private static final double RELATIVE_TOLERANCE = 1.0e-9;
+
+   static ImageProcessor makeImage(boolean sixteenBit, int width, int height, long seed) {
+      Random random = new Random(seed);
+      ImageProcessor proc = sixteenBit ? new ShortProcessor(width, height)
+            : new ByteProcessor(width, height);
+      final int max = sixteenBit ? 65535 : 255;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            // smooth structure plus noise, with some saturated pixels
+            double value = 0.5 * max * (1.0 + Math.sin(x / 7.0) * Math.cos(y / 11.0))
+                  + 0.1 * max * random.nextGaussian();
+            proc.set(x, y, (int) Math.max(0, Math.min(max, value)));
+         }
+      }
+      return proc;
+   }
+
+   static double legacy(ImgSharpnessAnalysis.Method method, ImageProcessor proc) {
+      // the ImageJ implementations may modify the image
+      ImageProcessor copy = proc.duplicate();
+      switch (method) {
+         case Edges:
+            return ImgSharpnessAnalysis.computeEdges(copy);
+         case StdDev:
+            return ImgSharpnessAnalysis.computeNormalizedStdDev(copy);
+         case Mean:
+            return ImgSharpnessAnalysis.computeMean(copy);
+         case NormalizedVariance:
+            return ImgSharpnessAnalysis.computeNormalizedVariance(copy);
+         case SharpEdges:
+            return ImgSharpnessAnalysis.computeSharpEdges(copy);
+         case Redondo:
+            return ImgSharpnessAnalysis.computeRedondo(copy);
+         case Volath:
+            return ImgSharpnessAnalysis.computeVolath(copy);
+         case Volath5:
+            return ImgSharpnessAnalysis.computeVolath5(copy);
+         case MedianEdges:
+            return ImgSharpnessAnalysis.computeMedianEdges(copy);
+         case Tenengrad:
+            return ImgSharpnessAnalysis.computeTenengrad(copy);
+         case FFTBandpass:
+            return ImgSharpnessAnalysis.computeFFTBandpass(copy, 2.5, 14);
+         default:
+            throw new AssertionError(method.name());
+      }
+   }
+
+   private static void checkAllMethods(boolean sixteenBit, int width, int height) {
+      ImageProcessor proc = makeImage(sixteenBit, width, height, width * 31L + height);
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      for (ImgSharpnessAnalysis.Method method : ImgSharpnessAnalysis.Method.values()) {
+         analysis.setComputationMethod(method);
+         double expected = legacy(method, proc);
+         double actual = analysis.compute(proc);
+         Assert.assertEquals(method + " " + (sixteenBit ? 16 : 8) + "-bit " + width + "x"
+               + height, expected, actual, Math.abs(expected) * RELATIVE_TOLERANCE);
+      }
+   }
+
+   @Test
+   public void agreesFor8Bit() {
+      checkAllMethods(false, 64, 48);
+      checkAllMethods(false, 517, 611);
+   }
+
+   @Test
+   public void agreesFor16Bit() {
+      checkAllMethods(true, 64, 48);
+      checkAllMethods(true, 517, 611);
+   }
+
+   @Test
+   public void doesNotModifyImage() {
+      ImageProcessor proc = makeImage(true, 128, 128, 3);
+      short[] before = ((short[]) proc.getPixels()).clone();
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      for (ImgSharpnessAnalysis.Method method : ImgSharpnessAnalysis.Method.values()) {
+         if (method == ImgSharpnessAnalysis.Method.FFTBandpass) {
+            continue;
+         }
+         analysis.setComputationMethod(method);
+         analysis.compute(proc);
+      }
+      Assert.assertArrayEquals(before, (short[]) proc.getPixels());
+   }
+}
@@ -0,0 +1,55 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ImageProcessor;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares speed and results of the ImageJ based and the pixel array implementations
+ * of all sharpness methods, and prints a table with the results.  The image size can
+ * be set with the system property "sharpness.benchmark.size" (default 1024, camera
+ * sized frames would be 2048).
+ *
+ * <p>Timing depends on the machine, so the benchmark only runs when the system property
+ * "benchmark" is set to true.  The results of both implementations are compared on every
+ * build by ImgSharpnessAnalysisTest.
+ */
+public class ImgSharpnessBenchmarkTest {
+
+   private static final int REPEATS = 3;
+
+   @Test
+   public void benchmarkAllMethods() {
+      Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+      final int size = Integer.getInteger("sharpness.benchmark.size", 1024);
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      System.out.println(String.format("%-20s %5s %12s %12s %8s %10s",
+            "Method", "Bits", "ImageJ (ms)", "Arrays (ms)", "Speedup", "Rel. diff"));
+      for (boolean sixteenBit : new boolean[] {false, true}) {
+         ImageProcessor proc = ImgSharpnessAnalysisTest.makeImage(sixteenBit, size, size, 42);
+         for (ImgSharpnessAnalysis.Method method : ImgSharpnessAnalysis.Method.values()) {
+            analysis.setComputationMethod(method);
+            double expected = 0.0;
+            double actual = 0.0;
+            long legacyNs = Long.MAX_VALUE;
+            long arrayNs = Long.MAX_VALUE;
+            // best of a few runs, the first run of each also warms up the JIT
+            for (int i = 0; i < REPEATS; i++) {
+               long start = System.nanoTime();
+               expected = ImgSharpnessAnalysisTest.legacy(method, proc);
+               legacyNs = Math.min(legacyNs, System.nanoTime() - start);
+               start = System.nanoTime();
+               actual = analysis.compute(proc);
+               arrayNs = Math.min(arrayNs, System.nanoTime() - start);
+            }
+            double difference = expected == 0.0 ? Math.abs(actual)
+                  : Math.abs((actual - expected) / expected);
+            System.out.println(String.format("%-20s %5d %12.2f %12.2f %8.1f %10.2e",
+                  method.name(), sixteenBit ? 16 : 8, legacyNs / 1.0e6, arrayNs / 1.0e6,
+                  (double) legacyNs / arrayNs, difference));
+            Assert.assertTrue(method.name(), difference < 1.0e-9);
+         }
+      }
+   }
+}
@@ -0,0 +1,114 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import java.awt.Rectangle;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures the time needed per frame to register windows of 64 to 1024 pixels
+ * against a reference, and prints a table with the results.  Compared are
+ * ImageJ's FHT correlation (which PointAndShootAnalysis used to do), phase
+ * correlation with a cached reference to whole and to 1/20 pixel, and the
+ * fast normalized cross correlation of a template of half the window size.
+ * The largest window size can be set with the system property
+ * "registration.benchmark.size" (default 1024).
+ *
+ * <p>Timing depends on the machine, so the benchmark only runs when the system property
+ * "benchmark" is set to true.  Accuracy of the registration is tested by RegistrationTest.
+ */
+public class RegistrationBenchmarkTest {
+
+   private static final int REPEATS = 5;
+   private static final double SHIFT_X = 5.3;
+   private static final double SHIFT_Y = -3.6;
+
+   private interface Registration {
+      double[] run();
+   }
+
+   private static double bestMs(Registration registration, double[] result) {
+      long best = Long.MAX_VALUE;
+      // best of a few runs, the first run also warms up the JIT
+      for (int i = 0; i < REPEATS; i++) {
+         long start = System.nanoTime();
+         double[] shift = registration.run();
+         best = Math.min(best, System.nanoTime() - start);
+         result[0] = shift[0];
+         result[1] = shift[1];
+      }
+      return best / 1.0e6;
+   }
+
+   @Test
+   public void benchmarkWindowSizes() {
+      Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+      final int maxSize = Integer.getInteger("registration.benchmark.size", 1024);
+      System.out.println(String.format("%6s %12s %12s %12s %12s %16s", "Size", "FHT (ms)",
+            "Phase (ms)", "Phase/20 (ms)", "NCC (ms)", "Phase/20 shift"));
+      for (int size = 64; size <= maxSize; size *= 2) {
+         final int n = size;
+         final float[] reference = RegistrationTest.makeImage(n, n, 0.0, 0.0, n);
+         final float[] image = RegistrationTest.makeImage(n, n, SHIFT_X, SHIFT_Y, n);
+
+         final FHT referenceFht = new FHT(new FloatProcessor(n, n, reference.clone()));
+         referenceFht.transform();
+         double[] fhtShift = new double[2];
+         double fhtMs = bestMs(() -> {
+            FHT fht = new FHT(new FloatProcessor(n, n, image.clone()));
+            fht.transform();
+            FHT product = fht.conjugateMultiply(referenceFht);
+            product.inverseTransform();
+            product.swapQuadrants();
+            float[] pixels = (float[]) product.getPixels();
+            int peak = 0;
+            for (int i = 1; i < pixels.length; i++) {
+               if (pixels[i] > pixels[peak]) {
+                  peak = i;
+               }
+            }
+            return new double[] {peak % n - n / 2, peak / n - n / 2};
+         }, fhtShift);
+
+         final PhaseCorrelation whole = new PhaseCorrelation(n, n, 1);
+         whole.setReference(reference);
+         double[] wholeShift = new double[2];
+         double wholeMs = bestMs(() -> {
+            PhaseCorrelation.Shift shift = whole.register(image, n / 4.0);
+            return new double[] {shift.getDx(), shift.getDy()};
+         }, wholeShift);
+
+         final PhaseCorrelation sub = new PhaseCorrelation(n, n, 20);
+         sub.setReference(reference);
+         double[] subShift = new double[2];
+         double subMs = bestMs(() -> {
+            PhaseCorrelation.Shift shift = sub.register(image, n / 4.0);
+            return new double[] {shift.getDx(), shift.getDy()};
+         }, subShift);
+
+         final int t = n / 2;
+         final float[] template = new float[t * t];
+         for (int y = 0; y < t; y++) {
+            System.arraycopy(reference, (n / 4 + y) * n + n / 4, template, y * t, t);
+         }
+         double[] nccShift = new double[2];
+         double nccMs = bestMs(() -> {
+            FastNormalizedCrossCorrelation ncc =
+                  new FastNormalizedCrossCorrelation(template, t, t);
+            FastNormalizedCrossCorrelation.Result result =
+                  ncc.correlate(image, n, n, new Rectangle(0, 0, n, n));
+            return new double[] {result.getPeak().x - n / 4, result.getPeak().y - n / 4};
+         }, nccShift);
+
+         System.out.println(String.format("%6d %12.2f %12.2f %12.2f %12.2f %7.2f, %6.2f",
+               n, fhtMs, wholeMs, subMs, nccMs, subShift[0], subShift[1]));
+         Assert.assertEquals(SHIFT_X, subShift[0], 0.1);
+         Assert.assertEquals(SHIFT_Y, subShift[1], 0.1);
+         Assert.assertEquals(Math.round(SHIFT_X), wholeShift[0], 1.0);
+         Assert.assertEquals(SHIFT_X, nccShift[0], 0.5);
+         Assert.assertEquals(SHIFT_Y, nccShift[1], 0.5);
+      }
+   }
+}
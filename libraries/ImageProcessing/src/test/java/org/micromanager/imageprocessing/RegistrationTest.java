@@ -0,0 +1,230 @@
+package org.micromanager.imageprocessing;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks FFTPlan against a plain DFT, and that PhaseCorrelation and
+ * FastNormalizedCrossCorrelation find known shifts.
+ */
+public class RegistrationTest {
+
+   /**
+    * Image with a number of Gaussian spots on a background, moved by (dx, dy).
+    * The spots are in the central part of the image, so that small shifts do
+    * not move them out of the image.
+    */
+   static float[] makeImage(int width, int height, double dx, double dy, long seed) {
+      Random random = new Random(seed);
+      final int spots = 40;
+      double[] x0 = new double[spots];
+      double[] y0 = new double[spots];
+      double[] sigma = new double[spots];
+      double[] amplitude = new double[spots];
+      for (int s = 0; s < spots; s++) {
+         x0[s] = (0.2 + 0.6 * random.nextDouble()) * width;
+         y0[s] = (0.2 + 0.6 * random.nextDouble()) * height;
+         sigma[s] = 1.5 + random.nextDouble() * Math.min(width, height) / 32.0;
+         amplitude[s] = 500.0 + 2000.0 * random.nextDouble();
+      }
+      float[] image = new float[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            double value = 100.0;
+            for (int s = 0; s < spots; s++) {
+               double rx = x - dx - x0[s];
+               double ry = y - dy - y0[s];
+               value += amplitude[s] * Math.exp(-(rx * rx + ry * ry)
+                     / (2.0 * sigma[s] * sigma[s]));
+            }
+            image[y * width + x] = (float) value;
+         }
+      }
+      return image;
+   }
+
+   @Test
+   public void fftAgreesWithDft() {
+      final int width = 16;
+      final int height = 8;
+      Random random = new Random(1);
+      float[] re = new float[width * height];
+      float[] im = new float[width * height];
+      for (int i = 0; i < re.length; i++) {
+         re[i] = (float) random.nextGaussian();
+         im[i] = (float) random.nextGaussian();
+      }
+      float[] fRe = re.clone();
+      float[] fIm = im.clone();
+      FFTPlan plan = FFTPlan.get(width, height);
+      plan.transform(fRe, fIm, false);
+      for (int v = 0; v < height; v++) {
+         for (int u = 0; u < width; u++) {
+            double sumRe = 0.0;
+            double sumIm = 0.0;
+            for (int y = 0; y < height; y++) {
+               for (int x = 0; x < width; x++) {
+                  double angle = -2.0 * Math.PI * ((double) u * x / width
+                        + (double) v * y / height);
+                  sumRe += re[y * width + x] * Math.cos(angle)
+                        - im[y * width + x] * Math.sin(angle);
+                  sumIm += re[y * width + x] * Math.sin(angle)
+                        + im[y * width + x] * Math.cos(angle);
+               }
+            }
+            Assert.assertEquals(sumRe, fRe[v * width + u], 1.0e-4);
+            Assert.assertEquals(sumIm, fIm[v * width + u], 1.0e-4);
+         }
+      }
+      plan.transform(fRe, fIm, true);
+      for (int i = 0; i < re.length; i++) {
+         Assert.assertEquals(re[i], fRe[i] / re.length, 1.0e-5);
+         Assert.assertEquals(im[i], fIm[i] / re.length, 1.0e-5);
+      }
+      Assert.assertSame(plan, FFTPlan.get(width, height));
+   }
+
+   @Test
+   public void realTransformsAgreeWithComplexTransform() {
+      Random random = new Random(2);
+      for (int[] size : new int[][] {{16, 8}, {4, 32}, {64, 64}, {8, 1}}) {
+         final int n = size[0] * size[1];
+         float[] values = new float[n];
+         for (int i = 0; i < n; i++) {
+            values[i] = (float) random.nextGaussian();
+         }
+         FFTPlan plan = FFTPlan.get(size[0], size[1]);
+         float[] expectedRe = values.clone();
+         float[] expectedIm = new float[n];
+         plan.transform(expectedRe, expectedIm, false);
+         float[] re = new float[n];
+         float[] im = new float[n];
+         plan.transformReal(values, re, im);
+         for (int i = 0; i < n; i++) {
+            Assert.assertEquals(expectedRe[i], re[i], 1.0e-4);
+            Assert.assertEquals(expectedIm[i], im[i], 1.0e-4);
+         }
+         float[] result = new float[n];
+         plan.inverseTransformReal(re, im, result);
+         for (int i = 0; i < n; i++) {
+            Assert.assertEquals(values[i], result[i] / n, 1.0e-5);
+         }
+      }
+   }
+
+   @Test
+   public void phaseCorrelationFindsSubPixelShifts() {
+      final double[][] shifts = {{0.0, 0.0}, {3.3, -5.7}, {-12.45, 7.8}, {0.5, 0.25}};
+      for (int size : new int[] {64, 256}) {
+         // the window weighs spots that moved away from the center less, which
+         // biases shifts that are large compared to the image
+         final double tolerance = size < 128 ? 0.25 : 0.05;
+         float[] reference = makeImage(size, size, 0.0, 0.0, size);
+         PhaseCorrelation correlation = new PhaseCorrelation(size, size, 20);
+         correlation.setReference(reference);
+         for (double[] shift : shifts) {
+            float[] image = makeImage(size, size, shift[0], shift[1], size);
+            PhaseCorrelation.Shift found = correlation.register(image, size / 4.0);
+            String message = size + " px, shift " + shift[0] + ", " + shift[1];
+            Assert.assertEquals(message, shift[0], found.getDx(), tolerance);
+            Assert.assertEquals(message, shift[1], found.getDy(), tolerance);
+            Assert.assertTrue(message, found.getPeak() > 0.1);
+
+            PhaseCorrelation.Shift whole = PhaseCorrelation.register(reference, image,
+                  size, size, 1, size / 4.0);
+            Assert.assertEquals(message, Math.round(shift[0]), whole.getDx(), 1.0);
+            Assert.assertEquals(message, Math.round(shift[1]), whole.getDy(), 1.0);
+         }
+      }
+   }
+
+   @Test
+   public void phaseCorrelationHandlesRectangles() {
+      float[] reference = makeImage(128, 32, 0.0, 0.0, 7);
+      float[] image = makeImage(128, 32, -10.6, 2.2, 7);
+      PhaseCorrelation.Shift found = PhaseCorrelation.register(reference, image, 128, 32,
+            10, 30.0);
+      Assert.assertEquals(-10.6, found.getDx(), 0.15);
+      Assert.assertEquals(2.2, found.getDy(), 0.15);
+   }
+
+   private static double bruteForce(float[] image, int width, float[] template,
+         int templateWidth, int templateHeight, int x0, int y0) {
+      final int n = templateWidth * templateHeight;
+      double meanImage = 0.0;
+      double meanTemplate = 0.0;
+      for (int y = 0; y < templateHeight; y++) {
+         for (int x = 0; x < templateWidth; x++) {
+            meanImage += image[(y0 + y) * width + x0 + x];
+            meanTemplate += template[y * templateWidth + x];
+         }
+      }
+      meanImage /= n;
+      meanTemplate /= n;
+      double product = 0.0;
+      double imageSquares = 0.0;
+      double templateSquares = 0.0;
+      for (int y = 0; y < templateHeight; y++) {
+         for (int x = 0; x < templateWidth; x++) {
+            double a = image[(y0 + y) * width + x0 + x] - meanImage;
+            double b = template[y * templateWidth + x] - meanTemplate;
+            product += a * b;
+            imageSquares += a * a;
+            templateSquares += b * b;
+         }
+      }
+      return product / Math.sqrt(imageSquares * templateSquares);
+   }
+
+   private static void checkCrossCorrelation(int width, int height, int templateSize,
+         Rectangle area, int templateX, int templateY) {
+      float[] image = makeImage(width, height, 0.0, 0.0, width + templateSize);
+      Random random = new Random(5);
+      for (int i = 0; i < image.length; i++) {
+         image[i] += (float) (20.0 * random.nextGaussian());
+      }
+      float[] template = new float[templateSize * templateSize];
+      for (int y = 0; y < templateSize; y++) {
+         System.arraycopy(image, (templateY + y) * width + templateX, template,
+               y * templateSize, templateSize);
+      }
+      FastNormalizedCrossCorrelation ncc =
+            new FastNormalizedCrossCorrelation(template, templateSize, templateSize);
+      FastNormalizedCrossCorrelation.Result result = ncc.correlate(image, width, height, area);
+      Rectangle inside = area.intersection(new Rectangle(0, 0, width, height));
+      Assert.assertEquals(inside.x, result.getX());
+      Assert.assertEquals(inside.y, result.getY());
+      Assert.assertEquals(inside.width - templateSize + 1, result.getWidth());
+      Assert.assertEquals(inside.height - templateSize + 1, result.getHeight());
+      for (int y = result.getY(); y < result.getY() + result.getHeight(); y += 3) {
+         for (int x = result.getX(); x < result.getX() + result.getWidth(); x += 3) {
+            Assert.assertEquals(x + ", " + y,
+                  bruteForce(image, width, template, templateSize, templateSize, x, y),
+                  result.getValue(x, y), 1.0e-3);
+         }
+      }
+      Point2D.Double peak = result.getPeak();
+      Assert.assertEquals(templateX, peak.x, 0.1);
+      Assert.assertEquals(templateY, peak.y, 0.1);
+      Assert.assertEquals(1.0, result.getPeakValue(), 1.0e-3);
+      Assert.assertTrue(Float.isNaN(result.getValue(result.getX() - 1, result.getY())));
+   }
+
+   @Test
+   public void crossCorrelationAgreesWithBruteForce() {
+      // small search range, computed directly
+      checkCrossCorrelation(128, 96, 16, new Rectangle(40, 30, 30, 28), 47, 36);
+      // large search range, computed with FFTs
+      checkCrossCorrelation(256, 200, 48, new Rectangle(-10, 20, 300, 170), 101, 77);
+   }
+
+   @Test
+   public void crossCorrelationOfTemplateThatDoesNotFit() {
+      float[] template = new float[100];
+      FastNormalizedCrossCorrelation ncc = new FastNormalizedCrossCorrelation(template, 10, 10);
+      Assert.assertNull(ncc.correlate(new float[400], 20, 20, new Rectangle(15, 15, 10, 10)));
+   }
+}
@@ -77,6 +77,9 @@ public final class SequenceSettings {
       private double sliceZBottomUm = 0.0;
       private double sliceZTopUm = 0.0;
       private int acqOrderMode; // defined in org.micromanager.internal.utils.AcqOrderMode
+      private boolean useFocusMap = false;
+      private double focusMapMaxErrorUm = 1.0;
+      private double focusMapMaxAgeMs = 1800000.0;
 
       public Builder numFrames(int nFrames) {
          numFrames = nFrames;
@@ -253,6 +256,21 @@ public final class SequenceSettings {
          return this;
       }
 
+      public Builder useFocusMap(boolean u) {
+         useFocusMap = u;
+         return this;
+      }
+
+      public Builder focusMapMaxErrorUm(double e) {
+         focusMapMaxErrorUm = e;
+         return this;
+      }
+
+      public Builder focusMapMaxAgeMs(double a) {
+         focusMapMaxAgeMs = a;
+         return this;
+      }
+
       public Builder() {
       }
 
@@ -293,6 +311,9 @@ public final class SequenceSettings {
          sliceZBottomUm = s.sliceZBottomUm;
          sliceZTopUm = s.sliceZTopUm;
          acqOrderMode = s.acqOrderMode;
+         useFocusMap = s.useFocusMap;
+         focusMapMaxErrorUm = s.focusMapMaxErrorUm;
+         focusMapMaxAgeMs = s.focusMapMaxAgeMs;
       }
 
       /**
@@ -333,6 +354,9 @@ public final class SequenceSettings {
          s.sliceZBottomUm = sliceZBottomUm;
          s.sliceZTopUm = sliceZTopUm;
          s.acqOrderMode = acqOrderMode;
+         s.useFocusMap = useFocusMap;
+         s.focusMapMaxErrorUm = focusMapMaxErrorUm;
+         s.focusMapMaxAgeMs = focusMapMaxAgeMs;
 
          return s;
       }
@@ -558,6 +582,21 @@ public final class SequenceSettings {
     */
    private int acqOrderMode;
 
+   /**
+    * Whether to predict the focus position from earlier autofocus results.
+    */
+   private boolean useFocusMap = false;
+
+   /**
+    * Largest acceptable uncertainty of a focus prediction in microns.
+    */
+   private double focusMapMaxErrorUm = 1.0;
+
+   /**
+    * Maximum age of the autofocus results a focus prediction is based on.
+    */
+   private double focusMapMaxAgeMs = 1800000.0;
+
 
    /**
     * Create a copy of this SequenceSettings. All parameters will be copied,
@@ -832,6 +871,37 @@ public final class SequenceSettings {
       return acqOrderMode;
    }
 
+   /**
+    * Whether to predict the focus position from earlier autofocus results, and only
+    * run the autofocus when the prediction is uncertain or based on old results.
+    * Only used when {@link #useAutofocus()} is set.
+    *
+    * @return whether to use a focus map
+    */
+   public boolean useFocusMap() {
+      return useFocusMap;
+   }
+
+   /**
+    * Largest acceptable uncertainty (one standard deviation) of a focus prediction.
+    * Less certain predictions are replaced by a full autofocus.
+    *
+    * @return uncertainty in microns
+    */
+   public double focusMapMaxErrorUm() {
+      return focusMapMaxErrorUm;
+   }
+
+   /**
+    * Maximum age of the autofocus results a focus prediction is based on.
+    * Predictions based on older results are replaced by a full autofocus.
+    *
+    * @return age in milliseconds
+    */
+   public double focusMapMaxAgeMs() {
+      return focusMapMaxAgeMs;
+   }
+
    public static String toJSONStream(SequenceSettings settings) {
       Gson gson = new GsonBuilder().setPrettyPrinting().create();
       return gson.toJson(settings);
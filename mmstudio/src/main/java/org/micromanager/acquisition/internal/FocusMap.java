@@ -0,0 +1,377 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Predicts the in-focus z position at a given xy position and time from earlier
+ * autofocus results, so that a full autofocus is only needed when the prediction
+ * can not be trusted.
+ *
+ * <p>Autofocus results are stored per site (xy position).  The focus drift over
+ * time is modelled as a linear drift common to all sites, estimated from the most
+ * recent pairs of consecutive results at the same site.  Sites that were never
+ * focused are predicted from a weighted plane through the nearest focused sites
+ * (similar to the local interpolation used for Magellan surfaces).
+ *
+ * <p>Every prediction comes with an uncertainty (one standard deviation, in microns),
+ * derived from the scatter of the drift model, the residuals of the plane fit and the
+ * errors of earlier predictions that were checked by a full autofocus.  Callers
+ * should run a full autofocus, and record its result, whenever
+ * {@link #needsFullFocus(Prediction)} returns true.
+ */
+public final class FocusMap {
+
+   /**
+    * Positions closer than this (in microns) are considered the same site.
+    */
+   public static final double SITE_TOLERANCE_UM = 5.0;
+
+   private static final int NR_NEIGHBORS = 6;
+   private static final int MIN_DRIFT_PAIRS = 3;
+   private static final int MAX_DRIFT_PAIRS = 50;
+   private static final int MIN_VALIDATIONS = 3;
+   private static final int MAX_VALIDATIONS = 20;
+
+   /**
+    * Predicted focus position.
+    */
+   public static final class Prediction {
+      private final double z_;
+      private final double uncertaintyUm_;
+      private final double ageMs_;
+
+      Prediction(double z, double uncertaintyUm, double ageMs) {
+         z_ = z;
+         uncertaintyUm_ = uncertaintyUm;
+         ageMs_ = ageMs;
+      }
+
+      /**
+       * Predicted in-focus position of the focus drive in microns.
+       */
+      public double getZ() {
+         return z_;
+      }
+
+      /**
+       * Estimated standard deviation of the prediction in microns.  Infinite when
+       * there is not enough data to estimate it.
+       */
+      public double getUncertaintyUm() {
+         return uncertaintyUm_;
+      }
+
+      /**
+       * Time since the autofocus result(s) the prediction is based on.
+       */
+      public double getAgeMs() {
+         return ageMs_;
+      }
+   }
+
+   private static final class Site {
+      private final double x_;
+      private final double y_;
+      private double lastZ_;
+      private long lastTimeMs_;
+
+      private Site(double x, double y, double z, long timeMs) {
+         x_ = x;
+         y_ = y;
+         lastZ_ = z;
+         lastTimeMs_ = timeMs;
+      }
+
+      private double distanceSq(double x, double y) {
+         return (x - x_) * (x - x_) + (y - y_) * (y - y_);
+      }
+   }
+
+   private final double maxUncertaintyUm_;
+   private final double maxAgeMs_;
+   private final List<Site> sites_ = new ArrayList<>();
+   // dz and dt of consecutive autofocus results at the same site
+   private final Deque<double[]> driftPairs_ = new ArrayDeque<>();
+   // difference between autofocus result and trusted prediction
+   private final Deque<Double> validationErrors_ = new ArrayDeque<>();
+   private int nrPredictionsUsed_ = 0;
+   private int nrFullFocus_ = 0;
+
+   /**
+    * Creates an empty focus map.
+    *
+    * @param maxUncertaintyUm predictions less certain than this need a full autofocus
+    * @param maxAgeMs         predictions based on autofocus results older than this
+    *                         need a full autofocus
+    */
+   public FocusMap(double maxUncertaintyUm, double maxAgeMs) {
+      maxUncertaintyUm_ = maxUncertaintyUm;
+      maxAgeMs_ = maxAgeMs;
+   }
+
+   /**
+    * Adds the result of a full autofocus.
+    *
+    * @param x      stage x position in microns
+    * @param y      stage y position in microns
+    * @param z      in-focus position found by the autofocus, in microns
+    * @param timeMs time of the autofocus in ms
+    */
+   public synchronized void record(double x, double y, double z, long timeMs) {
+      nrFullFocus_++;
+      // keep track of how well predictions that would have been trusted performed
+      Prediction prediction = predict(x, y, timeMs);
+      if (prediction != null && prediction.getUncertaintyUm() <= maxUncertaintyUm_) {
+         addLimited(validationErrors_, z - prediction.getZ(), MAX_VALIDATIONS);
+      }
+      Site site = findSite(x, y);
+      if (site == null) {
+         sites_.add(new Site(x, y, z, timeMs));
+         return;
+      }
+      if (timeMs > site.lastTimeMs_) {
+         addLimited(driftPairs_, new double[] {z - site.lastZ_, timeMs - site.lastTimeMs_},
+               MAX_DRIFT_PAIRS);
+      }
+      site.lastZ_ = z;
+      site.lastTimeMs_ = timeMs;
+   }
+
+   /**
+    * Predicts the in-focus position.
+    *
+    * @param x      stage x position in microns
+    * @param y      stage y position in microns
+    * @param timeMs time for which the prediction is made, in ms
+    * @return the prediction, or null when no autofocus results have been recorded
+    */
+   public synchronized Prediction predict(double x, double y, long timeMs) {
+      if (sites_.isEmpty()) {
+         return null;
+      }
+      final double[] drift = driftModel();
+      final double rate = drift == null ? 0.0 : drift[0];
+      Site site = findSite(x, y);
+      Prediction prediction;
+      if (site != null) {
+         double dt = timeMs - site.lastTimeMs_;
+         prediction = new Prediction(site.lastZ_ + rate * dt,
+               driftUncertainty(drift, dt), dt);
+      } else {
+         prediction = interpolate(x, y, timeMs, drift);
+      }
+      double validationRms = validationRms();
+      if (validationRms > prediction.getUncertaintyUm()) {
+         prediction = new Prediction(prediction.getZ(), validationRms, prediction.getAgeMs());
+      }
+      return prediction;
+   }
+
+   /**
+    * Whether a full autofocus should be run instead of using the prediction.
+    * When false is returned, the prediction is counted as used.
+    *
+    * @param prediction as returned by {@link #predict(double, double, long)}, may be null
+    * @return true when there is no prediction, or it is too uncertain or too old
+    */
+   public synchronized boolean needsFullFocus(Prediction prediction) {
+      if (prediction == null || prediction.getUncertaintyUm() > maxUncertaintyUm_
+            || prediction.getAgeMs() > maxAgeMs_) {
+         return true;
+      }
+      nrPredictionsUsed_++;
+      return false;
+   }
+
+   /**
+    * Number of times a prediction was used instead of a full autofocus.
+    */
+   public synchronized int getNrPredictionsUsed() {
+      return nrPredictionsUsed_;
+   }
+
+   /**
+    * Number of full autofocus results recorded.
+    */
+   public synchronized int getNrFullFocus() {
+      return nrFullFocus_;
+   }
+
+   private Site findSite(double x, double y) {
+      Site closest = null;
+      double closestDistanceSq = SITE_TOLERANCE_UM * SITE_TOLERANCE_UM;
+      for (Site site : sites_) {
+         double d = site.distanceSq(x, y);
+         if (d <= closestDistanceSq) {
+            closest = site;
+            closestDistanceSq = d;
+         }
+      }
+      return closest;
+   }
+
+   /**
+    * Least squares estimate of the drift rate from the stored pairs.
+    *
+    * @return drift rate in microns per ms, rms of the residuals and mean interval,
+    *     or null when there are not enough pairs
+    */
+   private double[] driftModel() {
+      if (driftPairs_.size() < MIN_DRIFT_PAIRS) {
+         return null;
+      }
+      double sumDzDt = 0.0;
+      double sumDtSq = 0.0;
+      double sumDt = 0.0;
+      for (double[] pair : driftPairs_) {
+         sumDzDt += pair[0] * pair[1];
+         sumDtSq += pair[1] * pair[1];
+         sumDt += pair[1];
+      }
+      final double rate = sumDzDt / sumDtSq;
+      double sumResidualSq = 0.0;
+      for (double[] pair : driftPairs_) {
+         double residual = pair[0] - rate * pair[1];
+         sumResidualSq += residual * residual;
+      }
+      final int n = driftPairs_.size();
+      return new double[] {rate, Math.sqrt(sumResidualSq / (n - 1)), sumDt / n};
+   }
+
+   /**
+    * Uncertainty of a prediction made by extrapolating the drift over dt.  Deviations
+    * from a linear drift are assumed to grow like a random walk.
+    */
+   private static double driftUncertainty(double[] drift, double dt) {
+      if (drift == null) {
+         return Double.POSITIVE_INFINITY;
+      }
+      return drift[1] * Math.sqrt(Math.max(dt, 0.0) / drift[2]);
+   }
+
+   /**
+    * Fits a plane through the nearest sites, weighted by inverse squared distance,
+    * after bringing their last results to the requested time with the drift model.
+    */
+   private Prediction interpolate(double x, double y, long timeMs, double[] drift) {
+      final double rate = drift == null ? 0.0 : drift[0];
+      Site[] nearest = sites_.toArray(new Site[0]);
+      Arrays.sort(nearest, Comparator.comparingDouble(s -> s.distanceSq(x, y)));
+      final int n = Math.min(NR_NEIGHBORS, nearest.length);
+      final double[] dx = new double[n];
+      final double[] dy = new double[n];
+      final double[] z = new double[n];
+      final double[] w = new double[n];
+      double temporalVariance = 0.0;
+      double sumW = 0.0;
+      for (int i = 0; i < n; i++) {
+         Site site = nearest[i];
+         double dt = timeMs - site.lastTimeMs_;
+         dx[i] = site.x_ - x;
+         dy[i] = site.y_ - y;
+         z[i] = site.lastZ_ + rate * dt;
+         w[i] = 1.0 / site.distanceSq(x, y);
+         sumW += w[i];
+         if (drift != null) {
+            double u = driftUncertainty(drift, dt);
+            temporalVariance += w[i] * u * u;
+         }
+      }
+      temporalVariance /= sumW;
+      final double age = timeMs - nearest[0].lastTimeMs_;
+
+      // weighted normal equations for z = a + b * dx + c * dy, a is the prediction
+      double swx = 0.0;
+      double swy = 0.0;
+      double swxx = 0.0;
+      double swxy = 0.0;
+      double swyy = 0.0;
+      double swz = 0.0;
+      double swxz = 0.0;
+      double swyz = 0.0;
+      for (int i = 0; i < n; i++) {
+         swx += w[i] * dx[i];
+         swy += w[i] * dy[i];
+         swxx += w[i] * dx[i] * dx[i];
+         swxy += w[i] * dx[i] * dy[i];
+         swyy += w[i] * dy[i] * dy[i];
+         swz += w[i] * z[i];
+         swxz += w[i] * dx[i] * z[i];
+         swyz += w[i] * dy[i] * z[i];
+      }
+      final double det = sumW * (swxx * swyy - swxy * swxy)
+            - swx * (swx * swyy - swxy * swy)
+            + swy * (swx * swxy - swxx * swy);
+      final double scale = sumW * swxx * swyy;
+      if (n < 3 || Math.abs(det) <= 1.0e-9 * Math.abs(scale)) {
+         // too few sites or all on a line: weighted mean, uncertainty from the spread
+         double mean = swz / sumW;
+         double variance = 0.0;
+         for (int i = 0; i < n; i++) {
+            variance += w[i] * (z[i] - mean) * (z[i] - mean);
+         }
+         double spatial = n < 2 ? Double.POSITIVE_INFINITY
+               : Math.sqrt(variance / sumW * n / (n - 1));
+         return new Prediction(mean, Math.sqrt(spatial * spatial + temporalVariance), age);
+      }
+      final double a = (swz * (swxx * swyy - swxy * swxy)
+            - swx * (swxz * swyy - swxy * swyz)
+            + swy * (swxz * swxy - swxx * swyz)) / det;
+      final double b = (sumW * (swxz * swyy - swxy * swyz)
+            - swz * (swx * swyy - swxy * swy)
+            + swy * (swx * swyz - swxz * swy)) / det;
+      final double c = (sumW * (swxx * swyz - swxz * swxy)
+            - swx * (swx * swyz - swxz * swy)
+            + swz * (swx * swxy - swxx * swy)) / det;
+      double spatial = Double.POSITIVE_INFINITY;
+      if (n > 3) {
+         // a plane always goes through 3 points, so residuals need at least 4
+         double sumResidualSq = 0.0;
+         for (int i = 0; i < n; i++) {
+            double residual = z[i] - (a + b * dx[i] + c * dy[i]);
+            sumResidualSq += w[i] * residual * residual;
+         }
+         spatial = Math.sqrt(sumResidualSq / sumW * n / (n - 3));
+      }
+      return new Prediction(a, Math.sqrt(spatial * spatial + temporalVariance), age);
+   }
+
+   private double validationRms() {
+      if (validationErrors_.size() < MIN_VALIDATIONS) {
+         return 0.0;
+      }
+      double sumSq = 0.0;
+      for (double error : validationErrors_) {
+         sumSq += error * error;
+      }
+      return Math.sqrt(sumSq / validationErrors_.size());
+   }
+
+   private static <T> void addLimited(Deque<T> deque, T value, int maxSize) {
+      deque.addLast(value);
+      if (deque.size() > maxSize) {
+         deque.removeFirst();
+      }
+   }
+}
@@ -24,7 +24,9 @@ package org.micromanager.acquisition.internal.acqengjcompat;
 import com.google.common.eventbus.Subscribe;
 import java.awt.Component;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
@@ -51,6 +53,7 @@ import org.micromanager.acquisition.SequenceSettings;
 import org.micromanager.acquisition.internal.AcquisitionEngine;
 import org.micromanager.acquisition.internal.DefaultAcquisitionEndedEvent;
 import org.micromanager.acquisition.internal.DefaultAcquisitionStartedEvent;
+import org.micromanager.acquisition.internal.FocusMap;
 import org.micromanager.acquisition.internal.MMAcquisition;
 import org.micromanager.acquisition.internal.MMAcquistionControlCallbacks;
 import org.micromanager.data.DataProvider;
@@ -96,6 +99,16 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
 
    private long nextWakeTime_ = -1;
 
+   // the sequencing analysis stops after this many events, which bounds the time it
+   // adds to the start of an acquisition
+   private static final int MAX_ANALYZED_EVENTS = 10000;
+   private AcqEngJMDADataSink sink_;
+   private SequencingAnalyzer.Report sequencingReport_;
+   // profile key for the timing trace option
+   private static final String RECORD_TIMING_TRACE = "RecordTimingTrace";
+   private AcquisitionTrace trace_;
+   private int tracedEvents_;
+
    private ArrayList<RunnablePlusIndices> runnables_ = new ArrayList<>();
 
    private class RunnablePlusIndices {
@@ -212,11 +225,29 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          SequenceSettings acquisitionSettings = sb.build();
 
          AcqEngJMDADataSink sink = new AcqEngJMDADataSink(studio_.events());
+         sink_ = sink;
          currentAcquisition_ = new Acquisition(sink);
          currentAcquisition_.setDebugMode(core_.debugLogEnabled());
 
+         trace_ = null;
+         if (getRecordTimingTrace()) {
+            // added before all other hooks, so that they are part of the trace
+            trace_ = new AcquisitionTrace(AcquisitionTrace.DEFAULT_CAPACITY);
+            sink.setTrace(trace_);
+            addTraceHooks(trace_, sink);
+         }
+
          loadRunnables(acquisitionSettings);
 
+         // the analysis is informative only, and should never stop an acquisition
+         sequencingReport_ = null;
+         try {
+            sequencingReport_ = analyzeSequencing(acquisitionSettings);
+            studio_.logs().logMessage("Hardware sequencing: " + sequencingReport_);
+         } catch (Exception ex) {
+            studio_.logs().logError(ex, "Failed to analyze hardware sequencing");
+         }
+
          summaryMetadata_ = currentAcquisition_.getSummaryMetadata();
          addMMSummaryMetadata(summaryMetadata_, sequenceSettings);
 
@@ -291,7 +322,8 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          currentAcquisition_.start();
 
          // Start the events and signal to finish when complete
-         currentAcquisition_.submitEventIterator(createAcqEventIterator(acquisitionSettings));
+         currentAcquisition_.submitEventIterator(createAcqEventIterator(acquisitionSettings,
+               currentAcquisition_));
          currentAcquisition_.finish();
 
          return curStore_;
@@ -409,45 +441,179 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
 
 
    /**
-    * Attach Runnables as acquisition hooks.
+    * Whether acquisitions record a timing trace, see {@link AcquisitionTrace}.
+    * The trace is saved with the data, or in the temp directory when data are
+    * not saved.
+    *
+    * @param record True to record the timing of each image.
+    */
+   public void setRecordTimingTrace(boolean record) {
+      studio_.profile().getSettings(AcqEngJAdapter.class)
+            .putBoolean(RECORD_TIMING_TRACE, record);
+   }
+
+   public boolean getRecordTimingTrace() {
+      return studio_.profile().getSettings(AcqEngJAdapter.class)
+            .getBoolean(RECORD_TIMING_TRACE, false);
+   }
+
+   /**
+    * Adds hooks that record hardware setup and exposure of each event.  The
+    * engine runs all hooks of an event before it starts the next event, so
+    * the hooks can share a counter.  The sink is told which images each event
+    * will produce, so that it can trace them with the same event number.
+    */
+   private void addTraceHooks(AcquisitionTrace trace, AcqEngJMDADataSink sink) {
+      tracedEvents_ = -1;
+      currentAcquisition_.addHook(traceHook(trace, AcquisitionTrace.HARDWARE_START, sink),
+            AcquisitionAPI.BEFORE_HARDWARE_HOOK);
+      currentAcquisition_.addHook(traceHook(trace, AcquisitionTrace.HARDWARE_DONE, sink),
+            AcquisitionAPI.AFTER_HARDWARE_HOOK);
+      currentAcquisition_.addHook(traceHook(trace, AcquisitionTrace.EXPOSURE_START, sink),
+            AcquisitionAPI.AFTER_CAMERA_HOOK);
+      currentAcquisition_.addHook(traceHook(trace, AcquisitionTrace.EXPOSURE_DONE, sink),
+            AcquisitionAPI.AFTER_EXPOSURE_HOOK);
+   }
+
+   private AcquisitionHook traceHook(AcquisitionTrace trace, int type,
+                                     AcqEngJMDADataSink sink) {
+      return new AcquisitionHook() {
+         @Override
+         public AcquisitionEvent run(AcquisitionEvent event) {
+            if (!event.isAcquisitionFinishedEvent()) {
+               if (type == AcquisitionTrace.HARDWARE_START) {
+                  tracedEvents_++;
+                  sink.expectImages(event, tracedEvents_);
+               }
+               trace.record(type, tracedEvents_, -1);
+            }
+            return event;
+         }
+
+         @Override
+         public void close() {
+            // nothing to do here
+         }
+      };
+   }
+
+   private void saveTrace(AcquisitionTrace trace, Datastore store) {
+      try {
+         File file;
+         if (store.getSavePath() != null) {
+            file = new File(store.getSavePath(), "AcquisitionTrace.mmtrace");
+         } else {
+            file = File.createTempFile("AcquisitionTrace", ".mmtrace");
+         }
+         trace.save(file);
+         studio_.logs().logMessage("Acquisition trace saved to " + file + ", "
+               + trace.summarize());
+      } catch (IOException ioe) {
+         studio_.logs().logError(ioe, "Failed to save acquisition trace");
+      }
+   }
+
+   /**
+    * Attach Runnables as acquisition hooks.  A single hook runs all Runnables
+    * that match an event.  When the engine merged events into a hardware
+    * sequence, the Runnables for all images in the sequence run before the
+    * sequence starts.
     *
     * @param acquisitionSettings Object with settings for the acquisition
     */
    private void loadRunnables(SequenceSettings acquisitionSettings) {
-      for (RunnablePlusIndices r : runnables_) {
-         currentAcquisition_.addHook(new AcquisitionHook() {
-            @Override
-            public AcquisitionEvent run(AcquisitionEvent event) {
-               boolean zMatch = event.getZIndex() == null || event.getZIndex() == r.slice_;
-               boolean tMatch = event.getTIndex() == null || event.getTIndex() == r.frame_;
-               boolean cMatch = event.getConfigPreset() == null
-                     || acquisitionSettings.channels().get(r.channel_).config()
-                           .equals(event.getConfigPreset());
-               boolean pMatch = event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS) == null
-                     || ((Integer) event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS))
-                       == r.position_;
-               if (pMatch && zMatch && tMatch && cMatch) {
-                  r.runnable_.run();
-               }
+      if (runnables_.isEmpty()) {
+         return;
+      }
+      final List<RunnablePlusIndices> runnables = new ArrayList<>(runnables_);
+      currentAcquisition_.addHook(new AcquisitionHook() {
+         @Override
+         public AcquisitionEvent run(AcquisitionEvent event) {
+            if (event.isAcquisitionFinishedEvent()) {
                return event;
             }
-
-            @Override
-            public void close() {
-               // Runnable interface doesn't provide anything for close...
+            List<AcquisitionEvent> events = event.getSequence() != null
+                  ? event.getSequence() : Collections.singletonList(event);
+            for (AcquisitionEvent e : events) {
+               for (RunnablePlusIndices r : runnables) {
+                  if (runnableMatches(r, e, acquisitionSettings)) {
+                     r.runnable_.run();
+                  }
+               }
             }
-         }, Acquisition.AFTER_HARDWARE_HOOK);
-         // TODO: does current API expect this to be before or after hardware? after camera?
-         //  during event generation?
+            return event;
+         }
+
+         @Override
+         public void close() {
+            // Runnable interface doesn't provide anything for close...
+         }
+      }, Acquisition.AFTER_HARDWARE_HOOK);
+      // TODO: does current API expect this to be before or after hardware? after camera?
+      //  during event generation?
+   }
+
+   /**
+    * Whether an attached Runnable should run for the given (single image) event.
+    * An index of -1 matches all values of that index.
+    */
+   private static boolean runnableMatches(RunnablePlusIndices r, AcquisitionEvent event,
+                                          SequenceSettings acquisitionSettings) {
+      boolean zMatch = r.slice_ < 0 || event.getZIndex() == null
+            || event.getZIndex() == r.slice_;
+      boolean tMatch = r.frame_ < 0 || event.getTIndex() == null
+            || event.getTIndex() == r.frame_;
+      boolean cMatch = r.channel_ < 0 || event.getConfigPreset() == null
+            || acquisitionSettings.channels().get(r.channel_).config()
+                  .equals(event.getConfigPreset());
+      boolean pMatch = r.position_ < 0
+            || event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS) == null
+            || ((Integer) event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS))
+                  == r.position_;
+      return pMatch && zMatch && tMatch && cMatch;
+   }
+
+   /**
+    * Dry run of the hardware sequencing analysis for the current acquisition
+    * settings: determines which images can be acquired in hardware sequences,
+    * without moving hardware or acquiring images.
+    *
+    * @return The analysis.
+    * @throws Exception when the acquisition events can not be created.
+    */
+   public SequencingAnalyzer.Report analyzeSequencing() throws Exception {
+      if (posList_ == null && sequenceSettings_.usePositionList()) {
+         posList_ = studio_.positions().getPositionList();
       }
-      ;
+      return analyzeSequencing(sequenceSettings_);
+   }
+
+   private SequencingAnalyzer.Report analyzeSequencing(SequenceSettings acquisitionSettings)
+         throws Exception {
+      final List<RunnablePlusIndices> runnables = new ArrayList<>(runnables_);
+      return new SequencingAnalyzer(core_).analyze(
+            createAcqEventIterator(acquisitionSettings, null),
+            event -> {
+               for (RunnablePlusIndices r : runnables) {
+                  if (runnableMatches(r, event, acquisitionSettings)) {
+                     return true;
+                  }
+               }
+               return false;
+            },
+            MAX_ANALYZED_EVENTS);
    }
 
    /**
     * This function converts acquisitionSettings to a lazy sequence (i.e. an iterator) of
     * AcquisitionEvents.
+    *
+    * @param acquisition Acquisition the events belong to, or null for a dry run.  Events of
+    *                    a dry run are not monitored, since they have no absolute start time
+    *                    and should not change the state of this engine.
     */
-   private Iterator<AcquisitionEvent> createAcqEventIterator(SequenceSettings acquisitionSettings)
+   private Iterator<AcquisitionEvent> createAcqEventIterator(SequenceSettings acquisitionSettings,
+                                                            AcquisitionAPI acquisition)
          throws Exception {
       Function<AcquisitionEvent, Iterator<AcquisitionEvent>> channels = null;
       Function<AcquisitionEvent, Iterator<AcquisitionEvent>> zStack = null;
@@ -557,9 +723,9 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          throw new RuntimeException("Unknown acquisition order");
       }
 
-      AcquisitionEvent baseEvent = new AcquisitionEvent(currentAcquisition_);
+      AcquisitionEvent baseEvent = new AcquisitionEvent(acquisition);
       return new AcquisitionEventIterator(baseEvent, acqFunctions,
-            acqEventMonitor(acquisitionSettings));
+            acquisition == null ? event -> event : acqEventMonitor(acquisitionSettings));
 
    }
 
@@ -701,17 +867,28 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
     * the autofocus should run before each channel / Z Stack combo (i.e. at each time point
     * and position.
     *
-    * @param sequenceSettings acquisition settings, not used here.
+    * <p>Without the focus map, autofocus only runs at the first position.  When the focus map
+    * is enabled, the hook runs at every position: the focus position is predicted from earlier
+    * autofocus results, and the autofocus only runs when that prediction is too uncertain
+    * or based on results that are too old.
+    *
+    * @param sequenceSettings acquisition settings, used for the focus map settings.
     * @return The Hook.
     */
    private AcquisitionHook autofocusHookBefore(SequenceSettings sequenceSettings) {
+      final FocusMap focusMap = sequenceSettings.useFocusMap()
+            ? new FocusMap(sequenceSettings.focusMapMaxErrorUm(),
+                  sequenceSettings.focusMapMaxAgeMs())
+            : null;
       return new AcquisitionHook() {
 
          @Override
          public AcquisitionEvent run(AcquisitionEvent event) {
             if (!event.isAcquisitionFinishedEvent()
                   && (event.getZIndex() == null || event.getZIndex() == 0)
-                  && (event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS) == null
+                  // without the focus map, autofocus only runs at the first position
+                  && (focusMap != null
+                        || event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS) == null
                         || (Integer) event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS) == 0)
                   && (event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS) == null
                         || (Integer) event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS) == 0)) {
@@ -719,12 +896,28 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
                      // this hook is called before the engine changes the hardware
                      // since we want to leave the system in a focussed state, first
                      // move the XY stage to where we want to image, then release autofocus.
+                     double x = 0.0;
+                     double y = 0.0;
                      if (event.getXPosition() != null && event.getYPosition() != null) {
-                        studio_.core().setXYPosition(event.getXPosition(), event.getYPosition());
+                        x = event.getXPosition();
+                        y = event.getYPosition();
+                        studio_.core().setXYPosition(x, y);
+                     }
+                     if (focusMap == null) {
+                        studio_.getAutofocusManager().getAutofocusMethod().fullFocus();
+                        return event;
+                     }
+                     long now = System.currentTimeMillis();
+                     FocusMap.Prediction prediction = focusMap.predict(x, y, now);
+                     if (focusMap.needsFullFocus(prediction)) {
+                        studio_.getAutofocusManager().getAutofocusMethod().fullFocus();
+                        focusMap.record(x, y, core_.getPosition(), now);
+                     } else {
+                        core_.setPosition(prediction.getZ());
+                        core_.waitForDevice(core_.getFocusDevice());
                      }
-                     studio_.getAutofocusManager().getAutofocusMethod().fullFocus();
                   } catch (Exception ex) {
-                     studio_.logs().logError(ex, "Failed to disable continuousfocus");
+                     studio_.logs().logError(ex, "Failed to run autofocus");
                   }
                }
             return event;
@@ -732,7 +925,11 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
 
          @Override
          public void close() {
-            // nothing to do here
+            if (focusMap != null) {
+               studio_.logs().logMessage("Focus map: predicted focus "
+                     + focusMap.getNrPredictionsUsed() + " times, ran autofocus "
+                     + focusMap.getNrFullFocus() + " times");
+            }
          }
       };
    }
@@ -1595,6 +1792,16 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
    @Subscribe
    public void onAcquisitionEnded(AcquisitionEndedEvent event) {
       if (event.getStore().equals(curStore_)) {
+         if (sequencingReport_ != null && sink_ != null) {
+            sequencingReport_.setAchieved(sink_.getNrImages(), sink_.getElapsedMs());
+            studio_.logs().logMessage("Hardware sequencing: " + sequencingReport_);
+         }
+         sequencingReport_ = null;
+         sink_ = null;
+         if (trace_ != null) {
+            saveTrace(trace_, curStore_);
+            trace_ = null;
+         }
          curStore_ = null;
          curPipeline_ = null;
          currentAcquisition_ = null;
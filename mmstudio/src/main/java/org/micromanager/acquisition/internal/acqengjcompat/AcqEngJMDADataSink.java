@@ -1,8 +1,12 @@
 package org.micromanager.acquisition.internal.acqengjcompat;
 
+import com.google.common.eventbus.Subscribe;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.swing.JOptionPane;
@@ -10,12 +14,15 @@ import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.PositionList;
+import org.micromanager.PropertyMap;
 import org.micromanager.acqj.api.AcqEngJDataSink;
 import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
 import org.micromanager.acquisition.internal.DefaultAcquisitionEndedEvent;
 import org.micromanager.data.Coords;
+import org.micromanager.data.DataProviderHasNewImageEvent;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Pipeline;
 import org.micromanager.data.internal.DefaultImage;
@@ -38,6 +45,14 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
    private final EventManager studioEvents_;
    private boolean somethingAcquired_ = false;
    private boolean finished_ = false;
+   private int nrImages_ = 0;
+   private long firstImageNs_;
+   private long lastImageNs_;
+   private AcquisitionTrace trace_;
+   // user data key of the trace id (event number and image index) of each image
+   public static final String TRACE_ID = "AcquisitionTraceId";
+   // trace ids of images that the engine started to acquire, by their axes
+   private final Map<String, Long> expectedTraceIds_ = new ConcurrentHashMap<>();
 
    public AcqEngJMDADataSink(EventManager studioEvents) {
       studioEvents_ = studioEvents;
@@ -49,6 +64,54 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
 
    public void setDatastore(Datastore store) {
       store_ = store;
+      if (trace_ != null) {
+         store_.registerForEvents(this);
+      }
+   }
+
+   /**
+    * Records the steps each image goes through in the given trace.  Call
+    * before setDatastore.  Images carry their trace id in their user data,
+    * so that they can be recognized after going through the pipeline.
+    */
+   public void setTrace(AcquisitionTrace trace) {
+      trace_ = trace;
+   }
+
+   /**
+    * Announces the images that an acquisition event will produce, so that
+    * they can be traced with the number of the event.
+    *
+    * @param event Event, possibly a sequence of events, that the engine is starting.
+    * @param eventNumber Number of the event in the trace.
+    */
+   public void expectImages(AcquisitionEvent event, int eventNumber) {
+      List<AcquisitionEvent> events = event.getSequence() != null
+            ? event.getSequence() : Collections.singletonList(event);
+      for (int i = 0; i < events.size(); i++) {
+         AcquisitionEvent e = events.get(i);
+         expectedTraceIds_.put(axesKey(e.getTIndex(), e.getZIndex(),
+               e.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS), e.getAxisPosition("position")),
+               traceId(eventNumber, i));
+      }
+   }
+
+   private static String axesKey(Object time, Object z, Object channel, Object position) {
+      return time + "/" + z + "/" + channel + "/" + position;
+   }
+
+   private static long traceId(int eventNumber, int image) {
+      return ((long) eventNumber << 32) | (image & 0xffffffffL);
+   }
+
+   @Subscribe
+   public void onNewImage(DataProviderHasNewImageEvent event) {
+      // images made by processors out of several others have no (or an arbitrary) trace id
+      PropertyMap userData = event.getImage().getMetadata().getUserData();
+      if (userData.containsLong(TRACE_ID)) {
+         long id = userData.getLong(TRACE_ID, 0L);
+         trace_.record(AcquisitionTrace.IMAGE_STORED, (int) (id >> 32), (int) id);
+      }
    }
 
    // Never called from EDT
@@ -74,6 +137,10 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
    @Override
    public void finish() {
       pipeline_.halt();
+      if (trace_ != null) {
+         store_.unregisterForEvents(this);
+         expectedTraceIds_.clear();
+      }
       studioEvents_.post(
             new DefaultAcquisitionEndedEvent(store_, Engine.getInstance()));
       finished_ = true;
@@ -87,6 +154,21 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
    @Override
    public void putImage(TaggedImage tagged) {
       somethingAcquired_ = true;
+      lastImageNs_ = System.nanoTime();
+      if (nrImages_ == 0) {
+         firstImageNs_ = lastImageNs_;
+      }
+      final int imageNumber = nrImages_++;
+      long traceId = 0;
+      if (trace_ != null) {
+         HashMap<String, Object> axes = AcqEngMetadata.getAxes(tagged.tags);
+         Long expected = expectedTraceIds_.remove(axesKey(axes.get(AcqEngMetadata.TIME_AXIS),
+               axes.get(AcqEngMetadata.Z_AXIS), axes.get(AcqEngMetadata.CHANNEL_AXIS),
+               axes.get("position")));
+         // images that were not announced are numbered by their arrival
+         traceId = expected != null ? expected : traceId(-1, imageNumber);
+         trace_.record(AcquisitionTrace.IMAGE_RECEIVED, (int) (traceId >> 32), (int) traceId);
+      }
       try {
          AcqEngJAdapter.addMMImageMetadata(tagged.tags);
          DefaultImage image = new DefaultImage(tagged);
@@ -108,9 +190,19 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
             cb.index(axisName, (Integer) AcqEngMetadata.getAxes(tagged.tags).get(axisName));
          }
          image = (DefaultImage) image.copyAtCoords(cb.build());
+         if (trace_ != null) {
+            PropertyMap userData = image.getMetadata().getUserData().copyBuilder()
+                  .putLong(TRACE_ID, traceId).build();
+            image = (DefaultImage) image.copyWithMetadata(
+                  image.getMetadata().copyBuilderPreservingUUID().userData(userData).build());
+         }
 
          try {
             pipeline_.insertImage(image);
+            if (trace_ != null) {
+               trace_.record(AcquisitionTrace.PIPELINE_DONE, (int) (traceId >> 32),
+                     (int) traceId);
+            }
          } catch (Exception e) {
             // These TODOs inherited from DefaultTaggedImageSink
             // TODO: make showing the dialog optional.
@@ -126,6 +218,20 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
       }
    }
 
+   /**
+    * Number of images received from the acquisition engine.
+    */
+   public int getNrImages() {
+      return nrImages_;
+   }
+
+   /**
+    * Time between the arrival of the first and the last image.
+    */
+   public double getElapsedMs() {
+      return (lastImageNs_ - firstImageNs_) / 1.0e6;
+   }
+
    @Override
    public boolean anythingAcquired() {
       return somethingAcquired_;
@@ -0,0 +1,250 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records when each step in the life of an image happens during an
+ * acquisition: hardware setup, exposure, hand-off from the acquisition engine,
+ * processing by the pipeline and storage.
+ *
+ * <p>Records are identified by the number of the acquisition event and the
+ * index of the image within that event, so that all records of an image can
+ * be joined, also when the event was a hardware sequence that yields many
+ * images.  Records of the hardware steps apply to the whole event, and have
+ * image index -1.</p>
+ *
+ * <p>Recording is cheap enough to run during fast acquisitions: every
+ * record is four array writes in a preallocated ring buffer, no locks and
+ * no allocation.  When more records are made than fit in the buffer, the
+ * oldest ones are overwritten.</p>
+ *
+ * <p>The trace is saved in a compact binary format, that can be converted to
+ * the Chrome trace event format (JSON) with {@link #exportChromeTrace}, and
+ * then viewed in chrome://tracing or https://ui.perfetto.dev.
+ * AcquisitionTraceConverter in the test sources does this from the command
+ * line.</p>
+ */
+public final class AcquisitionTrace {
+
+   // record types
+   public static final int HARDWARE_START = 0;
+   public static final int HARDWARE_DONE = 1;
+   public static final int EXPOSURE_START = 2;
+   public static final int EXPOSURE_DONE = 3;
+   public static final int IMAGE_RECEIVED = 4;
+   public static final int PIPELINE_DONE = 5;
+   public static final int IMAGE_STORED = 6;
+
+   // for each record type that ends a span: the type that starts it, and its name
+   private static final int[] START_TYPES = {-1, HARDWARE_START, -1, EXPOSURE_START, -1,
+         IMAGE_RECEIVED, IMAGE_RECEIVED};
+   private static final String[] SPAN_NAMES = {null, "hardware setup", null, "exposure",
+         null, "inserting into pipeline", "pipeline and storage"};
+   private static final long MAGIC = 0x4d4d545241434532L; // "MMTRACE2"
+   public static final int DEFAULT_CAPACITY = 1 << 20;
+
+   private final long[] times_;
+   private final int[] types_;
+   private final int[] events_;
+   private final int[] images_;
+   private final int mask_;
+   private final AtomicLong next_ = new AtomicLong();
+   private final long startNs_;
+
+   /**
+    * Creates an empty trace.
+    *
+    * @param capacity Number of records kept, rounded up to a power of 2.
+    */
+   public AcquisitionTrace(int capacity) {
+      int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      times_ = new long[size];
+      types_ = new int[size];
+      events_ = new int[size];
+      images_ = new int[size];
+      mask_ = size - 1;
+      startNs_ = System.nanoTime();
+   }
+
+   /**
+    * Records that something happened now.
+    *
+    * @param type One of the record types defined in this class.
+    * @param event Number of the acquisition event, or -1 when not known.
+    * @param image Index of the image within the event, or -1 for records
+    *              that apply to the whole event.
+    */
+   public void record(int type, int event, int image) {
+      final int slot = (int) (next_.getAndIncrement() & mask_);
+      times_[slot] = System.nanoTime() - startNs_;
+      types_[slot] = type;
+      events_[slot] = event;
+      images_[slot] = image;
+   }
+
+   /**
+    * Number of records kept, at most the capacity.
+    */
+   public int size() {
+      return (int) Math.min(next_.get(), times_.length);
+   }
+
+   /**
+    * Writes the records, oldest first.  Should only be called when no more
+    * records are being made.
+    *
+    * @param file File to write to.
+    * @throws IOException when writing fails.
+    */
+   public void save(File file) throws IOException {
+      final long total = next_.get();
+      final int count = size();
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)))) {
+         out.writeLong(MAGIC);
+         out.writeInt(count);
+         for (long i = total - count; i < total; i++) {
+            int slot = (int) (i & mask_);
+            out.writeLong(times_[slot]);
+            out.writeByte(types_[slot]);
+            out.writeInt(events_[slot]);
+            out.writeInt(images_[slot]);
+         }
+      }
+   }
+
+   /**
+    * Reads a trace written by save.
+    *
+    * @param file File to read.
+    * @return The trace.
+    * @throws IOException when the file can not be read, or is not a trace.
+    */
+   public static AcquisitionTrace load(File file) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)))) {
+         if (in.readLong() != MAGIC) {
+            throw new IOException(file + " is not an acquisition trace");
+         }
+         final int count = in.readInt();
+         AcquisitionTrace trace = new AcquisitionTrace(count);
+         for (int i = 0; i < count; i++) {
+            trace.times_[i] = in.readLong();
+            trace.types_[i] = in.readByte();
+            trace.events_[i] = in.readInt();
+            trace.images_[i] = in.readInt();
+         }
+         trace.next_.set(count);
+         return trace;
+      }
+   }
+
+   /**
+    * Writes the trace in the Chrome trace event format.  Hardware setup,
+    * exposure, inserting images into the pipeline, and pipeline plus storage
+    * are shown as spans on rows of their own.  For asynchronous pipelines,
+    * inserting ends when the first stage has accepted the image, the time
+    * spent in each stage is logged by the pipeline.  Images are counted as
+    * stored when the datastore announces them.
+    *
+    * @param writer Destination.
+    * @throws IOException when writing fails.
+    */
+   public void exportChromeTrace(Writer writer) throws IOException {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+      String separator = "\n";
+      for (int type = 0; type < SPAN_NAMES.length; type++) {
+         if (SPAN_NAMES[type] != null) {
+            writer.write(separator + "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,"
+                  + "\"tid\":" + type + ",\"args\":{\"name\":\"" + SPAN_NAMES[type] + "\"}}");
+            separator = ",\n";
+         }
+      }
+      Map<Long, Long> starts = new HashMap<>();
+      final long total = next_.get();
+      for (long i = total - size(); i < total; i++) {
+         final int slot = (int) (i & mask_);
+         final int type = types_[slot];
+         Long start = spanStart(starts, type, events_[slot], images_[slot], times_[slot]);
+         if (start != null) {
+            writer.write(separator + "{\"name\":\"" + SPAN_NAMES[type]
+                  + "\",\"ph\":\"X\",\"pid\":1,\"tid\":" + type
+                  + ",\"ts\":" + micros(start) + ",\"dur\":" + micros(times_[slot] - start)
+                  + ",\"args\":{\"event\":" + events_[slot]
+                  + ",\"image\":" + images_[slot] + "}}");
+         }
+      }
+      writer.write("\n]}\n");
+   }
+
+   /**
+    * Keeps track of the records that start spans.
+    *
+    * @return start time of the span ended by this record, or null
+    */
+   private static Long spanStart(Map<Long, Long> starts, int type, int event, int image,
+                                 long time) {
+      if (type < 0 || type >= START_TYPES.length) {
+         return null;
+      }
+      if (START_TYPES[type] < 0) {
+         starts.put(key(type, event, image), time);
+         return null;
+      }
+      // image received starts two spans, the one that ends last removes it
+      return type == PIPELINE_DONE ? starts.get(key(START_TYPES[type], event, image))
+            : starts.remove(key(START_TYPES[type], event, image));
+   }
+
+   private static long key(int type, int event, int image) {
+      return ((long) event << 32) | ((image & 0xffffffL) << 8) | (type & 0xff);
+   }
+
+   private static String micros(long ns) {
+      return String.format(Locale.US, "%.3f", ns / 1000.0);
+   }
+
+   /**
+    * Summary of the time spent in each step, for the log.
+    */
+   public String summarize() {
+      long[] sums = new long[SPAN_NAMES.length];
+      long[] maxima = new long[SPAN_NAMES.length];
+      int[] counts = new int[SPAN_NAMES.length];
+      Map<Long, Long> starts = new HashMap<>();
+      final long total = next_.get();
+      final int count = size();
+      for (long i = total - count; i < total; i++) {
+         final int slot = (int) (i & mask_);
+         final int type = types_[slot];
+         Long start = spanStart(starts, type, events_[slot], images_[slot], times_[slot]);
+         if (start != null) {
+            long duration = times_[slot] - start;
+            sums[type] += duration;
+            maxima[type] = Math.max(maxima[type], duration);
+            counts[type]++;
+         }
+      }
+      StringBuilder sb = new StringBuilder();
+      for (int type = 0; type < SPAN_NAMES.length; type++) {
+         if (SPAN_NAMES[type] != null && counts[type] > 0) {
+            sb.append(sb.length() == 0 ? ": " : ", ").append(SPAN_NAMES[type])
+                  .append(String.format(Locale.US, " mean %.2f ms, max %.2f ms",
+                        sums[type] / 1.0e6 / counts[type], maxima[type] / 1.0e6));
+         }
+      }
+      return count + " records" + (total > count ? " (oldest dropped)" : "") + sb;
+   }
+}
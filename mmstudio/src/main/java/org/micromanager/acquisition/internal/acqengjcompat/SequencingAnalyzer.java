@@ -0,0 +1,418 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * Walks a stream of acquisition events, and determines which consecutive
+ * events can be acquired as a single hardware sequence (a "burst"): events
+ * at the same position and time point, that differ only in Z position,
+ * channel and/or exposure time, where the devices involved report that they
+ * can sequence those changes.  Every burst costs one software round trip
+ * (set up the hardware, start a sequence acquisition), so the number of bursts
+ * determines how close the acquisition can get to the frame rate set by the
+ * exposure times.
+ *
+ * <p>The analysis only asks the devices about their sequencing capabilities,
+ * it does not move hardware or acquire images, so it can be used as a dry run
+ * (for instance with the demo devices) before starting an acquisition.</p>
+ */
+public final class SequencingAnalyzer {
+
+   // reasons for starting a new burst
+   public static final String BREAK_POSITION = "position change";
+   public static final String BREAK_TIME_POINT = "new time point";
+   public static final String BREAK_Z = "Z stage not sequenceable";
+   public static final String BREAK_CHANNEL = "channel not sequenceable";
+   public static final String BREAK_EXPOSURE = "exposure not sequenceable";
+   public static final String BREAK_LENGTH = "maximum sequence length";
+   public static final String BREAK_HOOK = "per-image hook";
+
+   private final CMMCore core_;
+   private final int zMaxLength_;
+   private final int exposureMaxLength_;
+   private final double defaultExposureMs_;
+   // maximum sequence length for each channel group preset, 0 when not sequenceable
+   private final Map<String, Integer> presetMaxLength_ = new HashMap<>();
+
+   /**
+    * Queries the sequencing capabilities of the current camera and focus drive.
+    *
+    * @param core Core, used to query device capabilities.
+    */
+   public SequencingAnalyzer(CMMCore core) {
+      core_ = core;
+      int zMaxLength = 0;
+      try {
+         String zStage = core.getFocusDevice();
+         if (!zStage.isEmpty() && core.isStageSequenceable(zStage)) {
+            zMaxLength = core.getStageSequenceMaxLength(zStage);
+         }
+      } catch (Exception ex) {
+         core.logMessage("Sequencing analysis: failed to query Z stage: " + ex.getMessage());
+      }
+      zMaxLength_ = zMaxLength;
+      int exposureMaxLength = 0;
+      double exposure = 0.0;
+      try {
+         String camera = core.getCameraDevice();
+         if (!camera.isEmpty()) {
+            exposure = core.getExposure();
+            if (core.isExposureSequenceable(camera)) {
+               exposureMaxLength = core.getExposureSequenceMaxLength(camera);
+            }
+         }
+      } catch (Exception ex) {
+         core.logMessage("Sequencing analysis: failed to query camera: " + ex.getMessage());
+      }
+      exposureMaxLength_ = exposureMaxLength;
+      defaultExposureMs_ = exposure;
+   }
+
+   /**
+    * Groups the events into bursts.
+    *
+    * @param events Events as they will be submitted to the acquisition engine.
+    * @param needsOwnBurst Events for which this returns true always start a
+    *                      new burst, for instance because a hook has to run
+    *                      before that specific image.  May be null.
+    * @param maxEvents Analysis stops after this many events.
+    * @return The analysis.
+    */
+   public Report analyze(Iterator<AcquisitionEvent> events,
+                         Predicate<AcquisitionEvent> needsOwnBurst, int maxEvents) {
+      Report report = new Report(zMaxLength_ > 0, exposureMaxLength_ > 0);
+      Run run = null;
+      while (events.hasNext()) {
+         if (report.nrImages_ >= maxEvents) {
+            report.truncated_ = true;
+            break;
+         }
+         AcquisitionEvent event = events.next();
+         if (event == null || event.isAcquisitionFinishedEvent()) {
+            continue;
+         }
+         report.nrImages_++;
+         report.totalExposureMs_ += event.getExposure() != null
+               ? event.getExposure() : defaultExposureMs_;
+         String reason = null;
+         if (run != null) {
+            reason = needsOwnBurst != null && needsOwnBurst.test(event)
+                  ? BREAK_HOOK : run.canAdd(event);
+         }
+         if (run == null || reason != null) {
+            if (run != null) {
+               report.add(run.toBurst(), reason);
+            }
+            run = new Run(event);
+         } else {
+            run.add(event);
+         }
+      }
+      if (run != null) {
+         report.add(run.toBurst(), null);
+      }
+      return report;
+   }
+
+   private int presetMaxLength(String group, String preset) {
+      if (group == null || preset == null) {
+         return Integer.MAX_VALUE;
+      }
+      return presetMaxLength_.computeIfAbsent(group + "\t" + preset, k -> {
+         int maxLength = Integer.MAX_VALUE;
+         try {
+            Configuration config = core_.getConfigData(group, preset);
+            for (long i = 0; i < config.size(); i++) {
+               PropertySetting setting = config.getSetting(i);
+               if (!core_.isPropertySequenceable(setting.getDeviceLabel(),
+                     setting.getPropertyName())) {
+                  return 0;
+               }
+               maxLength = Math.min(maxLength, core_.getPropertySequenceMaxLength(
+                     setting.getDeviceLabel(), setting.getPropertyName()));
+            }
+         } catch (Exception ex) {
+            core_.logMessage("Sequencing analysis: failed to query preset " + preset
+                  + ": " + ex.getMessage());
+            return 0;
+         }
+         return maxLength;
+      });
+   }
+
+   /**
+    * Consecutive events that can be acquired as one hardware sequence.
+    */
+   private final class Run {
+      private final AcquisitionEvent first_;
+      private int length_ = 1;
+      private boolean zVaries_ = false;
+      private boolean channelVaries_ = false;
+      private boolean exposureVaries_ = false;
+      private int maxLength_ = Integer.MAX_VALUE;
+
+      Run(AcquisitionEvent first) {
+         first_ = first;
+      }
+
+      /**
+       * Checks whether the event can be added.
+       *
+       * @return null when it can, otherwise the reason why not.
+       */
+      String canAdd(AcquisitionEvent event) {
+         if (!Objects.equals(event.getXPosition(), first_.getXPosition())
+               || !Objects.equals(event.getYPosition(), first_.getYPosition())
+               || !Objects.equals(event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS),
+                     first_.getAxisPosition(MDAAcqEventModules.POSITION_AXIS))) {
+            return BREAK_POSITION;
+         }
+         if (!Objects.equals(event.getTIndex(), first_.getTIndex())) {
+            return BREAK_TIME_POINT;
+         }
+         int maxLength = maxLength_;
+         if (!Objects.equals(event.getZPosition(), first_.getZPosition())) {
+            if (zMaxLength_ <= 0) {
+               return BREAK_Z;
+            }
+            maxLength = Math.min(maxLength, zMaxLength_);
+         }
+         if (!Objects.equals(event.getConfigGroup(), first_.getConfigGroup())
+               || !Objects.equals(event.getConfigPreset(), first_.getConfigPreset())) {
+            int eventMax = presetMaxLength(event.getConfigGroup(), event.getConfigPreset());
+            int firstMax = presetMaxLength(first_.getConfigGroup(), first_.getConfigPreset());
+            if (eventMax <= 0 || firstMax <= 0) {
+               return BREAK_CHANNEL;
+            }
+            maxLength = Math.min(maxLength, Math.min(eventMax, firstMax));
+         }
+         if (!Objects.equals(event.getExposure(), first_.getExposure())) {
+            if (exposureMaxLength_ <= 0) {
+               return BREAK_EXPOSURE;
+            }
+            maxLength = Math.min(maxLength, exposureMaxLength_);
+         }
+         if (length_ + 1 > maxLength) {
+            return BREAK_LENGTH;
+         }
+         return null;
+      }
+
+      /**
+       * Adds an event, canAdd has to be checked first.
+       */
+      void add(AcquisitionEvent event) {
+         if (!Objects.equals(event.getZPosition(), first_.getZPosition())) {
+            zVaries_ = true;
+            maxLength_ = Math.min(maxLength_, zMaxLength_);
+         }
+         if (!Objects.equals(event.getConfigPreset(), first_.getConfigPreset())) {
+            channelVaries_ = true;
+            maxLength_ = Math.min(maxLength_, Math.min(
+                  presetMaxLength(event.getConfigGroup(), event.getConfigPreset()),
+                  presetMaxLength(first_.getConfigGroup(), first_.getConfigPreset())));
+         }
+         if (!Objects.equals(event.getExposure(), first_.getExposure())) {
+            exposureVaries_ = true;
+            maxLength_ = Math.min(maxLength_, exposureMaxLength_);
+         }
+         length_++;
+      }
+
+      Burst toBurst() {
+         return new Burst(first_.getTIndex(),
+               (Integer) first_.getAxisPosition(MDAAcqEventModules.POSITION_AXIS),
+               (Integer) first_.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS),
+               first_.getZIndex(), length_, zVaries_, channelVaries_, exposureVaries_);
+      }
+   }
+
+   /**
+    * Images that are acquired with a single hardware sequence.
+    */
+   public static final class Burst {
+      private final Integer frame_;
+      private final Integer position_;
+      private final Integer channel_;
+      private final Integer slice_;
+      private final int length_;
+      private final boolean zSequenced_;
+      private final boolean channelSequenced_;
+      private final boolean exposureSequenced_;
+
+      Burst(Integer frame, Integer position, Integer channel, Integer slice, int length,
+            boolean zSequenced, boolean channelSequenced, boolean exposureSequenced) {
+         frame_ = frame;
+         position_ = position;
+         channel_ = channel;
+         slice_ = slice;
+         length_ = length;
+         zSequenced_ = zSequenced;
+         channelSequenced_ = channelSequenced;
+         exposureSequenced_ = exposureSequenced;
+      }
+
+      /**
+       * Indices of the first image of the burst, null for axes that are not used.
+       */
+      public Integer getFrame() {
+         return frame_;
+      }
+
+      public Integer getPosition() {
+         return position_;
+      }
+
+      public Integer getChannel() {
+         return channel_;
+      }
+
+      public Integer getSlice() {
+         return slice_;
+      }
+
+      public int getLength() {
+         return length_;
+      }
+
+      public boolean isZSequenced() {
+         return zSequenced_;
+      }
+
+      public boolean isChannelSequenced() {
+         return channelSequenced_;
+      }
+
+      public boolean isExposureSequenced() {
+         return exposureSequenced_;
+      }
+   }
+
+   /**
+    * Result of the analysis.  After the acquisition, the measured frame rate
+    * can be added with setAchieved.
+    */
+   public static final class Report {
+      private final boolean zSequenceable_;
+      private final boolean exposureSequenceable_;
+      private final List<Burst> bursts_ = new ArrayList<>();
+      private final Map<String, Integer> breaks_ = new LinkedHashMap<>();
+      private int nrImages_ = 0;
+      private double totalExposureMs_ = 0.0;
+      private boolean truncated_ = false;
+      private int achievedImages_ = 0;
+      private double achievedMs_ = 0.0;
+
+      Report(boolean zSequenceable, boolean exposureSequenceable) {
+         zSequenceable_ = zSequenceable;
+         exposureSequenceable_ = exposureSequenceable;
+      }
+
+      private void add(Burst burst, String reasonForNext) {
+         bursts_.add(burst);
+         if (reasonForNext != null) {
+            breaks_.merge(reasonForNext, 1, Integer::sum);
+         }
+      }
+
+      public List<Burst> getBursts() {
+         return Collections.unmodifiableList(bursts_);
+      }
+
+      /**
+       * Number of times a new burst had to be started, by reason.
+       */
+      public Map<String, Integer> getBreaks() {
+         return Collections.unmodifiableMap(breaks_);
+      }
+
+      public int getNrImages() {
+         return nrImages_;
+      }
+
+      /**
+       * Whether the analysis stopped before the end of the events.
+       */
+      public boolean isTruncated() {
+         return truncated_;
+      }
+
+      public int getLongestBurst() {
+         int longest = 0;
+         for (Burst burst : bursts_) {
+            longest = Math.max(longest, burst.getLength());
+         }
+         return longest;
+      }
+
+      /**
+       * Frame rate when the camera is the only limit, i.e. images follow each
+       * other without any delay beyond the exposure time.
+       *
+       * @return frames per second, or NaN when exposure times are not known.
+       */
+      public double getTheoreticalFrameRate() {
+         return totalExposureMs_ > 0.0 ? 1000.0 * nrImages_ / totalExposureMs_ : Double.NaN;
+      }
+
+      /**
+       * Adds the measured result of the acquisition.
+       *
+       * @param nrImages Number of images acquired.
+       * @param elapsedMs Time between the first and last image, including any
+       *                  time lapse intervals.
+       */
+      public void setAchieved(int nrImages, double elapsedMs) {
+         achievedImages_ = nrImages;
+         achievedMs_ = elapsedMs;
+      }
+
+      /**
+       * Measured frame rate, NaN when not known.
+       */
+      public double getAchievedFrameRate() {
+         if (achievedImages_ < 2 || achievedMs_ <= 0.0) {
+            return Double.NaN;
+         }
+         return 1000.0 * (achievedImages_ - 1) / achievedMs_;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder sb = new StringBuilder();
+         sb.append(nrImages_).append(" images").append(truncated_ ? " (truncated)" : "")
+               .append(" in ").append(bursts_.size()).append(" hardware sequences")
+               .append(", longest ").append(getLongestBurst())
+               .append(", Z stage ").append(zSequenceable_ ? "" : "not ")
+               .append("sequenceable, exposure ").append(exposureSequenceable_ ? "" : "not ")
+               .append("sequenceable");
+         if (!breaks_.isEmpty()) {
+            sb.append("; new sequence for: ");
+            String separator = "";
+            for (Map.Entry<String, Integer> entry : breaks_.entrySet()) {
+               sb.append(separator).append(entry.getKey()).append(" (")
+                     .append(entry.getValue()).append(")");
+               separator = ", ";
+            }
+         }
+         sb.append(String.format("; theoretical %.1f fps", getTheoreticalFrameRate()));
+         if (!Double.isNaN(getAchievedFrameRate())) {
+            sb.append(String.format(", achieved %.1f fps", getAchievedFrameRate()));
+         }
+         return sb.toString();
+      }
+   }
+}
@@ -0,0 +1,424 @@
+package org.micromanager.acquisition.internal.acqengjcompat.speedtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acquisition.internal.acqengjcompat.AcqEngJMDADataSink;
+import org.micromanager.acquisition.internal.acqengjcompat.MDAAcqEventModules;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.PropertyKey;
+import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
+import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.micromanager.data.internal.ndtiff.NDTiffAdapter;
+import org.micromanager.data.internal.pipeline.DefaultPipeline;
+import org.micromanager.events.EventManager;
+import org.micromanager.internal.MMVersion;
+
+/**
+ * Headless benchmark of the path images take from the acquisition engine to
+ * storage, without hardware or GUI.
+ *
+ * <p>A synthetic camera produces frames on its own thread, at a fixed frame
+ * rate or as fast as possible, into a buffer of limited size that stands in
+ * for the circular buffer of the core.  Frames that do not fit in the buffer
+ * are dropped, as they would be by a camera.  Frames are taken from the
+ * buffer and handed to the same data sink that AcqEngJAdapter uses, which
+ * passes them through a pipeline into a Datastore with the chosen storage.</p>
+ *
+ * <p>Results (frame rate, data rate, dropped frames, time spent in garbage
+ * collection and peak heap use) are returned as JSON, and can be appended to
+ * a file with one result per line, to compare versions.  Run from the command
+ * line with options like:</p>
+ * <pre>
+ * --width=2048 --height=2048 --bitDepth=16 --frames=1000 --positions=1
+ * --storage=MULTIPAGE_TIFF --dir=/tmp --fps=0 --buffer=200 --out=results.jsonl
+ * </pre>
+ */
+public final class ThroughputBenchmark {
+
+   /**
+    * Where images are stored.
+    */
+   public enum Storage {
+      RAM, MULTIPAGE_TIFF, SINGLEPLANE_TIFF_SERIES, ND_TIFF
+   }
+
+   private int width_ = 512;
+   private int height_ = 512;
+   private int bitDepth_ = 16;
+   private int numFrames_ = 1000;
+   private int numPositions_ = 1;
+   private Storage storage_ = Storage.RAM;
+   private File directory_ = new File(System.getProperty("java.io.tmpdir"));
+   private double frameRate_ = 0.0;
+   private int bufferFrames_ = 100;
+
+   public ThroughputBenchmark setFrameSize(int width, int height) {
+      width_ = width;
+      height_ = height;
+      return this;
+   }
+
+   /**
+    * Bit depth of the camera, 8 or less gives 1 byte per pixel, otherwise 2.
+    */
+   public ThroughputBenchmark setBitDepth(int bitDepth) {
+      bitDepth_ = bitDepth;
+      return this;
+   }
+
+   /**
+    * Number of time points, each of which is acquired at every position.
+    */
+   public ThroughputBenchmark setNumFrames(int numFrames) {
+      numFrames_ = numFrames;
+      return this;
+   }
+
+   public ThroughputBenchmark setNumPositions(int numPositions) {
+      numPositions_ = numPositions;
+      return this;
+   }
+
+   public ThroughputBenchmark setStorage(Storage storage) {
+      storage_ = storage;
+      return this;
+   }
+
+   /**
+    * Directory in which a new data set is created for disk based storage.
+    */
+   public ThroughputBenchmark setDirectory(File directory) {
+      directory_ = directory;
+      return this;
+   }
+
+   /**
+    * Frame rate of the synthetic camera.  0 (the default) produces frames as
+    * fast as they are taken up, in which case no frames are dropped.
+    */
+   public ThroughputBenchmark setFrameRate(double framesPerSecond) {
+      frameRate_ = framesPerSecond;
+      return this;
+   }
+
+   /**
+    * Number of frames that fit in the buffer between camera and engine.
+    */
+   public ThroughputBenchmark setBufferFrames(int bufferFrames) {
+      bufferFrames_ = Math.max(1, bufferFrames);
+      return this;
+   }
+
+   /**
+    * Runs the benchmark.
+    *
+    * @return Settings and results.
+    * @throws IOException when the storage fails.
+    * @throws InterruptedException when interrupted.
+    */
+   public JSONObject run() throws IOException, InterruptedException {
+      final int bytesPerPixel = bitDepth_ <= 8 ? 1 : 2;
+      final int total = numFrames_ * numPositions_;
+      final DefaultDatastore store = new DefaultDatastore(null);
+      File dataDir = null;
+      switch (storage_) {
+         case RAM:
+            store.setStorage(new StorageRAM(store));
+            break;
+         case MULTIPAGE_TIFF:
+            dataDir = newDataDirectory();
+            store.setStorage(new StorageMultipageTiff(null, store, dataDir.getPath(),
+                  true, false, false));
+            break;
+         case SINGLEPLANE_TIFF_SERIES:
+            dataDir = newDataDirectory();
+            store.setStorage(new StorageSinglePlaneTiffSeries(store, dataDir.getPath(), true));
+            break;
+         case ND_TIFF:
+            dataDir = newDataDirectory();
+            store.setStorage(new NDTiffAdapter(store, dataDir.getPath(), true));
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown storage " + storage_);
+      }
+      store.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .intendedDimensions(new DefaultCoords.Builder().t(numFrames_).p(numPositions_)
+                  .c(1).z(1).build())
+            .axisOrder(Coords.T, Coords.P, Coords.C, Coords.Z)
+            .build());
+      DefaultPipeline pipeline = new DefaultPipeline(new ArrayList<>(), store, false);
+      AcqEngJMDADataSink sink = new AcqEngJMDADataSink(new NullEventManager());
+      sink.setDatastore(store);
+      sink.setPipeline(pipeline);
+
+      // a few different frames, so that compression or caching can not cheat
+      final Object[] templates = new Object[4];
+      for (int i = 0; i < templates.length; i++) {
+         templates[i] = syntheticFrame(i, bytesPerPixel);
+      }
+      final BlockingQueue<TaggedImage> buffer = new ArrayBlockingQueue<>(bufferFrames_);
+      final int[] dropped = {0};
+      final int[] maxQueued = {0};
+
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            pool.resetPeakUsage();
+         }
+      }
+      final long gcCountBefore = gcCount();
+      final long gcTimeBefore = gcTimeMs();
+      final long startNs = System.nanoTime();
+
+      Thread camera = new Thread(() -> {
+         try {
+            for (int i = 0; i < total; i++) {
+               if (frameRate_ > 0.0) {
+                  long due = startNs + (long) (i * 1.0e9 / frameRate_);
+                  long wait = due - System.nanoTime();
+                  if (wait > 0) {
+                     LockSupport.parkNanos(wait);
+                  }
+               }
+               TaggedImage frame = createFrame(templates[i % templates.length],
+                     i / numPositions_, i % numPositions_, bytesPerPixel);
+               if (frameRate_ > 0.0) {
+                  if (!buffer.offer(frame)) {
+                     dropped[0]++;
+                  }
+               } else {
+                  buffer.put(frame);
+               }
+               maxQueued[0] = Math.max(maxQueued[0], buffer.size());
+            }
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+      }, "Benchmark camera");
+      camera.start();
+
+      int received = 0;
+      while (camera.isAlive() || !buffer.isEmpty()) {
+         TaggedImage frame = buffer.poll(10, TimeUnit.MILLISECONDS);
+         if (frame != null) {
+            sink.putImage(frame);
+            received++;
+         }
+      }
+      camera.join();
+      sink.finish();
+      store.freeze();
+      final double elapsedS = (System.nanoTime() - startNs) / 1.0e9;
+      final long gcCount = gcCount() - gcCountBefore;
+      final long gcTimeMs = gcTimeMs() - gcTimeBefore;
+      long heapPeak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+            heapPeak += pool.getPeakUsage().getUsed();
+         }
+      }
+      store.close();
+
+      final double megabytes = (double) received * width_ * height_ * bytesPerPixel / 1.0e6;
+      try {
+         JSONObject result = new JSONObject();
+         result.put("version", MMVersion.VERSION_STRING);
+         result.put("java", System.getProperty("java.version"));
+         result.put("timestamp", System.currentTimeMillis());
+         result.put("storage", storage_.name());
+         result.put("width", width_);
+         result.put("height", height_);
+         result.put("bitDepth", bitDepth_);
+         result.put("frames", numFrames_);
+         result.put("positions", numPositions_);
+         result.put("targetFps", frameRate_);
+         result.put("bufferFrames", bufferFrames_);
+         result.put("imagesStored", received);
+         result.put("droppedFrames", dropped[0]);
+         result.put("maxBufferedFrames", maxQueued[0]);
+         result.put("seconds", elapsedS);
+         result.put("fps", received / elapsedS);
+         result.put("MBps", megabytes / elapsedS);
+         result.put("gcCount", gcCount);
+         result.put("gcTimeMs", gcTimeMs);
+         // sum of the peaks of the heap pools, an upper limit of the real peak
+         result.put("heapPeakMB", heapPeak / 1.0e6);
+         if (dataDir != null) {
+            result.put("directory", dataDir.getPath());
+         }
+         return result;
+      } catch (JSONException je) {
+         throw new IOException(je);
+      }
+   }
+
+   private File newDataDirectory() throws IOException {
+      if (!directory_.exists() && !directory_.mkdirs()) {
+         throw new IOException("Can not create " + directory_);
+      }
+      // storage classes want to create the directory themselves
+      File dir = Files.createTempDirectory(directory_.toPath(), "benchmark").toFile();
+      if (!dir.delete()) {
+         throw new IOException("Can not use " + dir);
+      }
+      return dir;
+   }
+
+   private Object syntheticFrame(int seed, int bytesPerPixel) {
+      final int max = (1 << Math.min(bitDepth_, 16)) - 1;
+      if (bytesPerPixel == 1) {
+         byte[] pixels = new byte[width_ * height_];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (((i % width_) + (i / width_) * 3 + seed * 17) & max);
+         }
+         return pixels;
+      }
+      short[] pixels = new short[width_ * height_];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (((i % width_) * 7 + (i / width_) * 13 + seed * 101) & max);
+      }
+      return pixels;
+   }
+
+   /**
+    * Copies the template, as the core copies each image out of its buffer, and
+    * adds the tags the acquisition engine would add.
+    */
+   private TaggedImage createFrame(Object template, int frame, int position,
+                                   int bytesPerPixel) {
+      Object pixels;
+      if (template instanceof byte[]) {
+         pixels = ((byte[]) template).clone();
+      } else {
+         pixels = ((short[]) template).clone();
+      }
+      JSONObject tags = new JSONObject();
+      try {
+         tags.put(PropertyKey.WIDTH.key(), width_);
+         tags.put(PropertyKey.HEIGHT.key(), height_);
+         tags.put(PropertyKey.PIXEL_TYPE.key(), bytesPerPixel == 1 ? "GRAY8" : "GRAY16");
+         tags.put(PropertyKey.BIT_DEPTH.key(), bitDepth_);
+         AcqEngMetadata.setAxisPosition(tags, AcqEngMetadata.TIME_AXIS, frame);
+         AcqEngMetadata.setAxisPosition(tags, MDAAcqEventModules.POSITION_AXIS, position);
+      } catch (JSONException je) {
+         throw new RuntimeException(je);
+      }
+      return new TaggedImage(pixels, tags);
+   }
+
+   private static long gcCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         count += Math.max(0, gc.getCollectionCount());
+      }
+      return count;
+   }
+
+   private static long gcTimeMs() {
+      long time = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         time += Math.max(0, gc.getCollectionTime());
+      }
+      return time;
+   }
+
+   /**
+    * The data sink reports the end of the acquisition to the application,
+    * which is not there.
+    */
+   private static final class NullEventManager implements EventManager {
+      @Override
+      public void registerForEvents(Object obj) {
+      }
+
+      @Override
+      public void unregisterForEvents(Object obj) {
+      }
+
+      @Override
+      public void post(Object event) {
+      }
+   }
+
+   /**
+    * Runs the benchmark with the settings given as --name=value arguments,
+    * prints the result, and appends it to the file given with --out.
+    *
+    * @param args see the class description.
+    * @throws Exception when the benchmark fails.
+    */
+   public static void main(String[] args) throws Exception {
+      ThroughputBenchmark benchmark = new ThroughputBenchmark();
+      int width = benchmark.width_;
+      int height = benchmark.height_;
+      File out = null;
+      for (String arg : args) {
+         String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+         if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected --name=value, got " + arg);
+         }
+         String value = parts[1];
+         switch (parts[0]) {
+            case "width":
+               width = Integer.parseInt(value);
+               break;
+            case "height":
+               height = Integer.parseInt(value);
+               break;
+            case "bitDepth":
+               benchmark.setBitDepth(Integer.parseInt(value));
+               break;
+            case "frames":
+               benchmark.setNumFrames(Integer.parseInt(value));
+               break;
+            case "positions":
+               benchmark.setNumPositions(Integer.parseInt(value));
+               break;
+            case "storage":
+               benchmark.setStorage(Storage.valueOf(value.toUpperCase(Locale.US)));
+               break;
+            case "dir":
+               benchmark.setDirectory(new File(value));
+               break;
+            case "fps":
+               benchmark.setFrameRate(Double.parseDouble(value));
+               break;
+            case "buffer":
+               benchmark.setBufferFrames(Integer.parseInt(value));
+               break;
+            case "out":
+               out = new File(value);
+               break;
+            default:
+               throw new IllegalArgumentException("Unknown option " + parts[0]);
+         }
+      }
+      benchmark.setFrameSize(width, height);
+      JSONObject result = benchmark.run();
+      System.out.println(result);
+      if (out != null) {
+         try (FileWriter writer = new FileWriter(out, true)) {
+            writer.write(result + "\n");
+         }
+      }
+   }
+}
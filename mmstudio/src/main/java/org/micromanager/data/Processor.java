@@ -54,6 +54,35 @@ public interface Processor {
     */
    void processImage(Image image, ProcessorContext context);
 
+   /**
+    * Whether this Processor, as configured, passes every image on unmodified,
+    * for instance an image flipper set to neither rotate nor mirror.  The
+    * Pipeline sends images around such Processors without handing them over
+    * to processImage.  processSummaryMetadata and cleanup are still called.
+    * The default implementation returns false.
+    *
+    * @return true if processImage would only output its input image
+    */
+   default boolean isIdentity() {
+      return false;
+   }
+
+   /**
+    * Whether this Processor wants to process the given image.  Images that
+    * the Processor would pass on unmodified, for instance because they come
+    * from a camera that it does not handle, can be sent around it by the
+    * Pipeline.  This method can be called on another thread than
+    * processImage, and is called for every image, so it should only look at
+    * the coords and metadata of the image, and return quickly.
+    * The default implementation returns true.
+    *
+    * @param image image that is about to be handed to this Processor
+    * @return false if processImage would only output the image unmodified
+    */
+   default boolean acceptsImage(Image image) {
+      return true;
+   }
+
    /**
     * Clean up when processing is finished. At this time no more images are
     * going to be sent to the processImage method. The ProcessorContext is
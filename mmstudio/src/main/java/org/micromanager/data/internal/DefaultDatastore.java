@@ -24,10 +24,18 @@ import java.awt.Component;
 import java.beans.PropertyChangeEvent;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JFileChooser;
 import javax.swing.ProgressMonitor;
 import javax.swing.filechooser.FileFilter;
@@ -82,6 +90,9 @@ public class DefaultDatastore implements Datastore {
          MULTIPAGE_TIFF);
    private static final FileFilter NDTIFFFILTER = new SaveFileFilter(
            ND_TIFF);
+
+   // number of threads that read images in copyFrom
+   private static final int COPY_READERS = 4;
    private static final String PREFERRED_SAVE_FORMAT = "default format for saving data";
 
    protected Storage storage_ = null;
@@ -114,11 +125,21 @@ public class DefaultDatastore implements Datastore {
          throws IOException, UserCancelledException {
       copiedFromStore_ = alt;
       int imageCount = 0;
+      ExecutorService copyReaders = Executors.newFixedThreadPool(COPY_READERS);
       try {
          setSummaryMetadata(alt.getSummaryMetadata());
          setName(alt.getName() + " - Copy");
-         for (Coords coords : alt.getUnorderedImageCoords()) {
-            putImage(alt.getImage(coords));
+         // Read ahead on a few threads, so that reading the next images
+         // overlaps with writing this one.  Images are put in the order
+         // in which the source lists them.
+         Iterator<Coords> coords = alt.getUnorderedImageCoords().iterator();
+         Deque<Future<Image>> pending = new ArrayDeque<>();
+         while (coords.hasNext() || !pending.isEmpty()) {
+            while (coords.hasNext() && pending.size() < 2 * COPY_READERS) {
+               final Coords next = coords.next();
+               pending.add(copyReaders.submit(() -> alt.getImage(next)));
+            }
+            putImage(pending.poll().get());
             imageCount++;
             if (monitor != null) {
                if (monitor.isCanceled()) {
@@ -127,6 +148,14 @@ public class DefaultDatastore implements Datastore {
                monitor.setProgress(imageCount);
             }
          }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while copying datastore");
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
       } catch (DatastoreFrozenException e) {
          studio_.logs().logError("Can't copy from datastore: we're frozen");
       } catch (DatastoreRewriteException e) {
@@ -134,6 +163,8 @@ public class DefaultDatastore implements Datastore {
                "Can't copy from datastore: we already have an image at one of its coords.");
       } catch (IllegalArgumentException e) {
          studio_.logs().logError("Inconsistent image coordinates in datastore");
+      } finally {
+         copyReaders.shutdownNow();
       }
    }
 
@@ -398,8 +429,11 @@ public class DefaultDatastore implements Datastore {
    @Override
    public void close() throws IOException {
       freeze();
-      studio_.events().post(
-            new DefaultDatastoreClosingEvent(this));
+      // studio_ is null when used without the application, e.g. in benchmarks
+      if (studio_ != null) {
+         studio_.events().post(
+               new DefaultDatastoreClosingEvent(this));
+      }
       if (copiedFromStore_ != null) {
          try {
             CommentsHelper.copyComments(this, copiedFromStore_);
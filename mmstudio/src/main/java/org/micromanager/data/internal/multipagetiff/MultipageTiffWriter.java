@@ -57,6 +57,7 @@ import org.micromanager.data.internal.DefaultSummaryMetadata;
 import org.micromanager.data.internal.PropertyKey;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DisplaySettings;
+import org.micromanager.display.internal.DefaultChannelDisplaySettings;
 import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.RememberedDisplaySettings;
 import org.micromanager.internal.MMStudio;
@@ -222,7 +223,9 @@ public final class MultipageTiffWriter {
             } catch (InterruptedException ex) {
                // not sure what to do
             }
-            MMStudio.getInstance().getAcquisitionEngine().abortRequest();
+            if (MMStudio.getInstance() != null) {
+               MMStudio.getInstance().getAcquisitionEngine().abortRequest();
+            }
          }).start();
          ReportingUtils.showError(
                "Insufficent space on disk: no room to write data");
@@ -896,8 +899,7 @@ public final class MultipageTiffWriter {
       if (ds == null) {
          for (int ch = 0; ch < numChannels; ch++) {
             String name = summary.getSafeChannelName(ch);
-            ChannelDisplaySettings cds = RememberedDisplaySettings.loadChannel(
-                  MMStudio.getInstance(), channelGroup, name, null);
+            ChannelDisplaySettings cds = rememberedChannel(channelGroup, name);
             // Display Ranges: For each channel, write min then max
             // TODO: doesn't handle multi-component images.
             mdBuffer.putDouble(bufferPosition, (double)
@@ -924,8 +926,7 @@ public final class MultipageTiffWriter {
          Color color;
          if (ds == null) {
             String name = summary.getSafeChannelName(ch);
-            color = RememberedDisplaySettings.loadChannel(
-                  MMStudio.getInstance(), channelGroup, name, null).getColor();
+            color = rememberedChannel(channelGroup, name).getColor();
          } else {
             color = ds.getChannelColor(ch);
          }
@@ -950,6 +951,20 @@ public final class MultipageTiffWriter {
       filePosition_ += mdBufferSize;
    }
 
+   /**
+    * Display settings the user last used for this channel, or defaults when
+    * running without the application (e.g. in benchmarks).
+    */
+   private static ChannelDisplaySettings rememberedChannel(String channelGroup,
+                                                           String name) {
+      if (MMStudio.getInstance() == null) {
+         return DefaultChannelDisplaySettings.builder().groupName(channelGroup)
+               .name(name).component(1).build();
+      }
+      return RememberedDisplaySettings.loadChannel(
+            MMStudio.getInstance(), channelGroup, name, null);
+   }
+
    private void writeImageDescription(String text, long imageDescriptionTagOffset) {
       byte[] bytes = getBytesFromString(text + " ");
       // Null-terminate string
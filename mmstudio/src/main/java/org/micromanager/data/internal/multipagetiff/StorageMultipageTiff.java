@@ -711,10 +711,15 @@ public final class StorageMultipageTiff implements Storage {
     * were used.
     *
     * @return DisplaySettings of a DataViewer that used this store for data, or
-    *         null when no such DataViewer was found.
+    *         null when no such DataViewer was found, or when running without
+    *         the application.
     */
    DisplaySettings getDisplaySettings() {
       MMStudio studio = MMStudio.getInstance();
+      // no application, and so no viewers, e.g. in benchmarks
+      if (studio == null) {
+         return null;
+      }
       DataViewer activeDataViewer = studio.displays().getActiveDataViewer();
       try {
          if (activeDataViewer != null && isViewingOurStore(activeDataViewer)) {
@@ -22,6 +22,7 @@ package org.micromanager.data.internal.pipeline;
 
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Processor;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -29,6 +30,8 @@ import org.micromanager.internal.utils.ReportingUtils;
 public final class AsynchronousContext extends BaseContext {
    private boolean isFlushed_ = false;
    private LinkedBlockingQueue<ImageWrapper> inputQueue_ = null;
+   // images inserted, but not yet processed
+   private final AtomicInteger pending_ = new AtomicInteger();
 
    public AsynchronousContext(Processor processor,
                               Datastore store, DefaultPipeline parent) {
@@ -83,24 +86,37 @@ public final class AsynchronousContext extends BaseContext {
             // Non-null image: process it.
             isFlushed_ = false;
             try {
-               processor_.processImage(wrapper.getImage(), this);
+               processImage(wrapper.getImage());
             } catch (Exception e) {
                ReportingUtils.logError(e, "Processor failed to process image");
                // Pass the exception to our parent.
                parent_.exceptionOccurred(e);
+            } finally {
+               pending_.decrementAndGet();
             }
          }
       }
    }
 
+   @Override
+   protected boolean isIdle() {
+      return pending_.get() == 0;
+   }
+
    /**
     * Process an image. If the input ImageWrapper has a null image, then we
     * flush the pipeline instead, passing the null along to the next context.
     */
    public void insertImage(ImageWrapper wrapper) {
+      if (wrapper.getImage() != null) {
+         pending_.incrementAndGet();
+      }
       try {
          inputQueue_.put(wrapper);
       } catch (InterruptedException e) {
+         if (wrapper.getImage() != null) {
+            pending_.decrementAndGet();
+         }
          ReportingUtils.logError(e, "Interrupted while passing image along pipeline");
       }
    }
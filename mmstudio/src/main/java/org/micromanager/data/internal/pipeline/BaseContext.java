@@ -22,6 +22,7 @@ package org.micromanager.data.internal.pipeline;
 
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
@@ -35,12 +36,21 @@ public abstract class BaseContext implements ProcessorContext {
    protected Datastore store_;
    protected DefaultPipeline parent_;
    protected CountDownLatch flushLatch_;
+   private final boolean isIdentity_;
+   private final AtomicLong processedCount_ = new AtomicLong();
+   private final AtomicLong bypassCount_ = new AtomicLong();
+   private final AtomicLong processingNs_ = new AtomicLong();
+   private final AtomicLong maxProcessingNs_ = new AtomicLong();
+   // thread running our processor, and the time it spent handing images on
+   private volatile Thread processingThread_ = null;
+   private long outputNs_ = 0;
 
    public BaseContext(Processor processor, Datastore store,
                       DefaultPipeline parent) {
       processor_ = processor;
       store_ = store;
       parent_ = parent;
+      isIdentity_ = processor.isIdentity();
    }
 
    /**
@@ -49,6 +59,17 @@ public abstract class BaseContext implements ProcessorContext {
     */
    @Override
    public void outputImage(Image image) {
+      final long start = System.nanoTime();
+      try {
+         passOn(image);
+      } finally {
+         if (Thread.currentThread() == processingThread_) {
+            outputNs_ += System.nanoTime() - start;
+         }
+      }
+   }
+
+   private void passOn(Image image) {
       if (sink_ == null) {
          // Send the image to the Datastore.
          try {
@@ -59,10 +80,110 @@ public abstract class BaseContext implements ProcessorContext {
          }
       } else {
          // Send the image to the next context in the chain.
-         sink_.insertImage(new ImageWrapper(image));
+         try {
+            sink_.deliver(image);
+         } catch (IOException e) {
+            ReportingUtils.logError(e, "Unable to store processed image");
+         }
+      }
+   }
+
+   /**
+    * Hand an image to this context, or, if its processor would not modify
+    * the image, to the first context after it that would.  Images that no
+    * context wants go straight to the Datastore.
+    */
+   public void deliver(Image image) throws IOException {
+      BaseContext target = this;
+      while (target != null && target.canBypass(image)) {
+         target.bypassCount_.incrementAndGet();
+         target = target.sink_;
+      }
+      if (target == null) {
+         store_.putImage(image);
+      } else {
+         target.insertImage(new ImageWrapper(image));
+      }
+   }
+
+   /**
+    * Whether an image can be sent past this context without going through
+    * it.  Images for a processor that is not interested in them can only
+    * skip the context while it has no other images, as they would otherwise
+    * overtake those.
+    */
+   private boolean canBypass(Image image) {
+      return isIdentity_ || (isIdle() && !processor_.acceptsImage(image));
+   }
+
+   /**
+    * Whether this context has finished processing all images that it
+    * received.
+    */
+   protected abstract boolean isIdle();
+
+   /**
+    * Hand an image to our processor, or pass it on directly if the processor
+    * does not want it.
+    */
+   protected void processImage(Image image) {
+      if (isIdentity_ || !processor_.acceptsImage(image)) {
+         bypassCount_.incrementAndGet();
+         outputImage(image);
+      } else {
+         processedCount_.incrementAndGet();
+         // time spent by the processor itself, not by the stages after it
+         processingThread_ = Thread.currentThread();
+         outputNs_ = 0;
+         final long start = System.nanoTime();
+         try {
+            processor_.processImage(image, this);
+         } finally {
+            processingThread_ = null;
+            final long ns = System.nanoTime() - start - outputNs_;
+            processingNs_.addAndGet(ns);
+            long max = maxProcessingNs_.get();
+            while (ns > max && !maxProcessingNs_.compareAndSet(max, ns)) {
+               max = maxProcessingNs_.get();
+            }
+         }
       }
    }
 
+   public Processor getProcessor() {
+      return processor_;
+   }
+
+   /**
+    * Number of images that our processor processed.
+    */
+   public long getProcessedCount() {
+      return processedCount_.get();
+   }
+
+   /**
+    * Total time our processor spent processing images, excluding the time
+    * that the images it output spent in later stages.
+    */
+   public long getProcessingNs() {
+      return processingNs_.get();
+   }
+
+   /**
+    * Longest time our processor spent processing a single image.
+    */
+   public long getMaxProcessingNs() {
+      return maxProcessingNs_.get();
+   }
+
+   /**
+    * Number of images that were passed on without going through our
+    * processor.
+    */
+   public long getBypassCount() {
+      return bypassCount_.get();
+   }
+
    /**
     * Set the context that images output by our processor should be fed to.
     * If we have no sink, then we send images to the Datastore instead.
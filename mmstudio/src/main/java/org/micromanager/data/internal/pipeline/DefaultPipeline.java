@@ -22,7 +22,10 @@ package org.micromanager.data.internal.pipeline;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
@@ -51,7 +54,7 @@ public final class DefaultPipeline implements Pipeline {
       store_ = store;
       contexts_ = new ArrayList<BaseContext>();
       exceptions_ = new ArrayList<Exception>();
-      for (Processor processor : processors_) {
+      for (Processor processor : fuseGeometricProcessors(processors_)) {
          if (isSynchronous) {
             contexts_.add(new SynchronousContext(processor, store_, this));
          } else {
@@ -66,6 +69,36 @@ public final class DefaultPipeline implements Pipeline {
       isSynchronous_ = isSynchronous;
    }
 
+   /**
+    * Replaces runs of consecutive GeometricProcessors by a single
+    * GeometricStage, so that their images are copied once instead of once
+    * per processor.  GeometricProcessor is internal, so only the geometric
+    * processors that come with Micro-Manager are combined.
+    */
+   private static List<Processor> fuseGeometricProcessors(List<Processor> processors) {
+      List<Processor> result = new ArrayList<Processor>();
+      List<GeometricProcessor> run = new ArrayList<GeometricProcessor>();
+      for (Processor processor : processors) {
+         if (processor instanceof GeometricProcessor) {
+            run.add((GeometricProcessor) processor);
+            continue;
+         }
+         addRun(run, result);
+         result.add(processor);
+      }
+      addRun(run, result);
+      return result;
+   }
+
+   private static void addRun(List<GeometricProcessor> run, List<Processor> result) {
+      if (run.size() == 1) {
+         result.add(run.get(0));
+      } else if (run.size() > 1) {
+         result.add(new GeometricStage(run));
+      }
+      run.clear();
+   }
+
    @Override
    public void insertSummaryMetadata(SummaryMetadata summary)
          throws IOException, PipelineErrorException {
@@ -106,7 +139,8 @@ public final class DefaultPipeline implements Pipeline {
          throw new DatastoreFrozenException();
       }
       if (contexts_.size() > 0) {
-         contexts_.get(0).insertImage(new ImageWrapper(image));
+         // Skips stages that would not modify the image.
+         contexts_.get(0).deliver(image);
       } else {
          // Empty "pipeline".
          store_.putImage(image);
@@ -145,6 +179,14 @@ public final class DefaultPipeline implements Pipeline {
       } catch (InterruptedException e) {
          ReportingUtils.logError("Interrupted while waiting for flush to complete.");
       }
+      for (BaseContext context : contexts_) {
+         long processed = context.getProcessedCount();
+         ReportingUtils.logMessage(String.format(Locale.US,
+               "Pipeline stage %s: processed %d (mean %.2f ms, max %.2f ms), bypassed %d",
+               context.getProcessor(), processed,
+               processed == 0 ? 0.0 : context.getProcessingNs() / 1.0e6 / processed,
+               context.getMaxProcessingNs() / 1.0e6, context.getBypassCount()));
+      }
       isHalted_ = true;
    }
 
@@ -168,6 +210,43 @@ public final class DefaultPipeline implements Pipeline {
       return processors_;
    }
 
+   /**
+    * Number of images that went through each stage of the pipeline.  Stages
+    * are the processors, except that consecutive GeometricProcessors are
+    * combined into one GeometricStage.
+    */
+   public Map<Processor, Long> getProcessedCounts() {
+      Map<Processor, Long> result = new LinkedHashMap<Processor, Long>();
+      for (BaseContext context : contexts_) {
+         result.put(context.getProcessor(), context.getProcessedCount());
+      }
+      return result;
+   }
+
+   /**
+    * Time each stage of the pipeline spent processing images, in ns.  Time
+    * spent in later stages is not included.
+    */
+   public Map<Processor, Long> getProcessingTimesNs() {
+      Map<Processor, Long> result = new LinkedHashMap<Processor, Long>();
+      for (BaseContext context : contexts_) {
+         result.put(context.getProcessor(), context.getProcessingNs());
+      }
+      return result;
+   }
+
+   /**
+    * Number of images that were sent around each stage of the pipeline,
+    * because its processor would not have modified them.
+    */
+   public Map<Processor, Long> getBypassCounts() {
+      Map<Processor, Long> result = new LinkedHashMap<Processor, Long>();
+      for (BaseContext context : contexts_) {
+         result.put(context.getProcessor(), context.getBypassCount());
+      }
+      return result;
+   }
+
    public void exceptionOccurred(Exception e) {
       exceptions_.add(e);
    }
@@ -0,0 +1,220 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Copies the pixels of an image into one or more output images, as described
+ * by the mappings of a {@link GeometricTransform}, in one pass.  The plan is
+ * computed once for an input size and can then be applied to any number of
+ * images of that size.
+ *
+ * <p>Outputs whose mapping consists of whole pixel steps that stay within the
+ * image (flips, rotations, crops and splits) are copied by walking the input
+ * with fixed strides.  Others use an index table with the nearest input pixel
+ * for every output pixel.  Outputs are copied in square tiles, so that
+ * rotations do not read the input one cache line per pixel, and large images
+ * are copied by several threads.</p>
+ */
+public final class GeometricPlan {
+   private static final int TILE = 64;
+   private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+   private final int width_;
+   private final int height_;
+   private final int elementsPerPixel_;
+   private final Output[] outputs_;
+
+   private static final class Output {
+      final int width_;
+      final int height_;
+      // strided copy: input pixel = base + x * dx + y * dy
+      final int base_;
+      final int dx_;
+      final int dy_;
+      // otherwise input pixel for every output pixel, -1 outside of the input
+      final int[] index_;
+
+      Output(int width, int height, int base, int dx, int dy, int[] index) {
+         width_ = width;
+         height_ = height;
+         base_ = base;
+         dx_ = dx;
+         dy_ = dy;
+         index_ = index;
+      }
+   }
+
+   /**
+    * Computes the plan.
+    *
+    * @param mappings outputs, from GeometricTransform.map
+    * @param width width of the input images
+    * @param height height of the input images
+    * @param elementsPerPixel number of array elements per pixel, 4 for RGB32
+    */
+   public GeometricPlan(List<GeometricTransform.Mapping> mappings, int width, int height,
+         int elementsPerPixel) {
+      width_ = width;
+      height_ = height;
+      elementsPerPixel_ = elementsPerPixel;
+      outputs_ = new Output[mappings.size()];
+      for (int i = 0; i < outputs_.length; i++) {
+         outputs_[i] = plan(mappings.get(i));
+      }
+   }
+
+   private Output plan(GeometricTransform.Mapping m) {
+      final int w = m.getWidth();
+      final int h = m.getHeight();
+      if (m.isIntegral() && inside(m, 0, 0) && inside(m, w - 1, 0)
+            && inside(m, 0, h - 1) && inside(m, w - 1, h - 1)) {
+         // an affine function is within the image when its corners are
+         final int base = (int) m.sourceX(0, 0) + (int) m.sourceY(0, 0) * width_;
+         final int dx = (int) m.xx_ + (int) m.yx_ * width_;
+         final int dy = (int) m.xy_ + (int) m.yy_ * width_;
+         return new Output(w, h, base, dx, dy, null);
+      }
+      int[] index = new int[w * h];
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            final long sx = (long) Math.floor(m.sourceX(x, y) + 0.5);
+            final long sy = (long) Math.floor(m.sourceY(x, y) + 0.5);
+            index[y * w + x] = sx >= 0 && sx < width_ && sy >= 0 && sy < height_
+                  ? (int) (sx + sy * width_) : -1;
+         }
+      }
+      return new Output(w, h, 0, 0, 0, index);
+   }
+
+   private boolean inside(GeometricTransform.Mapping m, int x, int y) {
+      final double sx = m.sourceX(x, y);
+      final double sy = m.sourceY(x, y);
+      return sx >= 0 && sx < width_ && sy >= 0 && sy < height_;
+   }
+
+   public int getNumOutputs() {
+      return outputs_.length;
+   }
+
+   public int getOutputWidth(int output) {
+      return outputs_[output].width_;
+   }
+
+   public int getOutputHeight(int output) {
+      return outputs_[output].height_;
+   }
+
+   /**
+    * Copies the pixels of an image into new arrays, one per output.
+    *
+    * @param source byte[], short[] or float[] of an image of the size this
+    *               plan was made for
+    * @return arrays of the same type as the source
+    */
+   public Object[] apply(Object source) {
+      final Object[] results = new Object[outputs_.length];
+      for (int i = 0; i < outputs_.length; i++) {
+         final Output out = outputs_[i];
+         final int length = out.width_ * out.height_ * elementsPerPixel_;
+         final Object target;
+         if (source instanceof byte[]) {
+            target = new byte[length];
+         } else if (source instanceof short[]) {
+            target = new short[length];
+         } else if (source instanceof float[]) {
+            target = new float[length];
+         } else {
+            throw new IllegalArgumentException("Unsupported pixel type "
+                  + source.getClass().getName());
+         }
+         final int bands = (out.height_ + TILE - 1) / TILE;
+         IntStream stream = IntStream.range(0, bands);
+         if ((long) out.width_ * out.height_ >= PARALLEL_THRESHOLD) {
+            stream = stream.parallel();
+         }
+         stream.forEach(band -> copyBand(source, target, out, band * TILE,
+               Math.min(out.height_, (band + 1) * TILE)));
+         results[i] = target;
+      }
+      return results;
+   }
+
+   private void copyBand(Object source, Object target, Output out, int y0, int y1) {
+      if (source instanceof short[]) {
+         copyBand((short[]) source, (short[]) target, out, y0, y1);
+      } else if (source instanceof byte[]) {
+         copyBand((byte[]) source, (byte[]) target, out, y0, y1);
+      } else {
+         copyBand((float[]) source, (float[]) target, out, y0, y1);
+      }
+   }
+
+   private void copyBand(short[] source, short[] target, Output out, int y0, int y1) {
+      final int w = out.width_;
+      if (out.index_ != null) {
+         final int[] index = out.index_;
+         for (int i = y0 * w; i < y1 * w; i++) {
+            target[i] = index[i] < 0 ? 0 : source[index[i]];
+         }
+         return;
+      }
+      for (int x0 = 0; x0 < w; x0 += TILE) {
+         final int x1 = Math.min(w, x0 + TILE);
+         for (int y = y0; y < y1; y++) {
+            int s = out.base_ + x0 * out.dx_ + y * out.dy_;
+            for (int t = y * w + x0; t < y * w + x1; t++) {
+               target[t] = source[s];
+               s += out.dx_;
+            }
+         }
+      }
+   }
+
+   private void copyBand(float[] source, float[] target, Output out, int y0, int y1) {
+      final int w = out.width_;
+      if (out.index_ != null) {
+         final int[] index = out.index_;
+         for (int i = y0 * w; i < y1 * w; i++) {
+            target[i] = index[i] < 0 ? 0 : source[index[i]];
+         }
+         return;
+      }
+      for (int x0 = 0; x0 < w; x0 += TILE) {
+         final int x1 = Math.min(w, x0 + TILE);
+         for (int y = y0; y < y1; y++) {
+            int s = out.base_ + x0 * out.dx_ + y * out.dy_;
+            for (int t = y * w + x0; t < y * w + x1; t++) {
+               target[t] = source[s];
+               s += out.dx_;
+            }
+         }
+      }
+   }
+
+   private void copyBand(byte[] source, byte[] target, Output out, int y0, int y1) {
+      final int w = out.width_;
+      final int n = elementsPerPixel_;
+      if (out.index_ != null) {
+         final int[] index = out.index_;
+         for (int i = y0 * w; i < y1 * w; i++) {
+            for (int e = 0; e < n; e++) {
+               target[i * n + e] = index[i] < 0 ? 0 : source[index[i] * n + e];
+            }
+         }
+         return;
+      }
+      for (int x0 = 0; x0 < w; x0 += TILE) {
+         final int x1 = Math.min(w, x0 + TILE);
+         for (int y = y0; y < y1; y++) {
+            int s = out.base_ + x0 * out.dx_ + y * out.dy_;
+            for (int t = y * w + x0; t < y * w + x1; t++) {
+               for (int e = 0; e < n; e++) {
+                  target[t * n + e] = source[s * n + e];
+               }
+               s += out.dx_;
+            }
+         }
+      }
+   }
+}
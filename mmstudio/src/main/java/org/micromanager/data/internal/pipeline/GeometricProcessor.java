@@ -0,0 +1,74 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.Collections;
+import java.util.List;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.Processor;
+
+/**
+ * A Processor that only moves pixels around: flipping, rotating, cropping,
+ * splitting and the like.  Instead of copying pixels itself, such a
+ * processor describes what it does to an image, so that the pipeline can
+ * combine consecutive geometric processors into one {@link GeometricStage},
+ * which copies every pixel only once.
+ *
+ * <p>Implementations usually forward processImage to a GeometricStage of
+ * their own, for when they are not combined with others.</p>
+ *
+ * <p>This interface, {@link Step}, {@link GeometricTransform} and
+ * {@link GeometricPlan} are internal to Micro-Manager and may change without
+ * notice.  They are used by the ImageFlipper and SplitView plugins that ship
+ * with it; other processors are not combined, and run as before.</p>
+ */
+public interface GeometricProcessor extends Processor {
+
+   /**
+    * Describes what happens to an image with the given coords and metadata.
+    *
+    * @param coords   coords of the image
+    * @param metadata metadata of the image
+    * @return what to do with the image, or null to pass it on unmodified
+    */
+   Step describe(Coords coords, Metadata metadata);
+
+   /**
+    * The operations for an image, and the coords and metadata of each of the
+    * resulting images.
+    */
+   final class Step {
+      private final GeometricTransform transform_;
+      private final List<Coords> coords_;
+      private final List<Metadata> metadata_;
+
+      public Step(GeometricTransform transform, List<Coords> coords,
+            List<Metadata> metadata) {
+         if (coords.size() != metadata.size()) {
+            throw new IllegalArgumentException("Need coords and metadata for every output");
+         }
+         transform_ = transform;
+         coords_ = coords;
+         metadata_ = metadata;
+      }
+
+      /**
+       * A step with a single resulting image.
+       */
+      public Step(GeometricTransform transform, Coords coords, Metadata metadata) {
+         this(transform, Collections.singletonList(coords),
+               Collections.singletonList(metadata));
+      }
+
+      public GeometricTransform getTransform() {
+         return transform_;
+      }
+
+      public List<Coords> getCoords() {
+         return coords_;
+      }
+
+      public List<Metadata> getMetadata() {
+         return metadata_;
+      }
+   }
+}
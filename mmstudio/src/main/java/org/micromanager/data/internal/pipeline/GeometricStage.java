@@ -0,0 +1,168 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultImage;
+
+/**
+ * Runs a sequence of GeometricProcessors as a single Processor.  The
+ * operations of all processors are combined per image, and the pixels are
+ * copied once, with a GeometricPlan that is computed once for every
+ * combination of image size and operations.
+ */
+public final class GeometricStage implements Processor {
+   private static final int MAX_PLANS = 16;
+
+   private final List<GeometricProcessor> processors_;
+   private final Map<List<Object>, GeometricPlan> plans_ = new HashMap<>();
+
+   // an output image on its way through the processors
+   private static final class Item {
+      final Coords coords_;
+      final Metadata metadata_;
+      final GeometricTransform.Mapping mapping_;
+
+      Item(Coords coords, Metadata metadata, GeometricTransform.Mapping mapping) {
+         coords_ = coords;
+         metadata_ = metadata;
+         mapping_ = mapping;
+      }
+   }
+
+   public GeometricStage(List<GeometricProcessor> processors) {
+      processors_ = new ArrayList<>(processors);
+   }
+
+   public GeometricStage(GeometricProcessor processor) {
+      this(Collections.singletonList(processor));
+   }
+
+   public List<GeometricProcessor> getProcessors() {
+      return Collections.unmodifiableList(processors_);
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata source) {
+      for (Processor processor : processors_) {
+         source = processor.processSummaryMetadata(source);
+      }
+      return source;
+   }
+
+   @Override
+   public boolean isIdentity() {
+      for (Processor processor : processors_) {
+         if (!processor.isIdentity()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public boolean acceptsImage(Image image) {
+      for (Processor processor : processors_) {
+         if (!processor.isIdentity() && processor.acceptsImage(image)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      final int width = image.getWidth();
+      final int height = image.getHeight();
+      final GeometricTransform.Mapping identity =
+            GeometricTransform.identity().map(width, height).get(0);
+      List<Item> items = Collections.singletonList(
+            new Item(image.getCoords(), image.getMetadata(), identity));
+      boolean modified = false;
+      for (GeometricProcessor processor : processors_) {
+         if (processor.isIdentity()) {
+            continue;
+         }
+         List<Item> next = new ArrayList<>(items.size());
+         for (Item item : items) {
+            GeometricProcessor.Step step = processor.describe(item.coords_, item.metadata_);
+            if (step == null) {
+               next.add(item);
+               continue;
+            }
+            List<GeometricTransform.Mapping> mappings = step.getTransform().map(item.mapping_);
+            if (mappings.size() != step.getCoords().size()) {
+               throw new IllegalArgumentException(processor.getClass().getSimpleName()
+                     + " described " + step.getCoords().size() + " images for "
+                     + mappings.size() + " outputs");
+            }
+            for (int i = 0; i < mappings.size(); i++) {
+               next.add(new Item(step.getCoords().get(i), step.getMetadata().get(i),
+                     mappings.get(i)));
+            }
+            modified = true;
+         }
+         items = next;
+      }
+      if (!modified) {
+         context.outputImage(image);
+         return;
+      }
+
+      // only copy pixels that actually move
+      List<GeometricTransform.Mapping> toCopy = new ArrayList<>();
+      for (Item item : items) {
+         if (!item.mapping_.equals(identity)) {
+            toCopy.add(item.mapping_);
+         }
+      }
+      Object[] pixels = new Object[0];
+      if (!toCopy.isEmpty()) {
+         final Object source = image.getRawPixels();
+         final int elementsPerPixel = source instanceof byte[] ? image.getBytesPerPixel() : 1;
+         pixels = getPlan(toCopy, width, height, elementsPerPixel).apply(source);
+      }
+      int copied = 0;
+      for (Item item : items) {
+         if (item.mapping_.equals(identity)) {
+            context.outputImage(image.copyWith(item.coords_, item.metadata_));
+         } else {
+            context.outputImage(new DefaultImage(pixels[copied++], item.mapping_.getWidth(),
+                  item.mapping_.getHeight(), image.getBytesPerPixel(),
+                  image.getNumComponents(), item.coords_, item.metadata_));
+         }
+      }
+   }
+
+   private synchronized GeometricPlan getPlan(List<GeometricTransform.Mapping> mappings,
+         int width, int height, int elementsPerPixel) {
+      List<Object> key = new ArrayList<>(mappings.size() + 3);
+      key.addAll(Arrays.asList(width, height, elementsPerPixel));
+      key.addAll(mappings);
+      GeometricPlan plan = plans_.get(key);
+      if (plan == null) {
+         if (plans_.size() >= MAX_PLANS) {
+            plans_.clear();
+         }
+         plan = new GeometricPlan(mappings, width, height, elementsPerPixel);
+         plans_.put(key, plan);
+      }
+      return plan;
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      for (Processor processor : processors_) {
+         processor.cleanup(context);
+      }
+   }
+}
@@ -0,0 +1,250 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered list of geometric operations on an image: mirroring, rotation
+ * by multiples of 90 degrees, cropping, splitting into several images and
+ * general affine transforms.  All of these map every output pixel to one
+ * input pixel through an affine function, so a whole list of operations
+ * collapses into one {@link Mapping} per output image, that can be applied in
+ * a single pass over the pixels by a {@link GeometricPlan}.
+ *
+ * <p>Instances are immutable; every operation returns a new instance.</p>
+ *
+ * <p>Internal, see {@link GeometricProcessor}.</p>
+ */
+public final class GeometricTransform {
+
+   private static final GeometricTransform IDENTITY =
+         new GeometricTransform(Collections.<Op>emptyList());
+
+   private final List<Op> ops_;
+
+   private GeometricTransform(List<Op> ops) {
+      ops_ = ops;
+   }
+
+   public static GeometricTransform identity() {
+      return IDENTITY;
+   }
+
+   private GeometricTransform then(Op op) {
+      List<Op> ops = new ArrayList<>(ops_);
+      ops.add(op);
+      return new GeometricTransform(Collections.unmodifiableList(ops));
+   }
+
+   public boolean isIdentity() {
+      return ops_.isEmpty();
+   }
+
+   /**
+    * Flips left and right.
+    */
+   public GeometricTransform mirror() {
+      return then((m, out) -> out.add(m.compose(m.width_, m.height_,
+            -1, 0, m.width_ - 1, 0, 1, 0)));
+   }
+
+   /**
+    * Flips top and bottom.
+    */
+   public GeometricTransform flipVertical() {
+      return then((m, out) -> out.add(m.compose(m.width_, m.height_,
+            1, 0, 0, 0, -1, m.height_ - 1)));
+   }
+
+   /**
+    * Rotates clockwise, like ImageProcessor.rotateRight for 90 degrees.
+    *
+    * @param degrees 0, 90, 180 or 270
+    */
+   public GeometricTransform rotate(int degrees) {
+      switch (((degrees % 360) + 360) % 360) {
+         case 0:
+            return this;
+         case 90:
+            return then((m, out) -> out.add(m.compose(m.height_, m.width_,
+                  0, 1, 0, -1, 0, m.height_ - 1)));
+         case 180:
+            return then((m, out) -> out.add(m.compose(m.width_, m.height_,
+                  -1, 0, m.width_ - 1, 0, -1, m.height_ - 1)));
+         case 270:
+            return then((m, out) -> out.add(m.compose(m.height_, m.width_,
+                  0, -1, m.width_ - 1, 1, 0, 0)));
+         default:
+            throw new IllegalArgumentException(
+                  "Invalid rotation " + degrees + "; must be a multiple of 90 degrees");
+      }
+   }
+
+   /**
+    * Keeps a rectangle of the image.  Parts of the rectangle outside of the
+    * image are filled with zeros.
+    */
+   public GeometricTransform crop(int x, int y, int width, int height) {
+      if (width <= 0 || height <= 0) {
+         throw new IllegalArgumentException("Crop to empty rectangle");
+      }
+      return then((m, out) -> out.add(m.compose(width, height, 1, 0, x, 0, 1, y)));
+   }
+
+   /**
+    * Splits the image in equal parts, left to right or top to bottom.  Any
+    * operations added afterwards apply to each of the parts.
+    *
+    * @param parts number of parts
+    * @param topToBottom whether to split top to bottom instead of left to right
+    */
+   public GeometricTransform split(int parts, boolean topToBottom) {
+      if (parts < 1) {
+         throw new IllegalArgumentException("Can not split into " + parts + " parts");
+      }
+      return then((m, out) -> {
+         final int width = topToBottom ? m.width_ : m.width_ / parts;
+         final int height = topToBottom ? m.height_ / parts : m.height_;
+         for (int i = 0; i < parts; i++) {
+            out.add(m.compose(width, height, 1, 0, topToBottom ? 0 : i * width,
+                  0, 1, topToBottom ? i * height : 0));
+         }
+      });
+   }
+
+   /**
+    * Applies an affine transform, like AffineTransformOp with nearest
+    * neighbor interpolation.  Pixels that map outside of the image are
+    * filled with zeros.
+    *
+    * @param transform maps input to output coordinates
+    * @param width width of the output
+    * @param height height of the output
+    */
+   public GeometricTransform affine(AffineTransform transform, int width, int height) {
+      final AffineTransform inverse;
+      try {
+         inverse = transform.createInverse();
+      } catch (NoninvertibleTransformException e) {
+         throw new IllegalArgumentException("Affine transform can not be inverted", e);
+      }
+      // pixel centers are at half integer coordinates
+      final double[] c = new double[6];
+      inverse.getMatrix(c);
+      return then((m, out) -> out.add(m.compose(width, height,
+            c[0], c[2], c[4] + 0.5 * (c[0] + c[2] - 1),
+            c[1], c[3], c[5] + 0.5 * (c[1] + c[3] - 1))));
+   }
+
+   /**
+    * Maps the output images to an input image of the given size.
+    */
+   public List<Mapping> map(int width, int height) {
+      return map(new Mapping(width, height, 1, 0, 0, 0, 1, 0));
+   }
+
+   /**
+    * Maps the output images to the pixels that the given mapping refers to,
+    * which allows operations of several transforms to be combined.
+    */
+   public List<Mapping> map(Mapping start) {
+      List<Mapping> current = Collections.singletonList(start);
+      for (Op op : ops_) {
+         List<Mapping> next = new ArrayList<>(current.size());
+         for (Mapping m : current) {
+            op.apply(m, next);
+         }
+         current = next;
+      }
+      return current;
+   }
+
+   private interface Op {
+      void apply(Mapping m, List<Mapping> out);
+   }
+
+   /**
+    * Size of an output image, and the affine function mapping its pixels to
+    * the input: x_in = xx * x + xy * y + x0, y_in = yx * x + yy * y + y0.
+    */
+   public static final class Mapping {
+      final int width_;
+      final int height_;
+      final double xx_;
+      final double xy_;
+      final double x0_;
+      final double yx_;
+      final double yy_;
+      final double y0_;
+
+      Mapping(int width, int height, double xx, double xy, double x0,
+            double yx, double yy, double y0) {
+         width_ = width;
+         height_ = height;
+         xx_ = xx;
+         xy_ = xy;
+         x0_ = x0;
+         yx_ = yx;
+         yy_ = yy;
+         y0_ = y0;
+      }
+
+      public int getWidth() {
+         return width_;
+      }
+
+      public int getHeight() {
+         return height_;
+      }
+
+      /**
+       * A new output of the given size, whose pixels map to the pixels of this
+       * one through (xx * x + xy * y + x0, yx * x + yy * y + y0).
+       */
+      Mapping compose(int width, int height, double xx, double xy, double x0,
+            double yx, double yy, double y0) {
+         return new Mapping(width, height,
+               xx_ * xx + xy_ * yx, xx_ * xy + xy_ * yy, xx_ * x0 + xy_ * y0 + x0_,
+               yx_ * xx + yy_ * yx, yx_ * xy + yy_ * yy, yx_ * x0 + yy_ * y0 + y0_);
+      }
+
+      boolean isIntegral() {
+         return isInt(xx_) && isInt(xy_) && isInt(x0_)
+               && isInt(yx_) && isInt(yy_) && isInt(y0_);
+      }
+
+      private static boolean isInt(double d) {
+         return d == Math.rint(d);
+      }
+
+      double sourceX(int x, int y) {
+         return xx_ * x + xy_ * y + x0_;
+      }
+
+      double sourceY(int x, int y) {
+         return yx_ * x + yy_ * y + y0_;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Mapping)) {
+            return false;
+         }
+         Mapping m = (Mapping) o;
+         return width_ == m.width_ && height_ == m.height_ && xx_ == m.xx_ && xy_ == m.xy_
+               && x0_ == m.x0_ && yx_ == m.yx_ && yy_ == m.yy_ && y0_ == m.y0_;
+      }
+
+      @Override
+      public int hashCode() {
+         long h = 31L * width_ + height_;
+         for (double d : new double[] {xx_, xy_, x0_, yx_, yy_, y0_}) {
+            h = 31 * h + Double.doubleToLongBits(d);
+         }
+         return (int) (h ^ (h >>> 32));
+      }
+   }
+}
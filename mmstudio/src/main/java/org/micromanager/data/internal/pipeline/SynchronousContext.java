@@ -30,6 +30,12 @@ public final class SynchronousContext extends BaseContext {
       super(processor, store, parent);
    }
 
+   @Override
+   protected boolean isIdle() {
+      // images are processed on the thread that inserts them
+      return true;
+   }
+
    /**
     * Process an image. If the input ImageWrapper has a null image, then we
     * flush the pipeline instead, passing the null along to the next context.
@@ -47,7 +53,7 @@ public final class SynchronousContext extends BaseContext {
          }
       } else {
          try {
-            processor_.processImage(wrapper.getImage(), this);
+            processImage(wrapper.getImage());
          } catch (Exception e) {
             ReportingUtils.logError(e, "Processor failed to process image");
             // Pass the exception to our parent.
@@ -137,6 +137,7 @@ public final class AcqControlDlg extends JFrame implements PropertyChangeListene
 
    protected JButton listButton_;
    private JSpinner afSkipInterval_;
+   private JCheckBox afFocusMapCheckBox_;
    private JComboBox<AcqOrderMode> acqOrderBox_;
    private JTextArea acquisitionOrderText_;
    private JComboBox<String> channelGroupCombo_;
@@ -706,7 +707,15 @@ public final class AcqControlDlg extends JFrame implements PropertyChangeListene
          afSkipInterval_.setValue(getAcquisitionEngine().getSequenceSettings()
                .skipAutofocusCount());
       });
-      afPanel_.add(afSkipInterval_);
+      afPanel_.add(afSkipInterval_, "wrap");
+
+      afFocusMapCheckBox_ = new JCheckBox("Predict focus");
+      afFocusMapCheckBox_.setFont(new Font("Dialog", Font.PLAIN, 10));
+      afFocusMapCheckBox_.setToolTipText("Predict the focus position from earlier autofocus "
+            + "results, and only run autofocus when the prediction is uncertain");
+      afFocusMapCheckBox_.setSelected(getAcquisitionEngine().getSequenceSettings().useFocusMap());
+      afFocusMapCheckBox_.addActionListener((ActionEvent e) -> applySettingsFromGUI());
+      afPanel_.add(afFocusMapCheckBox_, "spanx, alignx center");
 
       afPanel_.addActionListener((ActionEvent arg0) -> applySettingsFromGUI());
       return afPanel_;
@@ -1223,6 +1232,7 @@ public final class AcqControlDlg extends JFrame implements PropertyChangeListene
          slicesPanel_.setSelected(sequenceSettings.useSlices());
 
          afPanel_.setSelected(sequenceSettings.useAutofocus());
+         afFocusMapCheckBox_.setSelected(sequenceSettings.useFocusMap());
 
          channelsPanel_.setSelected(sequenceSettings.useChannels());
          channelGroupCombo_.setSelectedItem(sequenceSettings.channelGroup());
@@ -1698,6 +1708,7 @@ public final class AcqControlDlg extends JFrame implements PropertyChangeListene
 
       ssb.comment(commentTextArea_.getText());
       ssb.useAutofocus(afPanel_.isSelected());
+      ssb.useFocusMap(afFocusMapCheckBox_.isSelected());
       ssb.shouldDisplayImages(!getShouldHideMDADisplay());
 
       // Save preferred save mode.
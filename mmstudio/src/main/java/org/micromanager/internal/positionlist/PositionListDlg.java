@@ -36,11 +36,14 @@ import java.util.ArrayList;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -57,6 +60,7 @@ import org.micromanager.UserProfile;
 import org.micromanager.events.StagePositionChangedEvent;
 import org.micromanager.events.XYStagePositionChangedEvent;
 import org.micromanager.internal.MMStudio;
+import org.micromanager.internal.positionlist.utils.PositionOrderOptimizer;
 import org.micromanager.internal.utils.DaytimeNighttime;
 import org.micromanager.internal.utils.EventBusExceptionLogger;
 import org.micromanager.internal.utils.FileDialogs;
@@ -64,6 +68,7 @@ import org.micromanager.internal.utils.FileDialogs.FileType;
 import org.micromanager.internal.utils.GUIUtils;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
 
 /**
  * The PositionListDlg class provides a convenient UI to generate, edit, load,
@@ -76,6 +81,9 @@ public class PositionListDlg extends JFrame implements MouseListener, ChangeList
    protected static final String POS = "pos";
    protected static final String POS_COL0_WIDTH = "posCol0WIDTH";
    protected static final String AXIS_COL0_WIDTH = "axisCol0WIDTH";
+   private static final String X_SPEED = "optimizerXSpeedUmPerS";
+   private static final String Y_SPEED = "optimizerYSpeedUmPerS";
+   private static final String SETTLE_TIME = "optimizerSettleTimeMs";
    protected static final FileType POSITION_LIST_FILE =
          new FileType("POSITION_LIST_FILE", "Position list file",
                System.getProperty("user.home") + "/PositionList.pos",
@@ -298,6 +306,15 @@ public class PositionListDlg extends JFrame implements MouseListener, ChangeList
       offsetButton.setToolTipText("Add an offset to the selected positions.");
       add(offsetButton);
 
+      final JButton optimizeButton = posListButton(buttonSize, arialSmallFont_);
+      optimizeButton.addActionListener(arg0 -> optimizePositionOrder());
+      optimizeButton.setIcon(new ImageIcon(MMStudio.class.getResource(
+            "/org/micromanager/icons/empty.png")));
+      optimizeButton.setText("Optimize Order");
+      optimizeButton.setToolTipText(
+            "Reorders positions to minimize travel of the XY stage, keeps the first position");
+      add(optimizeButton);
+
       final JButton removeAllButton = posListButton(buttonSize, arialSmallFont_);
       removeAllButton.addActionListener(arg0 -> {
          int ret = JOptionPane.showConfirmDialog(PositionListDlg.this,
@@ -1129,6 +1146,82 @@ public class PositionListDlg extends JFrame implements MouseListener, ChangeList
       new OffsetPositionsDialog(this, core_);
    }
 
+   /**
+    * Reorders the positions such that the XY stage travels as little as possible.
+    * Asks for the speed of the stage, shows the estimated travel time before and
+    * after, and only changes the list after confirmation by the user.
+    */
+   private void optimizePositionOrder() {
+      PositionList positions = getPositionList();
+      if (positions.getNumberOfPositions() < 3) {
+         return;
+      }
+      PositionOrderOptimizer optimizer = askForStageSpeed();
+      if (optimizer == null) {
+         return;
+      }
+      MultiStagePosition[] ordered = optimizer.optimize(positions, null);
+      double before = optimizer.estimateTravelTimeMs(positions);
+      double after = optimizer.estimateTravelTimeMs(ordered);
+      if (after >= before) {
+         JOptionPane.showMessageDialog(this, "The current order can not be improved.");
+         return;
+      }
+      int ret = JOptionPane.showConfirmDialog(this,
+            String.format("Estimated stage travel time: %.1f s, after reordering: %.1f s.%n"
+                        + "Reorder the position list?", before / 1000.0, after / 1000.0),
+            "Optimize Position Order", JOptionPane.YES_NO_OPTION);
+      if (ret == JOptionPane.YES_OPTION) {
+         positions.setPositions(ordered);
+         updatePositionData();
+      }
+   }
+
+   /**
+    * Lets the user enter the speed of the XY stage and the time it needs to settle.
+    * Values are remembered in the profile.  Until a settle time has been entered,
+    * the delay of the XY stage device is used.
+    *
+    * @return optimizer using the entered values, or null when the user cancelled
+    */
+   private PositionOrderOptimizer askForStageSpeed() {
+      MutablePropertyMapView settings = studio_.profile().getSettings(PositionListDlg.class);
+      double settleTime = 0.0;
+      try {
+         String xyStage = core_.getXYStageDevice();
+         if (!xyStage.isEmpty()) {
+            settleTime = core_.getDeviceDelayMs(xyStage);
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Failed to read the delay of the XY stage");
+      }
+      JSpinner xSpeed = new JSpinner(new SpinnerNumberModel(settings.getDouble(X_SPEED,
+            PositionOrderOptimizer.DEFAULT_SPEED_UM_PER_S), 1.0, 1.0e6, 100.0));
+      JSpinner ySpeed = new JSpinner(new SpinnerNumberModel(settings.getDouble(Y_SPEED,
+            PositionOrderOptimizer.DEFAULT_SPEED_UM_PER_S), 1.0, 1.0e6, 100.0));
+      JSpinner settle = new JSpinner(new SpinnerNumberModel(settings.getDouble(SETTLE_TIME,
+            settleTime), 0.0, 1.0e5, 10.0));
+      JPanel panel = new JPanel(new MigLayout("flowx"));
+      panel.add(new JLabel("X stage speed (\u00B5m/s):"));
+      panel.add(xSpeed, "wrap");
+      panel.add(new JLabel("Y stage speed (\u00B5m/s):"));
+      panel.add(ySpeed, "wrap");
+      panel.add(new JLabel("Settle time (ms):"));
+      panel.add(settle, "wrap");
+      int ret = JOptionPane.showConfirmDialog(this, panel, "Optimize Position Order",
+            JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+      if (ret != JOptionPane.OK_OPTION) {
+         return null;
+      }
+      double x = ((Number) xSpeed.getValue()).doubleValue();
+      double y = ((Number) ySpeed.getValue()).doubleValue();
+      double s = ((Number) settle.getValue()).doubleValue();
+      settings.putDouble(X_SPEED, x);
+      settings.putDouble(Y_SPEED, y);
+      settings.putDouble(SETTLE_TIME, s);
+      return new PositionOrderOptimizer(x, y, s);
+   }
+
    /**
     * Given a device (either a StageDevice or XYStageDevice) and a Vector
     * of floats, apply the given offsets to all selected positions for that
@@ -0,0 +1,460 @@
+package org.micromanager.internal.positionlist.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+
+/**
+ * Orders positions such that the XY stage travels as little as possible.
+ *
+ * <p>The route is built with a nearest neighbour heuristic and then improved with
+ * 2-opt (reversal of part of the route) and Or-opt (moving runs of up to three
+ * positions elsewhere in the route) until no further improvement is found.
+ * Both improvement steps only consider the closest neighbours of each position,
+ * which keeps the run time manageable for plates with many thousands of sites.
+ *
+ * <p>The cost of a move is the time it takes, assuming that the X and Y axes
+ * move simultaneously at their own speed, plus a fixed settle time.  The first
+ * position is always kept first.  Positions can be grouped (for instance by
+ * well), in which case all positions of a group are visited before moving on
+ * to the next group.
+ */
+public final class PositionOrderOptimizer {
+
+   /**
+    * Typical speed of a motorized XY stage, used when the actual speed is unknown.
+    */
+   public static final double DEFAULT_SPEED_UM_PER_S = 5000.0;
+
+   private static final int NR_NEIGHBORS = 12;
+   private static final int MAX_PASSES = 100;
+   private static final int MAX_SEGMENT_LENGTH = 3;
+   private static final double EPSILON = 1.0e-9;
+
+   private final double xSpeed_;
+   private final double ySpeed_;
+   private final double settleTimeMs_;
+
+   /**
+    * Optimizer using DEFAULT_SPEED_UM_PER_S for both axes and no settle time.
+    */
+   public PositionOrderOptimizer() {
+      this(DEFAULT_SPEED_UM_PER_S, DEFAULT_SPEED_UM_PER_S, 0.0);
+   }
+
+   /**
+    * @param xSpeedUmPerS speed of the X axis in microns per second
+    * @param ySpeedUmPerS speed of the Y axis in microns per second
+    * @param settleTimeMs time needed after each move before an image can be taken
+    */
+   public PositionOrderOptimizer(double xSpeedUmPerS, double ySpeedUmPerS,
+                                 double settleTimeMs) {
+      if (xSpeedUmPerS <= 0.0 || ySpeedUmPerS <= 0.0) {
+         throw new IllegalArgumentException("Stage speeds should be larger than 0");
+      }
+      xSpeed_ = xSpeedUmPerS;
+      ySpeed_ = ySpeedUmPerS;
+      settleTimeMs_ = settleTimeMs;
+   }
+
+   /**
+    * Estimated time needed to move from one position to the other.
+    *
+    * @return travel time in ms
+    */
+   public double travelTimeMs(double x1, double y1, double x2, double y2) {
+      return 1000.0 * Math.max(Math.abs(x2 - x1) / xSpeed_, Math.abs(y2 - y1) / ySpeed_)
+            + settleTimeMs_;
+   }
+
+   /**
+    * Estimated time needed to visit all positions in the given order.
+    *
+    * @param xs    x coordinates in microns
+    * @param ys    y coordinates in microns
+    * @param order order in which positions are visited, null to visit in the given order
+    * @return travel time in ms
+    */
+   public double estimateTravelTimeMs(double[] xs, double[] ys, int[] order) {
+      double total = 0.0;
+      for (int i = 1; i < xs.length; i++) {
+         int a = order == null ? i - 1 : order[i - 1];
+         int b = order == null ? i : order[i];
+         total += travelTimeMs(xs[a], ys[a], xs[b], ys[b]);
+      }
+      return total;
+   }
+
+   /**
+    * Estimated time needed for the default XY stage to visit all positions in the list.
+    *
+    * @param list positions in the order in which they will be visited
+    * @return travel time in ms
+    */
+   public double estimateTravelTimeMs(PositionList list) {
+      return estimateTravelTimeMs(list.getPositions());
+   }
+
+   /**
+    * Estimated time needed for the default XY stage to visit all positions.
+    *
+    * @param positions positions in the order in which they will be visited
+    * @return travel time in ms
+    */
+   public double estimateTravelTimeMs(MultiStagePosition[] positions) {
+      return estimateTravelTimeMs(xCoordinates(positions), yCoordinates(positions), null);
+   }
+
+   /**
+    * Returns the positions of the list in the optimized order.  The list itself is not changed.
+    *
+    * @param list     positions to be visited.  Coordinates of the default XY stage are used
+    * @param groupKey returns the group a position belongs to, positions of a group are visited
+    *                 consecutively.  Use null to optimize without groups
+    * @return positions in optimized order
+    */
+   public MultiStagePosition[] optimize(PositionList list,
+                                        Function<MultiStagePosition, String> groupKey) {
+      MultiStagePosition[] positions = list.getPositions();
+      int[] groups = null;
+      if (groupKey != null) {
+         groups = new int[positions.length];
+         Map<String, Integer> groupIndices = new LinkedHashMap<>();
+         for (int i = 0; i < positions.length; i++) {
+            String key = groupKey.apply(positions[i]);
+            Integer index = groupIndices.get(key);
+            if (index == null) {
+               index = groupIndices.size();
+               groupIndices.put(key, index);
+            }
+            groups[i] = index;
+         }
+      }
+      int[] order = optimize(xCoordinates(positions), yCoordinates(positions), groups);
+      MultiStagePosition[] result = new MultiStagePosition[positions.length];
+      for (int i = 0; i < order.length; i++) {
+         result[i] = positions[order[i]];
+      }
+      return result;
+   }
+
+   /**
+    * Calculates a short route through all positions, starting at the first one.
+    *
+    * @param xs     x coordinates in microns
+    * @param ys     y coordinates in microns
+    * @param groups group index of each position, or null.  All positions with the same group
+    *               index are visited consecutively
+    * @return indices of the positions in the order in which they should be visited
+    */
+   public int[] optimize(double[] xs, double[] ys, int[] groups) {
+      if (xs.length != ys.length || (groups != null && groups.length != xs.length)) {
+         throw new IllegalArgumentException("Coordinate arrays differ in length");
+      }
+      if (xs.length == 0) {
+         return new int[0];
+      }
+      if (groups == null) {
+         int[] all = new int[xs.length];
+         for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+         }
+         return route(xs, ys, all, 0);
+      }
+
+      // Collect members of each group, the group of the first position goes first
+      Map<Integer, List<Integer>> members = new LinkedHashMap<>();
+      for (int i = 0; i < groups.length; i++) {
+         List<Integer> list = members.get(groups[i]);
+         if (list == null) {
+            list = new ArrayList<>();
+            members.put(groups[i], list);
+         }
+         list.add(i);
+      }
+      final int nrGroups = members.size();
+      final int[][] groupMembers = new int[nrGroups][];
+      final double[] cx = new double[nrGroups];
+      final double[] cy = new double[nrGroups];
+      int g = 0;
+      for (List<Integer> list : members.values()) {
+         groupMembers[g] = new int[list.size()];
+         for (int i = 0; i < list.size(); i++) {
+            groupMembers[g][i] = list.get(i);
+            cx[g] += xs[list.get(i)] / list.size();
+            cy[g] += ys[list.get(i)] / list.size();
+         }
+         g++;
+      }
+      // Order the groups by their centers, then find a route within each group,
+      // entering it at the position closest to where we left the previous one
+      int[] allGroups = new int[nrGroups];
+      for (int i = 0; i < nrGroups; i++) {
+         allGroups[i] = i;
+      }
+      int[] groupOrder = route(cx, cy, allGroups, 0);
+      int[] result = new int[xs.length];
+      int count = 0;
+      for (int gi = 0; gi < nrGroups; gi++) {
+         int[] group = groupMembers[groupOrder[gi]];
+         int start = 0;
+         if (count > 0) {
+            int last = result[count - 1];
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < group.length; i++) {
+               double t = travelTimeMs(xs[last], ys[last], xs[group[i]], ys[group[i]]);
+               if (t < best) {
+                  best = t;
+                  start = i;
+               }
+            }
+         }
+         int[] groupRoute = route(xs, ys, group, start);
+         System.arraycopy(groupRoute, 0, result, count, groupRoute.length);
+         count += groupRoute.length;
+      }
+      return result;
+   }
+
+   /**
+    * Finds a short open route through the given subset of positions.
+    *
+    * @param xs      x coordinates of all positions
+    * @param ys      y coordinates of all positions
+    * @param subset  indices of the positions to visit
+    * @param start   index into subset of the position where the route starts
+    * @return indices (into xs and ys) in visiting order
+    */
+   private int[] route(double[] xs, double[] ys, int[] subset, int start) {
+      final int n = subset.length;
+      if (n <= 2) {
+         int[] result = subset.clone();
+         if (n == 2 && start == 1) {
+            result[0] = subset[1];
+            result[1] = subset[0];
+         }
+         return result;
+      }
+      // local copies, so that the inner loops work on 0..n-1
+      final double[] x = new double[n];
+      final double[] y = new double[n];
+      for (int i = 0; i < n; i++) {
+         x[i] = xs[subset[i]];
+         y[i] = ys[subset[i]];
+      }
+      final int[][] neighbors = nearestNeighbors(x, y);
+      final int[] tour = nearestNeighborTour(x, y, start);
+      final int[] pos = new int[n];
+      for (int i = 0; i < n; i++) {
+         pos[tour[i]] = i;
+      }
+
+      boolean improved = true;
+      for (int pass = 0; pass < MAX_PASSES && improved; pass++) {
+         improved = twoOpt(x, y, tour, pos, neighbors);
+         improved |= orOpt(x, y, tour, pos, neighbors);
+      }
+
+      int[] result = new int[n];
+      for (int i = 0; i < n; i++) {
+         result[i] = subset[tour[i]];
+      }
+      return result;
+   }
+
+   /**
+    * Cost of the edge between a and b in the local arrays, 0 when either end is missing.
+    */
+   private double cost(double[] x, double[] y, int a, int b) {
+      if (a < 0 || b < 0) {
+         return 0.0;
+      }
+      return travelTimeMs(x[a], y[a], x[b], y[b]);
+   }
+
+   private int[][] nearestNeighbors(double[] x, double[] y) {
+      final int n = x.length;
+      final int k = Math.min(NR_NEIGHBORS, n - 1);
+      final int[][] neighbors = new int[n][k];
+      final double[] costs = new double[k];
+      for (int i = 0; i < n; i++) {
+         int found = 0;
+         for (int j = 0; j < n; j++) {
+            if (j == i) {
+               continue;
+            }
+            double c = cost(x, y, i, j);
+            if (found < k || c < costs[found - 1]) {
+               // insertion into the sorted list of closest positions
+               int p = found < k ? found++ : found - 1;
+               while (p > 0 && costs[p - 1] > c) {
+                  costs[p] = costs[p - 1];
+                  neighbors[i][p] = neighbors[i][p - 1];
+                  p--;
+               }
+               costs[p] = c;
+               neighbors[i][p] = j;
+            }
+         }
+      }
+      return neighbors;
+   }
+
+   private int[] nearestNeighborTour(double[] x, double[] y, int start) {
+      final int n = x.length;
+      final int[] tour = new int[n];
+      final boolean[] visited = new boolean[n];
+      tour[0] = start;
+      visited[start] = true;
+      for (int i = 1; i < n; i++) {
+         int last = tour[i - 1];
+         int best = -1;
+         double bestCost = Double.MAX_VALUE;
+         for (int j = 0; j < n; j++) {
+            if (!visited[j]) {
+               double c = cost(x, y, last, j);
+               if (c < bestCost) {
+                  bestCost = c;
+                  best = j;
+               }
+            }
+         }
+         tour[i] = best;
+         visited[best] = true;
+      }
+      return tour;
+   }
+
+   /**
+    * Replaces edges (a,b) and (c,d) by (a,c) and (b,d) by reversing the route between b and c.
+    * The first position of the route never moves.
+    *
+    * @return true if the route was improved
+    */
+   private boolean twoOpt(double[] x, double[] y, int[] tour, int[] pos, int[][] neighbors) {
+      final int n = tour.length;
+      boolean improved = false;
+      for (int i = 0; i < n - 2; i++) {
+         final int a = tour[i];
+         for (int c : neighbors[a]) {
+            final int j = pos[c];
+            if (j <= i + 1) {
+               continue;
+            }
+            final int b = tour[i + 1];
+            final int d = j + 1 < n ? tour[j + 1] : -1;
+            final double delta = cost(x, y, a, c) + cost(x, y, b, d)
+                  - cost(x, y, a, b) - cost(x, y, c, d);
+            if (delta < -EPSILON) {
+               for (int lo = i + 1, hi = j; lo < hi; lo++, hi--) {
+                  int tmp = tour[lo];
+                  tour[lo] = tour[hi];
+                  tour[hi] = tmp;
+                  pos[tour[lo]] = lo;
+                  pos[tour[hi]] = hi;
+               }
+               improved = true;
+            }
+         }
+      }
+      return improved;
+   }
+
+   /**
+    * Moves runs of 1 to MAX_SEGMENT_LENGTH positions, possibly reversed, next to one of the
+    * neighbours of their first or last position whenever that shortens the route.
+    *
+    * @return true if the route was improved
+    */
+   private boolean orOpt(double[] x, double[] y, int[] tour, int[] pos, int[][] neighbors) {
+      final int n = tour.length;
+      boolean improved = false;
+      for (int length = 1; length <= MAX_SEGMENT_LENGTH; length++) {
+         segments:
+         for (int i = 1; i + length <= n; i++) {
+            final int first = tour[i];
+            final int last = tour[i + length - 1];
+            final int prev = tour[i - 1];
+            final int next = i + length < n ? tour[i + length] : -1;
+            final double removeGain = cost(x, y, prev, first) + cost(x, y, last, next)
+                  - cost(x, y, prev, next);
+            if (removeGain <= EPSILON) {
+               continue;
+            }
+            for (int end = 0; end < 2; end++) {
+               for (int c : neighbors[end == 0 ? first : last]) {
+                  // try inserting before and after the neighbour
+                  for (int side = 0; side < 2; side++) {
+                     final int p = pos[c] - side;  // insert between tour[p] and tour[p + 1]
+                     if (p < 0 || (p >= i - 1 && p < i + length)) {
+                        continue;
+                     }
+                     final int u = tour[p];
+                     final int v = p + 1 < n ? tour[p + 1] : -1;
+                     final double base = cost(x, y, u, v);
+                     final double forward = cost(x, y, u, first) + cost(x, y, last, v) - base;
+                     final double reversed = cost(x, y, u, last) + cost(x, y, first, v) - base;
+                     final boolean reverse = reversed < forward;
+                     if (Math.min(forward, reversed) < removeGain - EPSILON) {
+                        moveSegment(tour, pos, i, length, p, reverse);
+                        improved = true;
+                        continue segments;
+                     }
+                  }
+               }
+            }
+         }
+      }
+      return improved;
+   }
+
+   private static void moveSegment(int[] tour, int[] pos, int i, int length, int p,
+                                   boolean reverse) {
+      final int n = tour.length;
+      int[] segment = Arrays.copyOfRange(tour, i, i + length);
+      if (reverse) {
+         for (int lo = 0, hi = length - 1; lo < hi; lo++, hi--) {
+            int tmp = segment[lo];
+            segment[lo] = segment[hi];
+            segment[hi] = tmp;
+         }
+      }
+      int[] result = new int[n];
+      int count = 0;
+      for (int k = 0; k < n; k++) {
+         if (k >= i && k < i + length) {
+            continue;
+         }
+         result[count++] = tour[k];
+         if (k == p) {
+            System.arraycopy(segment, 0, result, count, length);
+            count += length;
+         }
+      }
+      System.arraycopy(result, 0, tour, 0, n);
+      for (int k = 0; k < n; k++) {
+         pos[tour[k]] = k;
+      }
+   }
+
+   private static double[] xCoordinates(MultiStagePosition[] positions) {
+      double[] xs = new double[positions.length];
+      for (int i = 0; i < positions.length; i++) {
+         xs[i] = positions[i].getX();
+      }
+      return xs;
+   }
+
+   private static double[] yCoordinates(MultiStagePosition[] positions) {
+      double[] ys = new double[positions.length];
+      for (int i = 0; i < positions.length; i++) {
+         ys[i] = positions[i].getY();
+      }
+      return ys;
+   }
+}
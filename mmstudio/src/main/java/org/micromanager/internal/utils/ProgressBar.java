@@ -98,6 +98,22 @@ public final class ProgressBar extends JPanel {
       }
    }
 
+   /**
+    * Shows text on the progress bar, for instance the speed of the operation.
+    *
+    * @param text text to show, or null to go back to no text.
+    */
+   public void setText(String text) {
+      if (!SwingUtilities.isEventDispatchThread()) {
+         SwingUtilities.invokeLater(() -> {
+            setText(text);
+         });
+         return;
+      }
+      progressBar.setStringPainted(text != null);
+      progressBar.setString(text);
+   }
+
    @Override
    public void setVisible(boolean visible) {
       frame.setVisible(visible);
@@ -0,0 +1,67 @@
+package org.micromanager.acquisition.internal;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FocusMapTest {
+
+   private static final double[][] SITES = {
+         {0.0, 0.0}, {9000.0, 0.0}, {0.0, 9000.0}, {9000.0, 9000.0}, {4500.0, 2000.0}};
+
+   private static double plane(double x, double y) {
+      return 1000.0 + 0.001 * x - 0.002 * y;
+   }
+
+   @Test
+   public void interpolatesTiltedPlane() {
+      FocusMap map = new FocusMap(1.0, 600000.0);
+      Assert.assertNull(map.predict(0.0, 0.0, 0L));
+      for (double[] site : SITES) {
+         map.record(site[0], site[1], plane(site[0], site[1]), 0L);
+      }
+      FocusMap.Prediction prediction = map.predict(3000.0, 6000.0, 1000L);
+      Assert.assertEquals(plane(3000.0, 6000.0), prediction.getZ(), 1.0e-6);
+      Assert.assertEquals(0.0, prediction.getUncertaintyUm(), 1.0e-6);
+      Assert.assertFalse(map.needsFullFocus(prediction));
+   }
+
+   @Test
+   public void followsLinearDrift() {
+      FocusMap map = new FocusMap(1.0, 600000.0);
+      final double rate = 0.5 / 60000.0;  // 0.5 micron per minute
+      for (long t = 0; t <= 120000; t += 60000) {
+         for (double[] site : SITES) {
+            double z = plane(site[0], site[1]) + rate * t;
+            map.record(site[0], site[1], z, t);
+         }
+      }
+      FocusMap.Prediction prediction = map.predict(SITES[1][0], SITES[1][1], 180000L);
+      Assert.assertEquals(plane(SITES[1][0], SITES[1][1]) + rate * 180000, prediction.getZ(),
+            1.0e-6);
+      Assert.assertFalse(map.needsFullFocus(prediction));
+      Assert.assertEquals(1, map.getNrPredictionsUsed());
+      Assert.assertEquals(15, map.getNrFullFocus());
+   }
+
+   @Test
+   public void requiresFocusWhenUncertainOrOld() {
+      FocusMap map = new FocusMap(1.0, 100000.0);
+      Random random = new Random(7);
+      for (long t = 0; t <= 120000; t += 60000) {
+         for (double[] site : SITES) {
+            map.record(site[0], site[1], plane(site[0], site[1]) + 5.0 * random.nextGaussian(), t);
+         }
+      }
+      Assert.assertTrue(map.needsFullFocus(map.predict(SITES[0][0], SITES[0][1], 150000L)));
+
+      FocusMap smooth = new FocusMap(1.0, 100000.0);
+      for (long t = 0; t <= 120000; t += 60000) {
+         for (double[] site : SITES) {
+            smooth.record(site[0], site[1], plane(site[0], site[1]), t);
+         }
+      }
+      Assert.assertFalse(smooth.needsFullFocus(smooth.predict(SITES[0][0], SITES[0][1], 150000L)));
+      Assert.assertTrue(smooth.needsFullFocus(smooth.predict(SITES[0][0], SITES[0][1], 250000L)));
+   }
+}
@@ -0,0 +1,39 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts a binary acquisition trace to a Chrome trace JSON file, from the
+ * command line.
+ */
+public final class AcquisitionTraceConverter {
+
+   private AcquisitionTraceConverter() {
+   }
+
+   /**
+    * Converts a binary trace to a Chrome trace JSON file.
+    *
+    * @param args trace file, and optionally the JSON file (default: trace file + ".json")
+    * @throws IOException when reading or writing fails.
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("Usage: AcquisitionTraceConverter trace-file [json-file]");
+         return;
+      }
+      AcquisitionTrace trace = AcquisitionTrace.load(new File(args[0]));
+      File json = new File(args.length > 1 ? args[1] : args[0] + ".json");
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(json), StandardCharsets.UTF_8))) {
+         trace.exportChromeTrace(writer);
+      }
+      System.out.println(trace.summarize());
+   }
+}
@@ -0,0 +1,100 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AcquisitionTraceTest {
+
+   @Rule
+   public TemporaryFolder folder_ = new TemporaryFolder();
+
+   // two events of two images each, every step recorded
+   private static AcquisitionTrace record(int capacity) {
+      AcquisitionTrace trace = new AcquisitionTrace(capacity);
+      for (int event = 0; event < 2; event++) {
+         trace.record(AcquisitionTrace.HARDWARE_START, event, -1);
+         trace.record(AcquisitionTrace.HARDWARE_DONE, event, -1);
+         trace.record(AcquisitionTrace.EXPOSURE_START, event, -1);
+         trace.record(AcquisitionTrace.EXPOSURE_DONE, event, -1);
+         for (int image = 0; image < 2; image++) {
+            trace.record(AcquisitionTrace.IMAGE_RECEIVED, event, image);
+            trace.record(AcquisitionTrace.PIPELINE_DONE, event, image);
+            trace.record(AcquisitionTrace.IMAGE_STORED, event, image);
+         }
+      }
+      return trace;
+   }
+
+   private static String chromeTrace(AcquisitionTrace trace) throws IOException {
+      StringWriter writer = new StringWriter();
+      trace.exportChromeTrace(writer);
+      return writer.toString();
+   }
+
+   private static int count(String text, String part) {
+      int count = 0;
+      for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+         count++;
+      }
+      return count;
+   }
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      AcquisitionTrace trace = record(64);
+      Assert.assertEquals(20, trace.size());
+      File file = folder_.newFile("trace.mmtrace");
+      trace.save(file);
+      AcquisitionTrace loaded = AcquisitionTrace.load(file);
+
+      Assert.assertEquals(trace.size(), loaded.size());
+      Assert.assertEquals(trace.summarize(), loaded.summarize());
+      Assert.assertEquals(chromeTrace(trace), chromeTrace(loaded));
+   }
+
+   @Test
+   public void testSummarize() {
+      String summary = record(64).summarize();
+      Assert.assertTrue(summary, summary.startsWith("20 records: hardware setup mean "));
+      Assert.assertFalse(summary, summary.contains("dropped"));
+      for (String span : new String[] {"exposure", "inserting into pipeline",
+            "pipeline and storage"}) {
+         Assert.assertTrue(summary, summary.contains(span + " mean "));
+      }
+   }
+
+   @Test
+   public void testChromeTrace() throws IOException {
+      String json = chromeTrace(record(64));
+      Assert.assertTrue(json, json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+      Assert.assertTrue(json, json.endsWith("]}\n"));
+      // a name for each of the four rows
+      Assert.assertEquals(4, count(json, "\"ph\":\"M\""));
+      // a span per event for hardware and exposure, two per image
+      Assert.assertEquals(2 + 2 + 4 + 4, count(json, "\"ph\":\"X\""));
+      Assert.assertEquals(4, count(json, "\"name\":\"pipeline and storage\",\"ph\":\"X\""));
+      Assert.assertTrue(json, json.contains("\"args\":{\"event\":1,\"image\":1}"));
+   }
+
+   @Test
+   public void testOldestDropped() throws IOException {
+      // the first 4 records, hardware and exposure of event 0, are overwritten
+      AcquisitionTrace trace = record(16);
+      Assert.assertEquals(16, trace.size());
+      Assert.assertTrue(trace.summarize().startsWith("16 records (oldest dropped)"));
+      Assert.assertEquals(1 + 1 + 4 + 4, count(chromeTrace(trace), "\"ph\":\"X\""));
+   }
+
+   @Test(expected = IOException.class)
+   public void testLoadOtherFile() throws IOException {
+      File file = folder_.newFile("other");
+      Files.write(file.toPath(), new byte[16]);
+      AcquisitionTrace.load(file);
+   }
+}
@@ -0,0 +1,36 @@
+package org.micromanager.acquisition.internal.acqengjcompat.speedtest;
+
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the benchmark once, with a few small frames, for every storage, so that
+ * storage that needs the application fails here rather than in a benchmark run.
+ */
+public class ThroughputBenchmarkTest {
+
+   @Rule
+   public TemporaryFolder folder_ = new TemporaryFolder();
+
+   @Test
+   public void runsEveryStorage() throws Exception {
+      for (ThroughputBenchmark.Storage storage : ThroughputBenchmark.Storage.values()) {
+         for (int bitDepth : new int[] {8, 16}) {
+            JSONObject result = new ThroughputBenchmark()
+                  .setStorage(storage)
+                  .setDirectory(folder_.newFolder())
+                  .setFrameSize(64, 48)
+                  .setBitDepth(bitDepth)
+                  .setNumFrames(5)
+                  .setNumPositions(2)
+                  .run();
+            Assert.assertEquals(storage + ", " + bitDepth + " bit",
+                  10, result.getInt("imagesStored"));
+            Assert.assertEquals(0, result.getInt("droppedFrames"));
+         }
+      }
+   }
+}
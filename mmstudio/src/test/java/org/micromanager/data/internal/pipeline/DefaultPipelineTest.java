@@ -0,0 +1,127 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+
+public class DefaultPipelineTest {
+
+   private static final int NR_IMAGES = 400;
+
+   // images are only compared by identity, so their methods are never called
+   private final Map<Image, Integer> numbers_ = Collections.synchronizedMap(
+         new IdentityHashMap<Image, Integer>());
+   private final List<Integer> stored_ = Collections.synchronizedList(
+         new ArrayList<Integer>());
+
+   private Image image(int number) {
+      Image image = (Image) Proxy.newProxyInstance(Image.class.getClassLoader(),
+            new Class<?>[] {Image.class}, (proxy, method, args) -> {
+               if (method.getName().equals("hashCode")) {
+                  return System.identityHashCode(proxy);
+               } else if (method.getName().equals("equals")) {
+                  return proxy == args[0];
+               }
+               throw new UnsupportedOperationException(method.getName());
+            });
+      numbers_.put(image, number);
+      return image;
+   }
+
+   private Datastore store() {
+      return (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+            new Class<?>[] {Datastore.class}, (proxy, method, args) -> {
+               switch (method.getName()) {
+                  case "putImage":
+                     stored_.add(numbers_.get((Image) args[0]));
+                     return null;
+                  case "isFrozen":
+                     return false;
+                  default:
+                     throw new UnsupportedOperationException(method.getName());
+               }
+            });
+   }
+
+   /**
+    * Passes on the images whose number is a multiple of its divisor, after
+    * a random delay, and does not want the others.
+    */
+   private class SlowProcessor implements Processor {
+      private final int divisor_;
+      private final Random random_;
+
+      SlowProcessor(int divisor) {
+         divisor_ = divisor;
+         random_ = new Random(divisor);
+      }
+
+      @Override
+      public boolean acceptsImage(Image image) {
+         return numbers_.get(image) % divisor_ == 0;
+      }
+
+      @Override
+      public void processImage(Image image, ProcessorContext context) {
+         Assert.assertTrue(acceptsImage(image));
+         try {
+            TimeUnit.MICROSECONDS.sleep(random_.nextInt(300));
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+         context.outputImage(image);
+      }
+   }
+
+   private void checkOrder(boolean isSynchronous) throws Exception {
+      List<Processor> processors = Arrays.<Processor>asList(new SlowProcessor(2),
+            new SlowProcessor(3), new SlowProcessor(5));
+      DefaultPipeline pipeline = new DefaultPipeline(processors, store(), isSynchronous);
+      for (int i = 0; i < NR_IMAGES; i++) {
+         pipeline.insertImage(image(i));
+      }
+      for (int i = 0; i < 1000 && stored_.size() < NR_IMAGES; i++) {
+         Thread.sleep(10);
+      }
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < NR_IMAGES; i++) {
+         expected.add(i);
+      }
+      Assert.assertEquals(expected, stored_);
+
+      // every image went through each stage once, or around it
+      Map<Processor, Long> processed = pipeline.getProcessedCounts();
+      Map<Processor, Long> bypassed = pipeline.getBypassCounts();
+      for (Processor processor : processors) {
+         Assert.assertEquals(NR_IMAGES, processed.get(processor) + bypassed.get(processor));
+      }
+      Assert.assertEquals(NR_IMAGES / 2,
+            (long) processed.get(processors.get(0)));
+      Assert.assertEquals((NR_IMAGES + 2) / 3,
+            (long) processed.get(processors.get(1)));
+      Assert.assertEquals(NR_IMAGES / 5,
+            (long) processed.get(processors.get(2)));
+   }
+
+   @Test
+   public void testAsynchronousKeepsOrder() throws Exception {
+      checkOrder(false);
+   }
+
+   @Test
+   public void testSynchronousKeepsOrder() throws Exception {
+      checkOrder(true);
+   }
+}
@@ -0,0 +1,86 @@
+package org.micromanager.data.internal.pipeline;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.geom.AffineTransform;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GeometricPlanTest {
+
+   private static ShortProcessor testImage(int width, int height) {
+      short[] pixels = new short[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (i + 1);
+      }
+      return new ShortProcessor(width, height, pixels, null);
+   }
+
+   private static short[] apply(GeometricTransform transform, ImageProcessor proc,
+         int output) {
+      List<GeometricTransform.Mapping> mappings =
+            transform.map(proc.getWidth(), proc.getHeight());
+      GeometricPlan plan = new GeometricPlan(mappings, proc.getWidth(), proc.getHeight(), 1);
+      return (short[]) plan.apply(proc.getPixels())[output];
+   }
+
+   @Test
+   public void testFlipAndRotateMatchImageJ() {
+      // larger than a tile, and not a multiple of it
+      ShortProcessor proc = testImage(150, 70);
+      ImageProcessor expected = proc.duplicate();
+      expected.flipHorizontal();
+      expected = expected.rotateRight();
+      GeometricTransform transform = GeometricTransform.identity().mirror().rotate(90);
+      Assert.assertArrayEquals((short[]) expected.getPixels(), apply(transform, proc, 0));
+      Assert.assertEquals(70, transform.map(150, 70).get(0).getWidth());
+
+      // large enough to be copied by several threads
+      ShortProcessor large = testImage(700, 500);
+      Assert.assertArrayEquals((short[]) large.rotateRight().getPixels(),
+            apply(GeometricTransform.identity().rotate(90), large, 0));
+
+      expected = proc.rotateLeft();
+      Assert.assertArrayEquals((short[]) expected.getPixels(),
+            apply(GeometricTransform.identity().rotate(270), proc, 0));
+
+      expected = proc.duplicate();
+      expected.flipVertical();
+      expected.flipHorizontal();
+      Assert.assertArrayEquals((short[]) expected.getPixels(),
+            apply(GeometricTransform.identity().rotate(180), proc, 0));
+   }
+
+   @Test
+   public void testSplitAfterRotation() {
+      ShortProcessor proc = testImage(40, 30);
+      ImageProcessor rotated = proc.rotateRight();
+      GeometricTransform transform = GeometricTransform.identity().rotate(90).split(3, true);
+      for (int i = 0; i < 3; i++) {
+         rotated.setRoi(0, i * 13, 30, 13);
+         Assert.assertArrayEquals((short[]) rotated.crop().getPixels(),
+               apply(transform, proc, i));
+      }
+   }
+
+   @Test
+   public void testCropOutsideIsZero() {
+      ShortProcessor proc = testImage(10, 10);
+      short[] result = apply(GeometricTransform.identity().crop(8, 0, 4, 1), proc, 0);
+      Assert.assertArrayEquals(new short[] {9, 10, 0, 0}, result);
+   }
+
+   @Test
+   public void testAffine() {
+      ShortProcessor proc = testImage(20, 10);
+      Assert.assertArrayEquals((short[]) proc.getPixels(), apply(GeometricTransform.identity()
+            .affine(new AffineTransform(), 20, 10), proc, 0));
+      short[] shifted = apply(GeometricTransform.identity()
+            .affine(AffineTransform.getTranslateInstance(2.2, 1), 20, 10), proc, 0);
+      Assert.assertEquals(0, shifted[20 + 1]);
+      Assert.assertEquals(proc.get(0, 0), shifted[20 + 2]);
+      Assert.assertEquals(proc.get(5, 3), shifted[4 * 20 + 7]);
+      Assert.assertEquals(0, shifted[5]);
+   }
+}
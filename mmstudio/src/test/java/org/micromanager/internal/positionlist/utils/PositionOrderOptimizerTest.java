@@ -0,0 +1,91 @@
+package org.micromanager.internal.positionlist.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class PositionOrderOptimizerTest {
+
+   private static void assertPermutation(int[] order, int n) {
+      assertEquals(n, order.length);
+      boolean[] seen = new boolean[n];
+      for (int i : order) {
+         assertTrue(!seen[i]);
+         seen[i] = true;
+      }
+   }
+
+   @Test
+   public void improvesRandomRoute() {
+      Random random = new Random(42);
+      final int n = 500;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      for (int i = 0; i < n; i++) {
+         xs[i] = random.nextDouble() * 100000.0;
+         ys[i] = random.nextDouble() * 70000.0;
+      }
+      PositionOrderOptimizer optimizer = new PositionOrderOptimizer();
+      int[] order = optimizer.optimize(xs, ys, null);
+      assertPermutation(order, n);
+      assertEquals(0, order[0]);
+      double before = optimizer.estimateTravelTimeMs(xs, ys, null);
+      double after = optimizer.estimateTravelTimeMs(xs, ys, order);
+      // a random order is many times longer than a good route
+      assertTrue(after < before / 5.0);
+   }
+
+   @Test
+   public void findsStraightLine() {
+      // positions on a line, in scrambled order, starting at one end
+      double[] xs = {0, 5, 2, 8, 1, 9, 3, 7, 4, 6};
+      double[] ys = new double[xs.length];
+      PositionOrderOptimizer optimizer = new PositionOrderOptimizer(1.0, 1.0, 0.0);
+      int[] order = optimizer.optimize(xs, ys, null);
+      assertEquals(9000.0, optimizer.estimateTravelTimeMs(xs, ys, order), 1.0e-6);
+   }
+
+   @Test
+   public void keepsGroupsContiguous() {
+      Random random = new Random(7);
+      // 4 x 6 "wells" with 9 sites each, in random order
+      final int nrWells = 24;
+      final int nrSites = 9;
+      final int n = nrWells * nrSites;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      int[] groups = new int[n];
+      int[] shuffled = new int[n];
+      for (int i = 0; i < n; i++) {
+         shuffled[i] = i;
+      }
+      for (int i = n - 1; i > 0; i--) {
+         int j = random.nextInt(i + 1);
+         int tmp = shuffled[i];
+         shuffled[i] = shuffled[j];
+         shuffled[j] = tmp;
+      }
+      for (int i = 0; i < n; i++) {
+         int well = shuffled[i] / nrSites;
+         int site = shuffled[i] % nrSites;
+         xs[i] = (well % 6) * 9000.0 + (site % 3) * 500.0;
+         ys[i] = (well / 6) * 9000.0 + (site / 3) * 500.0;
+         groups[i] = well;
+      }
+      PositionOrderOptimizer optimizer = new PositionOrderOptimizer(5000.0, 2500.0, 10.0);
+      int[] order = optimizer.optimize(xs, ys, groups);
+      assertPermutation(order, n);
+      assertEquals(0, order[0]);
+      int changes = 0;
+      for (int i = 1; i < n; i++) {
+         if (groups[order[i]] != groups[order[i - 1]]) {
+            changes++;
+         }
+      }
+      assertEquals(nrWells - 1, changes);
+      assertTrue(optimizer.estimateTravelTimeMs(xs, ys, order)
+            < optimizer.estimateTravelTimeMs(xs, ys, null) / 5.0);
+   }
+}
@@ -87,6 +87,7 @@ public class AssembleDataForm extends JDialog {
    private static final String CHOOSEDIR = "ChooseDir";
    private static final String CHOOSEDATASET = "ChooseDataSet";
    private static final String DIRNAME = "DirName";
+   private static final String STITCHDIR = "StitchDir";
    private static final String XOFFSET = "XOffset";
    private static final String YOFFSET = "YOffset";
    private static final int DEFAULTX = -350;
@@ -225,7 +226,7 @@ public class AssembleDataForm extends JDialog {
          new Thread(org.micromanager.internal.utils.GUIUtils.makeURLRunnable(
                  "https://micro-manager.org/wiki/AssembleData")).start();
       });
-      super.add(helpButton, "span 2, split 4");
+      super.add(helpButton, "span 2, split 5");
     
                 
       final JButton testButton =  new JButton("Test");
@@ -246,7 +247,14 @@ public class AssembleDataForm extends JDialog {
             assembleDataSets(false); 
          }
       });
-      super.add(assembleButton, "wrap");
+      super.add(assembleButton);
+
+      final JButton stitchButton =  new JButton("Stitch");
+      stitchButton.setToolTipText("Stitch the positions of the first data set into a mosaic");
+      stitchButton.addActionListener((ActionEvent e) -> {
+         stitchDataSet();
+      });
+      super.add(stitchButton, "wrap");
       
       statusLabel_ = new JLabel(" ");
       super.add(statusLabel_, "span 3, wrap");
@@ -286,6 +294,28 @@ public class AssembleDataForm extends JDialog {
               dv2.getDataProvider(), xOffset, yOffset, test);    
    }
    
+   private void stitchDataSet() {
+      String dataViewerName = profileSettings_.getString(DATAVIEWER1, "");
+      DataViewer dataViewer = null;
+      for (DataViewer dv : studio_.displays().getAllDataViewers()) {
+         if (dv.getName().equals(dataViewerName)) {
+            dataViewer = dv;
+         }
+      }
+      if (dataViewer == null) {
+         studio_.logs().showError("First data set is empty");
+         return;
+      }
+      File dir = FileDialogs.openDir(this, "Directory to save the stitched data",
+              new FileDialogs.FileType("MMStitch", "Stitched data",
+                    profileSettings_.getString(STITCHDIR, ""), true, ""));
+      if (dir == null) {
+         return;
+      }
+      profileSettings_.putString(STITCHDIR, dir.getAbsolutePath());
+      StitchWorker.run(studio_, this, dataViewer.getDataProvider(), dir);
+   }
+
    private void assembleDir(boolean test, String dirLocation)  {
       File dir = new File(dirLocation);
       if (!dir.exists()) {
@@ -0,0 +1,48 @@
+package org.micromanager.assembledata;
+
+import java.io.File;
+import java.io.IOException;
+import org.micromanager.Studio;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Datastore;
+
+/**
+ * Stitches the positions of a tiled data set on a background thread, and
+ * shows the result.
+ */
+public class StitchWorker {
+
+   public static void run(Studio studio, AssembleDataForm form, DataProvider dp,
+         File outputDir) {
+      Thread stitchThread = new Thread(() -> execute(studio, form, dp, outputDir),
+            "Assemble stitching");
+      stitchThread.start();
+   }
+
+   public static void execute(Studio studio, AssembleDataForm form, DataProvider dp,
+         File outputDir) {
+      TileStitcher stitcher = new TileStitcher(studio, dp);
+      stitcher.setStatusListener(form::setStatus);
+      Datastore targetStore = null;
+      try {
+         form.setStatus("Registering tiles...");
+         stitcher.computeTilePositions();
+         File dir = new File(outputDir, dp.getName() + "-stitched");
+         targetStore = studio.data().createMultipageTIFFDatastore(
+               dir.getAbsolutePath(), false, false);
+         stitcher.fuse(targetStore);
+         targetStore.freeze();
+      } catch (IOException ioe) {
+         studio.logs().showError(ioe, "Stitching failed");
+         form.setStatus("Stitching failed");
+         return;
+      } catch (InterruptedException ie) {
+         form.setStatus("Stitching interrupted");
+         return;
+      }
+      studio.displays().createDisplay(targetStore);
+      studio.displays().manage(targetStore);
+      form.setStatus("Done...");
+   }
+
+}
@@ -0,0 +1,778 @@
+package org.micromanager.assembledata;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.Studio;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.imageprocessing.PhaseCorrelation;
+
+/**
+ * Stitches the stage positions of a tiled acquisition (for instance one set up
+ * with the Tile Creator) into a mosaic.
+ *
+ * <p>Stitching takes three steps:</p>
+ * <ol>
+ * <li>The offsets between all pairs of overlapping tiles are measured with phase
+ * correlation of their overlap, in parallel over the pairs, and checked with
+ * the normalized cross correlation of the overlapping pixels.  The nominal
+ * layout is taken from the stage positions in the image metadata.</li>
+ * <li>Tile positions are found by a weighted least squares fit to all measured
+ * offsets, with a weak pull towards the nominal positions to keep tiles
+ * without (good) neighbours in place.  Offsets that disagree with the fit are
+ * discarded, and the fit is repeated.</li>
+ * <li>The mosaic is fused with linear blending of the overlaps, and written as a
+ * grid of equally sized blocks, one stage position each, so that mosaics
+ * of any size can be written.  Blocks are fused in parallel; tiles are read
+ * from the input when needed and kept in a cache of limited size, so memory
+ * use does not depend on the number of tiles.</li>
+ * </ol>
+ *
+ * <p>Only 8 and 16 bit grayscale images are supported.  Registration uses the
+ * first channel, time point and slice, fusion is done for all of them.</p>
+ */
+public class TileStitcher {
+   // offsets are measured to 1 / UPSAMPLING pixel
+   private static final int UPSAMPLING = 10;
+
+   private final Studio studio_;
+   private final DataProvider input_;
+   private int numThreads_ = Runtime.getRuntime().availableProcessors();
+   private int maxRegionSize_ = 512;
+   private int minOverlap_ = 16;
+   private int maxShift_ = -1;
+   private double minCorrelation_ = 0.3;
+   private double maxResidual_ = 3.0;
+   private int blockSize_ = 2048;
+   private long cacheBytes_ = 512L * 1024L * 1024L;
+   private Consumer<String> statusListener_;
+
+   // layout, in pixels, of the top left corner of each tile relative to the first
+   private final List<Integer> positions_ = new ArrayList<>();
+   private double[] nominalX_;
+   private double[] nominalY_;
+   private double[] x_;
+   private double[] y_;
+   private int width_;
+   private int height_;
+   private int bytesPerPixel_;
+   private double stageX0_;
+   private double stageY0_;
+   private AffineTransform pixelToStage_;
+   private int nrLinks_;
+
+   private final Map<Coords, Object> cache_ = new LinkedHashMap<>(16, 0.75f, true);
+   private long cachedBytes_ = 0;
+
+   public TileStitcher(Studio studio, DataProvider input) {
+      studio_ = studio;
+      input_ = input;
+   }
+
+   public void setNumThreads(int numThreads) {
+      numThreads_ = Math.max(1, numThreads);
+   }
+
+   /**
+    * Largest size (width and height) of the part of an overlap used for phase
+    * correlation, rounded down to a power of 2.
+    */
+   public void setMaxRegionSize(int size) {
+      maxRegionSize_ = Math.max(8, size);
+   }
+
+   /**
+    * Largest difference, in pixels, between the measured and nominal offset of
+    * two tiles.  By default 10% of the tile size.
+    */
+   public void setMaxShift(int pixels) {
+      maxShift_ = pixels;
+   }
+
+   /**
+    * Measured offsets with a lower normalized cross correlation are discarded.
+    */
+   public void setMinCorrelation(double correlation) {
+      minCorrelation_ = correlation;
+   }
+
+   /**
+    * Measured offsets that differ more than this (in pixels) from the fitted
+    * tile positions are discarded.
+    */
+   public void setMaxResidual(double pixels) {
+      maxResidual_ = pixels;
+   }
+
+   /**
+    * Width and height of the blocks the mosaic is written as.
+    */
+   public void setBlockSize(int size) {
+      blockSize_ = Math.max(64, size);
+   }
+
+   /**
+    * Amount of memory used to keep tiles that were read from the input.
+    */
+   public void setCacheBytes(long bytes) {
+      cacheBytes_ = bytes;
+   }
+
+   public void setStatusListener(Consumer<String> listener) {
+      statusListener_ = listener;
+   }
+
+   /**
+    * Measures the offsets between overlapping tiles and fits the tile positions.
+    *
+    * @throws IOException when the input can not be read, or does not contain
+    *     a tiled acquisition.
+    * @throws InterruptedException when interrupted while waiting for registrations
+    */
+   public void computeTilePositions() throws IOException, InterruptedException {
+      final long startMs = System.currentTimeMillis();
+      readLayout();
+      final int n = positions_.size();
+      x_ = nominalX_.clone();
+      y_ = nominalY_.clone();
+      if (n < 2) {
+         return;
+      }
+      final int maxShift = maxShift_ >= 0 ? maxShift_ : Math.min(width_, height_) / 10;
+      List<int[]> pairs = findOverlappingPairs();
+      List<Link> links = new ArrayList<>();
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads_);
+      try {
+         List<Future<Link>> futures = new ArrayList<>(pairs.size());
+         for (final int[] pair : pairs) {
+            futures.add(executor.submit(() -> register(pair[0], pair[1], maxShift)));
+         }
+         for (int i = 0; i < futures.size(); i++) {
+            Link link = futures.get(i).get();
+            if (link != null) {
+               links.add(link);
+            }
+            if (i % 100 == 0) {
+               status("Registering tiles " + (100 * i / futures.size()) + "%");
+            }
+         }
+      } catch (ExecutionException ee) {
+         throw new IOException("Tile registration failed", ee.getCause());
+      } finally {
+         executor.shutdownNow();
+      }
+      final long registeredMs = System.currentTimeMillis();
+
+      status("Optimizing tile positions");
+      double meanWeight = 0.0;
+      for (Link link : links) {
+         meanWeight += link.weight_;
+      }
+      final double anchor = 1.0e-4 * (links.isEmpty() ? 1.0 : meanWeight / links.size());
+      for (int round = 0; round < 10; round++) {
+         x_ = solve(links, nominalX_, true, anchor);
+         y_ = solve(links, nominalY_, false, anchor);
+         double worst = 0.0;
+         for (Link link : links) {
+            worst = Math.max(worst, residual(link));
+         }
+         if (worst <= maxResidual_) {
+            break;
+         }
+         // drop the worst offsets first, good ones may have been pulled off as well
+         final double limit = Math.max(maxResidual_, 0.5 * worst);
+         links.removeIf(link -> residual(link) > limit);
+      }
+      nrLinks_ = links.size();
+      studio_.logs().logMessage("Stitching: " + n + " tiles, " + pairs.size()
+            + " overlapping pairs, " + links.size() + " offsets used, registration "
+            + (registeredMs - startMs) + " ms, optimization "
+            + (System.currentTimeMillis() - registeredMs) + " ms");
+   }
+
+   /**
+    * Number of measured offsets used for the final tile positions.
+    */
+   public int getNrOffsetsUsed() {
+      return nrLinks_;
+   }
+
+   /**
+    * Fitted position, in pixels, of the top left corner of every tile, relative
+    * to the nominal position of the first tile, in the order of the stage
+    * positions.
+    */
+   public List<Point2D.Double> getTilePositions() {
+      List<Point2D.Double> result = new ArrayList<>(positions_.size());
+      for (int i = 0; i < positions_.size(); i++) {
+         result.add(new Point2D.Double(x_[i], y_[i]));
+      }
+      return result;
+   }
+
+   /**
+    * Fuses all channels, slices and time points into the output, as a grid of
+    * blocks.  Call computeTilePositions first.
+    *
+    * @param output Datastore to write the mosaic to.  Not frozen by this method.
+    */
+   public void fuse(Datastore output) throws IOException, InterruptedException {
+      if (x_ == null) {
+         throw new IllegalStateException("Tile positions were not computed");
+      }
+      final long startMs = System.currentTimeMillis();
+      final int n = positions_.size();
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+         minX = Math.min(minX, x_[i]);
+         minY = Math.min(minY, y_[i]);
+         maxX = Math.max(maxX, x_[i] + width_);
+         maxY = Math.max(maxY, y_[i] + height_);
+      }
+      final int originX = (int) Math.floor(minX);
+      final int originY = (int) Math.floor(minY);
+      final int mosaicWidth = (int) Math.ceil(maxX) - originX;
+      final int mosaicHeight = (int) Math.ceil(maxY) - originY;
+      // tiles are placed at whole pixels
+      final int[] tileX = new int[n];
+      final int[] tileY = new int[n];
+      for (int i = 0; i < n; i++) {
+         tileX[i] = (int) Math.round(x_[i]) - originX;
+         tileY[i] = (int) Math.round(y_[i]) - originY;
+      }
+      final int blockWidth = Math.min(blockSize_, mosaicWidth);
+      final int blockHeight = Math.min(blockSize_, mosaicHeight);
+      final int blockColumns = (mosaicWidth + blockWidth - 1) / blockWidth;
+      final int blockRows = (mosaicHeight + blockHeight - 1) / blockHeight;
+      // tiles that overlap each block
+      final List<List<Integer>> blockTiles = new ArrayList<>();
+      for (int b = 0; b < blockColumns * blockRows; b++) {
+         blockTiles.add(new ArrayList<>());
+      }
+      for (int i = 0; i < n; i++) {
+         int c0 = Math.max(0, tileX[i] / blockWidth);
+         int c1 = Math.min(blockColumns - 1, (tileX[i] + width_ - 1) / blockWidth);
+         int r0 = Math.max(0, tileY[i] / blockHeight);
+         int r1 = Math.min(blockRows - 1, (tileY[i] + height_ - 1) / blockHeight);
+         for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+               blockTiles.get(r * blockColumns + c).add(i);
+            }
+         }
+      }
+
+      final int nrT = Math.max(1, input_.getNextIndex(Coords.T));
+      final int nrZ = Math.max(1, input_.getNextIndex(Coords.Z));
+      final int nrC = Math.max(1, input_.getNextIndex(Coords.C));
+      output.setSummaryMetadata(input_.getSummaryMetadata().copyBuilder()
+            .intendedDimensions(Coordinates.builder().t(nrT).z(nrZ).c(nrC)
+                  .p(blockColumns * blockRows).build())
+            .stagePositions(new MultiStagePosition[0])
+            .build());
+
+      final float[] rampX = ramp(width_);
+      final float[] rampY = ramp(height_);
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads_);
+      try {
+         final int nrPlanes = nrT * nrZ * nrC;
+         int plane = 0;
+         for (int t = 0; t < nrT; t++) {
+            for (int z = 0; z < nrZ; z++) {
+               for (int c = 0; c < nrC; c++) {
+                  final Coords planeCoords = Coordinates.builder().t(t).z(z).c(c).p(0).build();
+                  // blocks get the metadata of the first tile of the plane
+                  final Metadata metadata = getMetadata(planeCoords);
+                  if (metadata == null) {
+                     plane++;
+                     continue;
+                  }
+                  // a block row at a time, so that tiles are still in the cache for the next
+                  for (int row = 0; row < blockRows; row++) {
+                     List<Future<Image>> futures = new ArrayList<>(blockColumns);
+                     for (int col = 0; col < blockColumns; col++) {
+                        final int r = row;
+                        final int cl = col;
+                        futures.add(executor.submit(() -> fuseBlock(planeCoords, metadata, r,
+                              cl, blockColumns, blockWidth, blockHeight, originX, originY,
+                              blockTiles.get(r * blockColumns + cl), tileX, tileY,
+                              rampX, rampY)));
+                     }
+                     for (Future<Image> future : futures) {
+                        Image image = future.get();
+                        if (image != null) {
+                           output.putImage(image);
+                        }
+                     }
+                     status("Fusing " + (100 * (plane * blockRows + row + 1))
+                           / (nrPlanes * blockRows) + "%");
+                  }
+                  plane++;
+               }
+            }
+         }
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+         }
+         throw new IOException("Fusing failed", ee.getCause());
+      } finally {
+         executor.shutdownNow();
+         synchronized (cache_) {
+            cache_.clear();
+            cachedBytes_ = 0;
+         }
+      }
+      studio_.logs().logMessage("Stitching: fused " + mosaicWidth + "x" + mosaicHeight
+            + " pixels into " + blockColumns + "x" + blockRows + " blocks in "
+            + (System.currentTimeMillis() - startMs) + " ms");
+   }
+
+   /**
+    * Metadata of the first tile of a plane, or null when the plane has no tiles.
+    */
+   private Metadata getMetadata(Coords planeCoords) throws IOException {
+      for (int p : positions_) {
+         Coords coords = planeCoords.copyBuilder().p(p).build();
+         if (input_.hasImage(coords)) {
+            return input_.getImage(coords).getMetadata();
+         }
+      }
+      return null;
+   }
+
+   private Image fuseBlock(Coords planeCoords, Metadata metadata, int row, int col,
+         int blockColumns, int blockWidth, int blockHeight, int originX, int originY,
+         List<Integer> tiles, int[] tileX, int[] tileY, float[] rampX, float[] rampY)
+         throws IOException {
+      final int bx = col * blockWidth;
+      final int by = row * blockHeight;
+      float[] sum = new float[blockWidth * blockHeight];
+      float[] weights = new float[blockWidth * blockHeight];
+      boolean empty = true;
+      for (int i : tiles) {
+         Coords coords = planeCoords.copyBuilder().p(positions_.get(i)).build();
+         Object pixels = getPixels(coords);
+         if (pixels == null) {
+            continue;
+         }
+         empty = false;
+         final int x0 = Math.max(bx, tileX[i]);
+         final int x1 = Math.min(bx + blockWidth, tileX[i] + width_);
+         final int y0 = Math.max(by, tileY[i]);
+         final int y1 = Math.min(by + blockHeight, tileY[i] + height_);
+         for (int y = y0; y < y1; y++) {
+            final int ty = y - tileY[i];
+            final int tileRow = ty * width_ - tileX[i];
+            final int blockRow = (y - by) * blockWidth - bx;
+            final float wy = rampY[ty];
+            for (int x = x0; x < x1; x++) {
+               final float weight = wy * rampX[x - tileX[i]];
+               final int value = pixels instanceof byte[]
+                     ? ((byte[]) pixels)[tileRow + x] & 0xff
+                     : ((short[]) pixels)[tileRow + x] & 0xffff;
+               sum[blockRow + x] += weight * value;
+               weights[blockRow + x] += weight;
+            }
+         }
+      }
+      if (empty) {
+         return null;
+      }
+      Object blockPixels = bytesPerPixel_ == 1 ? new byte[sum.length] : new short[sum.length];
+      for (int i = 0; i < sum.length; i++) {
+         if (weights[i] > 0.0f) {
+            int value = Math.round(sum[i] / weights[i]);
+            if (bytesPerPixel_ == 1) {
+               ((byte[]) blockPixels)[i] = (byte) value;
+            } else {
+               ((short[]) blockPixels)[i] = (short) value;
+            }
+         }
+      }
+      // stage position of the center of the block
+      Point2D.Double offset = new Point2D.Double(
+            originX + bx + 0.5 * blockWidth - 0.5 * width_,
+            originY + by + 0.5 * blockHeight - 0.5 * height_);
+      Point2D stage = pixelToStage_.deltaTransform(offset, null);
+      Metadata.Builder mb = metadata.copyBuilderWithNewUUID()
+            .positionName("Block-" + row + "-" + col)
+            .xPositionUm(stageX0_ + stage.getX())
+            .yPositionUm(stageY0_ + stage.getY());
+      return studio_.data().createImage(blockPixels, blockWidth, blockHeight, bytesPerPixel_,
+            1, planeCoords.copyBuilder().p(row * blockColumns + col).build(), mb.build());
+   }
+
+   /**
+    * Weights for linear blending, decreasing linearly towards the tile edges.
+    */
+   private static float[] ramp(int length) {
+      float[] ramp = new float[length];
+      for (int i = 0; i < length; i++) {
+         ramp[i] = Math.min(i + 1, length - i);
+      }
+      return ramp;
+   }
+
+   private void readLayout() throws IOException {
+      positions_.clear();
+      List<Double> stageX = new ArrayList<>();
+      List<Double> stageY = new ArrayList<>();
+      Coords.Builder cb = Coordinates.builder().t(0).c(0).z(0);
+      AffineTransform affine = null;
+      Double pixelSize = null;
+      for (int p = 0; p < Math.max(1, input_.getNextIndex(Coords.STAGE_POSITION)); p++) {
+         Coords coords = cb.p(p).build();
+         if (!input_.hasImage(coords)) {
+            continue;
+         }
+         Image img = input_.getImage(coords);
+         Metadata md = img.getMetadata();
+         if (positions_.isEmpty()) {
+            width_ = img.getWidth();
+            height_ = img.getHeight();
+            bytesPerPixel_ = img.getBytesPerPixel();
+            if (img.getNumComponents() != 1 || bytesPerPixel_ > 2) {
+               throw new IOException("Only 8 and 16 bit grayscale images can be stitched");
+            }
+            affine = md.getPixelSizeAffine();
+            pixelSize = md.getPixelSizeUm();
+         } else if (img.getWidth() != width_ || img.getHeight() != height_) {
+            throw new IOException("Position " + p + " differs in size from the other tiles");
+         }
+         if (md.getXPositionUm() == null || md.getYPositionUm() == null) {
+            throw new IOException("Position " + p + " has no stage position in its metadata");
+         }
+         positions_.add(p);
+         stageX.add(md.getXPositionUm());
+         stageY.add(md.getYPositionUm());
+      }
+      if (positions_.isEmpty()) {
+         throw new IOException("No images found");
+      }
+      pixelToStage_ = affine;
+      if (pixelToStage_ == null || pixelToStage_.getDeterminant() == 0.0) {
+         if (pixelSize == null || pixelSize <= 0.0) {
+            throw new IOException("Pixel size is not known");
+         }
+         pixelToStage_ = AffineTransform.getScaleInstance(pixelSize, pixelSize);
+      }
+      AffineTransform stageToPixel;
+      try {
+         stageToPixel = pixelToStage_.createInverse();
+      } catch (NoninvertibleTransformException nte) {
+         throw new IOException("Pixel size affine transform can not be inverted", nte);
+      }
+      final int n = positions_.size();
+      stageX0_ = stageX.get(0);
+      stageY0_ = stageY.get(0);
+      nominalX_ = new double[n];
+      nominalY_ = new double[n];
+      for (int i = 0; i < n; i++) {
+         Point2D pixel = stageToPixel.deltaTransform(new Point2D.Double(
+               stageX.get(i) - stageX0_, stageY.get(i) - stageY0_), null);
+         nominalX_[i] = pixel.getX();
+         nominalY_[i] = pixel.getY();
+      }
+   }
+
+   /**
+    * Pairs of tiles whose nominal positions overlap by at least minOverlap
+    * pixels in both directions.  Tiles are binned on a grid of the tile size,
+    * so that only tiles in neighbouring bins need to be compared.
+    */
+   private List<int[]> findOverlappingPairs() {
+      Map<Long, List<Integer>> bins = new HashMap<>();
+      for (int i = 0; i < positions_.size(); i++) {
+         bins.computeIfAbsent(bin(Math.floorDiv((long) Math.floor(nominalX_[i]), width_),
+               Math.floorDiv((long) Math.floor(nominalY_[i]), height_)),
+               k -> new ArrayList<>()).add(i);
+      }
+      List<int[]> pairs = new ArrayList<>();
+      for (int i = 0; i < positions_.size(); i++) {
+         long bx = Math.floorDiv((long) Math.floor(nominalX_[i]), width_);
+         long by = Math.floorDiv((long) Math.floor(nominalY_[i]), height_);
+         for (long dy = -1; dy <= 1; dy++) {
+            for (long dx = -1; dx <= 1; dx++) {
+               List<Integer> others = bins.get(bin(bx + dx, by + dy));
+               if (others == null) {
+                  continue;
+               }
+               for (int j : others) {
+                  if (j > i
+                        && width_ - Math.abs(nominalX_[j] - nominalX_[i]) >= minOverlap_
+                        && height_ - Math.abs(nominalY_[j] - nominalY_[i]) >= minOverlap_) {
+                     pairs.add(new int[] {i, j});
+                  }
+               }
+            }
+         }
+      }
+      return pairs;
+   }
+
+   private static long bin(long x, long y) {
+      return (x << 32) ^ (y & 0xffffffffL);
+   }
+
+   /**
+    * Measures the offset between two tiles from the central part of their
+    * nominal overlap.
+    *
+    * @return the offset of tile j relative to tile i, or null when it could not
+    *     be measured reliably.
+    */
+   private Link register(int i, int j, int maxShift) throws IOException {
+      final int dx = (int) Math.round(nominalX_[j] - nominalX_[i]);
+      final int dy = (int) Math.round(nominalY_[j] - nominalY_[i]);
+      // overlap in the coordinates of tile i
+      final int ox0 = Math.max(0, dx);
+      final int ox1 = Math.min(width_, dx + width_);
+      final int oy0 = Math.max(0, dy);
+      final int oy1 = Math.min(height_, dy + height_);
+      final int regionWidth = powerOfTwoBelow(Math.min(ox1 - ox0, maxRegionSize_));
+      final int regionHeight = powerOfTwoBelow(Math.min(oy1 - oy0, maxRegionSize_));
+      if (regionWidth < 8 || regionHeight < 8) {
+         return null;
+      }
+      final int rx = ox0 + (ox1 - ox0 - regionWidth) / 2;
+      final int ry = oy0 + (oy1 - oy0 - regionHeight) / 2;
+      Coords.Builder cb = Coordinates.builder().t(0).c(0).z(0);
+      Object pixelsI = getPixels(cb.p(positions_.get(i)).build());
+      Object pixelsJ = getPixels(cb.p(positions_.get(j)).build());
+      if (pixelsI == null || pixelsJ == null) {
+         return null;
+      }
+      float[] a = crop(pixelsI, rx, ry, regionWidth, regionHeight);
+      float[] b = crop(pixelsJ, rx - dx, ry - dy, regionWidth, regionHeight);
+      PhaseCorrelation.Shift shift = PhaseCorrelation.register(a, b, regionWidth, regionHeight,
+            UPSAMPLING, maxShift);
+      // b is a shifted by the error of the nominal offset, in the opposite direction
+      final double errorX = -shift.getDx();
+      final double errorY = -shift.getDy();
+      final double correlation = normalizedCrossCorrelation(a, b, regionWidth, regionHeight,
+            (int) Math.round(errorX), (int) Math.round(errorY));
+      if (Double.isNaN(correlation) || correlation < minCorrelation_) {
+         return null;
+      }
+      return new Link(i, j, dx + errorX, dy + errorY, correlation);
+   }
+
+   /**
+    * Normalized cross correlation of a(x + dx, y + dy) and b(x, y) over the
+    * pixels where both are defined, NaN when one of both is constant there.
+    */
+   private static double normalizedCrossCorrelation(float[] a, float[] b, int width,
+         int height, int dx, int dy) {
+      final int x0 = Math.max(0, -dx);
+      final int x1 = Math.min(width, width - dx);
+      final int y0 = Math.max(0, -dy);
+      final int y1 = Math.min(height, height - dy);
+      long count = 0;
+      double sumA = 0.0;
+      double sumB = 0.0;
+      for (int y = y0; y < y1; y++) {
+         int rowA = (y + dy) * width + dx;
+         int rowB = y * width;
+         for (int x = x0; x < x1; x++) {
+            sumA += a[rowA + x];
+            sumB += b[rowB + x];
+         }
+         count += Math.max(0, x1 - x0);
+      }
+      if (count < 2) {
+         return Double.NaN;
+      }
+      final double meanA = sumA / count;
+      final double meanB = sumB / count;
+      double sumAb = 0.0;
+      double sumAa = 0.0;
+      double sumBb = 0.0;
+      for (int y = y0; y < y1; y++) {
+         int rowA = (y + dy) * width + dx;
+         int rowB = y * width;
+         for (int x = x0; x < x1; x++) {
+            double va = a[rowA + x] - meanA;
+            double vb = b[rowB + x] - meanB;
+            sumAb += va * vb;
+            sumAa += va * va;
+            sumBb += vb * vb;
+         }
+      }
+      if (sumAa <= 0.0 || sumBb <= 0.0) {
+         return Double.NaN;
+      }
+      return sumAb / Math.sqrt(sumAa * sumBb);
+   }
+
+   private static int powerOfTwoBelow(int value) {
+      return value <= 0 ? 0 : Integer.highestOneBit(value);
+   }
+
+   private float[] crop(Object pixels, int x0, int y0, int w, int h) {
+      float[] result = new float[w * h];
+      for (int y = 0; y < h; y++) {
+         int src = (y0 + y) * width_ + x0;
+         int dst = y * w;
+         if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int x = 0; x < w; x++) {
+               result[dst + x] = bytes[src + x] & 0xff;
+            }
+         } else {
+            short[] shorts = (short[]) pixels;
+            for (int x = 0; x < w; x++) {
+               result[dst + x] = shorts[src + x] & 0xffff;
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Pixels of an input image, from the cache when possible.  Images are read
+    * outside of the lock, so that several threads can read at the same time.
+    */
+   private Object getPixels(Coords coords) throws IOException {
+      synchronized (cache_) {
+         Object pixels = cache_.get(coords);
+         if (pixels != null) {
+            return pixels;
+         }
+      }
+      if (!input_.hasImage(coords)) {
+         return null;
+      }
+      Object pixels = input_.getImage(coords).getRawPixels();
+      final long size = (long) width_ * height_ * bytesPerPixel_;
+      synchronized (cache_) {
+         if (cache_.put(coords, pixels) == null) {
+            cachedBytes_ += size;
+         }
+         Iterator<Map.Entry<Coords, Object>> it = cache_.entrySet().iterator();
+         while (cachedBytes_ > cacheBytes_ && cache_.size() > 1) {
+            it.next();
+            it.remove();
+            cachedBytes_ -= size;
+         }
+      }
+      return pixels;
+   }
+
+   private double residual(Link link) {
+      return Math.hypot(x_[link.j_] - x_[link.i_] - link.dx_,
+            y_[link.j_] - y_[link.i_] - link.dy_);
+   }
+
+   /**
+    * Solves one coordinate of the tile positions from the measured offsets.
+    * Minimizes sum(w * (p[j] - p[i] - d)^2) + anchor * sum((p - nominal)^2)
+    * with the preconditioned conjugate gradient method, on the deviations from
+    * the nominal positions.
+    */
+   private static double[] solve(List<Link> links, double[] nominal, boolean xAxis,
+         double anchor) {
+      final int n = nominal.length;
+      double[] rhs = new double[n];
+      double[] diagonal = new double[n];
+      Arrays.fill(diagonal, anchor);
+      for (Link link : links) {
+         double error = (xAxis ? link.dx_ : link.dy_) - (nominal[link.j_] - nominal[link.i_]);
+         rhs[link.j_] += link.weight_ * error;
+         rhs[link.i_] -= link.weight_ * error;
+         diagonal[link.i_] += link.weight_;
+         diagonal[link.j_] += link.weight_;
+      }
+      double[] u = new double[n];
+      double[] r = rhs.clone();
+      double[] z = new double[n];
+      for (int k = 0; k < n; k++) {
+         z[k] = r[k] / diagonal[k];
+      }
+      double[] p = z.clone();
+      double[] ap = new double[n];
+      double rz = dot(r, z);
+      final double tolerance = 1.0e-12 * Math.max(dot(rhs, rhs), 1.0e-12);
+      for (int iteration = 0; iteration < 10 * n + 100 && dot(r, r) > tolerance; iteration++) {
+         for (int k = 0; k < n; k++) {
+            ap[k] = anchor * p[k];
+         }
+         for (Link link : links) {
+            double difference = link.weight_ * (p[link.j_] - p[link.i_]);
+            ap[link.j_] += difference;
+            ap[link.i_] -= difference;
+         }
+         final double alpha = rz / dot(p, ap);
+         for (int k = 0; k < n; k++) {
+            u[k] += alpha * p[k];
+            r[k] -= alpha * ap[k];
+            z[k] = r[k] / diagonal[k];
+         }
+         final double rzNew = dot(r, z);
+         final double beta = rzNew / rz;
+         rz = rzNew;
+         for (int k = 0; k < n; k++) {
+            p[k] = z[k] + beta * p[k];
+         }
+      }
+      double[] result = new double[n];
+      for (int k = 0; k < n; k++) {
+         result[k] = nominal[k] + u[k];
+      }
+      return result;
+   }
+
+   private static double dot(double[] a, double[] b) {
+      double sum = 0.0;
+      for (int k = 0; k < a.length; k++) {
+         sum += a[k] * b[k];
+      }
+      return sum;
+   }
+
+   private void status(String message) {
+      if (statusListener_ != null) {
+         statusListener_.accept(message);
+      }
+   }
+
+   /**
+    * Measured offset of tile j relative to tile i.
+    */
+   private static final class Link {
+      final int i_;
+      final int j_;
+      final double dx_;
+      final double dy_;
+      final double weight_;
+
+      Link(int i, int j, double dx, double dy, double weight) {
+         i_ = i;
+         j_ = j;
+         dx_ = dx;
+         dy_ = dy;
+         weight_ = weight;
+      }
+   }
+}
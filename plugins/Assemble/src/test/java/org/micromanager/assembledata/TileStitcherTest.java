@@ -0,0 +1,249 @@
+package org.micromanager.assembledata;
+
+import java.awt.geom.Point2D;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.LogManager;
+import org.micromanager.Studio;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataManager;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.SummaryMetadata;
+
+/**
+ * Stitches tiles cut from a random image at known positions, which differ by
+ * a few pixels from the stage positions in their metadata.
+ */
+public class TileStitcherTest {
+   private static final int TILE = 128;
+   private static final int STEP = 96;
+   private static final int COLUMNS = 3;
+   private static final int ROWS = 2;
+   private static final int MARGIN = 10;
+   // errors of the stage positions, adding up to 0 so that the fit, which
+   // keeps the mean of the nominal positions, finds the true positions
+   private static final int[] JITTER_X = {2, -1, 0, -3, 1, 1};
+   private static final int[] JITTER_Y = {-2, 1, 3, 0, -1, -1};
+
+   private final int truthWidth_ = (COLUMNS - 1) * STEP + TILE + 2 * MARGIN;
+   private final int truthHeight_ = (ROWS - 1) * STEP + TILE + 2 * MARGIN;
+   private final short[] truth_ = new short[truthWidth_ * truthHeight_];
+   private final List<Image> tiles_ = new ArrayList<>();
+   private final List<Image> output_ = Collections.synchronizedList(new ArrayList<>());
+   private final AtomicInteger imagesRead_ = new AtomicInteger();
+
+   @SuppressWarnings("unchecked")
+   private static <T> T fake(Class<T> type, InvocationHandler handler) {
+      return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> {
+               switch (method.getName()) {
+                  case "hashCode":
+                     return System.identityHashCode(proxy);
+                  case "equals":
+                     return proxy == args[0];
+                  default:
+                     return handler.invoke(proxy, method, args);
+               }
+            });
+   }
+
+   /**
+    * A builder whose setters return itself, and whose build() returns result.
+    */
+   private static <T> T builder(Class<T> type, Object result) {
+      return fake(type, (proxy, method, args) ->
+            method.getName().equals("build") ? result : proxy);
+   }
+
+   private static Metadata metadata(double x, double y) {
+      return fake(Metadata.class, (proxy, method, args) -> {
+         switch (method.getName()) {
+            case "getPixelSizeUm":
+               return 1.0;
+            case "getXPositionUm":
+               return x;
+            case "getYPositionUm":
+               return y;
+            case "copyBuilderWithNewUUID":
+               return builder(Metadata.Builder.class, proxy);
+            default:
+               return null;
+         }
+      });
+   }
+
+   private static Image image(Object pixels, int width, int height, Coords coords,
+         Metadata metadata) {
+      return fake(Image.class, (proxy, method, args) -> {
+         switch (method.getName()) {
+            case "getWidth":
+               return width;
+            case "getHeight":
+               return height;
+            case "getBytesPerPixel":
+               return 2;
+            case "getNumComponents":
+               return 1;
+            case "getRawPixels":
+               return pixels;
+            case "getCoords":
+               return coords;
+            case "getMetadata":
+               return metadata;
+            default:
+               throw new UnsupportedOperationException(method.getName());
+         }
+      });
+   }
+
+   private DataProvider input() {
+      SummaryMetadata summary = fake(SummaryMetadata.class, (proxy, method, args) ->
+            builder(SummaryMetadata.Builder.class, proxy));
+      return fake(DataProvider.class, (proxy, method, args) -> {
+         switch (method.getName()) {
+            case "getNextIndex":
+               return args[0].equals(Coords.STAGE_POSITION) ? tiles_.size() : 1;
+            case "getSummaryMetadata":
+               return summary;
+            case "hasImage":
+               return find((Coords) args[0]) != null;
+            case "getImage":
+               imagesRead_.incrementAndGet();
+               return find((Coords) args[0]);
+            default:
+               throw new UnsupportedOperationException(method.getName());
+         }
+      });
+   }
+
+   private Image find(Coords coords) {
+      if (coords.getT() != 0 || coords.getZ() != 0 || coords.getC() != 0
+            || coords.getP() >= tiles_.size()) {
+         return null;
+      }
+      return tiles_.get(coords.getP());
+   }
+
+   private Datastore output() {
+      return fake(Datastore.class, (proxy, method, args) -> {
+         if (method.getName().equals("putImage")) {
+            output_.add((Image) args[0]);
+         }
+         return null;
+      });
+   }
+
+   private Studio studio() {
+      LogManager logs = fake(LogManager.class, (proxy, method, args) -> null);
+      DataManager data = fake(DataManager.class, (proxy, method, args) -> {
+         if (method.getName().equals("createImage") && args.length == 7) {
+            return image(args[0], (Integer) args[1], (Integer) args[2], (Coords) args[5],
+                  (Metadata) args[6]);
+         }
+         throw new UnsupportedOperationException(method.getName());
+      });
+      return fake(Studio.class, (proxy, method, args) -> {
+         switch (method.getName()) {
+            case "logs":
+               return logs;
+            case "data":
+               return data;
+            default:
+               throw new UnsupportedOperationException(method.getName());
+         }
+      });
+   }
+
+   private void makeTiles() {
+      Random random = new Random(37);
+      for (int i = 0; i < truth_.length; i++) {
+         truth_[i] = (short) (100 + random.nextInt(4000));
+      }
+      for (int i = 0; i < COLUMNS * ROWS; i++) {
+         final int x0 = MARGIN + (i % COLUMNS) * STEP + JITTER_X[i];
+         final int y0 = MARGIN + (i / COLUMNS) * STEP + JITTER_Y[i];
+         short[] pixels = new short[TILE * TILE];
+         for (int y = 0; y < TILE; y++) {
+            System.arraycopy(truth_, (y0 + y) * truthWidth_ + x0, pixels, y * TILE, TILE);
+         }
+         Coords coords = Coordinates.builder().t(0).z(0).c(0).p(i).build();
+         tiles_.add(image(pixels, TILE, TILE, coords,
+               metadata((i % COLUMNS) * STEP, (i / COLUMNS) * STEP)));
+      }
+   }
+
+   @Test
+   public void testStitch() throws Exception {
+      makeTiles();
+      TileStitcher stitcher = new TileStitcher(studio(), input());
+      stitcher.setBlockSize(64);
+      stitcher.computeTilePositions();
+
+      // 4 horizontal, 3 vertical and 4 diagonal neighbours
+      Assert.assertEquals(11, stitcher.getNrOffsetsUsed());
+      List<Point2D.Double> positions = stitcher.getTilePositions();
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      for (int i = 0; i < positions.size(); i++) {
+         Assert.assertEquals("x of tile " + i, (i % COLUMNS) * STEP + JITTER_X[i],
+               positions.get(i).x, 0.1);
+         Assert.assertEquals("y of tile " + i, (i / COLUMNS) * STEP + JITTER_Y[i],
+               positions.get(i).y, 0.1);
+         minX = Math.min(minX, positions.get(i).x);
+         minY = Math.min(minY, positions.get(i).y);
+         maxX = Math.max(maxX, positions.get(i).x + TILE);
+      }
+
+      imagesRead_.set(0);
+      stitcher.fuse(output());
+      // the metadata of the plane, tiles are still cached from the registration
+      Assert.assertEquals(1, imagesRead_.get());
+
+      // every pixel of the mosaic that is covered by a tile equals the original
+      final int originX = (int) Math.floor(minX);
+      final int originY = (int) Math.floor(minY);
+      final int blockColumns = ((int) Math.ceil(maxX) - originX + 63) / 64;
+      Assert.assertFalse(output_.isEmpty());
+      int checked = 0;
+      for (Image block : output_) {
+         final int bx = (block.getCoords().getP() % blockColumns) * 64;
+         final int by = (block.getCoords().getP() / blockColumns) * 64;
+         final short[] pixels = (short[]) block.getRawPixels();
+         for (int y = 0; y < block.getHeight(); y++) {
+            for (int x = 0; x < block.getWidth(); x++) {
+               final int tx = bx + x + originX + MARGIN;
+               final int ty = by + y + originY + MARGIN;
+               if (covered(tx, ty)) {
+                  Assert.assertEquals("pixel " + tx + ", " + ty,
+                        truth_[ty * truthWidth_ + tx], pixels[y * block.getWidth() + x]);
+                  checked++;
+               }
+            }
+         }
+      }
+      Assert.assertTrue(checked > 0);
+   }
+
+   private static boolean covered(int x, int y) {
+      for (int i = 0; i < COLUMNS * ROWS; i++) {
+         final int x0 = MARGIN + (i % COLUMNS) * STEP + JITTER_X[i];
+         final int y0 = MARGIN + (i / COLUMNS) * STEP + JITTER_Y[i];
+         if (x >= x0 && x < x0 + TILE && y >= y0 && y < y0 + TILE) {
+            return true;
+         }
+      }
+      return false;
+   }
+}
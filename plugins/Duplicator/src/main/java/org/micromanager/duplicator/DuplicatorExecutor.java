@@ -22,7 +22,6 @@
 package org.micromanager.duplicator;
 
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -35,7 +34,6 @@ import org.micromanager.data.DataProvider;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
-import org.micromanager.data.Image;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DisplaySettings;
@@ -47,6 +45,11 @@ import org.micromanager.display.DisplayWindow;
  * @author nico
  */
 public class DuplicatorExecutor extends SwingWorker<Void, Void> {
+   /**
+    * Name of the property that carries the copy speed, in MB/s.
+    */
+   public static final String THROUGHPUT = "throughput";
+
    private final Studio studio_;
    private final DisplayWindow theWindow_;
    private final String newName_;
@@ -136,16 +139,11 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
          newDisplaySettingsBuilder.channels(channelDisplaySettings);
       }
       newSizeCoordsBuilder.channel(channelNames.size());
-      float  nrToBeCopied = 1;
       for (String axis : oldStore.getAxes()) {
-         if (channels_ != null && channels_.size() > 0) {
-            nrToBeCopied *= channels_.size();
-         }
          if (mins_.containsKey(axis)) {
             int min = mins_.get(axis);
             int max = maxes_.get(axis);
             newSizeCoordsBuilder.index(axis, max - min);
-            nrToBeCopied *= (max - min + 1);
          }
       }
 
@@ -182,7 +180,8 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
          copyDisplay.setDisplaySettings(newDisplaySettingsBuilder.build());
 
          Iterable<Coords> unorderedImageCoords = oldStore.getUnorderedImageCoords();
-         int nrCopied = 0;
+         List<Coords> oldCoords = new ArrayList<>();
+         List<Coords> newCoords = new ArrayList<>();
          for (Coords oldCoord : unorderedImageCoords) {
             List<String> oldAxes = oldStore.getAxes();
             boolean copy = !oldAxes.contains(Coords.CHANNEL);
@@ -227,34 +226,27 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
                      newCoordBuilder.index(axis, oldCoord.getIndex(axis) - mins_.get(axis));
                   }
                }
-               Image img = oldStore.getImage(oldCoord);
-               Coords newCoords = newCoordBuilder.build();
-               Image newImgShallow = img.copyAtCoords(newCoords);
-               if (roi != null) {
-                  ImageProcessor ip = studio_.data().ij().createProcessor(img);
-                  if (ip != null) {
-                     ip.setRoi(roi);
-                     ImageProcessor copyIp = ip.crop();
-                     newImgShallow = studio_.data().createImage(copyIp.getPixels(), 
-                             copyIp.getWidth(), copyIp.getHeight(), 
-                             img.getBytesPerPixel(), img.getNumComponents(), 
-                             newCoords, newImgShallow.getMetadata());
-                  } else {
-                     throw new DuplicatorException(
-                           "Unsupported pixel type.  Can only copy 8 or 16 bit images.");
-                  }
-               }
-               newStore.putImage(newImgShallow);
-               nrCopied++;
-               try {
-                  setProgress((int) (nrCopied / nrToBeCopied * 100.0));
-               } catch (IllegalArgumentException iae) {
-                  System.out.println("Value was: " + (int) (nrCopied / nrToBeCopied * 100.0));
-               }
-               
+               oldCoords.add(oldCoord);
+               newCoords.add(newCoordBuilder.build());
             }
          }
 
+         // Images are read and cropped on several threads, and written here
+         final int nrToBeCopied = oldCoords.size();
+         ImageCopier copier = new ImageCopier(studio_, oldStore, newStore,
+               roi == null ? null : roi.getBounds());
+         copier.copy(oldCoords, newCoords, (int nrCopied, double megabytesPerSecond) -> {
+            int progress = nrCopied * 100 / nrToBeCopied;
+            if (progress != getProgress()) {
+               setProgress(progress);
+               firePropertyChange(THROUGHPUT, null, megabytesPerSecond);
+            }
+         });
+         studio_.logs().logMessage(String.format(
+               "Duplicator copied %d images (%.1f MB) in %.1f s, %.1f MB/s", nrToBeCopied,
+               copier.getBytesCopied() / 1.0e6, copier.getSeconds(),
+               copier.getMegabytesPerSecond()));
+
       } catch (DatastoreFrozenException ex) {
          studio_.logs().showError("Can not add data to frozen datastore");
       } catch (DatastoreRewriteException ex) {
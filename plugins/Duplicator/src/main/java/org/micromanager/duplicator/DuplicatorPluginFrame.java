@@ -303,6 +303,8 @@ public class DuplicatorPluginFrame extends JDialog {
                   if ((Integer) evt.getNewValue() == 100) {
                      pb.setVisible(false);
                   }
+               } else if (DuplicatorExecutor.THROUGHPUT.equals(evt.getPropertyName())) {
+                  pb.setText(String.format("%.1f MB/s", (Double) evt.getNewValue()));
                }
             });
             de.execute();
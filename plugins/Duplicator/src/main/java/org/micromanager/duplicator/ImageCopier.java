@@ -0,0 +1,172 @@
+package org.micromanager.duplicator;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+
+/**
+ * Copies images from a DataProvider into a Datastore.  Several reader threads
+ * read, and if needed crop, the images ahead of time, while the calling
+ * thread puts them into the new store in the order they were asked for.
+ * Only a few images per reader are held in memory at any time.
+ */
+final class ImageCopier {
+   private static final int MAX_READERS = 8;
+   private static final int IMAGES_PER_READER = 2;
+
+   /**
+    * Receives progress while copying.
+    */
+   interface Listener {
+      /**
+       * Called after every image that was put into the new store.
+       *
+       * @param nrCopied number of images copied so far
+       * @param megabytesPerSecond average speed so far, in MB of pixel data
+       *                           per second
+       */
+      void imageCopied(int nrCopied, double megabytesPerSecond);
+   }
+
+   private final Studio studio_;
+   private final DataProvider source_;
+   private final Datastore destination_;
+   private final Rectangle crop_;
+   private final int nrReaders_;
+   private long bytesCopied_ = 0;
+   private long nanoseconds_ = 0;
+
+   /**
+    * Creates the copier.
+    *
+    * @param studio Micro-Manager Studio
+    * @param source where the images come from
+    * @param destination where the images go
+    * @param crop part of the images to copy, or null to copy them whole
+    */
+   ImageCopier(Studio studio, DataProvider source, Datastore destination, Rectangle crop) {
+      studio_ = studio;
+      source_ = source;
+      destination_ = destination;
+      crop_ = crop;
+      nrReaders_ = Math.max(2, Math.min(MAX_READERS,
+            Runtime.getRuntime().availableProcessors()));
+   }
+
+   /**
+    * Copies the images.
+    *
+    * @param oldCoords coordinates of the images in the source
+    * @param newCoords coordinates that the images get in the new store
+    * @param listener receives progress, can be null
+    * @throws IOException when reading or writing fails
+    * @throws DuplicatorException when an image can not be cropped
+    */
+   void copy(List<Coords> oldCoords, List<Coords> newCoords, Listener listener)
+         throws IOException, DuplicatorException {
+      final long start = System.nanoTime();
+      ExecutorService readers = Executors.newFixedThreadPool(nrReaders_);
+      Deque<Future<Image>> pending = new ArrayDeque<>();
+      int next = 0;
+      int nrCopied = 0;
+      try {
+         while (nrCopied < oldCoords.size()) {
+            while (next < oldCoords.size() && pending.size() < nrReaders_ * IMAGES_PER_READER) {
+               final Coords oldCoord = oldCoords.get(next);
+               final Coords newCoord = newCoords.get(next);
+               pending.add(readers.submit(() -> read(oldCoord, newCoord)));
+               next++;
+            }
+            Image image = pending.poll().get();
+            destination_.putImage(image);
+            bytesCopied_ += (long) image.getWidth() * image.getHeight()
+                  * image.getBytesPerPixel();
+            nrCopied++;
+            nanoseconds_ = System.nanoTime() - start;
+            if (listener != null) {
+               listener.imageCopied(nrCopied, getMegabytesPerSecond());
+            }
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while copying", ie);
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         } else if (cause instanceof DuplicatorException) {
+            throw (DuplicatorException) cause;
+         } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IOException(cause);
+      } finally {
+         readers.shutdownNow();
+      }
+   }
+
+   private Image read(Coords oldCoord, Coords newCoord)
+         throws IOException, DuplicatorException {
+      Image image = source_.getImage(oldCoord);
+      if (image == null) {
+         throw new IOException("No image at " + oldCoord);
+      }
+      if (crop_ == null) {
+         return image.copyAtCoords(newCoord);
+      }
+      return crop(image, newCoord);
+   }
+
+   /**
+    * Copies the part of the image inside the crop rectangle, one row at a
+    * time, straight from the pixel array.
+    */
+   private Image crop(Image image, Coords newCoord) throws DuplicatorException {
+      Rectangle bounds = crop_.intersection(
+            new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+      if (bounds.isEmpty()) {
+         throw new DuplicatorException("Selection is outside of the image");
+      }
+      if (bounds.width == image.getWidth() && bounds.height == image.getHeight()) {
+         return image.copyAtCoords(newCoord);
+      }
+      Object pixels = image.getRawPixels();
+      // RGB images are stored as several bytes per pixel
+      int elementsPerPixel = pixels instanceof byte[] ? image.getBytesPerPixel() : 1;
+      int rowLength = bounds.width * elementsPerPixel;
+      Object cropped = Array.newInstance(
+            pixels.getClass().getComponentType(), rowLength * bounds.height);
+      for (int y = 0; y < bounds.height; y++) {
+         System.arraycopy(pixels,
+               ((bounds.y + y) * image.getWidth() + bounds.x) * elementsPerPixel,
+               cropped, y * rowLength, rowLength);
+      }
+      return studio_.data().createImage(cropped, bounds.width, bounds.height,
+            image.getBytesPerPixel(), image.getNumComponents(), newCoord,
+            image.getMetadata());
+   }
+
+   long getBytesCopied() {
+      return bytesCopied_;
+   }
+
+   double getSeconds() {
+      return nanoseconds_ / 1.0e9;
+   }
+
+   double getMegabytesPerSecond() {
+      return nanoseconds_ == 0 ? 0.0 : bytesCopied_ / 1.0e6 / getSeconds();
+   }
+}
@@ -0,0 +1,117 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.EnumSet;
+import org.micromanager.imageprocessing.PixelAccumulator;
+import org.micromanager.imageprocessing.PixelBands;
+
+/**
+ * Running sum, sum of squares, minimum or maximum of a series of 8 or 16 bit
+ * frames.  Every frame is added to the accumulator as it arrives, so that the
+ * frames themselves do not need to be kept, and the combined frame is ready
+ * as soon as the last one was added.  Large frames are processed in bands of
+ * rows, in parallel.
+ */
+final class FrameAccumulator {
+   private final String algo_;
+   private final int length_;
+   private final int maxValue_;
+   private final EnumSet<PixelAccumulator.Statistic> statistics_;
+   private PixelAccumulator accumulator_;
+
+   /**
+    * Creates an empty accumulator.
+    *
+    * @param algo one of the FrameCombinerPlugin.PROCESSOR_ALGO values
+    * @param length number of pixels of the frames
+    * @param bytesPerPixel 1 or 2
+    */
+   FrameAccumulator(String algo, int length, int bytesPerPixel) {
+      algo_ = algo;
+      length_ = length;
+      maxValue_ = bytesPerPixel == 1 ? 0xff : 0xffff;
+      if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)
+            || algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+         statistics_ = EnumSet.of(PixelAccumulator.Statistic.SUM);
+      } else if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV)) {
+         statistics_ = EnumSet.of(PixelAccumulator.Statistic.SUM,
+               PixelAccumulator.Statistic.SUM_OF_SQUARES);
+      } else if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+         statistics_ = EnumSet.of(PixelAccumulator.Statistic.MAX);
+      } else if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+         statistics_ = EnumSet.of(PixelAccumulator.Statistic.MIN);
+      } else {
+         throw new IllegalArgumentException("FrameCombiner : Algorithm called " + algo
+               + " is not implemented or not found.");
+      }
+   }
+
+   int getLength() {
+      return length_;
+   }
+
+   int getCount() {
+      return accumulator_ == null ? 0 : accumulator_.getCount();
+   }
+
+   /**
+    * Adds a frame.
+    *
+    * @param pixels byte[] or short[] with getLength() pixels
+    */
+   void add(Object pixels) {
+      if (accumulator_ == null) {
+         // arrays are only allocated for the first frame, and then reused
+         accumulator_ = new PixelAccumulator(length_, statistics_,
+               length_ >= PixelBands.PARALLEL_THRESHOLD);
+      }
+      accumulator_.add(pixels);
+   }
+
+   /**
+    * Computes the combined frame of the frames added so far, and empties the
+    * accumulator.
+    *
+    * @return byte[] or short[], of the same type as the frames
+    */
+   Object finish() {
+      final Object result = maxValue_ == 0xff ? new byte[length_] : new short[length_];
+      if (accumulator_ == null) {
+         return result;
+      }
+      final int count = Math.max(1, accumulator_.getCount());
+      final long[] sum = accumulator_.getSum();
+      final long[] sumOfSquares = accumulator_.getSumOfSquares();
+      final int[] extreme = algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)
+            ? accumulator_.getMax() : accumulator_.getMin();
+      PixelBands.forEach(length_, PixelBands.PIXELS_PER_BAND, (band, start, end) -> {
+         for (int i = start; i < end; i++) {
+            final int value;
+            if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)) {
+               value = (int) (sum[i] / count);
+            } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+               value = (int) Math.min(maxValue_, sum[i]);
+            } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV)) {
+               final double mean = (double) sum[i] / count;
+               final double variance = (double) sumOfSquares[i] / count - mean * mean;
+               value = (int) Math.min(maxValue_, Math.sqrt(Math.max(0.0, variance)) + 0.5);
+            } else {
+               value = extreme[i];
+            }
+            if (result instanceof short[]) {
+               ((short[]) result)[i] = (short) value;
+            } else {
+               ((byte[]) result)[i] = (byte) value;
+            }
+         }
+      });
+      accumulator_.reset();
+      return result;
+   }
+
+   /**
+    * Empties the accumulator and lets go of its arrays.
+    */
+   void clear() {
+      accumulator_ = null;
+   }
+}
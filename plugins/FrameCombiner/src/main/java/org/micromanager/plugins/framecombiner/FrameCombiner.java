@@ -1,5 +1,6 @@
 package org.micromanager.plugins.framecombiner;
 
+import com.google.common.eventbus.Subscribe;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -15,6 +16,7 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.events.LiveModeEvent;
 
 public class FrameCombiner implements Processor {
 
@@ -28,6 +30,8 @@ public class FrameCombiner implements Processor {
 
    private boolean imageNotProcessedFirstTime_ = true;
    private boolean imageCanBeProcessed_ = true;
+   // asking the live manager for every image is too slow at high frame rates
+   private volatile boolean liveModeOn_;
 
    private HashMap<Coords, SingleCombinationProcessor> singleAquisitions_;
 
@@ -59,6 +63,28 @@ public class FrameCombiner implements Processor {
       // Each index will be a combination of Z, Channel and StagePosition
       singleAquisitions_ = new HashMap();
 
+      liveModeOn_ = studio_.live().isLiveModeOn();
+      studio_.events().registerForEvents(this);
+   }
+
+   @Subscribe
+   public void onLiveMode(LiveModeEvent event) {
+      liveModeOn_ = event.isOn();
+   }
+
+   @Override
+   public boolean isIdentity() {
+      // a single frame is its own mean, sum, min and max
+      return numerOfImagesToProcess_ <= 1
+            && !processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV);
+   }
+
+   @Override
+   public boolean acceptsImage(Image image) {
+      if (liveModeOn_) {
+         return !processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z);
+      }
+      return !channelsToAvoid_.contains(image.getCoords().getChannel());
    }
 
    @Override
@@ -69,7 +95,7 @@ public class FrameCombiner implements Processor {
          return;
       }
       // when live mode is on and user selected to do z proejct => do nothing
-      if (studio_.live().isLiveModeOn()
+      if (liveModeOn_
             && processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
          context.outputImage(image);
          return;
@@ -99,7 +125,7 @@ public class FrameCombiner implements Processor {
 
          // Check whether this combinations of coords are allowed to be processed
          boolean processCombinations = true;
-         if (channelsToAvoid_.contains(coords.getChannel()) && !studio_.live().isLiveModeOn()) {
+         if (channelsToAvoid_.contains(coords.getChannel()) && !liveModeOn_) {
             processCombinations = false;
          }
 
@@ -162,6 +188,7 @@ public class FrameCombiner implements Processor {
 
    @Override
    public void cleanup(ProcessorContext context) {
+      studio_.events().unregisterForEvents(this);
 
       for (Map.Entry<Coords, SingleCombinationProcessor> entry : singleAquisitions_.entrySet()) {
          entry.getValue().clear();
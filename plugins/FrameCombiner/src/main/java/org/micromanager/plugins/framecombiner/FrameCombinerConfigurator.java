@@ -93,6 +93,7 @@ public class FrameCombinerConfigurator extends JFrame implements ProcessorConfig
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_SUM);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MAX);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MIN);
+      processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV);
       jPanel1.add(processorAlgoBox_);
 
       jLabel3.setText(
@@ -14,7 +14,6 @@ public class SingleCombinationProcessor {
    private final LogManager log_;
 
    private final Coords coords_;
-   private Image processedImage_;
 
    private final String processorAlgo_;
    private final String processorDimension_;
@@ -26,8 +25,15 @@ public class SingleCombinationProcessor {
 
    private int currentFrameIndex;
    private int processedFrameIndex;
-   private Image[] bufferImages_;
-   private int currentBufferIndex_;
+   // running sums of the images of the current combination
+   private FrameAccumulator accumulator_;
+   private int width_;
+   private int height_;
+   private int bytesPerPixel_;
+   private int numComponents_;
+   private Coords firstCoords_;
+   private Metadata firstMetadata_;
+   private boolean warnedUnsupported_ = false;
 
    public SingleCombinationProcessor(Coords coords, Studio studio, String processorAlgo,
                                      String processorDimension,
@@ -47,14 +53,6 @@ public class SingleCombinationProcessor {
 
       currentFrameIndex = 0;
       processedFrameIndex = 0;
-      bufferImages_ = new Image[numerOfImagesToProcess_];
-
-      for (int i = 0; i < numerOfImagesToProcess_; i++) {
-         bufferImages_[i] = null;
-      }
-
-      processedImage_ = null;
-
    }
 
    public void logMe() {
@@ -70,286 +68,86 @@ public class SingleCombinationProcessor {
          return;
       }
 
-      currentBufferIndex_ = currentFrameIndex % numerOfImagesToProcess_;
-      bufferImages_[currentBufferIndex_] = image;
-
-      if (currentBufferIndex_ == (numerOfImagesToProcess_ - 1)) {
-
-         try {
-            // Process last `numerOfImagesToProcess_` images
-            processBufferImages();
-         } catch (Exception ex) {
-            log_.logError(ex);
-         }
-
-         // Clean buffered images
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-            bufferImages_[i] = null;
+      if (image.getNumComponents() != 1 || image.getBytesPerPixel() > 2) {
+         if (!warnedUnsupported_) {
+            log_.logMessage("FrameCombiner : only 8 and 16 bit grayscale images can be "
+                  + "combined, passing images on unmodified");
+            warnedUnsupported_ = true;
          }
+         context.outputImage(image);
+         return;
+      }
 
-         // Add metadata to the processed image
-         Metadata metadata = processedImage_.getMetadata();
-         PropertyMap userData = metadata.getUserData();
-         if (userData != null) {
-            userData = userData.copy().putBoolean("FrameProcessed", true).build();
-            userData =
-                  userData.copy().putString("FrameProcessed-Operation", processorAlgo_).build();
-            userData = userData.copy().putInt("FrameProcessed-StackNumber", numerOfImagesToProcess_)
-                  .build();
-            metadata = metadata.copy().userData(userData).build();
+      if (accumulator_ == null || width_ != image.getWidth() || height_ != image.getHeight()
+            || bytesPerPixel_ != image.getBytesPerPixel()) {
+         if (accumulator_ != null && accumulator_.getCount() > 0) {
+            log_.logMessage("FrameCombiner : image size changed, dropping "
+                  + accumulator_.getCount() + " frame(s)");
          }
-         processedImage_ = processedImage_.copyWithMetadata(metadata);
-
-         // Add correct metadata if in acquisition mode
-         if (studio_.acquisitions().isAcquisitionRunning() && !isAnyChannelToAvoid_) {
-            Coords.CoordsBuilder builder = processedImage_.getCoords().copy();
-            if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_TIME)) {
-               builder.time(processedFrameIndex);
-            } else if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
-               builder.z(processedFrameIndex);
-            }
-            processedImage_ = processedImage_.copyAtCoords(builder.build());
-            processedFrameIndex += 1;
+         width_ = image.getWidth();
+         height_ = image.getHeight();
+         bytesPerPixel_ = image.getBytesPerPixel();
+         numComponents_ = image.getNumComponents();
+         try {
+            accumulator_ = new FrameAccumulator(processorAlgo_, width_ * height_,
+                  bytesPerPixel_);
+         } catch (IllegalArgumentException ex) {
+            log_.logError(ex);
+            accumulator_ = null;
+            return;
          }
-
-         // Output processed image
-         context.outputImage(processedImage_);
-
-         // Clean processed image
-         processedImage_ = null;
       }
 
+      // The first image of a combination provides coords and metadata of the
+      // result; of the pixels only the running sums are kept.
+      if (accumulator_.getCount() == 0) {
+         firstCoords_ = image.getCoords();
+         firstMetadata_ = image.getMetadata();
+      }
+      accumulator_.add(image.getRawPixels());
       currentFrameIndex += 1;
 
-   }
-
-   public void clear() {
-      for (int i = 0; i < numerOfImagesToProcess_; i++) {
-         bufferImages_[i] = null;
+      if (accumulator_.getCount() < numerOfImagesToProcess_) {
+         return;
       }
-      bufferImages_ = null;
-   }
-
-   public void processBufferImages() throws Exception {
 
-      if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)) {
-         meanProcessImages(false);
-      } else if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
-         meanProcessImages(true);
-      } else if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
-         extremaProcessImages("max");
-      } else if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
-         extremaProcessImages("min");
-      } else {
-         throw new Exception("FrameCombiner : Algorithm called " + processorAlgo_
-               + " is not implemented or not found.");
+      Object pixels = accumulator_.finish();
+
+      // Add metadata to the processed image
+      Metadata metadata = firstMetadata_;
+      PropertyMap userData = metadata.getUserData();
+      if (userData != null) {
+         userData = userData.copy().putBoolean("FrameProcessed", true)
+               .putString("FrameProcessed-Operation", processorAlgo_)
+               .putInt("FrameProcessed-StackNumber", numerOfImagesToProcess_)
+               .build();
+         metadata = metadata.copy().userData(userData).build();
       }
 
-   }
-
-   public void meanProcessImages(boolean onlySum) {
-
-      // Could be moved outside processImage() ?
-      Image img = bufferImages_[0];
-      int bitDepth = img.getMetadata().getBitDepth();
-      int width = img.getWidth();
-      int height = img.getHeight();
-      int bytesPerPixel = img.getBytesPerPixel();
-      int numComponents = img.getNumComponents();
-      Coords coords = img.getCoords();
-      Metadata metadata = img.getMetadata();
-
-      Object resultPixels = null;
-
-      if (bytesPerPixel == 1) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         byte[] newPixelsFinal = new byte[width * height];
-
-         // Sum up all pixels from bufferImages
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            byte[] imgPixels = (byte[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               newPixels[index] = (float) (newPixels[index] + (int) (imgPixels[index] & 0xff));
-            }
-         }
-
-         // Divide by length to get the mean
-         for (int index = 0; index < newPixels.length; index++) {
-            if (onlySum) {
-               newPixelsFinal[index] = (byte) (int) (newPixels[index]);
-            } else {
-               newPixelsFinal[index] = (byte) (int) (newPixels[index] / numerOfImagesToProcess_);
-            }
-         }
-
-         resultPixels = newPixelsFinal;
-
-      } else if (bytesPerPixel == 2) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         short[] newPixelsFinal = new short[width * height];
-
-         // Sum up all pixels from bufferImages
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            short[] imgPixels = (short[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               newPixels[index] = (float) (newPixels[index] + (int) (imgPixels[index] & 0xffff));
-            }
-         }
-
-         // Divide by length to get the mean
-         for (int index = 0; index < newPixels.length; index++) {
-            if (onlySum) {
-               newPixelsFinal[index] = (short) (int) (newPixels[index]);
-            } else {
-               newPixelsFinal[index] = (short) (int) (newPixels[index] / numerOfImagesToProcess_);
-            }
+      // Add correct metadata if in acquisition mode
+      Coords coords = firstCoords_;
+      if (studio_.acquisitions().isAcquisitionRunning() && !isAnyChannelToAvoid_) {
+         Coords.CoordsBuilder builder = coords.copy();
+         if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_TIME)) {
+            builder.time(processedFrameIndex);
+         } else if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
+            builder.z(processedFrameIndex);
          }
-
-         resultPixels = newPixelsFinal;
-
+         coords = builder.build();
+         processedFrameIndex += 1;
       }
 
-      // Create the processed image
-      processedImage_ = studio_.data().createImage(resultPixels, width, height,
-            bytesPerPixel, numComponents, coords, metadata);
-
+      // Output processed image
+      context.outputImage(studio_.data().createImage(pixels, width_, height_,
+            bytesPerPixel_, numComponents_, coords, metadata));
    }
 
-   public void extremaProcessImages(String extremaType) throws Exception {
-
-      // Could be moved outside processImage() ?
-      Image img = bufferImages_[0];
-      int bitDepth = img.getMetadata().getBitDepth();
-      int width = img.getWidth();
-      int height = img.getHeight();
-      int bytesPerPixel = img.getBytesPerPixel();
-      int numComponents = img.getNumComponents();
-      Coords coords = img.getCoords();
-      Metadata metadata = img.getMetadata();
-
-      Object resultPixels = null;
-
-      if (bytesPerPixel == 1) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         byte[] newPixelsFinal = new byte[width * height];
-
-         float currentValue;
-         float actualValue;
-
-         // Init the new array
-         if (extremaType.equals("max")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = 0;
-            }
-         } else if (extremaType.equals("min")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = Byte.MAX_VALUE;
-            }
-         } else {
-            throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-         }
-
-         // Iterate over all frames
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            short[] imgPixels = (short[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               currentValue = (float) (int) (imgPixels[index] & 0xffff);
-               actualValue = (float) newPixels[index];
-
-               if (extremaType.equals("max")) {
-                  newPixels[index] = (float) Math.max(currentValue, actualValue);
-               } else if (extremaType.equals("min")) {
-                  newPixels[index] = (float) Math.min(currentValue, actualValue);
-               } else {
-                  throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-               }
-            }
-         }
-
-         // Convert to short
-         for (int index = 0; index < newPixels.length; index++) {
-            newPixelsFinal[index] = (byte) newPixels[index];
-         }
-
-         resultPixels = newPixelsFinal;
-
-      } else if (bytesPerPixel == 2) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         short[] newPixelsFinal = new short[width * height];
-
-         float currentValue;
-         float actualValue;
-
-         // Init the new array
-         if (extremaType.equals("max")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = 0;
-            }
-         } else if (extremaType.equals("min")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = Byte.MAX_VALUE;
-            }
-         } else {
-            throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-         }
-
-         // Iterate over all frames
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            short[] imgPixels = (short[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               currentValue = (float) (int) (imgPixels[index] & 0xffff);
-               actualValue = (float) newPixels[index];
-
-               if (extremaType.equals("max")) {
-                  newPixels[index] = (float) Math.max(currentValue, actualValue);
-               } else if (extremaType.equals("min")) {
-                  newPixels[index] = (float) Math.min(currentValue, actualValue);
-               } else {
-                  throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-               }
-            }
-         }
-
-         // Convert to short
-         for (int index = 0; index < newPixels.length; index++) {
-            newPixelsFinal[index] = (short) newPixels[index];
-         }
-
-         resultPixels = newPixelsFinal;
-
+   public void clear() {
+      firstCoords_ = null;
+      firstMetadata_ = null;
+      if (accumulator_ != null) {
+         accumulator_.clear();
       }
-
-      // Create the processed image
-      processedImage_ = studio_.data().createImage(resultPixels, width, height,
-            bytesPerPixel, numComponents, coords, metadata);
-
+      accumulator_ = null;
    }
 }
@@ -0,0 +1,148 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.imageprocessing.PixelBands;
+
+public class FrameAccumulatorTest {
+
+   private static final String[] ALGORITHMS = {FrameCombinerPlugin.PROCESSOR_ALGO_MEAN,
+         FrameCombinerPlugin.PROCESSOR_ALGO_SUM, FrameCombinerPlugin.PROCESSOR_ALGO_MAX,
+         FrameCombinerPlugin.PROCESSOR_ALGO_MIN, FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV};
+
+   // large enough for the frames to be processed in parallel
+   private static final int LENGTH = PixelBands.PARALLEL_THRESHOLD + 1000;
+
+   private static int[][] makeValues(Random random, int numberOfFrames, int maxValue) {
+      int[][] values = new int[numberOfFrames][LENGTH];
+      for (int[] frame : values) {
+         for (int i = 0; i < LENGTH; i++) {
+            // every fourth pixel is bright, so that sums saturate
+            frame[i] = i % 4 == 0 ? maxValue - random.nextInt(8) : random.nextInt(maxValue + 1);
+         }
+      }
+      return values;
+   }
+
+   private static Object toPixels(int[] values, int bytesPerPixel) {
+      if (bytesPerPixel == 1) {
+         byte[] pixels = new byte[values.length];
+         for (int i = 0; i < values.length; i++) {
+            pixels[i] = (byte) values[i];
+         }
+         return pixels;
+      }
+      short[] pixels = new short[values.length];
+      for (int i = 0; i < values.length; i++) {
+         pixels[i] = (short) values[i];
+      }
+      return pixels;
+   }
+
+   private static int expected(String algo, int[][] values, int i, int maxValue) {
+      int sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int[] frame : values) {
+         sum += frame[i];
+         min = Math.min(min, frame[i]);
+         max = Math.max(max, frame[i]);
+      }
+      final int n = values.length;
+      switch (algo) {
+         case FrameCombinerPlugin.PROCESSOR_ALGO_MEAN:
+            return sum / n;
+         case FrameCombinerPlugin.PROCESSOR_ALGO_SUM:
+            return Math.min(maxValue, sum);
+         case FrameCombinerPlugin.PROCESSOR_ALGO_MAX:
+            return max;
+         case FrameCombinerPlugin.PROCESSOR_ALGO_MIN:
+            return min;
+         default:
+            final double mean = (double) sum / n;
+            double squares = 0.0;
+            for (int[] frame : values) {
+               squares += (frame[i] - mean) * (frame[i] - mean);
+            }
+            return (int) Math.min(maxValue, Math.sqrt(squares / n) + 0.5);
+      }
+   }
+
+   private static int valueAt(Object pixels, int i) {
+      return pixels instanceof short[]
+            ? ((short[]) pixels)[i] & 0xffff : ((byte[]) pixels)[i] & 0xff;
+   }
+
+   private static void check(int bytesPerPixel) {
+      final int maxValue = bytesPerPixel == 1 ? 0xff : 0xffff;
+      final Random random = new Random(44 + bytesPerPixel);
+      for (String algo : ALGORITHMS) {
+         FrameAccumulator accumulator = new FrameAccumulator(algo, LENGTH, bytesPerPixel);
+         // the second series reuses the arrays of the first
+         for (int numberOfFrames : new int[] {5, 3}) {
+            int[][] values = makeValues(random, numberOfFrames, maxValue);
+            for (int[] frame : values) {
+               accumulator.add(toPixels(frame, bytesPerPixel));
+            }
+            Assert.assertEquals(numberOfFrames, accumulator.getCount());
+            Object result = accumulator.finish();
+            Assert.assertEquals(bytesPerPixel == 1, result instanceof byte[]);
+            Assert.assertEquals(0, accumulator.getCount());
+            for (int i = 0; i < LENGTH; i++) {
+               Assert.assertEquals(algo + ", " + (8 * bytesPerPixel) + " bit, pixel " + i,
+                     expected(algo, values, i, maxValue), valueAt(result, i));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void test8Bit() {
+      check(1);
+   }
+
+   @Test
+   public void test16Bit() {
+      check(2);
+   }
+
+   @Test
+   public void testSumSaturates() {
+      FrameAccumulator accumulator = new FrameAccumulator(
+            FrameCombinerPlugin.PROCESSOR_ALGO_SUM, 2, 1);
+      accumulator.add(new byte[] {(byte) 200, 10});
+      accumulator.add(new byte[] {(byte) 200, 20});
+      Assert.assertArrayEquals(new byte[] {(byte) 255, 30}, (byte[]) accumulator.finish());
+   }
+
+   @Test
+   public void testMinStartsFromFirstFrame() {
+      FrameAccumulator accumulator = new FrameAccumulator(
+            FrameCombinerPlugin.PROCESSOR_ALGO_MIN, 2, 2);
+      accumulator.add(new short[] {(short) 40000, 7});
+      accumulator.add(new short[] {(short) 50000, 9});
+      Assert.assertArrayEquals(new short[] {(short) 40000, 7},
+            (short[]) accumulator.finish());
+      // and again after finish(), rather than from the earlier minimum
+      accumulator.add(new short[] {(short) 60000, 8});
+      Assert.assertArrayEquals(new short[] {(short) 60000, 8},
+            (short[]) accumulator.finish());
+   }
+
+   @Test
+   public void testClear() {
+      FrameAccumulator accumulator = new FrameAccumulator(
+            FrameCombinerPlugin.PROCESSOR_ALGO_MAX, 2, 1);
+      accumulator.add(new byte[] {(byte) 250, 1});
+      accumulator.clear();
+      Assert.assertEquals(0, accumulator.getCount());
+      accumulator.add(new byte[] {3, 2});
+      Assert.assertArrayEquals(new byte[] {3, 2}, (byte[]) accumulator.finish());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownAlgorithm() {
+      new FrameAccumulator("Median", 2, 1);
+   }
+}
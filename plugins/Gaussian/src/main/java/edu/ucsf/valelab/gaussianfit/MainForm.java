@@ -1177,4 +1177,58 @@ public class MainForm extends JFrame {
       }
    }
 
+   /**
+    * Copies the fit settings stored in the user profile (when this window was last closed) into
+    * the given GaussianInfo.  Used by processes that run without this window, such as live
+    * localization during acquisition.
+    *
+    * @param studio Instance of the Micro-Manager 2.0 api
+    * @param tT     object that will receive the settings
+    * @return prefilter type stored in the profile
+    */
+   public static FindLocalMaxima.FilterType readSettings(Studio studio, GaussianInfo tT) {
+      UserProfile up = studio.getUserProfile();
+      Class oc = MainForm.class;
+      try {
+         tT.setNoiseTolerance(NumberUtils.displayStringToInt(
+               up.getString(oc, NOISETOLERANCE, "100")));
+      } catch (ParseException ex) {
+         ReportingUtils.logError(ex, "Error reading noise tolerance");
+      }
+      tT.setPhotonConversionFactor(up.getDouble(oc, PCF, 10.41));
+      tT.setGain(up.getDouble(oc, GAIN, 50.0));
+      tT.setPixelSize(up.getDouble(oc, PIXELSIZE, 107.0).floatValue());
+      tT.setZStackStepSize(up.getDouble(oc, ZSTEPSIZE, 50.0).floatValue());
+      tT.setTimeIntervalMs(up.getDouble(oc, TIMEINTERVALMS, 1.0));
+      tT.setBaseLevel(up.getDouble(oc, BACKGROUNDLEVEL, 100.0));
+      tT.setReadNoise(up.getDouble(oc, READNOISE, 0.0));
+      tT.setUseWidthFilter(up.getBoolean(oc, USEFILTER, false));
+      tT.setSigmaMin(up.getDouble(oc, SIGMAMIN, 100.0));
+      tT.setSigmaMax(up.getDouble(oc, SIGMAMAX, 200.0));
+      tT.setUseNrPhotonsFilter(up.getBoolean(oc, USENRPHOTONSFILTER, false));
+      tT.setNrPhotonsMin(up.getDouble(oc, NRPHOTONSMIN, 500.0));
+      tT.setNrPhotonsMax(up.getDouble(oc, NRPHOTONSMAX, 50000.0));
+      tT.setMaxIterations(up.getInt(oc, MAXITERATIONS, 250));
+      tT.setHalfBoxSize(up.getInt(oc, BOXSIZE, 8) / 2);
+      tT.setShape(up.getInt(oc, FITSHAPE, 1));
+      tT.setFitMode(up.getInt(oc, FITMODE, 0) + 1);
+      tT.setUseFixedWidth(up.getBoolean(oc, USEFIXEDWIDTH, false));
+      tT.setFixedWidthNm(up.getDouble(oc, FIXEDWIDTH, 250.0));
+      tT.setSkipChannels(up.getBoolean(oc, SKIPCHANNELS, false));
+      if (tT.getSkipChannels()) {
+         try {
+            String[] parts = up.getString(oc, CHANNELSKIPSTRING, "").split(",");
+            int[] result = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+               result[i] = NumberUtils.displayStringToInt(parts[i]);
+            }
+            tT.setChannelsToSkip(result);
+         } catch (ParseException ex) {
+            tT.setSkipChannels(false);
+         }
+      }
+      return up.getInt(oc, PREFILTER, 0) == 1 ? FindLocalMaxima.FilterType.GAUSSIAN1_5
+            : FindLocalMaxima.FilterType.NONE;
+   }
+
 }
@@ -0,0 +1,97 @@
+package edu.ucsf.valelab.gaussianfit.live;
+
+import edu.ucsf.valelab.gaussianfit.fitmanagement.LiveLocalizer;
+import java.awt.Toolkit;
+import javax.swing.JCheckBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+public class LiveLocalizationConfigurator extends JFrame implements ProcessorConfigurator {
+   public static final String MAGNIFICATION = "magnification";
+   public static final String NRTHREADS = "nrThreads";
+   public static final String SKIPWHENBUSY = "skipWhenBusy";
+   public static final double DEFAULT_MAGNIFICATION = LiveLocalizer.DEFAULT_PREVIEW_MAGNIFICATION;
+
+   private final MutablePropertyMapView defaults_;
+   private final JSpinner magnification_;
+   private final JSpinner nrThreads_;
+   private final JCheckBox skipWhenBusy_;
+
+   public LiveLocalizationConfigurator(Studio studio, PropertyMap settings) {
+      defaults_ = studio.profile().getSettings(this.getClass());
+      JPanel panel = new JPanel(new MigLayout("flowx"));
+      panel.add(new JLabel("<html>Spots are found and fitted using the settings of the<br>"
+            + "Localization Microscopy window, as saved when it was last closed.</html>"),
+            "span, wrap");
+
+      panel.add(new JLabel("Preview magnification: "));
+      magnification_ = new JSpinner(new SpinnerNumberModel(
+            settings.getDouble(MAGNIFICATION,
+                  defaults_.getDouble(MAGNIFICATION, DEFAULT_MAGNIFICATION)),
+            0.0, 20.0, 1.0));
+      panel.add(magnification_, "wrap");
+
+      panel.add(new JLabel("Number of threads: "));
+      nrThreads_ = new JSpinner(new SpinnerNumberModel(
+            settings.getInteger(NRTHREADS,
+                  defaults_.getInteger(NRTHREADS, defaultNrThreads())),
+            1, 64, 1));
+      panel.add(nrThreads_, "wrap");
+
+      skipWhenBusy_ = new JCheckBox("Skip images when fitting can not keep up");
+      skipWhenBusy_.setToolTipText("<html>When unchecked, the acquisition waits for the fitting "
+            + "threads,<br>so that every image is localized</html>");
+      skipWhenBusy_.setSelected(settings.getBoolean(SKIPWHENBUSY,
+            defaults_.getBoolean(SKIPWHENBUSY, false)));
+      panel.add(skipWhenBusy_, "span, wrap");
+      super.add(panel);
+
+      super.setTitle("Live Localization");
+      super.setIconImage(Toolkit.getDefaultToolkit().getImage(
+            getClass().getResource("/org/micromanager/icons/microscope.gif")));
+      super.setLocation(300, 300);
+      WindowPositioning.setUpLocationMemory(this, this.getClass(), null);
+   }
+
+   /**
+    * Leaves one processor for the acquisition itself.
+    *
+    * @return default number of fitting threads
+    */
+   public static int defaultNrThreads() {
+      return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+   }
+
+   @Override
+   public void showGUI() {
+      pack();
+      setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+      dispose();
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      double magnification = ((Number) magnification_.getValue()).doubleValue();
+      int nrThreads = ((Number) nrThreads_.getValue()).intValue();
+      defaults_.putDouble(MAGNIFICATION, magnification);
+      defaults_.putInteger(NRTHREADS, nrThreads);
+      defaults_.putBoolean(SKIPWHENBUSY, skipWhenBusy_.isSelected());
+      return PropertyMaps.builder().putDouble(MAGNIFICATION, magnification)
+            .putInteger(NRTHREADS, nrThreads)
+            .putBoolean(SKIPWHENBUSY, skipWhenBusy_.isSelected()).build();
+   }
+}
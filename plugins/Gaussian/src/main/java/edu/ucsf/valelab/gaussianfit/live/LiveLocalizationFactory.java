@@ -0,0 +1,28 @@
+package edu.ucsf.valelab.gaussianfit.live;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+public class LiveLocalizationFactory implements ProcessorFactory {
+   private final Studio studio_;
+   private final double magnification_;
+   private final int nrThreads_;
+   private final boolean skipWhenBusy_;
+
+   public LiveLocalizationFactory(Studio studio, PropertyMap settings) {
+      studio_ = studio;
+      magnification_ = settings.getDouble(LiveLocalizationConfigurator.MAGNIFICATION,
+            LiveLocalizationConfigurator.DEFAULT_MAGNIFICATION);
+      nrThreads_ = settings.getInteger(LiveLocalizationConfigurator.NRTHREADS,
+            LiveLocalizationConfigurator.defaultNrThreads());
+      skipWhenBusy_ = settings.getBoolean(LiveLocalizationConfigurator.SKIPWHENBUSY, false);
+   }
+
+   @Override
+   public Processor createProcessor() {
+      return new LiveLocalizationProcessor(studio_, nrThreads_, magnification_,
+            skipWhenBusy_);
+   }
+}
@@ -0,0 +1,53 @@
+package edu.ucsf.valelab.gaussianfit.live;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.ProcessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.SciJavaPlugin;
+
+/**
+ * Localizes spots while images are being acquired, using the settings of the
+ * Localization Microscopy plugin.
+ */
+@Plugin(type = ProcessorPlugin.class)
+public class LiveLocalizationPlugin implements ProcessorPlugin, SciJavaPlugin {
+   private Studio studio_;
+
+   @Override
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public ProcessorConfigurator createConfigurator(PropertyMap settings) {
+      return new LiveLocalizationConfigurator(studio_, settings);
+   }
+
+   @Override
+   public ProcessorFactory createFactory(PropertyMap settings) {
+      return new LiveLocalizationFactory(studio_, settings);
+   }
+
+   @Override
+   public String getName() {
+      return "Live Localization";
+   }
+
+   @Override
+   public String getHelpText() {
+      return "Finds and fits spots during acquisition, and shows a super-resolution preview";
+   }
+
+   @Override
+   public String getVersion() {
+      return "Version 1.0";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "University of California, 2010-2017";
+   }
+}
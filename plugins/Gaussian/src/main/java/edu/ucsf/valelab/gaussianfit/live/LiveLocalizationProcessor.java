@@ -0,0 +1,84 @@
+package edu.ucsf.valelab.gaussianfit.live;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.MainForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.fitmanagement.LiveLocalizer;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+
+/**
+ * Passes images through unchanged, and hands a copy to a LiveLocalizer. Once the
+ * acquisition ends, all localizations are added to the Localization Microscopy
+ * data window.
+ */
+public class LiveLocalizationProcessor implements Processor {
+
+   private final Studio studio_;
+   private final int nrThreads_;
+   private final double magnification_;
+   private final boolean skipWhenBusy_;
+   private LiveLocalizer localizer_;
+   private String title_ = "Live";
+
+   public LiveLocalizationProcessor(Studio studio, int nrThreads, double magnification,
+         boolean skipWhenBusy) {
+      studio_ = studio;
+      skipWhenBusy_ = skipWhenBusy;
+      nrThreads_ = nrThreads;
+      magnification_ = magnification;
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      if (summary.getPrefix() != null && !summary.getPrefix().isEmpty()) {
+         title_ = summary.getPrefix();
+      }
+      return summary;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      context.outputImage(image);
+      if (image.getNumComponents() != 1) {
+         return;
+      }
+      if (localizer_ == null) {
+         GaussianInfo settings = new GaussianInfo();
+         FindLocalMaxima.FilterType preFilterType = MainForm.readSettings(studio_, settings);
+         localizer_ = new LiveLocalizer(title_, nrThreads_, preFilterType, magnification_,
+               LiveLocalizer.DEFAULT_PREVIEW_INTERVAL_MS, skipWhenBusy_);
+         localizer_.copy(settings);
+      }
+      Coords coords = image.getCoords();
+      // The localization code uses 1-based indices
+      // only copies the pixels when the image is not skipped
+      localizer_.submit(() -> studio_.data().ij().createProcessor(image),
+            coords.getChannel() + 1, coords.getZ() + 1, coords.getTimePoint() + 1,
+            coords.getStagePosition() + 1);
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      if (localizer_ == null) {
+         return;
+      }
+      try {
+         RowData.Builder builder = localizer_.finish();
+         if (builder != null) {
+            DataCollectionForm dcForm = DataCollectionForm.getInstance();
+            dcForm.addSpotData(builder);
+            dcForm.setVisible(true);
+         }
+      } catch (InterruptedException ie) {
+         studio_.logs().logError(ie, "Live localization was interrupted");
+      }
+      localizer_ = null;
+   }
+}
@@ -0,0 +1,119 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks accuracy of the drift found by the ParallelJitterDetector on synthetic
+ * scattergrams with known displacements.  Timings are reported when the
+ * benchmark system property is set.
+ */
+public class ParallelJitterDetectorTest {
+
+   private static final double TOLERANCE = 0.2; // pixels
+
+   private static float[][] createImages(int size, double[][] shifts, int nrSpots) {
+      return createImages(size, size, size, shifts, nrSpots);
+   }
+
+   /**
+    * Spots are only placed in the top left width x height pixels of the
+    * images, the rest is zero padding.
+    */
+   private static float[][] createImages(int size, int width, int height, double[][] shifts,
+         int nrSpots) {
+      Random random = new Random(42);
+      double[][] spots = new double[nrSpots][2];
+      for (double[] spot : spots) {
+         spot[0] = 20 + random.nextDouble() * (width - 40);
+         spot[1] = 20 + random.nextDouble() * (height - 40);
+      }
+      float[][] images = new float[shifts.length][size * size];
+      for (int i = 0; i < shifts.length; i++) {
+         for (double[] spot : spots) {
+            double xc = spot[0] + shifts[i][0];
+            double yc = spot[1] + shifts[i][1];
+            for (int y = (int) yc - 4; y <= (int) yc + 4; y++) {
+               for (int x = (int) xc - 4; x <= (int) xc + 4; x++) {
+                  double dx = x - xc;
+                  double dy = y - yc;
+                  images[i][y * size + x] += (float) Math.exp(-(dx * dx + dy * dy) / 2.0);
+               }
+            }
+         }
+      }
+      return images;
+   }
+
+   private static double[][] createShifts(int n) {
+      double[][] shifts = new double[n][2];
+      for (int i = 1; i < n; i++) {
+         shifts[i][0] = 0.37 * i;
+         shifts[i][1] = -0.21 * i + Math.sin(i);
+      }
+      return shifts;
+   }
+
+   private static void check(double[][] shifts, Point2D.Double[] drift) {
+      for (int i = 0; i < shifts.length; i++) {
+         Assert.assertEquals(shifts[i][0], drift[i].x, TOLERANCE);
+         Assert.assertEquals(shifts[i][1], drift[i].y, TOLERANCE);
+      }
+   }
+
+   @Test
+   public void testDriftToReferenceAndRCC() throws InterruptedException, ExecutionException {
+      ExecutorService threadPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+      try {
+         for (int size : new int[]{128, 256, 512}) {
+            double[][] shifts = createShifts(12);
+            float[][] images = createImages(size, shifts, size);
+            ParallelJitterDetector jd = new ParallelJitterDetector(size, 32, threadPool);
+            long start = System.nanoTime();
+            for (float[] image : images) {
+               jd.transform(image);
+            }
+            long transformed = System.nanoTime();
+            Point2D.Double[] drift = jd.driftToReference(images);
+            long referenced = System.nanoTime();
+            check(shifts, drift);
+            Point2D.Double[] rccDrift = jd.driftRCC(images, 1.0);
+            long rcc = System.nanoTime();
+            check(shifts, rccDrift);
+            if (Boolean.getBoolean("benchmark")) {
+               System.out.println(String.format(
+                     "%dx%d, %d images: FFT %.1f ms, reference %.1f ms, RCC %.1f ms",
+                     size, size, images.length, (transformed - start) / 1.0e6,
+                     (referenced - transformed) / 1.0e6, (rcc - referenced) / 1.0e6));
+            }
+         }
+      } finally {
+         threadPool.shutdown();
+      }
+   }
+
+   @Test
+   public void testPadded() throws InterruptedException, ExecutionException {
+      ExecutorService threadPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+      try {
+         // like DriftCorrector does for images that are not a square power of 2
+         double[][] shifts = createShifts(8);
+         float[][] images = createImages(256, 200, 120, shifts, 150);
+         ParallelJitterDetector jd = new ParallelJitterDetector(256, 32, threadPool);
+         for (float[] image : images) {
+            jd.transform(image);
+         }
+         check(shifts, jd.driftToReference(images));
+         check(shifts, jd.driftRCC(images, 1.0));
+      } finally {
+         threadPool.shutdown();
+      }
+   }
+}
@@ -0,0 +1,92 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnarSpotFormatTest {
+
+   private static RowData createRowData(int nrFrames, int spotsPerFrame) {
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int f = 1; f <= nrFrames; f++) {
+         for (int i = 0; i < spotsPerFrame; i++) {
+            SpotData spot = new SpotData(null, 1, 1, f, 0, i, 10 + i, 20 + i);
+            spot.setData(1000.0 + i, 10.0, 100.5 * i, 200.25 * f, 0.0, 250.0, 1.1,
+                  0.3, 12.5);
+            spot.setZCenter(-50.0 + i);
+            spot.setOriginalPosition(100.0 * i, 200.0 * f, -50.0 + i);
+            if (i % 2 == 0) {
+               spot.addKeyValue(SpotData.Keys.APERTUREINTENSITY, 900.0 + i);
+            }
+            spots.add(spot);
+         }
+      }
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName("test").setTitle("test").setWidth(512).setHeight(256)
+            .setPixelSizeNm(107.0f).setShape(1).setNrFrames(nrFrames)
+            .setMaxNrSpots(spots.size()).setSpotList(spots)
+            .setCoordinate(DataCollectionForm.Coordinates.NM)
+            .setHasZ(true).setMinZ(-50.0).setMaxZ(-50.0 + spotsPerFrame - 1);
+      return builder.build();
+   }
+
+   private static void assertSameSpot(SpotData expected, SpotData actual) {
+      Assert.assertEquals(expected.getFrame(), actual.getFrame());
+      Assert.assertEquals(expected.getNr(), actual.getNr());
+      Assert.assertEquals(expected.getX(), actual.getX());
+      Assert.assertEquals(expected.getY(), actual.getY());
+      Assert.assertEquals(expected.getIntensity(), actual.getIntensity(), 0.0);
+      Assert.assertEquals(expected.getXCenter(), actual.getXCenter(), 0.0);
+      Assert.assertEquals(expected.getYCenter(), actual.getYCenter(), 0.0);
+      Assert.assertEquals(expected.getZCenter(), actual.getZCenter(), 0.0);
+      Assert.assertEquals(expected.getXOri(), actual.getXOri(), 0.0);
+      Assert.assertEquals(expected.getSigma(), actual.getSigma(), 0.0);
+      Assert.assertEquals(expected.hasKey(SpotData.Keys.APERTUREINTENSITY),
+            actual.hasKey(SpotData.Keys.APERTUREINTENSITY));
+      if (expected.hasKey(SpotData.Keys.APERTUREINTENSITY)) {
+         Assert.assertEquals(expected.getValue(SpotData.Keys.APERTUREINTENSITY),
+               actual.getValue(SpotData.Keys.APERTUREINTENSITY), 0.0);
+      }
+   }
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      RowData rowData = createRowData(25, 40);
+      for (boolean compress : new boolean[]{false, true}) {
+         File file = File.createTempFile("spots", ColumnarSpotFormat.EXTENSION);
+         file.deleteOnExit();
+         ColumnarSpotFormat.write(rowData, file, compress, 64);
+         RowData result = ColumnarSpotFormat.read(file).build();
+         Assert.assertEquals(rowData.getName(), result.getName());
+         Assert.assertEquals(rowData.width_, result.width_);
+         Assert.assertEquals(rowData.pixelSizeNm_, result.pixelSizeNm_, 0.0f);
+         Assert.assertEquals(rowData.hasZ_, result.hasZ_);
+         Assert.assertEquals(rowData.spotList_.size(), result.spotList_.size());
+         for (int i = 0; i < rowData.spotList_.size(); i++) {
+            assertSameSpot(rowData.spotList_.get(i), result.spotList_.get(i));
+         }
+      }
+   }
+
+   @Test
+   public void testFrameRange() throws IOException {
+      RowData rowData = createRowData(25, 40);
+      File file = File.createTempFile("spots", ColumnarSpotFormat.EXTENSION);
+      file.deleteOnExit();
+      ColumnarSpotFormat.write(rowData, file, false, 64);
+      ColumnarSpotFormat.FileInfo info = ColumnarSpotFormat.readInfo(file);
+      Assert.assertEquals(25 * 40, info.getNrSpots());
+      Assert.assertEquals((25 * 40 + 63) / 64, info.getNrChunks());
+      Assert.assertEquals(1, info.getFirstFrame());
+      Assert.assertEquals(25, info.getLastFrame());
+      RowData result = ColumnarSpotFormat.read(file, 5, 9).build();
+      Assert.assertEquals(5 * 40, result.spotList_.size());
+      for (SpotData spot : result.spotList_) {
+         Assert.assertTrue(spot.getFrame() >= 5 && spot.getFrame() <= 9);
+      }
+   }
+}
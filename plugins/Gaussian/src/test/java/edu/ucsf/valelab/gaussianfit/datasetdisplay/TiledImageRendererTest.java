@@ -0,0 +1,87 @@
+package edu.ucsf.valelab.gaussianfit.datasetdisplay;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TiledImageRendererTest {
+
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+   private static final float PIXEL_SIZE = 100.0f;
+
+   /**
+    * Spots well inside the image, where ImageRenderer draws them completely.
+    */
+   private static RowData createRowData(int nrSpots) {
+      Random random = new Random(26);
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int i = 0; i < nrSpots; i++) {
+         SpotData spot = new SpotData(null, 1, 1, 1, 0, i, 0, 0);
+         double x = (8.0 + random.nextDouble() * (WIDTH - 16)) * PIXEL_SIZE;
+         double y = (8.0 + random.nextDouble() * (HEIGHT - 16)) * PIXEL_SIZE;
+         spot.setData(1000.0, 10.0, x, y, 0.0, 250.0, 1.0, 0.0,
+               15.0 + 30.0 * random.nextDouble());
+         spots.add(spot);
+      }
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName("test").setTitle("test").setWidth(WIDTH).setHeight(HEIGHT)
+            .setPixelSizeNm(PIXEL_SIZE).setShape(1).setNrFrames(1)
+            .setMaxNrSpots(spots.size()).setSpotList(spots)
+            .setCoordinate(DataCollectionForm.Coordinates.NM);
+      return builder.build();
+   }
+
+   private static void assertSameImage(ImageProcessor expected, ImageProcessor actual,
+         double tolerance) {
+      Assert.assertEquals(expected.getWidth(), actual.getWidth());
+      Assert.assertEquals(expected.getHeight(), actual.getHeight());
+      for (int y = 0; y < expected.getHeight(); y++) {
+         for (int x = 0; x < expected.getWidth(); x++) {
+            Assert.assertEquals(x + ", " + y, expected.getf(x, y), actual.getf(x, y),
+                  tolerance);
+         }
+      }
+   }
+
+   @Test
+   public void testSameAsImageRenderer() {
+      RowData rowData = createRowData(300);
+      SpotDataFilter sf = new SpotDataFilter();
+      // small tiles, so that many spots straddle tile borders
+      TiledImageRenderer renderer = new TiledImageRenderer(3, 32);
+      for (int method = 0; method < 3; method++) {
+         ImageProcessor expected = ImageRenderer.renderData(rowData, method, 4.0, null, sf);
+         ImageProcessor actual = renderer.render(rowData, method, 4.0, null, sf);
+         Assert.assertTrue(expected.getStatistics().max > 0.0);
+         // normalized Gaussians have small values
+         assertSameImage(expected, actual, method == 2 ? 1.0e-6 : 1.0e-4);
+      }
+   }
+
+   @Test
+   public void testViewportMatchesFullImage() {
+      RowData rowData = createRowData(300);
+      SpotDataFilter sf = new SpotDataFilter();
+      TiledImageRenderer renderer = new TiledImageRenderer(2, 32);
+      // an image rendered at 2x, shown at 3x by the viewer
+      Rectangle srcRect = new Rectangle(17, 9, 50, 40);
+      for (int method = 0; method < 3; method++) {
+         ImageProcessor full = renderer.render(rowData, method, 6.0, null, sf);
+         full.setRoi(new Rectangle(3 * srcRect.x, 3 * srcRect.y, 3 * srcRect.width,
+               3 * srcRect.height));
+         ImageProcessor viewport = renderer.renderViewport(rowData, method, 2.0, 3.0,
+               srcRect, sf);
+         assertSameImage(full.crop(), viewport, 1.0e-6);
+      }
+   }
+
+}
@@ -0,0 +1,86 @@
+package edu.ucsf.valelab.gaussianfit.datasettransformations;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoordinateMapperGridTest {
+
+   private static final double SIZE = 20000.0;
+
+   // smooth, non-linear distortion of the kind seen between two cameras
+   private static Point2D.Double distort(double x, double y) {
+      return new Point2D.Double(
+            x * 1.002 + 0.001 * y + 150.0 + 40.0 * Math.sin(2.0 * Math.PI * x / 15000.0),
+            y * 0.998 - 0.001 * x - 80.0 + 30.0 * Math.cos(2.0 * Math.PI * y / 12000.0));
+   }
+
+   private static CoordinateMapper createMapper(int method) {
+      Random random = new Random(29);
+      CoordinateMapper.PointMap pointMap = new CoordinateMapper.PointMap();
+      for (int i = 0; i < 20; i++) {
+         for (int j = 0; j < 20; j++) {
+            double x = (i + 0.5 + 0.4 * (random.nextDouble() - 0.5)) * SIZE / 20;
+            double y = (j + 0.5 + 0.4 * (random.nextDouble() - 0.5)) * SIZE / 20;
+            pointMap.put(new Point2D.Double(x, y), distort(x, y));
+         }
+      }
+      return new CoordinateMapper(pointMap, 2, method, false);
+   }
+
+   private static double maxGridError(int method) throws Exception {
+      CoordinateMapper mapper = createMapper(method);
+      Random random = new Random(7);
+      final int n = 5000;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      for (int i = 0; i < n; i++) {
+         xs[i] = (0.05 + 0.9 * random.nextDouble()) * SIZE;
+         ys[i] = (0.05 + 0.9 * random.nextDouble()) * SIZE;
+      }
+      double[][] exact = mapper.transform(xs, ys);
+      mapper.precomputeGrid();
+      Assert.assertTrue(mapper.getGridNodeCount() > 0);
+      double[][] gridded = mapper.transform(xs, ys);
+      double maxError = 0.0;
+      for (int i = 0; i < n; i++) {
+         if (Double.isNaN(exact[0][i])) {
+            Assert.assertTrue(Double.isNaN(gridded[0][i]));
+            continue;
+         }
+         maxError = Math.max(maxError, Math.hypot(exact[0][i] - gridded[0][i],
+               exact[1][i] - gridded[1][i]));
+      }
+      return maxError;
+   }
+
+   @Test
+   public void testGridErrorLwm() throws Exception {
+      Assert.assertTrue(maxGridError(CoordinateMapper.LWM) < 0.1);
+   }
+
+   @Test
+   public void testGridErrorPiecewiseAffine() throws Exception {
+      // the local fits change abruptly when the set of neighbors changes, which the
+      // interpolation smooths over; still far below the localization precision
+      Assert.assertTrue(maxGridError(CoordinateMapper.PIECEWISEAFFINE) < 5.0);
+   }
+
+   @Test
+   public void testParameterChangeDiscardsGrid() throws Exception {
+      CoordinateMapper mapper = createMapper(CoordinateMapper.PIECEWISEAFFINE);
+      mapper.precomputeGrid(16);
+      Assert.assertTrue(mapper.getGridNodeCount() > 0);
+      mapper.setMethod(CoordinateMapper.LWM);
+      mapper.setPieceWiseAffineMaxDistance(2000.0);
+      mapper.setMethod(CoordinateMapper.PIECEWISEAFFINE);
+      Assert.assertEquals(0, mapper.getGridNodeCount());
+
+      mapper.precomputeGrid(16);
+      mapper.setMethod(CoordinateMapper.AFFINE);
+      mapper.setPieceWiseAffineMaxControlPoints(50);
+      mapper.setMethod(CoordinateMapper.PIECEWISEAFFINE);
+      Assert.assertEquals(0, mapper.getGridNodeCount());
+   }
+}
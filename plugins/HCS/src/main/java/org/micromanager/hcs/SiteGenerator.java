@@ -14,7 +14,9 @@ import java.awt.geom.Point2D;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -38,6 +40,7 @@ import org.micromanager.Studio;
 // maintainability. However, this plugin code is older than the current
 // MMStudio API, so it still uses internal classes and interfaces. New code
 // should not imitate this practice.
+import org.micromanager.internal.positionlist.utils.PositionOrderOptimizer;
 import org.micromanager.internal.utils.NumberUtils;
 import org.micromanager.internal.utils.TextUtils;
 import org.micromanager.internal.utils.WindowPositioning;
@@ -57,6 +60,7 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
    private static final String SNAKE_ORDER = "Snake";
    private static final String TYPEWRITER_ORDER = "Typewriter";
    private static final String CASCADE_ORDER = "Cascade";
+   private static final String SHORTEST_PATH_ORDER = "Shortest Path";
    
    private static final String ZPLANESTAGE = "Z-Plane stage: ";
 
@@ -321,7 +325,7 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
       sidebar.add(visitOrderInWell_, "growx");
 
       visitOrderBetweenWells_ = new JComboBox<>(
-            new String[] {SNAKE_ORDER, TYPEWRITER_ORDER, CASCADE_ORDER});
+            new String[] {SNAKE_ORDER, TYPEWRITER_ORDER, CASCADE_ORDER, SHORTEST_PATH_ORDER});
       visitOrderBetweenWells_.addActionListener((ActionEvent e) -> regenerate());
       sidebar.add(new JLabel("Between wells:"), "split 2");
       sidebar.add(visitOrderBetweenWells_, "growx");
@@ -481,6 +485,9 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
       } else {
          platePl = studio_.positions().getPositionList();
       }
+      // positions of the selected wells, in the order they will be visited
+      PositionList newPl = new PositionList();
+      Map<MultiStagePosition, String> wellOfPosition = new IdentityHashMap<>();
       for (WellPositionList wpl1 : wpl) {
          PositionList pl = PositionList.newInstance(wpl1.getSitePositions());
          for (int j = 0; j < pl.getNumberOfPositions(); j++) {
@@ -514,8 +521,30 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
                        focusPlane_.getZPos(msp.getX(), msp.getY()));
                msp.add(sp);
             }
-            platePl.addPosition(pl.getPosition(j));
+            newPl.addPosition(msp);
+            wellOfPosition.put(msp, wpl1.getLabel());
+         }
+      }
+
+      if (betweenWellOrder.equals(SHORTEST_PATH_ORDER)) {
+         // keep all sites of a well together, but choose the order of wells
+         // and of sites within wells that minimizes stage travel
+         PositionOrderOptimizer optimizer = new PositionOrderOptimizer();
+         double before = optimizer.estimateTravelTimeMs(newPl);
+         MultiStagePosition[] ordered = optimizer.optimize(newPl, wellOfPosition::get);
+         double after = optimizer.estimateTravelTimeMs(ordered);
+         if (after < before) {
+            newPl.setPositions(ordered);
+         } else {
+            after = before;
          }
+         String report = String.format("Estimated stage travel time: %.1f s, "
+               + "shortest path: %.1f s", before / 1000.0, after / 1000.0);
+         studio_.logs().logMessage("HCS: " + report);
+         statusLabel_.setText(report);
+      }
+      for (MultiStagePosition msp : newPl.getPositions()) {
+         platePl.addPosition(msp);
       }
 
       try {
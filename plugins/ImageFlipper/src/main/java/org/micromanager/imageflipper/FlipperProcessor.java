@@ -20,17 +20,21 @@
 
 package org.micromanager.imageflipper;
 
-import ij.process.ImageProcessor;
+import java.util.Collections;
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
 import org.micromanager.Studio;
+import org.micromanager.data.Coords;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
-import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.internal.pipeline.GeometricPlan;
+import org.micromanager.data.internal.pipeline.GeometricProcessor;
+import org.micromanager.data.internal.pipeline.GeometricStage;
+import org.micromanager.data.internal.pipeline.GeometricTransform;
 
 
-public class FlipperProcessor implements Processor {
+public class FlipperProcessor implements GeometricProcessor {
 
    // Valid rotation values.
    public static final int R0 = 0;
@@ -39,6 +43,7 @@ public class FlipperProcessor implements Processor {
    public static final int R270 = 270;
 
    private final Studio studio_;
+   private final GeometricStage stage_ = new GeometricStage(this);
    String camera_;
    boolean isMirrored_;
    int rotation_;
@@ -62,51 +67,52 @@ public class FlipperProcessor implements Processor {
     */
    @Override
    public void processImage(Image image, ProcessorContext context) {
-      // to allow processing old data, we do not check for the camera when no 
-      // camera was selected
-      if (!camera_.isEmpty()) {
-         String imageCam = image.getMetadata().getCamera();
-         if (imageCam == null || !imageCam.equals(camera_)) {
-            // Image is for the wrong camera; just pass it along unmodified.
-            context.outputImage(image);
-            return;
-         }
-      }
-      context.outputImage(
-            transformImage(studio_, image, isMirrored_, rotation_));
+      stage_.processImage(image, context);
+   }
+
+   @Override
+   public boolean isIdentity() {
+      return rotation_ == R0 && !isMirrored_;
+   }
+
+   @Override
+   public boolean acceptsImage(Image image) {
+      return isForOurCamera(image.getMetadata());
    }
 
    /**
-    * Executes image transformation
-    * First mirror the image if requested, than rotate as requested
-    *
-    * @param studio
-    * @param image      Image to be transformed.
-    * @param isMirrored Whether or not to mirror the image.
-    * @param rotation   Degrees to rotate by (R0, R90, R180, R270)
-    * @return - Transformed Image, otherwise a copy of the input
+    * To allow processing old data, we do not check for the camera when no
+    * camera was selected.
     */
-   public static Image transformImage(Studio studio, Image image,
-                                      boolean isMirrored, int rotation) {
+   private boolean isForOurCamera(Metadata metadata) {
+      return camera_.isEmpty() || camera_.equals(metadata.getCamera());
+   }
 
-      ImageProcessor proc = studio.data().ij().createProcessor(image);
+   @Override
+   public Step describe(Coords coords, Metadata metadata) {
+      if (!isForOurCamera(metadata)) {
+         // Image is for the wrong camera; just pass it along unmodified.
+         return null;
+      }
+      return new Step(getTransform(isMirrored_, rotation_), coords,
+            addMetadata(metadata, isMirrored_, rotation_));
+   }
 
+   private static GeometricTransform getTransform(boolean isMirrored, int rotation) {
+      GeometricTransform transform = GeometricTransform.identity();
       if (isMirrored) {
-         proc.flipHorizontal();
+         transform = transform.mirror();
       }
-      if (rotation == R90) {
-         proc = proc.rotateRight();
-      }
-      if (rotation == R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
-      }
-      if (rotation == R270) {
-         proc = proc.rotateLeft();
-      }
-      // Insert some metadata to indicate what we did to the image.
+      return transform.rotate(rotation);
+   }
+
+   /**
+    * Insert some metadata to indicate what we did to the image.
+    */
+   private static Metadata addMetadata(Metadata metadata, boolean isMirrored,
+                                       int rotation) {
       PropertyMap.Builder builder;
-      PropertyMap userData = image.getMetadata().getUserData();
+      PropertyMap userData = metadata.getUserData();
       if (userData != null) {
          builder = userData.copyBuilder();
       } else {
@@ -114,10 +120,30 @@ public class FlipperProcessor implements Processor {
       }
       builder.putInteger("ImageFlipper-Rotation", rotation);
       builder.putString("ImageFlipper-Mirror", isMirrored ? "On" : "Off");
-      Metadata newMetadata =
-            image.getMetadata().copyBuilderPreservingUUID().userData(builder.build()).build();
-      Image result = studio.data().ij().createImage(proc, image.getCoords(),
-            newMetadata);
-      return result;
+      return metadata.copyBuilderPreservingUUID().userData(builder.build()).build();
+   }
+
+   /**
+    * Executes image transformation
+    * First mirror the image if requested, than rotate as requested
+    *
+    * @param studio
+    * @param image      Image to be transformed.
+    * @param isMirrored Whether or not to mirror the image.
+    * @param rotation   Degrees to rotate by (R0, R90, R180, R270)
+    * @return - Transformed Image, otherwise a copy of the input
+    */
+   public static Image transformImage(Studio studio, Image image,
+                                      boolean isMirrored, int rotation) {
+      Object pixels = image.getRawPixels();
+      GeometricTransform.Mapping mapping = getTransform(isMirrored, rotation)
+            .map(image.getWidth(), image.getHeight()).get(0);
+      GeometricPlan plan = new GeometricPlan(Collections.singletonList(mapping),
+            image.getWidth(), image.getHeight(),
+            pixels instanceof byte[] ? image.getBytesPerPixel() : 1);
+      return studio.data().createImage(plan.apply(pixels, null)[0],
+            mapping.getWidth(), mapping.getHeight(), image.getBytesPerPixel(),
+            image.getNumComponents(), image.getCoords(),
+            addMetadata(image.getMetadata(), isMirrored, rotation));
    }
 }
@@ -23,8 +23,10 @@ import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -72,6 +74,11 @@ public abstract class SurfaceInterpolator extends XYFootprint {
    protected volatile int boundYPixelMax_;
    protected volatile int minPixelsPerInterpPoint_ = 1;
    private ExecutorService executor_;
+   // overlap of XY positions with the convex hull at the last fit, keyed by the
+   // corners of the position. Only accessed from the calculation thread
+   private Map<List<Point2D.Double>, Boolean> tileIntersections_;
+   private Vector2D[] tileIntersectionsHullVertices_;
+   private Region<Euclidean2D> tileIntersectionsHullRegion_;
    protected volatile SingleResolutionInterpolation currentInterpolation_;
    private volatile Future currentInterpolationTask_;
    //Objects for wait/notify sync of calcualtions
@@ -418,21 +425,36 @@ public abstract class SurfaceInterpolator extends XYFootprint {
          }
       }
       //delete positions squares (+padding) that do not overlap convex hull
+      final long startTime = System.currentTimeMillis();
+      Map<List<Point2D.Double>, Boolean> previousTiles = getReusableTileIntersections();
+      Map<List<Point2D.Double>, Boolean> tiles = new HashMap<List<Point2D.Double>, Boolean>();
+      int numTested = 0;
       for (int i = positions.size() - 1; i >= 0; i--) {
          if (Thread.interrupted()) {
             throw new InterruptedException();
          }
          XYStagePosition pos = positions.get(i);
-         //create square region correpsonding to stage pos
-         Region<Euclidean2D> square = getStagePositionRegion(
-                 pos.getVisibleTileCorners(overlapX, overlapY));
-         //if convex hull and position have no intersection, delete
-         Region<Euclidean2D> intersection = regionFactory_.intersection(square, convexHullRegion_);
-         if (intersection.isEmpty()) {
+         Point2D.Double[] corners = pos.getVisibleTileCorners(overlapX, overlapY);
+         List<Point2D.Double> key = Arrays.asList(corners);
+         Boolean intersects = previousTiles.get(key);
+         if (intersects == null) {
+            //create square region correpsonding to stage pos
+            Region<Euclidean2D> square = getStagePositionRegion(corners);
+            //if convex hull and position have no intersection, delete
+            intersects = !regionFactory_.intersection(square, convexHullRegion_).isEmpty();
+            numTested++;
+         }
+         tiles.put(key, intersects);
+         if (!intersects) {
             positions.remove(i);
          }
-         square.getBoundarySize();
       }
+      tileIntersections_ = tiles;
+      tileIntersectionsHullVertices_ = convexHullVertices_;
+      tileIntersectionsHullRegion_ = convexHullRegion_;
+      Log.log("Surface " + getName() + ": tested " + numTested + " of " + tiles.size()
+            + " positions for overlap with convex hull in "
+            + (System.currentTimeMillis() - startTime) + " ms", false);
       if (Thread.interrupted()) {
          throw new InterruptedException();
       }
@@ -445,6 +467,40 @@ public abstract class SurfaceInterpolator extends XYFootprint {
       manager_.surfaceOrGridUpdated(this);
    }
 
+   /**
+    * Results of the overlap tests of the previous fit that are still valid for the
+    * current convex hull.  When the hull only grew, positions that overlapped it
+    * still do, and when it only shrank, positions that did not overlap still don't.
+    */
+   private Map<List<Point2D.Double>, Boolean> getReusableTileIntersections() {
+      Map<List<Point2D.Double>, Boolean> reusable = new HashMap<List<Point2D.Double>, Boolean>();
+      if (tileIntersectionsHullVertices_ == null) {
+         return reusable;
+      }
+      if (Arrays.equals(tileIntersectionsHullVertices_, convexHullVertices_)) {
+         return tileIntersections_;
+      }
+      boolean grown = containsAll(convexHullRegion_, tileIntersectionsHullVertices_);
+      boolean shrunk = containsAll(tileIntersectionsHullRegion_, convexHullVertices_);
+      if (grown || shrunk) {
+         for (Map.Entry<List<Point2D.Double>, Boolean> entry : tileIntersections_.entrySet()) {
+            if (entry.getValue() ? grown : shrunk) {
+               reusable.put(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+      return reusable;
+   }
+
+   private static boolean containsAll(Region<Euclidean2D> region, Vector2D[] vertices) {
+      for (Vector2D vertex : vertices) {
+         if (region.checkPoint(vertex) == Region.Location.OUTSIDE) {
+            return false;
+         }
+      }
+      return true;
+   }
+
    public synchronized void deleteAllPoints() {
       points_.clear();
    }
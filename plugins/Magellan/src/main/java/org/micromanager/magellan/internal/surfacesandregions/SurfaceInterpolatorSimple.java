@@ -20,15 +20,25 @@ package org.micromanager.magellan.internal.surfacesandregions;
 import delaunay_triangulation.Delaunay_Triangulation;
 import delaunay_triangulation.Point_dt;
 import delaunay_triangulation.Triangle_dt;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.apache.commons.math3.geometry.partitioning.Region;
 import org.micromanager.magellan.internal.main.Magellan;
+import org.micromanager.magellan.internal.misc.Log;
 
 /**
  * Subclass that implements a particular interpolation method This one creates a
@@ -39,12 +49,16 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
    private static final double TOLERANCE = 0.01;
 
+   // interpolation calculated last time at each resolution, used to recalculate only
+   // the grid points whose triangle changed. Only accessed from the calculation thread
+   private final Map<Integer, Level> previousLevels_ = new HashMap<Integer, Level>();
+
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
    }
 
    protected void interpolateSurface(LinkedList<Point3d> points) throws InterruptedException {
-
+      final long startTime = System.currentTimeMillis();
       double pixSize = Magellan.getCore().getPixelSizeUm();
       if (pixSize == 0) {
          throw new RuntimeException("Pixel size is 0");
@@ -55,6 +69,9 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
       }
       Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      Set<TriangleKey> triangles = getTriangleKeys(dTri);
+      // plane of every triangle is calculated only once, shared by all resolutions
+      Map<Triangle_dt, double[]> planes = new IdentityHashMap<Triangle_dt, double[]>();
 
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_)
             / pixSize);
@@ -72,7 +89,8 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       double pixelRes = pixelWidth * pixelHeight;
       double maxPixels = 0.2 * 1024 * 1024 * 1024 / 4.0; //200 MB worth of floats
       minPixelsPerInterpPoint_ = Math.max(2, (int) (pixelRes / maxPixels));
-      
+
+      long numCellsCalculated = 0;
       while (pixelsPerInterpPoint >= minPixelsPerInterpPoint_) {
          int numInterpPointsX = (int) (((boundXMax_ - boundXMin_) / pixSize)
                / pixelsPerInterpPoint);
@@ -84,39 +102,51 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
          float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
          boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
+         Level previous = previousLevels_.get(pixelsPerInterpPoint);
+         if (previous != null && previous.pixSize_ == pixSize
+               && Arrays.equals(previous.convexHullVertices_, convexHullVertices_)
+               && numInterpPointsY > 0 && previous.vals_.length == numInterpPointsY
+               && previous.vals_[0].length == numInterpPointsX) {
+            // Same grid as last time, only cells covered by triangles that were
+            // removed or created by the change of points need to be recalculated
+            for (int yInd = 0; yInd < numInterpPointsY; yInd++) {
+               System.arraycopy(previous.vals_[yInd], 0, interpVals[yInd], 0, numInterpPointsX);
+               System.arraycopy(previous.normals_[yInd], 0, interpNormals[yInd], 0,
+                     numInterpPointsX);
+               System.arraycopy(previous.defined_[yInd], 0, interpDefined[yInd], 0,
+                     numInterpPointsX);
+            }
+            for (double[] bounds : getChangedTriangleBounds(previous.triangles_, triangles)) {
+               int xMin = Math.max(0, (int) Math.floor((bounds[0] - boundXMin_) / dx));
+               int xMax = Math.min(numInterpPointsX - 1,
+                     (int) Math.ceil((bounds[1] - boundXMin_) / dx));
+               int yMin = Math.max(0, (int) Math.floor((bounds[2] - boundYMin_) / dy));
+               int yMax = Math.min(numInterpPointsY - 1,
+                     (int) Math.ceil((bounds[3] - boundYMin_) / dy));
+               for (int yInd = yMin; yInd <= yMax; yInd++) {
+                  for (int xInd = xMin; xInd <= xMax; xInd++) {
+                     interpolateGridPoint(dTri, planes, boundXMin_ + dx * xInd,
+                           boundYMin_ + dy * yInd, xInd, yInd, interpVals, interpNormals,
+                           interpDefined);
+                     numCellsCalculated++;
+                  }
                }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal))
-                     == Region.Location.INSIDE;
-               if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-                  //intersetion of vertical line at these x+y values with plane gives point in plane
-                  Vector3D pointInPlane = plane.intersection(new Line(
-                        new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(),
-                        new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
-               } else {
-                  interpDefined[yInd][xInd] = false;
+            }
+         } else {
+            for (int yInd = 0; yInd < interpVals.length; yInd++) {
+               for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
+                  interpolateGridPoint(dTri, planes, boundXMin_ + dx * xInd,
+                        boundYMin_ + dy * yInd, xInd, yInd, interpVals, interpNormals,
+                        interpDefined);
                }
             }
+            numCellsCalculated += (long) numInterpPointsX * numInterpPointsY;
          }
          if (Thread.interrupted()) {
             throw new InterruptedException();
          }
+         previousLevels_.put(pixelsPerInterpPoint, new Level(pixSize, convexHullVertices_,
+               triangles, interpVals, interpNormals, interpDefined));
          synchronized (interpolationLock_) {
             currentInterpolation_ = new SingleResolutionInterpolation(pixelsPerInterpPoint,
                   interpDefined, interpVals, interpNormals,
@@ -127,6 +157,91 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          }
          pixelsPerInterpPoint /= 2;
       }
+      Log.log("Surface " + getName() + ": interpolated " + points.size() + " points, "
+            + numCellsCalculated + " grid points calculated in "
+            + (System.currentTimeMillis() - startTime) + " ms", false);
+   }
+
+   /**
+    * Calculates the value and normal of a single point of the interpolation grid from
+    * the plane through the triangle containing it.
+    */
+   private void interpolateGridPoint(Delaunay_Triangulation dTri, Map<Triangle_dt, double[]> planes,
+         double xVal, double yVal, int xInd, int yInd, float[][] interpVals,
+         float[][] interpNormals, boolean[][] interpDefined) throws InterruptedException {
+      if (Thread.interrupted()) {
+         throw new InterruptedException();
+      }
+      boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal))
+            == Region.Location.INSIDE;
+      if (!inHull) {
+         interpDefined[yInd][xInd] = false;
+         return;
+      }
+      Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
+      double[] plane = planes.get(tri);
+      if (plane == null) {
+         plane = getPlane(tri);
+         planes.put(tri, plane);
+      }
+      interpVals[yInd][xInd] = (float) (plane[2] + plane[3] * (xVal - plane[0])
+            + plane[4] * (yVal - plane[1]));
+      interpNormals[yInd][xInd] = (float) plane[5];
+      interpDefined[yInd][xInd] = true;
+   }
+
+   /**
+    * Plane through the corners of a triangle.
+    *
+    * @return a point {x, y, z} in the plane, the slopes dz/dx and dz/dy, and the
+    *     angle of the normal to vertical in degrees
+    */
+   private static double[] getPlane(Triangle_dt tri) {
+      //convert to apache commons coordinates to make a plane
+      Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
+      Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
+      Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
+      Vector3D normal = v2.subtract(v1).crossProduct(v3.subtract(v1));
+      double angle = Vector3D.angle(normal, Vector3D.PLUS_K) / Math.PI * 180.0;
+      // z as a function of x and y
+      double slopeX = -normal.getX() / normal.getZ();
+      double slopeY = -normal.getY() / normal.getZ();
+      return new double[] {v1.getX(), v1.getY(), v1.getZ(), slopeX, slopeY, angle};
+   }
+
+   private static Set<TriangleKey> getTriangleKeys(Delaunay_Triangulation dTri) {
+      Set<TriangleKey> keys = new HashSet<TriangleKey>();
+      Iterator<Triangle_dt> iterator = dTri.trianglesIterator();
+      while (iterator.hasNext()) {
+         Triangle_dt tri = iterator.next();
+         if (!tri.isHalfplane()) {
+            keys.add(new TriangleKey(tri));
+         }
+      }
+      return keys;
+   }
+
+   /**
+    * XY bounding boxes of the triangles that are only present in one of both
+    * triangulations.  Together they cover all of the area where the interpolation
+    * changed.
+    *
+    * @return list of {xMin, xMax, yMin, yMax}
+    */
+   private static List<double[]> getChangedTriangleBounds(Set<TriangleKey> previous,
+         Set<TriangleKey> current) {
+      List<double[]> bounds = new ArrayList<double[]>();
+      for (TriangleKey key : previous) {
+         if (!current.contains(key)) {
+            bounds.add(key.getBounds());
+         }
+      }
+      for (TriangleKey key : current) {
+         if (!previous.contains(key)) {
+            bounds.add(key.getBounds());
+         }
+      }
+      return bounds;
    }
 
    @Override
@@ -181,6 +296,73 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       return zVal;
    }
 
-   
-   
+   /**
+    * Triangle identified by its corners, independent of their order.
+    */
+   private static class TriangleKey {
+      private final double[] coords_;
+
+      TriangleKey(Triangle_dt tri) {
+         Point_dt[] corners = new Point_dt[] {tri.p1(), tri.p2(), tri.p3()};
+         Arrays.sort(corners, new Comparator<Point_dt>() {
+            @Override
+            public int compare(Point_dt p1, Point_dt p2) {
+               if (p1.x() != p2.x()) {
+                  return Double.compare(p1.x(), p2.x());
+               }
+               if (p1.y() != p2.y()) {
+                  return Double.compare(p1.y(), p2.y());
+               }
+               return Double.compare(p1.z(), p2.z());
+            }
+         });
+         coords_ = new double[9];
+         for (int i = 0; i < 3; i++) {
+            coords_[3 * i] = corners[i].x();
+            coords_[3 * i + 1] = corners[i].y();
+            coords_[3 * i + 2] = corners[i].z();
+         }
+      }
+
+      double[] getBounds() {
+         return new double[] {
+               Math.min(coords_[0], Math.min(coords_[3], coords_[6])),
+               Math.max(coords_[0], Math.max(coords_[3], coords_[6])),
+               Math.min(coords_[1], Math.min(coords_[4], coords_[7])),
+               Math.max(coords_[1], Math.max(coords_[4], coords_[7]))};
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         return other instanceof TriangleKey
+               && Arrays.equals(coords_, ((TriangleKey) other).coords_);
+      }
+
+      @Override
+      public int hashCode() {
+         return Arrays.hashCode(coords_);
+      }
+   }
+
+   /**
+    * Interpolation at a single resolution, with what it was calculated from.
+    */
+   private static class Level {
+      final double pixSize_;
+      final Vector2D[] convexHullVertices_;
+      final Set<TriangleKey> triangles_;
+      final float[][] vals_;
+      final float[][] normals_;
+      final boolean[][] defined_;
+
+      Level(double pixSize, Vector2D[] convexHullVertices, Set<TriangleKey> triangles,
+            float[][] vals, float[][] normals, boolean[][] defined) {
+         pixSize_ = pixSize;
+         convexHullVertices_ = convexHullVertices;
+         triangles_ = triangles;
+         vals_ = vals;
+         normals_ = normals;
+         defined_ = defined;
+      }
+   }
 }
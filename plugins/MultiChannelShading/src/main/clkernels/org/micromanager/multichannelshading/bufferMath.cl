@@ -1,15 +1,19 @@
 /**
   Simple kernels for manipulation of images
   Treat images as buffers
+  Results are clamped to the range of the pixel type, like in ShadingKernel.java
 */
 
+// no fused multiply-add, so that results are the same as those of the CPU
+#pragma OPENCL FP_CONTRACT OFF
+
 
 __kernel void subtractUS( __global ushort* a,
                           const __global ushort* b) 
 {  
    int i = get_global_id(0);
   
-   a[i] = a[i] - b[i];
+   a[i] = sub_sat(a[i], b[i]);
 }
 
 __kernel void subtractUB( __global uchar* a,
@@ -17,7 +21,7 @@ __kernel void subtractUB( __global uchar* a,
 {
    int i = get_global_id(0);
   
-   a[i] = a[i] - b[i];
+   a[i] = sub_sat(a[i], b[i]);
 }
 
 __kernel void multiplyUSF(__global ushort* a,
@@ -25,7 +29,7 @@ __kernel void multiplyUSF(__global ushort* a,
 {
     int i = get_global_id(0);
 
-    a[i] = (ushort) ( (a[i] * b[i]) + 0.5f);
+    a[i] = convert_ushort_sat( (a[i] * b[i]) + 0.5f);
 }
 
 __kernel void multiplyUBF(__global uchar* a,
@@ -33,7 +37,7 @@ __kernel void multiplyUBF(__global uchar* a,
 {
     int i = get_global_id(0);
 
-    a[i] = (uchar) ( (a[i] * b[i]) + 0.5f);
+    a[i] = convert_uchar_sat( (a[i] * b[i]) + 0.5f);
 }
 
 
@@ -43,7 +47,7 @@ __kernel void subtractAndMultiplyUSF(__global ushort* a,
 {
     int i = get_global_id(0);
 
-    a[i] = convert_ushort ( ((a[i] - background[i]) * (flatField[i]) + 0.5f));
+    a[i] = convert_ushort_sat ( ((a[i] - background[i]) * (flatField[i]) + 0.5f));
 }
 
 __kernel void subtractAndMultiplyUBF(__global uchar* a,
@@ -52,5 +56,5 @@ __kernel void subtractAndMultiplyUBF(__global uchar* a,
 {
     int i = get_global_id(0);
 
-    a[i] = convert_uchar ( ((a[i] - background[i]) * (flatField[i]) + 0.5f));
+    a[i] = convert_uchar_sat ( ((a[i] - background[i]) * (flatField[i]) + 0.5f));
 }
\ No newline at end of file
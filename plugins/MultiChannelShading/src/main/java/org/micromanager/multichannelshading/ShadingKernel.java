@@ -0,0 +1,146 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.ImageProcessor;
+import org.micromanager.imageprocessing.PixelBands;
+
+/**
+ * CPU version of the kernels in bufferMath.cl: subtracts a background and
+ * multiplies by a flat-field gain, in one pass over the pixels:
+ * out = saturate((int) ((in - background) * gain + 0.5f)).
+ *
+ * <p>Background and gain are copied into arrays once, when the kernel is
+ * made, so that applying it does not allocate anything.  The arithmetic is
+ * the same as in the OpenCL kernels, so both give the same result.  Large
+ * images are divided in bands of rows that are processed in parallel.</p>
+ */
+public final class ShadingKernel {
+   private final int width_;
+   private final int height_;
+   // background as unsigned 16-bit integers, like the OpenCL kernels use it
+   private final short[] offset_;
+   private final float[] gain_;
+
+   /**
+    * Creates the kernel.
+    *
+    * @param background image to subtract, or null.  Pixel values are rounded
+    *                   to whole numbers.
+    * @param flatField gain to multiply with, i.e. mean of the flat-field image
+    *                  divided by the flat-field image, or null
+    * @throws ShadingException when neither is given, or their sizes differ
+    */
+   public ShadingKernel(ImageProcessor background, ImageProcessor flatField)
+         throws ShadingException {
+      ImageProcessor any = background != null ? background : flatField;
+      if (any == null) {
+         throw new ShadingException("No background and no flat-field image");
+      }
+      width_ = any.getWidth();
+      height_ = any.getHeight();
+      checkSize(background);
+      checkSize(flatField);
+      if (background == null) {
+         offset_ = null;
+      } else {
+         offset_ = new short[width_ * height_];
+         for (int i = 0; i < offset_.length; i++) {
+            offset_[i] = (short) Math.max(0, Math.min(65535, Math.round(background.getf(i))));
+         }
+      }
+      if (flatField == null) {
+         gain_ = null;
+      } else {
+         gain_ = new float[width_ * height_];
+         for (int i = 0; i < gain_.length; i++) {
+            gain_[i] = flatField.getf(i);
+         }
+      }
+   }
+
+   private void checkSize(ImageProcessor proc) throws ShadingException {
+      if (proc != null && (proc.getWidth() != width_ || proc.getHeight() != height_)) {
+         throw new ShadingException("Background and flat-field image differ in size");
+      }
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   // The loops below clamp with Math.min and Math.max on ints, which the JIT
+   // compiles to vector instructions; casting a float to int rounds toward
+   // zero and turns NaN into 0, like OpenCL's convert_*_sat.
+
+   /**
+    * Corrects 16-bit pixels.
+    *
+    * @param in pixels of an image of the size of this kernel
+    * @param out destination, can be the same array as in
+    */
+   public void apply(short[] in, short[] out) {
+      checkLength(in.length, out.length);
+      final short[] offset = offset_;
+      final float[] gain = gain_;
+      forEachBand((band, start, end) -> {
+         if (offset != null && gain != null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (short) Math.max(0, Math.min(65535,
+                     (int) (((in[i] & 0xffff) - (offset[i] & 0xffff)) * gain[i] + 0.5f)));
+            }
+         } else if (offset != null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (short) Math.max(0, (in[i] & 0xffff) - (offset[i] & 0xffff));
+            }
+         } else {
+            for (int i = start; i < end; i++) {
+               out[i] = (short) Math.max(0, Math.min(65535,
+                     (int) ((in[i] & 0xffff) * gain[i] + 0.5f)));
+            }
+         }
+      });
+   }
+
+   /**
+    * Corrects 8-bit pixels.
+    *
+    * @param in pixels of an image of the size of this kernel
+    * @param out destination, can be the same array as in
+    */
+   public void apply(byte[] in, byte[] out) {
+      checkLength(in.length, out.length);
+      final short[] offset = offset_;
+      final float[] gain = gain_;
+      forEachBand((band, start, end) -> {
+         if (offset != null && gain != null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (byte) Math.max(0, Math.min(255,
+                     (int) (((in[i] & 0xff) - (offset[i] & 0xffff)) * gain[i] + 0.5f)));
+            }
+         } else if (offset != null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (byte) Math.max(0, (in[i] & 0xff) - (offset[i] & 0xffff));
+            }
+         } else {
+            for (int i = start; i < end; i++) {
+               out[i] = (byte) Math.max(0, Math.min(255,
+                     (int) ((in[i] & 0xff) * gain[i] + 0.5f)));
+            }
+         }
+      });
+   }
+
+   private void checkLength(int in, int out) {
+      if (in != width_ * height_ || out != in) {
+         throw new IllegalArgumentException("Image is not " + width_ + " x " + height_
+               + " pixels");
+      }
+   }
+
+   private void forEachBand(PixelBands.Band band) {
+      PixelBands.forEach(width_ * height_, PixelBands.rows(width_), band);
+   }
+}
@@ -33,10 +33,12 @@ import clearcl.backend.ClearCLBackends;
 import clearcl.enums.BuildStatus;
 import clearcl.exceptions.OpenCLException;
 import coremem.enums.NativeTypeEnum;
-import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.micromanager.PropertyMap;
 import org.micromanager.Studio;
 import org.micromanager.data.Image;
@@ -50,6 +52,7 @@ import org.micromanager.data.internal.DefaultImage;
  * @author nico, modified for MM2.0 by Chris Weisiger
  */
 public class ShadingProcessor implements Processor {
+   private static final int MAX_KERNELS = 32;
 
    private final Studio studio_;
    private final String channelGroup_;
@@ -61,6 +64,7 @@ public class ShadingProcessor implements Processor {
    private ClearCL ccl_;
    private ClearCLContext cclContext_;
    private ClearCLProgram cclProgram_;
+   private final Map<List<ImagePlusInfo>, ShadingKernel> kernels_ = new HashMap<>();
 
    public ShadingProcessor(Studio studio, String channelGroup,
                            Boolean useOpenCL, String backgroundFile, List<String> presets,
@@ -177,9 +181,6 @@ public class ShadingProcessor implements Processor {
       Metadata metadata = image.getMetadata();
       PropertyMap userData = metadata.getUserData();
 
-      Image bgSubtracted = image;
-      Image result;
-
       // subtract background
       Integer binning = metadata.getBinning();
       if (binning == null) {
@@ -265,78 +266,78 @@ public class ShadingProcessor implements Processor {
       }
 
 
-      if (background != null) {
-         ImageProcessor ip = studio_.data().ij().createProcessor(image);
-         ImageProcessor ipBackground = background.getProcessor();
-         try {
-            ip = ImageUtils.subtractImageProcessors(ip, ipBackground);
-            if (userData != null) {
-               userData = userData.copyBuilder().putBoolean("Background-corrected", true).build();
-            }
-         } catch (ShadingException e) {
-            String msg = "Unable to subtract background: " + e.getMessage();
-            studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
-                  ErrorSubtractingClass.class, msg);
-         }
-         bgSubtracted = studio_.data().ij().createImage(ip, image.getCoords(),
-               metadata.copyBuilderWithNewUUID().userData(userData).build());
-      } else {
+      if (background == null) {
          String msg = "No background available...";
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, NotFlatFieldedClass.class, msg);
       }
-
-
       // do not calculate flat field if we don't have a matching channel;
       // just return the background-subtracted image (which is the unmodified
       // image if we also don't have a background subtraction file).
       if (flatFieldImage == null) {
          String msg = "No flatfield found...";
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, NotFlatFieldedClass.class, msg);
-         context.outputImage(bgSubtracted);
+         if (background == null) {
+            context.outputImage(image);
+            return;
+         }
+      }
+
+      ShadingKernel kernel;
+      try {
+         kernel = getKernel(background, flatFieldImage);
+         if (kernel.getWidth() != width || kernel.getHeight() != height) {
+            throw new ShadingException("Images are of unequal size");
+         }
+      } catch (ShadingException e) {
+         String msg = "Unable to correct image: " + e.getMessage();
+         studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
+               ErrorSubtractingClass.class, msg);
+         context.outputImage(image);
          return;
       }
 
       if (userData != null) {
-         userData = userData.copyBuilder().putBoolean("Flatfield-corrected", true).build();
-         metadata = metadata.copyBuilderWithNewUUID().userData(userData).build();
+         PropertyMap.Builder builder = userData.copyBuilder();
+         if (background != null) {
+            builder.putBoolean("Background-corrected", true);
+         }
+         if (flatFieldImage != null) {
+            builder.putBoolean("Flatfield-corrected", true);
+         }
+         userData = builder.build();
       }
+      metadata = metadata.copyBuilderWithNewUUID().userData(userData).build();
 
-
+      final int length = width * height;
+      Object newPixels;
       if (image.getBytesPerPixel() == 1) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) image.getRawPixels();
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++) {
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
-            }
-            newPixels[index] = (byte) (newValue);
-         }
-         result = studio_.data().createImage(newPixels, width, height,
-               1, 1, image.getCoords(), metadata);
-         context.outputImage(result);
-      } else if (image.getBytesPerPixel() == 2) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.getRawPixels();
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++) {
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel
-                  * flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) (((int) newValue) & 0x0000ffff);
+         newPixels = new byte[length];
+         kernel.apply((byte[]) image.getRawPixels(), (byte[]) newPixels);
+      } else {
+         newPixels = new short[length];
+         kernel.apply((short[]) image.getRawPixels(), (short[]) newPixels);
+      }
+      context.outputImage(studio_.data().createImage(newPixels, width, height,
+            image.getBytesPerPixel(), 1, image.getCoords(), metadata));
+   }
+
+   /**
+    * Kernels are made once for every combination of background and flat-field
+    * image, i.e. for every channel, binning and ROI.
+    */
+   private ShadingKernel getKernel(ImagePlusInfo background, ImagePlusInfo flatField)
+         throws ShadingException {
+      List<ImagePlusInfo> key = Arrays.asList(background, flatField);
+      ShadingKernel kernel = kernels_.get(key);
+      if (kernel == null) {
+         if (kernels_.size() >= MAX_KERNELS) {
+            kernels_.clear();
          }
-         result = studio_.data().createImage(newPixels, width, height,
-               2, 1, image.getCoords(), metadata);
-         context.outputImage(result);
+         kernel = new ShadingKernel(background == null ? null : background.getProcessor(),
+               flatField == null ? null : flatField.getProcessor());
+         kernels_.put(key, kernel);
       }
+      return kernel;
    }
 
 
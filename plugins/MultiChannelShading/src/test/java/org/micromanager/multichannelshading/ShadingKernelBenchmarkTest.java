@@ -0,0 +1,84 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares the speed of ShadingKernel with that of the ImageJ based
+ * correction it replaced, for 16-bit images of several sizes, and prints a
+ * table with the results.  ShadingKernelTest checks the results.
+ *
+ * <p>Timing depends on the machine, so the benchmark only runs when the system
+ * property "benchmark" is set to true.</p>
+ */
+public class ShadingKernelBenchmarkTest {
+
+   @Test
+   public void benchmarkSizes() throws ShadingException {
+      Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+      System.out.println("size\tImageJ (ms)\tkernel (ms)\tspeedup");
+      for (int size : new int[] {512, 1024, 2048, 4096}) {
+         run(size);
+      }
+   }
+
+   private static void run(int size) throws ShadingException {
+      final int length = size * size;
+      final Random random = new Random(size);
+      short[] raw = new short[length];
+      short[] dark = new short[length];
+      float[] gain = new float[length];
+      for (int i = 0; i < length; i++) {
+         raw[i] = (short) random.nextInt(65536);
+         dark[i] = (short) (100 + random.nextInt(50));
+         gain[i] = 0.5f + random.nextFloat() * 1.5f;
+      }
+      ShortProcessor background = new ShortProcessor(size, size, dark, null);
+      FloatProcessor flatField = new FloatProcessor(size, size, gain);
+      ShadingKernel kernel = new ShadingKernel(background, flatField);
+      short[] out = new short[length];
+
+      final int repeats = Math.max(3, (1 << 26) / length);
+      // warm up, then time
+      double imageJ = 0;
+      double fused = 0;
+      for (int pass = 0; pass < 2; pass++) {
+         long start = System.nanoTime();
+         for (int r = 0; r < repeats; r++) {
+            imageJCorrection(raw, background, flatField, size);
+         }
+         imageJ = (System.nanoTime() - start) / 1.0e6 / repeats;
+         start = System.nanoTime();
+         for (int r = 0; r < repeats; r++) {
+            kernel.apply(raw, out);
+         }
+         fused = (System.nanoTime() - start) / 1.0e6 / repeats;
+      }
+      System.out.println(String.format(Locale.US, "%d\t%.2f\t%.2f\t%.1f",
+            size, imageJ, fused, imageJ / fused));
+   }
+
+   /**
+    * The correction as ShadingProcessor did it before ShadingKernel.
+    */
+   private static short[] imageJCorrection(short[] raw, ImageProcessor background,
+         ImageProcessor flatField, int size) throws ShadingException {
+      ImageProcessor ip = new ShortProcessor(size, size, raw.clone(), null);
+      ip = ImageUtils.subtractImageProcessors(ip, background);
+      short[] pixels = (short[]) ip.getPixels();
+      short[] result = new short[pixels.length];
+      for (int i = 0; i < pixels.length; i++) {
+         float value = (pixels[i] & 0xffff) * flatField.getf(i) + 0.5f;
+         if (value > 2 * Short.MAX_VALUE) {
+            value = 2 * Short.MAX_VALUE;
+         }
+         result[i] = (short) (int) value;
+      }
+      return result;
+   }
+}
@@ -0,0 +1,144 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that ShadingKernel gives the same result, bit for bit, as the
+ * kernels in bufferMath.cl, computed here one pixel at a time.
+ */
+public class ShadingKernelTest {
+
+   // large enough to be processed in parallel bands, not a multiple of the band height
+   private static final int WIDTH = 600;
+   private static final int HEIGHT = 450;
+
+   private static float[] makeGain(Random random, int length) {
+      float[] gain = new float[length];
+      for (int i = 0; i < length; i++) {
+         gain[i] = 0.5f + random.nextFloat() * 1.5f;
+      }
+      // values that round differently with a fused multiply-add, and special values
+      gain[0] = 1.0f / 3.0f;
+      gain[1] = Float.NaN;
+      gain[2] = 0.0f;
+      gain[3] = 1.0e6f;
+      return gain;
+   }
+
+   /**
+    * What subtractAndMultiplyUSF and subtractAndMultiplyUBF do with one pixel.
+    */
+   private static int subtractAndMultiply(int raw, int dark, float gain, int max) {
+      float value = (raw - dark) * gain + 0.5f;
+      if (!(value > 0.0f)) {
+         return 0;
+      }
+      return value >= max ? max : (int) value;
+   }
+
+   /**
+    * What multiplyUSF and multiplyUBF do with one pixel.
+    */
+   private static int multiply(int raw, float gain, int max) {
+      return subtractAndMultiply(raw, 0, gain, max);
+   }
+
+   /**
+    * What subtractUS and subtractUB do with one pixel.
+    */
+   private static int subtract(int raw, int dark) {
+      return Math.max(0, raw - dark);
+   }
+
+   @Test
+   public void test16Bit() throws ShadingException {
+      final int length = WIDTH * HEIGHT;
+      final Random random = new Random(43);
+      short[] raw = new short[length];
+      short[] dark = new short[length];
+      for (int i = 0; i < length; i++) {
+         raw[i] = (short) random.nextInt(65536);
+         dark[i] = (short) (100 + random.nextInt(50));
+      }
+      // below the background
+      raw[4] = 10;
+      float[] gain = makeGain(random, length);
+      ShortProcessor background = new ShortProcessor(WIDTH, HEIGHT, dark, null);
+      FloatProcessor flatField = new FloatProcessor(WIDTH, HEIGHT, gain);
+
+      short[] out = new short[length];
+      new ShadingKernel(background, flatField).apply(raw, out);
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals("pixel " + i, subtractAndMultiply(raw[i] & 0xffff,
+               dark[i] & 0xffff, gain[i], 65535), out[i] & 0xffff);
+      }
+      new ShadingKernel(background, null).apply(raw, out);
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals("pixel " + i, subtract(raw[i] & 0xffff, dark[i] & 0xffff),
+               out[i] & 0xffff);
+      }
+      new ShadingKernel(null, flatField).apply(raw, out);
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals("pixel " + i, multiply(raw[i] & 0xffff, gain[i], 65535),
+               out[i] & 0xffff);
+      }
+   }
+
+   @Test
+   public void test8Bit() throws ShadingException {
+      final int length = WIDTH * HEIGHT;
+      final Random random = new Random(44);
+      byte[] raw = new byte[length];
+      byte[] dark = new byte[length];
+      for (int i = 0; i < length; i++) {
+         raw[i] = (byte) random.nextInt(256);
+         dark[i] = (byte) (10 + random.nextInt(20));
+      }
+      float[] gain = makeGain(random, length);
+      ByteProcessor background = new ByteProcessor(WIDTH, HEIGHT, dark);
+      FloatProcessor flatField = new FloatProcessor(WIDTH, HEIGHT, gain);
+
+      byte[] out = new byte[length];
+      new ShadingKernel(background, flatField).apply(raw, out);
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals("pixel " + i, subtractAndMultiply(raw[i] & 0xff, dark[i] & 0xff,
+               gain[i], 255), out[i] & 0xff);
+      }
+      new ShadingKernel(background, null).apply(raw, out);
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals("pixel " + i, subtract(raw[i] & 0xff, dark[i] & 0xff),
+               out[i] & 0xff);
+      }
+      new ShadingKernel(null, flatField).apply(raw, out);
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals("pixel " + i, multiply(raw[i] & 0xff, gain[i], 255),
+               out[i] & 0xff);
+      }
+   }
+
+   @Test
+   public void testInPlace() throws ShadingException {
+      final Random random = new Random(45);
+      short[] raw = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < raw.length; i++) {
+         raw[i] = (short) random.nextInt(65536);
+      }
+      float[] gain = makeGain(random, raw.length);
+      ShadingKernel kernel = new ShadingKernel(null, new FloatProcessor(WIDTH, HEIGHT, gain));
+      short[] expected = new short[raw.length];
+      kernel.apply(raw, expected);
+      kernel.apply(raw, raw);
+      Assert.assertArrayEquals(expected, raw);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testWrongSize() throws ShadingException {
+      ShadingKernel kernel = new ShadingKernel(null, new FloatProcessor(4, 4));
+      kernel.apply(new short[15], new short[15]);
+   }
+}
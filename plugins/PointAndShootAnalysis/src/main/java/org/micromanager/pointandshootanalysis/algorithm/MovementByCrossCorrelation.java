@@ -32,98 +32,44 @@ either expressed or implied, of the FreeBSD Project.
 
 package org.micromanager.pointandshootanalysis.algorithm;
 
-import ij.process.FHT;
 import ij.process.ImageProcessor;
-import java.awt.Point;
 import java.awt.geom.Point2D;
+import org.micromanager.imageprocessing.PhaseCorrelation;
 
 /**
+ * Uses phase correlation (with a cached transform of the reference) to find
+ * how far the test image moved relative to the reference, to 1/20 pixel.
+ *
  * @author Nico Stuurman
  */
 public class MovementByCrossCorrelation {
-   private final FHT ref_;
+   private static final int UPSAMPLING = 20;
+   // the correlation used to be searched in a square of 32 pixels
+   private static final double MAX_SHIFT = 16.0;
+   private final PhaseCorrelation correlation_;
+   private final int width_;
+   private final int height_;
 
+   /**
+    * Prepares the reference, its width and height have to be powers of 2.
+    */
    public MovementByCrossCorrelation(ImageProcessor reference) {
-      // (new ij.ImagePlus("reference", reference)).show();
-      ref_ = new FHT(reference);
-      ref_.transform();
-      ref_.resetMinAndMax();
-   }
-
-   public void getJitter(ImageProcessor test, Point2D.Double com) {
-      //(new ij.ImagePlus("test", test)).show();
-      FHT t = new FHT(test);
-      t.transform();
-      t.resetMinAndMax();
-
-      FHT m = ref_.conjugateMultiply(t);
-
-      m.inverseTransform();
-      m.swapQuadrants();
-
-      //ij.ImagePlus imp = new ij.ImagePlus("Test", m);
-      //imp.show();
-
-
-      // return the position of the brightest pixel
-      Point brightPix = new Point(0, 0);
-      brightestPixel(m, brightPix, 32);
-      /*
-      try {
-         // Gaussian fit using Nelder Mead and 3D fitting
-         GaussianFit gs = new GaussianFit(3, 2);
-         // halfsize of the square around brightest pixel used for Gaussian fit
-         int hs = 5;
-         ImageProcessor ip = m.convertToShort(true);
-         // ImagePlus ipp = new ImagePlus("test", ip);
-         // ipp.show();
-         ip.setRoi(brightPix.x - hs, brightPix.y - hs, 2 * hs, 2 * hs);
-         ImageProcessor ipc = ip.crop();
-
-         GaussianFit.Data fitResult = gs.dogaussianfit(ipc, 100);
-         com.x = fitResult.getParms()[GaussianFit.XC] - hs + brightPix.x;
-         com.y = fitResult.getParms()[GaussianFit.YC] - hs + brightPix.y;
-
-      } catch (Exception ex) { 
-      */
-      // Gaussian fit failed, try second best estimate
-      com.x = brightPix.x;
-      com.y = brightPix.y;
-      //}
-
+      width_ = reference.getWidth();
+      height_ = reference.getHeight();
+      correlation_ = new PhaseCorrelation(width_, height_, UPSAMPLING);
+      correlation_.setReference((float[]) reference.convertToFloat().getPixels());
    }
 
    /**
-    * Finds the brightest pixel in the center of the image m
-    * only searches in the center of the image in a square with edge size searchsize
-    *
-    * @param m          image to be searched
-    * @param brightPix  point use to return coordinates of pixel found
-    * @param searchSize size of edge of center square in which to look for brightest pixel
+    * Returns in com the position of the peak of the cross correlation,
+    * i.e. the center of the image minus the movement of test relative to the
+    * reference.
     */
-   private void brightestPixel(FHT m, Point brightPix, int searchSize) {
-      float[] pixels = (float[]) m.getPixels();
-      int height = m.getHeight();
-      int width = m.getWidth();
-      int halfHeight = (height / 2);
-      int halfWidth = (width / 2);
-      int halfSearchSize = (searchSize / 2);
-
-      double max = pixels[halfHeight * width + halfWidth];
-      brightPix.x = halfWidth;
-      brightPix.y = halfHeight;
-
-
-      for (int y = halfHeight - halfSearchSize; y < halfHeight + halfSearchSize; y++) {
-         for (int x = halfWidth - halfSearchSize; x < halfWidth + halfSearchSize; x++) {
-            if (pixels[y * width + x] > max) {
-               max = pixels[y * width + x];
-               brightPix.x = x;
-               brightPix.y = y;
-            }
-         }
-      }
-
+   public void getJitter(ImageProcessor test, Point2D.Double com) {
+      PhaseCorrelation.Shift shift = correlation_.register(
+            (float[]) test.convertToFloat().getPixels(), MAX_SHIFT);
+      com.x = width_ / 2 - shift.getDx();
+      com.y = height_ / 2 - shift.getDy();
    }
 
 }
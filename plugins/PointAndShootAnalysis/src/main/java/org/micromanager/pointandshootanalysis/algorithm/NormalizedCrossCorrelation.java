@@ -3,79 +3,52 @@ package org.micromanager.pointandshootanalysis.algorithm;
 
 import ij.process.ShortProcessor;
 import java.awt.Point;
-import java.util.HashMap;
-import java.util.Map;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import org.micromanager.imageprocessing.FastNormalizedCrossCorrelation;
 
 /**
- * Executes Normalized Cross Correlation in the spatial domain
- * Is very slow, and results are not convincing
+ * Executes Zero-normalized Cross Correlation, using FFTs and summed area
+ * tables (see FastNormalizedCrossCorrelation) rather than correlating
+ * every position separately.
  *
  * @author nico
  */
 public class NormalizedCrossCorrelation {
-   private final float[] normalizedTemplate_;
+   private final FastNormalizedCrossCorrelation correlation_;
    private final Point templateDim_;
-   private final double templateStdDev_;
 
    public NormalizedCrossCorrelation(ShortProcessor template) {
-      short[] pixels = (short[]) template.getPixels();
       templateDim_ = new Point(template.getWidth(), template.getHeight());
-
-      double avg = shortAverage(pixels);
-
-      normalizedTemplate_ = normalizeShorts(pixels, (float) avg);
-
-      templateStdDev_ = stdDevFromNormalizedData(normalizedTemplate_);
-
+      correlation_ = new FastNormalizedCrossCorrelation(
+            (float[]) template.convertToFloat().getPixels(), templateDim_.x, templateDim_.y);
    }
 
 
    /**
-    * Performs Zero-normalized cross-correlation in the spatial domain
+    * Performs Zero-normalized cross-correlation
     * using the normalized template from the constructor
     *
     * @param target image target to which we match our template
     * @param center center position (in pixels) in the target around we cross-correlate
     * @param range  in pixels over which we will do cross correlate
-    * @return position (in pixels) in the target where we find the highest cross-correlation
+    * @return position (in pixels) in the target where we find the highest cross-correlation,
+    *         or null when the template does not fit in the target around center
     */
    public Point correlate(ShortProcessor target, Point center, Point range) {
-
-      target.snapshot();
-      // TODO: check dimensions
       Point halfTemplateDim = new Point(templateDim_.x / 2, templateDim_.y / 2);
       Point startPos = new Point(center.x - halfTemplateDim.x, center.y - halfTemplateDim.y);
-      Map<Point, Float> result = new HashMap<Point, Float>();
-
-      for (int x = startPos.x - range.x; x <= startPos.x + range.x; x++) {
-         for (int y = startPos.y - range.y; y <= startPos.y + range.y; y++) {
-            target.setRoi(x, y, templateDim_.x, templateDim_.y);
-            target.crop();
-            short[] targetPixels = (short[]) target.getPixels();
-            double targetAvg = shortAverage(targetPixels);
-            float[] tmpTarget = normalizeShorts(targetPixels, (float) targetAvg);
-            double targetStdDev = stdDevFromNormalizedData(tmpTarget);
-            float cc = 0.0f;
-            for (int i = 0; i < normalizedTemplate_.length; i++) {
-               cc += normalizedTemplate_[i] * tmpTarget[i];
-            }
-            cc = cc / (float) (targetStdDev * templateStdDev_);
-            Point t = new Point(x, y);
-            result.put(t, cc);
-            target.reset();
-         }
-      }
-
-      float max = -Float.MAX_VALUE;
-      Point maxPoint = null;
-      for (Map.Entry<Point, Float> entry : result.entrySet()) {
-         if (entry.getValue() > max) {
-            maxPoint = entry.getKey();
-         }
+      Rectangle area = new Rectangle(startPos.x - range.x, startPos.y - range.y,
+            2 * range.x + templateDim_.x, 2 * range.y + templateDim_.y);
+      FastNormalizedCrossCorrelation.Result result = correlation_.correlate(
+            (float[]) target.convertToFloat().getPixels(), target.getWidth(),
+            target.getHeight(), area);
+      if (result == null) {
+         return null;
       }
-
-      return new Point(maxPoint.x + halfTemplateDim.x,
-            maxPoint.y + halfTemplateDim.y);
+      Point2D.Double peak = result.getPeak();
+      return new Point((int) Math.round(peak.x) + halfTemplateDim.x,
+            (int) Math.round(peak.y) + halfTemplateDim.y);
 
    }
 
@@ -0,0 +1,62 @@
+package org.micromanager.plugins.rtintensities;
+
+/**
+ * Fixed size ring buffers holding the points of a number of plot series.
+ * The thread measuring the images adds points, while the plot takes the points
+ * added since it last looked, so that the chart can be updated in batches.
+ * When the plot falls behind by more than the capacity, the oldest points
+ * are lost.
+ */
+final class IntensityTimeSeries {
+   private final int capacity_;
+   private final double[][] x_;
+   private final double[][] y_;
+   // number of points ever added to, and taken from, each series
+   private final long[] added_;
+   private final long[] taken_;
+
+   /**
+    * Creates empty series.
+    *
+    * @param numberOfSeries number of series
+    * @param capacity number of points kept per series
+    */
+   IntensityTimeSeries(int numberOfSeries, int capacity) {
+      capacity_ = Math.max(1, capacity);
+      x_ = new double[numberOfSeries][capacity_];
+      y_ = new double[numberOfSeries][capacity_];
+      added_ = new long[numberOfSeries];
+      taken_ = new long[numberOfSeries];
+   }
+
+   int getCapacity() {
+      return capacity_;
+   }
+
+   synchronized void add(int series, double x, double y) {
+      final int i = (int) (added_[series] % capacity_);
+      x_[series][i] = x;
+      y_[series][i] = y;
+      added_[series]++;
+   }
+
+   /**
+    * Takes the points that were added to a series since the last call.
+    *
+    * @param series index of the series
+    * @param x receives the x values, at least getCapacity() long
+    * @param y receives the y values, at least getCapacity() long
+    * @return number of points taken
+    */
+   synchronized int take(int series, double[] x, double[] y) {
+      final long first = Math.max(taken_[series], added_[series] - capacity_);
+      final int n = (int) (added_[series] - first);
+      for (int k = 0; k < n; k++) {
+         final int i = (int) ((first + k) % capacity_);
+         x[k] = x_[series][i];
+         y[k] = y_[series][i];
+      }
+      taken_[series] = added_[series];
+      return n;
+   }
+}
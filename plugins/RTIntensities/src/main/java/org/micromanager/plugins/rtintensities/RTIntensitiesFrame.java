@@ -21,7 +21,6 @@ package org.micromanager.plugins.rtintensities;
 import com.google.common.eventbus.Subscribe;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
-import ij.process.ImageProcessor;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
@@ -31,9 +30,7 @@ import java.awt.Toolkit;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.geom.Ellipse2D;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Arrays;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JFrame;
@@ -41,6 +38,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 import net.miginfocom.swing.MigLayout;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartFrame;
@@ -61,38 +59,37 @@ import org.micromanager.internal.utils.WindowPositioning;
 
 public class RTIntensitiesFrame extends JFrame {
    private static final int MAX_ROIS = 100;
+   // the plot is not redrawn more often than this
+   private static final int MIN_PLOT_REFRESH_MS = 100;
 
    private final Studio studio_;
    // A reference to the event handling (only?) instance
    private static Object RThandler_ = null;
-   private final SimpleDateFormat dateFormat_;
    private DataProvider dataProvider_;
    // Only one chart for the time being
    private ChartFrame graphFrame_ = null;
-   private double lastElapsedTimeMs_ = 0.0;
-   private Date firstImageDate_;
    // autoStart on new active window
    private boolean autoStart_ = false;
    // acquisition plot start on first image delivered.
    private boolean delayedStart_ = false;
-   // Ratio plot memory
+   // Ratio plot ?
    private boolean ratio_ = false;
-   private double[] last_ = new double[MAX_ROIS];
    // This is our local cache ...
    private int rois_ = 0;
    private Roi[] roi_ = new Roi[MAX_ROIS];
    // of the manager kept ROIs
    private RoiManager manager_;
-   private int imagesReceived_ = 0;
    static final long serialVersionUID = 1;
    // How many channels does the image have ? 
    private int channels_ = 0;
    // how many series do we plot ?
    private int plots_ = 0;
-   // how many extra data do we need for a time point
-   private int missing_ = 0;
    private JLabel title_;
    XYSeries[] data_ = null;
+   // measures the images, and buffers the results until the plot is redrawn
+   private RoiIntensityEngine engine_ = null;
+   private IntensityTimeSeries series_ = null;
+   private Timer plotTimer_ = null;
    // Doing background "equalization" ?
    private int backgroundeq_ = -1;
    // Min refresh time (ms)
@@ -100,15 +97,12 @@ public class RTIntensitiesFrame extends JFrame {
    // Max plot points
    private int maxPoints_ = 200;
 
-   private static final String ABSOLUTE_FORMAT_STRING = "yyyy-MM-dd HH:mm:ss.SSS Z";
-
    public RTIntensitiesFrame(Studio studio) {
       super("Real time intensity GUI");
       studio_ = studio;
       if (RThandler_ == null) {
          RThandler_ = this;
       }
-      dateFormat_ = new SimpleDateFormat(ABSOLUTE_FORMAT_STRING);
       super.setLocation(100, 100); // Default location
       WindowPositioning.setUpLocationMemory(this, RTIntensitiesFrame.class, "Main");
       super.setIconImage(Toolkit.getDefaultToolkit().getImage(
@@ -252,6 +246,7 @@ public class RTIntensitiesFrame extends JFrame {
          rois_ = MAX_ROIS;
       }
       // Copy ROIs, determine if doing background "equalization" ?
+      backgroundeq_ = -1;
       Roi[] managerRois = manager_.getRoisAsArray();
       for (int i = 0; i < rois_; i++) {
          roi_[i] = (Roi) managerRois[i].clone();
@@ -269,12 +264,10 @@ public class RTIntensitiesFrame extends JFrame {
       if (channels_ > 1) {
          if (ratio_) {
             plots_ = 1;
-            channels_ = 2;
-            missing_ = 1; // wait for pairs of data points
+            channels_ = 2; // wait for pairs of data points
             plotmode = "Channel 1/2 ratio";
          } else {
             plots_ = channels_;
-            missing_ = channels_ - 1;
             plotmode = "Channel intensities";
          }
       } else {
@@ -284,9 +277,8 @@ public class RTIntensitiesFrame extends JFrame {
          plotmode += " (BG eq)";
       }
 
+      stopMeasuring();
       data_ = new XYSeries[channels_ * rois_];
-      imagesReceived_ = 0; // new plot
-      lastElapsedTimeMs_ = 0;
       XYSeriesCollection dataset = new XYSeriesCollection();
       for (int i = 0; i < rois_; i++) {
          if (!roi_[i].isCursor()) {
@@ -314,10 +306,21 @@ public class RTIntensitiesFrame extends JFrame {
             dataset, "Time(ms)", "Value", plots_, backgroundeq_, 100, 100);
       graphFrame_.addWindowListener(new WindowAdapter() {
          public void windowClosing(WindowEvent e) {
+            stopMeasuring();
             graphFrame_ = null;
             title_.setText("Ready");
          }
       });
+
+      boolean[] background = new boolean[rois_];
+      for (int i = 0; i < rois_; i++) {
+         background[i] = roi_[i].isCursor();
+      }
+      series_ = new IntensityTimeSeries(data_.length, maxPoints_);
+      engine_ = new RoiIntensityEngine(studio_, Arrays.copyOf(roi_, rois_), background,
+            backgroundeq_, channels_, plots_, ratio_, minPeriod_, series_);
+      plotTimer_ = new Timer(Math.max(minPeriod_, MIN_PLOT_REFRESH_MS), e -> updatePlot());
+      plotTimer_.start();
       if (!delayedStart_) {
          title_.setText("Waiting for images...");
          dataProvider_.registerForEvents(RThandler_);
@@ -342,87 +345,50 @@ public class RTIntensitiesFrame extends JFrame {
       if (!dp.equals(dataProvider_)) {
          return;
       }
-      if (graphFrame_ == null) {
+      if (graphFrame_ == null || engine_ == null) {
          return;
       }
-      Date imgTime;
-      try {
-         imgTime = dateFormat_.parse(image.getMetadata().getReceivedTime());
-      } catch (ParseException pe) {
-         studio_.logs().logError(pe);
+      engine_.submit(image);
+   }
+
+   /**
+    * Adds the points measured since the last call to the plot, notifying the
+    * chart once per series rather than once per point.
+    */
+   private void updatePlot() {
+      if (series_ == null) {
          return;
       }
-      if (imagesReceived_ == 0) {
-         firstImageDate_ = imgTime;
-         lastElapsedTimeMs_ = -minPeriod_; // process first
-      }
-      double elapsedTimeMs = imgTime.getTime() - firstImageDate_.getTime();
-      // do not process images at more than 100 Hz
-      if (missing_ > 0 || elapsedTimeMs - lastElapsedTimeMs_ >= minPeriod_) {
-         lastElapsedTimeMs_ = elapsedTimeMs;
-         double v;
-         double bg = 0;
-         int channel = image.getCoords().getChannel(); // 0..(n-1)
-         if (channel >= channels_) {
-            return;
+      double[] x = new double[series_.getCapacity()];
+      double[] y = new double[series_.getCapacity()];
+      for (int s = 0; s < data_.length; s++) {
+         if (data_[s] == null) {
+            continue;
          }
-         if (channel == 0) {
-            missing_ = channels_ - 1;
-         } else {
-            missing_--;
+         int n = series_.take(s, x, y);
+         for (int k = 0; k < n; k++) {
+            data_[s].add(x[k], y[k], false);
          }
-
-         title_.setText("Data should be on the plot.(" + channel + "/" + imagesReceived_ + ")");
-
-         ImageProcessor processor = studio_.data().ij().createProcessor(image);
-
-         if (backgroundeq_ >= 0) {
-            int points = 0;
-            for (int i = 0; i < rois_; i++) {
-               if (roi_[i].isCursor()) {
-                  processor.setRoi(roi_[i]);
-                  bg += processor.getStats().mean;
-                  points++;
-               }
-            }
-            bg /= points;
+         if (n > 0) {
+            data_[s].fireSeriesChanged();
          }
+      }
+      String status = engine_.getStatus();
+      if (status != null) {
+         title_.setText(status);
+      }
+   }
 
-         if (channels_ > 1 && ratio_ && channel == 0) {
-            //Remember values of first channel when doing ratio plotting
-            for (int i = 0; i < rois_; i++) {
-               if (!roi_[i].isCursor()) {
-                  processor.setRoi(roi_[i]);
-                  last_[i] = processor.getStats().mean - bg;
-               }
-            }
-            if (backgroundeq_ >= 0) {
-               last_[backgroundeq_] = bg;
-            }
-         } else {
-            int idx = 0; // follow series order with background gaps
-            for (int i = 0; i < rois_; i++) {
-               if (!roi_[i].isCursor()) {
-                  processor.setRoi(roi_[i]);
-                  v = processor.getStats().mean - bg;
-                  if (ratio_) {
-                     // Compute ratio, assign to base channel
-                     channel = 0;
-                     v = last_[i] / (v + 0.000001); //Check!
-                  }
-                  data_[channel + idx * plots_].add(elapsedTimeMs, v, idx >= rois_ - 1);
-                  idx++; // Background ROIs do not have data series, just one at the end
-               }
-            }
-            if (backgroundeq_ >= 0) {
-               if (ratio_) {
-                  bg = last_[backgroundeq_] / (bg + 0.000001); //Check!
-               }
-               data_[channel + idx * plots_].add(elapsedTimeMs, bg, true);
-            }
-         }
+   private void stopMeasuring() {
+      if (plotTimer_ != null) {
+         plotTimer_.stop();
+         plotTimer_ = null;
+      }
+      if (engine_ != null) {
+         engine_.shutdown();
+         engine_ = null;
       }
-      imagesReceived_++;
+      series_ = null;
    }
 
    /**
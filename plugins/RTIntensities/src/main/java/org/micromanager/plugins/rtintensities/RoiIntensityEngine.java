@@ -0,0 +1,231 @@
+package org.micromanager.plugins.rtintensities;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.Studio;
+import org.micromanager.data.Image;
+
+/**
+ * Measures the mean intensity of all ROIs in the images of a plot, and adds
+ * the results to an IntensityTimeSeries.  Images are measured in the order
+ * they were submitted, on a thread of its own, so that neither the EDT nor the
+ * thread delivering the images waits for the measurements.  When images
+ * arrive faster than they can be measured, at most a few time points wait in
+ * the queue, and further time points are skipped and counted, so that the
+ * queue can not fill the memory.  Whole time points are skipped, never single
+ * channels, so that ratios are always taken within one time point.
+ *
+ * <p>Series are numbered like the plot: ROI index times the number of plots,
+ * plus the channel.  Background ROIs are averaged and subtracted from the
+ * other ROIs, and plotted in the series of the first background ROI.</p>
+ */
+final class RoiIntensityEngine {
+   private static final String ABSOLUTE_FORMAT_STRING = "yyyy-MM-dd HH:mm:ss.SSS Z";
+   private static final int QUEUED_TIME_POINTS = 4;
+
+   private final Studio studio_;
+   private final Roi[] rois_;
+   private final boolean[] background_;
+   private final int backgroundIndex_;
+   private final int channels_;
+   private final int plots_;
+   private final boolean ratio_;
+   private final int minPeriodMs_;
+   private final IntensityTimeSeries series_;
+   private final ThreadPoolExecutor executor_;
+   private final SimpleDateFormat dateFormat_ = new SimpleDateFormat(ABSOLUTE_FORMAT_STRING);
+   private final AtomicInteger skipped_ = new AtomicInteger();
+
+   // only used on the thread that submits images
+   private boolean skippingTimePoint_ = false;
+
+   // only used on the executor thread
+   private RoiMasks masks_;
+   private final double[] means_;
+   private final double[] last_;
+   private Date firstImageDate_;
+   private double lastElapsedTimeMs_ = 0.0;
+   // channel expected next within the current time point, 0 for a new one
+   private int nextChannel_ = 0;
+   private int imagesReceived_ = 0;
+
+   private volatile String status_ = null;
+
+   /**
+    * Creates the engine.
+    *
+    * @param studio Micro-Manager Studio, used for logging
+    * @param rois ROIs to measure
+    * @param background for each ROI, whether it is a background ROI
+    * @param backgroundIndex index of the first background ROI, or -1
+    * @param channels number of channels to measure
+    * @param plots number of series per ROI
+    * @param ratio whether to plot the ratio of channel 1 and 2
+    * @param minPeriodMs images less than this apart are skipped
+    * @param series receives the results
+    */
+   RoiIntensityEngine(Studio studio, Roi[] rois, boolean[] background, int backgroundIndex,
+         int channels, int plots, boolean ratio, int minPeriodMs, IntensityTimeSeries series) {
+      studio_ = studio;
+      rois_ = rois;
+      background_ = background;
+      backgroundIndex_ = backgroundIndex;
+      channels_ = channels;
+      plots_ = plots;
+      ratio_ = ratio;
+      minPeriodMs_ = minPeriodMs;
+      series_ = series;
+      means_ = new double[rois.length];
+      last_ = new double[rois.length];
+      executor_ = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUED_TIME_POINTS * Math.max(1, channels)),
+            r -> {
+               Thread thread = new Thread(r, "RTIntensities measurements");
+               thread.setDaemon(true);
+               return thread;
+            },
+            (r, executor) -> {
+               if (!executor.isShutdown()) {
+                  skipped_.incrementAndGet();
+               }
+            });
+   }
+
+   /**
+    * Queues an image to be measured.  When the queue has no room for the whole
+    * time point that starts with this image, the time point is skipped.
+    * Images of a time point have to be submitted from one thread, channel 0
+    * first.
+    */
+   void submit(Image image) {
+      final int channel = image.getCoords().getChannel();
+      if (executor_.isShutdown() || channel >= channels_) {
+         return;
+      }
+      if (channel == 0) {
+         // only this thread adds to the queue, so the room can only grow
+         skippingTimePoint_ = executor_.getQueue().remainingCapacity() < channels_;
+      }
+      if (skippingTimePoint_) {
+         skipped_.incrementAndGet();
+      } else {
+         executor_.submit(() -> {
+            try {
+               process(image);
+            } catch (RuntimeException e) {
+               studio_.logs().logError(e, "Failed to measure ROI intensities");
+            }
+         });
+      }
+   }
+
+   /**
+    * Stops measuring.  Images that are still queued are dropped.
+    */
+   void shutdown() {
+      executor_.shutdownNow();
+   }
+
+   /**
+    * Text describing the last measured image, or null when none was measured.
+    */
+   String getStatus() {
+      return status_;
+   }
+
+   private void process(Image image) {
+      Date imgTime;
+      try {
+         imgTime = dateFormat_.parse(image.getMetadata().getReceivedTime());
+      } catch (ParseException pe) {
+         studio_.logs().logError(pe);
+         return;
+      }
+      if (imagesReceived_ == 0) {
+         firstImageDate_ = imgTime;
+         lastElapsedTimeMs_ = -minPeriodMs_; // process first
+      }
+      double elapsedTimeMs = imgTime.getTime() - firstImageDate_.getTime();
+      int channel = image.getCoords().getChannel(); // 0..(n-1)
+      // do not process time points at more than 1 / minPeriod, and only
+      // process the other channels of a time point when channel 0 was
+      if (channel == 0 ? elapsedTimeMs - lastElapsedTimeMs_ >= minPeriodMs_
+            : channel == nextChannel_) {
+         lastElapsedTimeMs_ = elapsedTimeMs;
+         nextChannel_ = channel + 1;
+
+         measure(image);
+
+         double bg = 0;
+         if (backgroundIndex_ >= 0) {
+            int points = 0;
+            for (int i = 0; i < rois_.length; i++) {
+               if (background_[i]) {
+                  bg += means_[i];
+                  points++;
+               }
+            }
+            bg /= points;
+         }
+
+         if (channels_ > 1 && ratio_ && channel == 0) {
+            // Remember values of first channel when doing ratio plotting
+            for (int i = 0; i < rois_.length; i++) {
+               if (!background_[i]) {
+                  last_[i] = means_[i] - bg;
+               }
+            }
+            if (backgroundIndex_ >= 0) {
+               last_[backgroundIndex_] = bg;
+            }
+         } else {
+            // Ratios are assigned to the base channel
+            final int plotChannel = ratio_ ? 0 : channel;
+            for (int i = 0; i < rois_.length; i++) {
+               if (!background_[i]) {
+                  double v = means_[i] - bg;
+                  if (ratio_) {
+                     v = last_[i] / (v + 0.000001); //Check!
+                  }
+                  series_.add(plotChannel + i * plots_, elapsedTimeMs, v);
+               }
+            }
+            if (backgroundIndex_ >= 0) {
+               if (ratio_) {
+                  bg = last_[backgroundIndex_] / (bg + 0.000001); //Check!
+               }
+               series_.add(plotChannel + backgroundIndex_ * plots_, elapsedTimeMs, bg);
+            }
+         }
+         int skipped = skipped_.get();
+         status_ = "Data should be on the plot.(" + channel + "/" + imagesReceived_ + ")"
+               + (skipped > 0 ? " " + skipped + " images skipped" : "");
+      } else {
+         nextChannel_ = 0;
+      }
+      imagesReceived_++;
+   }
+
+   private void measure(Image image) {
+      if (image.getNumComponents() == 1) {
+         if (masks_ == null || !masks_.fits(image.getWidth(), image.getHeight())) {
+            masks_ = new RoiMasks(rois_, image.getWidth(), image.getHeight());
+         }
+         masks_.means(image.getRawPixels(), means_);
+      } else {
+         // RGB, use ImageJ's idea of the intensity of a color
+         ImageProcessor processor = studio_.data().ij().createProcessor(image);
+         for (int i = 0; i < rois_.length; i++) {
+            processor.setRoi(rois_[i]);
+            means_[i] = processor.getStats().mean;
+         }
+      }
+   }
+}
@@ -0,0 +1,120 @@
+package org.micromanager.plugins.rtintensities;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The pixels of a set of ROIs, stored as runs of consecutive pixel indices.
+ * The runs are made once for a given image size, after which the mean
+ * intensity of every ROI in an image is found by adding up the pixels of its
+ * runs, straight from the pixel array.  The means are the same as those of
+ * ImageJ's statistics for the ROI.
+ */
+final class RoiMasks {
+   private static final int PARALLEL_THRESHOLD = 1 << 17;
+
+   private final int width_;
+   private final int height_;
+   // per ROI: start index and length of each run
+   private final int[][] runs_;
+   private final int[] counts_;
+   private final boolean parallel_;
+
+   /**
+    * Makes the masks.
+    *
+    * @param rois ROIs to measure
+    * @param width width of the images
+    * @param height height of the images
+    */
+   RoiMasks(Roi[] rois, int width, int height) {
+      width_ = width;
+      height_ = height;
+      runs_ = new int[rois.length][];
+      counts_ = new int[rois.length];
+      final ImageProcessor image = new ByteProcessor(width, height);
+      long total = 0;
+      for (int r = 0; r < rois.length; r++) {
+         runs_[r] = runs(rois[r], image);
+         for (int i = 1; i < runs_[r].length; i += 2) {
+            counts_[r] += runs_[r][i];
+         }
+         total += counts_[r];
+      }
+      parallel_ = rois.length > 1 && total >= PARALLEL_THRESHOLD;
+   }
+
+   // the rectangle and mask come from ImageJ, so that every kind of ROI
+   // covers the same pixels as in ImageJ's statistics
+   private static int[] runs(Roi roi, ImageProcessor image) {
+      image.setRoi(roi);
+      final Rectangle bounds = image.getRoi();
+      final ImageProcessor mask = image.getMask();
+      final int width = image.getWidth();
+      int[] runs = new int[16];
+      int n = 0;
+      for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+         int start = -1;
+         for (int x = bounds.x; x <= bounds.x + bounds.width; x++) {
+            boolean in = x < bounds.x + bounds.width
+                  && (mask == null || mask.get(x - bounds.x, y - bounds.y) != 0);
+            if (in && start < 0) {
+               start = x;
+            } else if (!in && start >= 0) {
+               if (n + 2 > runs.length) {
+                  runs = Arrays.copyOf(runs, 2 * runs.length);
+               }
+               runs[n++] = y * width + start;
+               runs[n++] = x - start;
+               start = -1;
+            }
+         }
+      }
+      return Arrays.copyOf(runs, n);
+   }
+
+   /**
+    * Whether these masks were made for images of the given size.
+    */
+   boolean fits(int width, int height) {
+      return width == width_ && height == height_;
+   }
+
+   /**
+    * Measures the mean intensity of all ROIs.
+    *
+    * @param pixels byte[] or short[] with the pixels of a grayscale image
+    * @param result receives the mean of each ROI, NaN for ROIs outside the image
+    */
+   void means(Object pixels, double[] result) {
+      IntStream stream = IntStream.range(0, runs_.length);
+      if (parallel_) {
+         stream = stream.parallel();
+      }
+      stream.forEach(r -> result[r] = (double) sum(pixels, runs_[r]) / counts_[r]);
+   }
+
+   private static long sum(Object pixels, int[] runs) {
+      long sum = 0;
+      if (pixels instanceof short[]) {
+         final short[] values = (short[]) pixels;
+         for (int i = 0; i < runs.length; i += 2) {
+            for (int p = runs[i]; p < runs[i] + runs[i + 1]; p++) {
+               sum += values[p] & 0xffff;
+            }
+         }
+      } else {
+         final byte[] values = (byte[]) pixels;
+         for (int i = 0; i < runs.length; i += 2) {
+            for (int p = runs[i]; p < runs[i] + runs[i + 1]; p++) {
+               sum += values[p] & 0xff;
+            }
+         }
+      }
+      return sum;
+   }
+}
@@ -0,0 +1,74 @@
+package org.micromanager.plugins.rtintensities;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the means of RoiMasks with ImageJ's statistics for the same ROIs.
+ */
+public class RoiMasksTest {
+   private static final int WIDTH = 200;
+   private static final int HEIGHT = 150;
+
+   private static Roi[] makeRois() {
+      return new Roi[] {
+            new Roi(10, 20, 50, 30),
+            new OvalRoi(60, 40, 41, 27),
+            new PolygonRoi(new int[] {20, 90, 70, 15}, new int[] {100, 110, 145, 130}, 4,
+                  Roi.POLYGON),
+            // partly outside the image
+            new Roi(180, 140, 40, 30),
+            new OvalRoi(-15, -10, 40, 30),
+            new PolygonRoi(new int[] {150, 230, 190}, new int[] {-20, 60, 90}, 3,
+                  Roi.POLYGON),
+            // the whole image
+            new Roi(0, 0, WIDTH, HEIGHT),
+            // a single pixel
+            new Roi(7, 9, 1, 1)
+      };
+   }
+
+   private static void check(ImageProcessor proc) {
+      Random random = new Random(49);
+      final int maxValue = proc instanceof ByteProcessor ? 0xff : 0xffff;
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         proc.set(i, random.nextInt(maxValue + 1));
+      }
+      Roi[] rois = makeRois();
+      RoiMasks masks = new RoiMasks(rois, WIDTH, HEIGHT);
+      Assert.assertTrue(masks.fits(WIDTH, HEIGHT));
+      Assert.assertFalse(masks.fits(HEIGHT, WIDTH));
+      double[] means = new double[rois.length];
+      masks.means(proc.getPixels(), means);
+      for (int r = 0; r < rois.length; r++) {
+         proc.setRoi(rois[r]);
+         Assert.assertEquals(proc.getBitDepth() + " bit, ROI " + r,
+               proc.getStats().mean, means[r], 1e-9);
+      }
+   }
+
+   @Test
+   public void test8Bit() {
+      check(new ByteProcessor(WIDTH, HEIGHT));
+   }
+
+   @Test
+   public void test16Bit() {
+      check(new ShortProcessor(WIDTH, HEIGHT));
+   }
+
+   @Test
+   public void testOutside() {
+      RoiMasks masks = new RoiMasks(new Roi[] {new Roi(300, 300, 10, 10)}, WIDTH, HEIGHT);
+      double[] means = new double[1];
+      masks.means(new short[WIDTH * HEIGHT], means);
+      Assert.assertTrue(Double.isNaN(means[0]));
+   }
+}
@@ -0,0 +1,130 @@
+package org.micromanager.ratioimaging;
+
+import ij.process.FloatBlitter;
+import ij.process.ImageProcessor;
+import org.micromanager.imageprocessing.PixelBands;
+
+/**
+ * Computes the ratio of two channels in one pass over the pixels:
+ * ratio = (max(0, ch1 - background1) - constant1)
+ * / (max(0, ch2 - background2) - constant2) * factor.
+ *
+ * <p>The arithmetic follows the ImageJ operations that the processor used
+ * before: float division, with ImageJ's divide-by-zero value where the
+ * divisor is zero if that value is finite, and a multiplication in double
+ * precision.  Large images are divided in bands of rows that are processed
+ * in parallel.</p>
+ */
+final class RatioKernel {
+   private final int[] background1_;
+   private final int[] background2_;
+   private final int constant1_;
+   private final int constant2_;
+   private final int factor_;
+
+   /**
+    * Creates the kernel.
+    *
+    * @param background1 background of channel 1, or null
+    * @param background2 background of channel 2, or null
+    * @param constant1 constant to subtract from channel 1
+    * @param constant2 constant to subtract from channel 2
+    * @param factor the ratio is multiplied by this
+    */
+   RatioKernel(ImageProcessor background1, ImageProcessor background2, int constant1,
+         int constant2, int factor) {
+      background1_ = toArray(background1);
+      background2_ = toArray(background2);
+      constant1_ = constant1;
+      constant2_ = constant2;
+      factor_ = factor;
+   }
+
+   private static int[] toArray(ImageProcessor background) {
+      if (background == null) {
+         return null;
+      }
+      int[] result = new int[background.getWidth() * background.getHeight()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (int) background.getf(i);
+      }
+      return result;
+   }
+
+   /**
+    * Computes the ratio of two 16-bit images, rounded and clamped to 16 bits.
+    *
+    * @param ch1 pixels of channel 1
+    * @param ch2 pixels of channel 2
+    * @param out destination, can be the same array as ch1 or ch2
+    * @param width width of the images
+    * @return largest value in the result
+    */
+   int ratio(short[] ch1, short[] ch2, short[] out, int width) {
+      checkLength(ch1.length, ch2.length, out.length);
+      final float divideByZero = FloatBlitter.divideByZeroValue;
+      final int[] maxima = new int[PixelBands.count(ch1.length, PixelBands.rows(width))];
+      PixelBands.forEach(ch1.length, PixelBands.rows(width), (band, start, end) -> {
+         int max = 0;
+         for (int i = start; i < end; i++) {
+            float r = ratioAt(ch1[i] & 0xffff, ch2[i] & 0xffff, i, divideByZero);
+            // clamp like ImageJ's TypeConverter; NaN becomes 0
+            double value = r < 0.0f ? 0.0 : (r > 65535.0f ? 65535.0 : r);
+            int v = (int) (value + 0.5);
+            out[i] = (short) v;
+            max = Math.max(max, v);
+         }
+         maxima[band] = max;
+      });
+      int max = 0;
+      for (int m : maxima) {
+         max = Math.max(max, m);
+      }
+      return max;
+   }
+
+   /**
+    * Computes the ratio of two 8-bit images as floats.
+    *
+    * @param ch1 pixels of channel 1
+    * @param ch2 pixels of channel 2
+    * @param width width of the images
+    * @return the ratio image
+    */
+   float[] ratio(byte[] ch1, byte[] ch2, int width) {
+      final float[] out = new float[ch1.length];
+      checkLength(ch1.length, ch2.length, out.length);
+      final float divideByZero = FloatBlitter.divideByZeroValue;
+      PixelBands.forEach(ch1.length, PixelBands.rows(width), (band, start, end) -> {
+         for (int i = start; i < end; i++) {
+            out[i] = ratioAt(ch1[i] & 0xff, ch2[i] & 0xff, i, divideByZero);
+         }
+      });
+      return out;
+   }
+
+   private float ratioAt(int v1, int v2, int i, float divideByZero) {
+      if (background1_ != null) {
+         v1 = Math.max(0, v1 - background1_[i]);
+      }
+      if (background2_ != null) {
+         v2 = Math.max(0, v2 - background2_[i]);
+      }
+      float numerator = v1 - constant1_;
+      float divisor = v2 - constant2_;
+      // like ImageJ, only use the divide by zero value when it is finite
+      float r = divisor == 0.0f && !Float.isInfinite(divideByZero)
+            ? divideByZero : numerator / divisor;
+      return (float) ((double) r * factor_);
+   }
+
+   private void checkLength(int ch1, int ch2, int out) {
+      if (ch1 != ch2 || out != ch1) {
+         throw new IllegalArgumentException("Channels differ in size");
+      }
+      if ((background1_ != null && background1_.length != ch1)
+            || (background2_ != null && background2_.length != ch1)) {
+         throw new IllegalArgumentException("Background image differs in size from image");
+      }
+   }
+}
@@ -0,0 +1,156 @@
+package org.micromanager.ratioimaging;
+
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.FloatBlitter;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares RatioKernel with the chain of ImageJ operations that
+ * RatioImagingProcessor used before.
+ */
+public class RatioKernelTest {
+   // large enough for the bands to be processed in parallel
+   private static final int WIDTH = 520;
+   private static final int HEIGHT = 260;
+
+   private final float divideByZeroValue_ = FloatBlitter.divideByZeroValue;
+   private final Random random_ = new Random(48);
+
+   @After
+   public void restoreDivideByZeroValue() {
+      FloatBlitter.divideByZeroValue = divideByZeroValue_;
+   }
+
+   private ImageProcessor makeImage(int bytesPerPixel, int maxValue) {
+      ImageProcessor proc = bytesPerPixel == 1 ? new ByteProcessor(WIDTH, HEIGHT)
+            : new ShortProcessor(WIDTH, HEIGHT);
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         // many low values, so that divisors are often zero after subtraction
+         proc.set(i, i % 3 == 0 ? random_.nextInt(maxValue + 1) : random_.nextInt(12));
+      }
+      return proc;
+   }
+
+   private static ImageProcessor subtractBackground(ImageProcessor proc,
+         ImageProcessor background) {
+      ImageProcessor result = proc.duplicate();
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         result.set(i, Math.max(0, proc.get(i) - background.get(i)));
+      }
+      return result;
+   }
+
+   // the processor's copy of ImageJ's TypeConverter, without scaling
+   private static ShortProcessor convertFloatToShort(ImageProcessor ip) {
+      float[] pixels32 = (float[]) ip.getPixels();
+      short[] pixels16 = new short[pixels32.length];
+      for (int i = 0; i < pixels32.length; i++) {
+         double value = pixels32[i];
+         if (value < 0.0) {
+            value = 0.0;
+         }
+         if (value > 65535.0) {
+            value = 65535.0;
+         }
+         pixels16[i] = (short) (value + 0.5);
+      }
+      return new ShortProcessor(ip.getWidth(), ip.getHeight(), pixels16, null);
+   }
+
+   private static ImageProcessor imageJRatio(ImageProcessor ch1Proc, ImageProcessor ch2Proc,
+         ImageProcessor bc1, ImageProcessor bc2, int bc1Constant, int bc2Constant,
+         int factor) {
+      if (bc1 != null) {
+         ch1Proc = subtractBackground(ch1Proc, bc1);
+      }
+      if (bc2 != null) {
+         ch2Proc = subtractBackground(ch2Proc, bc2);
+      }
+      ch1Proc = ch1Proc.convertToFloat();
+      ch2Proc = ch2Proc.convertToFloat();
+      ch1Proc.subtract(bc1Constant);
+      ch2Proc.subtract(bc2Constant);
+      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(),
+            ch1Proc.getHeight());
+      ch3Proc.insert(ch1Proc, 0, 0);
+      ch3Proc.copyBits(ch2Proc, 0, 0, Blitter.DIVIDE);
+      ch3Proc.multiply(factor);
+      return ch3Proc;
+   }
+
+   private void check(int bytesPerPixel, boolean backgrounds, int bc1Constant,
+         int bc2Constant, int factor) {
+      final int maxValue = bytesPerPixel == 1 ? 0xff : 0xffff;
+      ImageProcessor ch1 = makeImage(bytesPerPixel, maxValue);
+      ImageProcessor ch2 = makeImage(bytesPerPixel, maxValue);
+      ImageProcessor bc1 = backgrounds ? makeImage(bytesPerPixel, 20) : null;
+      ImageProcessor bc2 = backgrounds ? makeImage(bytesPerPixel, 20) : null;
+      String message = (8 * bytesPerPixel) + " bit, backgrounds " + backgrounds
+            + ", constants " + bc1Constant + " and " + bc2Constant + ", factor " + factor
+            + ", divide by zero value " + FloatBlitter.divideByZeroValue;
+
+      ImageProcessor expected = imageJRatio(ch1, ch2, bc1, bc2, bc1Constant, bc2Constant,
+            factor);
+      RatioKernel kernel = new RatioKernel(bc1, bc2, bc1Constant, bc2Constant, factor);
+      if (bytesPerPixel == 1) {
+         float[] actual = kernel.ratio((byte[]) ch1.getPixels(), (byte[]) ch2.getPixels(),
+               WIDTH);
+         Assert.assertArrayEquals(message, (float[]) expected.getPixels(), actual, 0.0f);
+      } else {
+         ShortProcessor converted = convertFloatToShort(expected);
+         short[] actual = new short[WIDTH * HEIGHT];
+         int max = kernel.ratio((short[]) ch1.getPixels(), (short[]) ch2.getPixels(), actual,
+               WIDTH);
+         Assert.assertArrayEquals(message, (short[]) converted.getPixels(), actual);
+         Assert.assertEquals(message, (int) converted.getMax(), max);
+      }
+   }
+
+   private void checkAll() {
+      for (int bytesPerPixel : new int[] {1, 2}) {
+         check(bytesPerPixel, false, 0, 0, 1);
+         check(bytesPerPixel, true, 0, 0, 1);
+         check(bytesPerPixel, false, 4, 3, 1);
+         check(bytesPerPixel, true, 2, 5, 1000);
+      }
+   }
+
+   @Test
+   public void testDefaultDivideByZeroValue() {
+      FloatBlitter.divideByZeroValue = Float.POSITIVE_INFINITY;
+      checkAll();
+   }
+
+   @Test
+   public void testFiniteDivideByZeroValue() {
+      FloatBlitter.divideByZeroValue = 7.0f;
+      checkAll();
+   }
+
+   @Test
+   public void testNegativeInfiniteDivideByZeroValue() {
+      FloatBlitter.divideByZeroValue = Float.NEGATIVE_INFINITY;
+      checkAll();
+   }
+
+   @Test
+   public void testInPlace() {
+      RatioKernel kernel = new RatioKernel(null, null, 0, 0, 10);
+      short[] ch1 = {100, 30, 7};
+      short[] ch2 = {10, 3, 2};
+      Assert.assertEquals(100, kernel.ratio(ch1, ch2, ch1, 3));
+      Assert.assertArrayEquals(new short[] {100, 100, 35}, ch1);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testBackgroundSize() {
+      RatioKernel kernel = new RatioKernel(new ShortProcessor(2, 2), null, 0, 0, 1);
+      kernel.ratio(new short[3], new short[3], new short[3], 3);
+   }
+}
@@ -5,9 +5,11 @@ import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
@@ -17,6 +19,7 @@ import org.micromanager.UserProfile;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.utils.AffineUtils;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
+import org.micromanager.propertymap.MutablePropertyMapView;
 
 public class Hub {
    private final Studio studio_;
@@ -40,6 +43,7 @@ public class Hub {
    private String navigatePixelSizeConfig_ = "";
    private Map<String, OffsetsRow> offsetsData_ = new HashMap<String, OffsetsRow>();
    private boolean contrastAutoAdjusted_ = false;
+   private final AtomicBoolean redrawPending_ = new AtomicBoolean(false);
 
    /*
     * Hub constructor.
@@ -64,7 +68,12 @@ public class Hub {
       int type = controller_.getImageType();
       tileDimensions_ = controller_.getTileDimensions();
 
-      cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_);
+      MutablePropertyMapView settings = studio_.profile().getSettings(MultiTileCache.class);
+      cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_,
+            new File(settings.getString(MultiTileCache.CACHE_DIRECTORY,
+                  System.getProperty("java.io.tmpdir"))),
+            settings.getInteger(MultiTileCache.MEMORY_BUDGET_MB,
+                  MultiTileCache.DEFAULT_MEMORY_BUDGET_MB) * 1024L * 1024L);
 
       blackImg_ = ImageUtils.makeProcessor(type, tileDimensions_.width, tileDimensions_.height);
 
@@ -170,6 +179,9 @@ public class Hub {
          configDialog_.dispose();
       }
       stop();
+      if (cache_ != null) {
+         cache_.dispose();
+      }
    }
 
    // Methods called when the view changes:
@@ -242,6 +254,22 @@ public class Hub {
       SwingUtilities.invokeLater(new GUIUpdater(null));
    }
 
+   /*
+    * Redraws the view once tiles loaded in the background are available,
+    * combining the requests of tiles that finish loading close together.
+    */
+   private void updateViewForLoadedTiles() {
+      if (!redrawPending_.getAndSet(true)) {
+         SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+               redrawPending_.set(false);
+               new GUIUpdater(null).run();
+            }
+         });
+      }
+   }
+
    /*
    @Override
    protected void finalize() throws Throwable {
@@ -589,12 +617,20 @@ public class Hub {
        */
       public void drawMultiTile(Point3D multiTileIndex) {
          Point offScreenPosition = coords_.multiTileToOffScreen(multiTileIndex);
+         ImageProcessor img = null;
          if (cache_.hasImage(multiTileIndex)) {
-            ImageProcessor img = cache_.getImage(multiTileIndex);
-            display_.placeImage(offScreenPosition, img);
-         } else {
-            display_.placeImage(offScreenPosition, blackImg_);
+            // don't wait for the disk, draw the tile once it is loaded
+            img = cache_.getImageIfInMemory(multiTileIndex);
+            if (img == null) {
+               cache_.loadInBackground(multiTileIndex, new Runnable() {
+                  @Override
+                  public void run() {
+                     updateViewForLoadedTiles();
+                  }
+               });
+            }
          }
+         display_.placeImage(offScreenPosition, img != null ? img : blackImg_);
       }
 
       /*
@@ -611,6 +647,7 @@ public class Hub {
                drawMultiTile(multiTile);
             }
          }
+         cache_.prefetchAround(offScreenMultiTiles);
       }
    }
 
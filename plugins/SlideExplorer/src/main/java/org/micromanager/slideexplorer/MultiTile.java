@@ -1,28 +1,38 @@
 package org.micromanager.slideexplorer;
 
-import ij.IJ;
 import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.io.File;
-import java.util.Random;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
+/*
+ * A tile of the slide at a single zoom level.  The pixels are kept in memory
+ * while the tile is in use, and stored on disk as raw pixel data (native byte
+ * order, no header, size and type are known from the cache) when dropped.
+ */
 public class MultiTile {
 
    ImageProcessor proc_;
    int type_;
    int width_;
    int height_;
-   String fileName_ = null;
+   private final File file_;
+   // the file on disk holds the current pixels
    boolean cached_ = false;
-   String tmpDirectory_ = "/tmp";
+   private boolean wiped_ = false;
 
-   MultiTile(int type, int width, int height) {
+   MultiTile(int type, int width, int height, File file) {
       type_ = type;
       width_ = width;
       height_ = height;
+      file_ = file;
    }
 
    public synchronized ImageProcessor getImage() {
@@ -30,11 +40,14 @@ public class MultiTile {
       return proc_;
    }
 
+   public synchronized boolean isInMemory() {
+      return proc_ != null;
+   }
+
    public synchronized void getImageReady() {
       if (proc_ == null) {
-         if (cached_ == false) {
-            createCleanImage();
-         } else {
+         createCleanImage();
+         if (cached_) {
             loadFromCache();
          }
       }
@@ -44,6 +57,7 @@ public class MultiTile {
    public synchronized void setImage(ImageProcessor proc) {
       getImageReady();
       proc_.insert(proc, 0, 0);
+      cached_ = false;
    }
 
    private void createCleanImage() {
@@ -59,34 +73,93 @@ public class MultiTile {
       cached_ = false;
    }
 
+   /*
+    * Writes the pixels to disk when needed, and releases them.  When writing
+    * fails, the pixels are kept in memory rather than lost.
+    */
    public synchronized void dropFromMemory() {
-      if (!cached_) {
+      if (!cached_ && !wiped_) {
          cacheOnDisk();
       }
 
-      proc_ = null;
+      if (cached_ || wiped_) {
+         proc_ = null;
+      }
+   }
+
+   /*
+    * Number of bytes used by the pixels of this tile.
+    */
+   long getSizeInBytes() {
+      return (long) width_ * height_ * getBytesPerPixel(type_);
+   }
+
+   static int getBytesPerPixel(int type) {
+      switch (type) {
+         case ImagePlus.GRAY16:
+            return 2;
+         case ImagePlus.GRAY32:
+         case ImagePlus.COLOR_RGB:
+            return 4;
+         default:
+            return 1;
+      }
    }
 
    private void cacheOnDisk() {
-      if (proc_ != null) {
-         ImagePlus imgp = new ImagePlus("", proc_);
-         FileSaver fs = new FileSaver(imgp);
-         if (fileName_ == null) {
-            fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+      if (proc_ == null) {
+         return;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) getSizeInBytes())
+            .order(ByteOrder.nativeOrder());
+      Object pixels = proc_.getPixels();
+      if (pixels instanceof byte[]) {
+         buffer.put((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         buffer.asShortBuffer().put((short[]) pixels);
+      } else if (pixels instanceof int[]) {
+         buffer.asIntBuffer().put((int[]) pixels);
+      } else if (pixels instanceof float[]) {
+         buffer.asFloatBuffer().put((float[]) pixels);
+      }
+      buffer.rewind();
+      try (RandomAccessFile file = new RandomAccessFile(file_, "rw");
+           FileChannel channel = file.getChannel()) {
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
          }
-         fs.saveAsTiff(fileName_);
+         file.setLength(buffer.capacity());
          cached_ = true;
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "SlideExplorer: failed to write tile " + file_);
       }
    }
 
    private void loadFromCache() {
-      ImagePlus imgp = IJ.openImage(fileName_);
-      if (imgp != null) {
-         proc_ = imgp.getProcessor();
-      } else { // Somehow the image got lost.
-         proc_ = null;
+      ByteBuffer buffer = ByteBuffer.allocate((int) getSizeInBytes())
+            .order(ByteOrder.nativeOrder());
+      try (RandomAccessFile file = new RandomAccessFile(file_, "r");
+           FileChannel channel = file.getChannel()) {
+         while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // keep reading
+         }
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "SlideExplorer: failed to read tile " + file_);
+      }
+      if (buffer.hasRemaining()) { // Somehow the image got lost.
          cached_ = false;
-         getImageReady();
+         return;
+      }
+      buffer.rewind();
+      Object pixels = proc_.getPixels();
+      if (pixels instanceof byte[]) {
+         buffer.get((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         buffer.asShortBuffer().get((short[]) pixels);
+      } else if (pixels instanceof int[]) {
+         buffer.asIntBuffer().get((int[]) pixels);
+      } else if (pixels instanceof float[]) {
+         buffer.asFloatBuffer().get((float[]) pixels);
       }
    }
 
@@ -94,21 +167,10 @@ public class MultiTile {
       return "Tile";
    }
 
-   private static Random rand = null;
-
-   public static long randLong() {
-      if (rand == null) {
-         rand = new Random();
-      }
-      return rand.nextLong();
-   }
-
-   public void wipeFromDisk() {
-      if (fileName_ != null) {
-         File file = new File(fileName_);
-         if (file.exists()) {
-            file.delete();
-         }
+   public synchronized void wipeFromDisk() {
+      wiped_ = true;
+      if (file_.exists()) {
+         file_.delete();
       }
    }
 }
@@ -4,30 +4,97 @@ import ij.process.ImageProcessor;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
+/*
+ * Holds all multitiles of the slide.  Pixels of the most recently used tiles
+ * are kept in memory up to a byte budget; the least recently used tiles are
+ * written to disk and released on a background thread.  Tiles that are on disk
+ * can be loaded, and neighbours of the visible tiles prefetched, in the
+ * background, so that the display never has to wait for the disk.
+ */
 public class MultiTileCache {
 
+   // keys in the user profile
+   public static final String CACHE_DIRECTORY = "CacheDirectory";
+   public static final String MEMORY_BUDGET_MB = "MemoryBudgetMB";
+   public static final int DEFAULT_MEMORY_BUDGET_MB = 512;
+
    protected int minZoomLevel_;
    protected int width_ = 0;
    protected int height_ = 0;
    private int type_ = -1;
+   private final File directory_;
+   private final long memoryBudget_;
 
    protected Hashtable<Point3D, MultiTile> allTiles_ = new Hashtable<Point3D, MultiTile>();
-   protected Hashtable<Integer, Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+   // tiles that have their pixels in memory, least recently used first
+   private final LinkedHashMap<Point3D, MultiTile> inMemory_ =
+         new LinkedHashMap<Point3D, MultiTile>(16, 0.75f, true);
+   private long bytesInMemory_ = 0;
+   private final Set<Point3D> pendingLoads_ = new HashSet<Point3D>();
+   private final ExecutorService ioExecutor_;
 
    public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
+      this(zoomLevels, tileDimensions, new File(System.getProperty("java.io.tmpdir")),
+            DEFAULT_MEMORY_BUDGET_MB * 1024L * 1024L);
+   }
+
+   /*
+    * Tiles are written to a new directory inside cacheDirectory, which is
+    * removed again by dispose().
+    */
+   public MultiTileCache(int zoomLevels, Dimension tileDimensions, File cacheDirectory,
+         long memoryBudgetBytes) {
       minZoomLevel_ = -zoomLevels + 1;
       width_ = tileDimensions.width;
       height_ = tileDimensions.height;
+      memoryBudget_ = memoryBudgetBytes;
+      directory_ = createDirectory(cacheDirectory);
+      ioExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SlideExplorer tile IO");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
 
-      File tmpDir = new File("/tmp");
-      if (!tmpDir.exists()) {
-         tmpDir.mkdir();
+   private static File createDirectory(File parent) {
+      try {
+         if (!parent.exists()) {
+            parent.mkdirs();
+         }
+         return Files.createTempDirectory(parent.toPath(), "SlideExplorer").toFile();
+      } catch (IOException | SecurityException e) {
+         ReportingUtils.logError(e, "SlideExplorer: unable to use cache directory " + parent);
+      }
+      try {
+         return Files.createTempDirectory("SlideExplorer").toFile();
+      } catch (IOException e) {
+         throw new RuntimeException("SlideExplorer: unable to create a cache directory", e);
       }
    }
 
+   public File getDirectory() {
+      return directory_;
+   }
+
    public void addImage(Point idx, ImageProcessor proc) {
       if (type_ == -1) {
          type_ = ImageUtils.getImageProcessorType(proc);
@@ -42,6 +109,18 @@ public class MultiTileCache {
       return getMultiTile(multiTileIndex).getImage();
    }
 
+   /*
+    * Returns the image of the tile only when it is in memory, never waits for
+    * the disk.
+    */
+   public synchronized ImageProcessor getImageIfInMemory(Point3D multiTileIndex) {
+      MultiTile tile = inMemory_.get(multiTileIndex);
+      if (tile == null || !tile.isInMemory()) {
+         return null;
+      }
+      return tile.getImage();
+   }
+
    public boolean hasImage(Point p) {
       return allTiles_.containsKey(new Point3D(p, 0));
    }
@@ -74,23 +153,119 @@ public class MultiTileCache {
       return getMultiTile(new Point3D(i, j, z));
    }
 
+   /*
+    * Returns the tile, creating it when needed, and accounts for its pixels
+    * being in memory from now on.
+    */
    protected synchronized MultiTile getMultiTile(Point3D idx) {
+      MultiTile tile = allTiles_.get(idx);
+      if (tile == null) {
+         tile = new MultiTile(type_, width_, height_, new File(directory_,
+               idx.i + "_" + idx.j + "_" + (-idx.k) + ".raw"));
+         allTiles_.put(idx, tile);
+      }
+      setInMemory(idx, tile);
+      return tile;
+   }
+
+   private synchronized void setInMemory(Point3D idx, MultiTile tile) {
+      if (inMemory_.put(idx, tile) == null) {
+         bytesInMemory_ += tile.getSizeInBytes();
+      }
+      // never drop the tile that is about to be used
+      Iterator<Map.Entry<Point3D, MultiTile>> it = inMemory_.entrySet().iterator();
+      while (bytesInMemory_ > memoryBudget_ && inMemory_.size() > 1) {
+         Map.Entry<Point3D, MultiTile> eldest = it.next();
+         it.remove();
+         bytesInMemory_ -= eldest.getValue().getSizeInBytes();
+         dropInBackground(eldest.getKey(), eldest.getValue());
+      }
+   }
 
-      if (currentTiles_.containsKey(idx.k)) {
-         Point3D currentTile = currentTiles_.get(idx.k);
-         if (!currentTile.equals(idx)) {
-            allTiles_.get(currentTile).dropFromMemory();
-            currentTiles_.remove(currentTile.k);
+   private void dropInBackground(final Point3D idx, final MultiTile tile) {
+      ioExecutor_.submit(new Runnable() {
+         @Override
+         public void run() {
+            synchronized (MultiTileCache.this) {
+               // used again, or cleared, since it was scheduled
+               if (inMemory_.containsKey(idx) || allTiles_.get(idx) != tile) {
+                  return;
+               }
+            }
+            tile.dropFromMemory();
          }
+      });
+   }
+
+   /*
+    * Loads the tile into memory on a background thread, and runs onLoaded
+    * (on that thread) when done.  Does nothing for unknown tiles.
+    */
+   public synchronized void loadInBackground(final Point3D idx, final Runnable onLoaded) {
+      if (!allTiles_.containsKey(idx) || !pendingLoads_.add(idx)) {
+         return;
       }
+      ioExecutor_.submit(new Runnable() {
+         @Override
+         public void run() {
+            MultiTile tile;
+            synchronized (MultiTileCache.this) {
+               if (!pendingLoads_.remove(idx)) {
+                  return;
+               }
+               tile = allTiles_.get(idx);
+               if (tile == null) {
+                  return;
+               }
+               setInMemory(idx, tile);
+            }
+            tile.getImageReady();
+            if (onLoaded != null) {
+               onLoaded.run();
+            }
+         }
+      });
+   }
 
-      currentTiles_.put(idx.k, idx);
-      if (!allTiles_.containsKey(idx)) {
-         MultiTile tile = new MultiTile(type_, width_, height_);
-         allTiles_.put(idx, tile);
-         return tile;
-      } else {
-         return allTiles_.get(idx);
+   /*
+    * Loads the neighbours of the given tiles at the same zoom level, and their
+    * parent and child tiles at the adjacent zoom levels, in the background.
+    * Prefetching only uses memory that is not used by other tiles, so that
+    * it never pushes tiles that are in use out of memory.
+    */
+   public synchronized void prefetchAround(Collection<Point3D> tiles) {
+      Set<Point3D> candidates = new LinkedHashSet<Point3D>();
+      for (Point3D idx : tiles) {
+         for (int di = -1; di <= 1; di++) {
+            for (int dj = -1; dj <= 1; dj++) {
+               candidates.add(new Point3D(idx.i + di, idx.j + dj, idx.k));
+            }
+         }
+      }
+      for (Point3D idx : tiles) {
+         if (idx.k > minZoomLevel_) {
+            candidates.add(getParentIndex(idx));
+         }
+      }
+      for (Point3D idx : tiles) {
+         if (idx.k < 0) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+               candidates.add(new Point3D(2 * idx.i + (quadrant & 1),
+                     2 * idx.j + (quadrant >> 1), idx.k + 1));
+            }
+         }
+      }
+      candidates.removeAll(tiles);
+      for (Point3D idx : candidates) {
+         MultiTile tile = allTiles_.get(idx);
+         if (tile == null || inMemory_.containsKey(idx) || pendingLoads_.contains(idx)) {
+            continue;
+         }
+         long committed = bytesInMemory_ + (pendingLoads_.size() + 1) * tile.getSizeInBytes();
+         if (committed > memoryBudget_) {
+            return;
+         }
+         loadInBackground(idx, null);
       }
    }
 
@@ -106,13 +281,23 @@ public class MultiTileCache {
       return new Point3D(i, j, k);
    }
 
-   public void clear() {
+   public synchronized void clear() {
       for (MultiTile multiTile : allTiles_.values()) {
          multiTile.wipeFromDisk();
       }
-      currentTiles_.clear();
+      inMemory_.clear();
+      bytesInMemory_ = 0;
+      pendingLoads_.clear();
       allTiles_.clear();
    }
 
-
+   /*
+    * Removes all tiles and the cache directory.  The cache can not be used
+    * afterwards.
+    */
+   public void dispose() {
+      clear();
+      ioExecutor_.shutdown();
+      directory_.delete();
+   }
 }
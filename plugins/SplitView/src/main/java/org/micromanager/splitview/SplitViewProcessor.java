@@ -22,25 +22,29 @@
 
 package org.micromanager.splitview;
 
-import ij.process.ImageProcessor;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Image;
-import org.micromanager.data.Processor;
+import org.micromanager.data.Metadata;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.pipeline.GeometricProcessor;
+import org.micromanager.data.internal.pipeline.GeometricStage;
+import org.micromanager.data.internal.pipeline.GeometricTransform;
 
 /**
  * DataProcessor that splits images as instructed in SplitViewFrame
  *
  * @author nico, heavily updated by Chris Weisiger
  */
-public class SplitViewProcessor implements Processor {
+public class SplitViewProcessor implements GeometricProcessor {
 
    private final Studio studio_;
+   private final GeometricStage stage_ = new GeometricStage(this);
    private String orientation_ = SplitViewFrame.LR;
    private final int numSplits_;
    private final ArrayList<String> channelSuffixes_;
@@ -89,30 +93,18 @@ public class SplitViewProcessor implements Processor {
 
    @Override
    public void processImage(Image image, ProcessorContext context) {
-      ImageProcessor proc = studio_.data().ij().createProcessor(image);
-
-      int width = image.getWidth();
-      int height = image.getHeight();
-      int xStep = 0;
-      int yStep = 0;
-      if (orientation_.equals(SplitViewFrame.TB)) {
-         height /= numSplits_;
-         yStep = height;
-      } else {
-         width /= numSplits_;
-         xStep = width;
-      }
+      stage_.processImage(image, context);
+   }
 
-      int channelIndex = image.getCoords().getChannel();
+   @Override
+   public Step describe(Coords coords, Metadata metadata) {
+      int channelIndex = coords.getChannel();
+      List<Coords> outputCoords = new ArrayList<>(numSplits_);
       for (int i = 0; i < numSplits_; ++i) {
-         proc.setRoi(i * xStep, i * yStep, width, height);
-
-         Coords coords = image.getCoords().copy()
-               .channel(channelIndex * numSplits_ + i).build();
-         Image output = studio_.data().createImage(proc.crop().getPixels(),
-               width, height, image.getBytesPerPixel(),
-               image.getNumComponents(), coords, image.getMetadata());
-         context.outputImage(output);
+         outputCoords.add(coords.copy().channel(channelIndex * numSplits_ + i).build());
       }
+      return new Step(GeometricTransform.identity().split(numSplits_,
+            orientation_.equals(SplitViewFrame.TB)), outputCoords,
+            Collections.nCopies(numSplits_, metadata));
    }
 }
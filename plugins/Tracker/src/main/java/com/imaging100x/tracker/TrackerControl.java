@@ -35,6 +35,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.geom.Point2D;
 import java.io.File;
 import java.util.GregorianCalendar;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -55,6 +56,7 @@ import org.micromanager.UserProfile;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.display.DisplayWindow;
+import org.micromanager.imageprocessing.FastNormalizedCrossCorrelation;
 import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.TextUtils;
@@ -504,14 +506,14 @@ public class TrackerControl extends JFrame {
                pixelsCur_ = new float[size];
                byte[] pixels = (byte[]) tagged.pix;
                for (int i = 0; i < size; i++) {
-                  pixelsCur_[i] = pixels[i];
+                  pixelsCur_[i] = pixels[i] & 0xff;
                }
             }
             if (tagged.pix instanceof short[]) {
                pixelsCur_ = new float[size];
                short[] pixels = (short[]) tagged.pix;
                for (int i = 0; i < size; i++) {
-                  pixelsCur_[i] = pixels[i];
+                  pixelsCur_[i] = pixels[i] & 0xffff;
                }
             }
             if (tagged.pix instanceof float[]) {
@@ -542,52 +544,41 @@ public class TrackerControl extends JFrame {
       corrStack_.addSlice(corrImproc);
 
       // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
+      double kMax = 0.0;
+      double lMax = 0.0;
 
       Rectangle r = roi_.getBounds();
       display_.getImagePlus().setRoi(roi_, true);
       //IJ.write("ROI pos: " + r.x + "," + r.y);
 
-      int width = r.width;
-      int height = r.height;
-      double corScale = width * height;
-
-      double maxCor = 0;
-      for (int k = -offsetPix_; k < offsetPix_; k += resolutionPix_) {
-         for (int l = -offsetPix_; l < offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i = 0; i < height; i++) {
-               for (int j = 0; j < width; j++) {
-                  int row = r.y + i;
-                  int col = r.x + j;
-                  double pixPrev = pixelsPrev_[row * imWidth_ + col];
-                  double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
-                  sum += pixPrev * pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev * meanCur;
-
-            int x = (l + offsetPix_) / resolutionPix_;
-            int y = (k + offsetPix_) / resolutionPix_;
-            corrImproc.setf(x + lCount * y, (float) sum);
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
+      // correlate the roi of the previous image with every position in the
+      // current image up to offsetPix_ away, FFT based, so every pixel is
+      // searched; resolutionPix_ only sets the spacing of the displayed grid
+      int imHeight = pixelsCur_.length / imWidth_;
+      float[] template = new float[r.width * r.height];
+      for (int i = 0; i < r.height; i++) {
+         System.arraycopy(pixelsPrev_, (r.y + i) * imWidth_ + r.x, template, i * r.width,
+               r.width);
+      }
+      Rectangle area = new Rectangle(r.x - offsetPix_, r.y - offsetPix_,
+            r.width + 2 * offsetPix_, r.height + 2 * offsetPix_);
+      FastNormalizedCrossCorrelation.Result result =
+            new FastNormalizedCrossCorrelation(template, r.width, r.height)
+                  .correlate(pixelsCur_, imWidth_, imHeight, area);
+
+      if (result != null) {
+         for (int k = -offsetPix_; k < offsetPix_; k += resolutionPix_) {
+            for (int l = -offsetPix_; l < offsetPix_; l += resolutionPix_) {
+               int x = (l + offsetPix_) / resolutionPix_;
+               int y = (k + offsetPix_) / resolutionPix_;
+               corrImproc.setf(x + lCount * y, result.getValue(r.x + l, r.y + k));
             }
          }
+         if (result.getPeakValue() > 0.0f) {
+            Point2D.Double peak = result.getPeak();
+            lMax = peak.x - r.x;
+            kMax = peak.y - r.y;
+         }
       }
 
       if (corrImplus_ == null) {
@@ -598,7 +589,6 @@ public class TrackerControl extends JFrame {
          corrImplus_.updateAndRepaintWindow();
       }
 
-      //IJ.write("maxc=" + maxCor + ", offset=(" + lMax + "," + kMax + ")");
       pixelsPrev_ = pixelsCur_;
 
       // offset in um
@@ -665,7 +655,7 @@ public class TrackerControl extends JFrame {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         roi_.setLocation(r.x + (int) Math.round(lMax), r.y + (int) Math.round(kMax));
 
          display_.getImagePlus().setRoi(roi_, true);
       }
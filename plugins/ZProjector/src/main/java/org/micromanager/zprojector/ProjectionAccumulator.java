@@ -0,0 +1,301 @@
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import java.util.Arrays;
+import java.util.EnumSet;
+import org.micromanager.imageprocessing.PixelAccumulator;
+import org.micromanager.imageprocessing.PixelBands;
+
+/**
+ * Projects a series of 8 or 16 bit planes without keeping them in memory.
+ * Planes are added one at a time to running sums, sums of squares, minima or
+ * maxima, so that memory use does not depend on the number of planes.
+ *
+ * <p>The median needs more than one look at every plane: it is found four
+ * bits at a time, from the most significant bits down, so in two passes for
+ * 8 bit and four passes for 16 bit planes.  In every pass each pixel keeps a
+ * histogram of the next four bits of those of its values that start with the
+ * bits found so far, which decides the next four bits of the median.  Planes
+ * therefore have to be added getNumberOfPasses() times, with endPass() after
+ * each round.</p>
+ *
+ * <p>With an even number of planes the median is the mean of the two middle
+ * values.  Once the upper one starts with other bits than the lower one, it
+ * is the smallest value that starts with its bits, so only that minimum needs
+ * to be kept for it.</p>
+ *
+ * <p>Results are the same as those of ImageJ's ZProjector, converted back to
+ * the pixel type of the planes.</p>
+ */
+final class ProjectionAccumulator {
+   private final int method_;
+   private final int length_;
+   private final int bitDepth_;
+   private final int maxValue_;
+   private final int numberOfPlanes_;
+   private final boolean parallel_;
+
+   private static final int DIGIT_BITS = 4;
+   private static final int DIGITS = 1 << DIGIT_BITS;
+
+   private PixelAccumulator accumulator_;
+   // median: bits of the lower middle value found so far, and its rank among
+   // the values that start with these bits
+   private int[] lowerPrefix_;
+   private int[] lowerRank_;
+   // histograms of the next digit of the values that start with lowerPrefix_,
+   // DIGITS per pixel, in the smallest type that can count all planes
+   private byte[] byteCounts_;
+   private char[] charCounts_;
+   private int[] intCounts_;
+   // even number of planes: bits of the upper middle value found so far, and
+   // the smallest next digit once these differ from those of the lower one
+   private int[] upperPrefix_;
+   private byte[] upperDigit_;
+
+   private int pass_ = 0;
+   private int planesInPass_ = 0;
+
+   /**
+    * Creates an empty accumulator.
+    *
+    * @param method ZProjector AVG, MAX, MIN, SUM, SD or MEDIAN method
+    * @param length number of pixels in a plane
+    * @param bytesPerPixel 1 or 2
+    * @param numberOfPlanes number of planes that will be added in every pass
+    * @param parallel whether to spread the work on a plane over several threads
+    */
+   ProjectionAccumulator(int method, int length, int bytesPerPixel, int numberOfPlanes,
+         boolean parallel) {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new IllegalArgumentException("Can only project 8 and 16 bit images");
+      }
+      method_ = method;
+      length_ = length;
+      bitDepth_ = 8 * bytesPerPixel;
+      maxValue_ = (1 << bitDepth_) - 1;
+      numberOfPlanes_ = numberOfPlanes;
+      parallel_ = parallel;
+      switch (method) {
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            accumulator_ = new PixelAccumulator(length,
+                  EnumSet.of(PixelAccumulator.Statistic.SUM), parallel);
+            break;
+         case ZProjector.SD_METHOD:
+            accumulator_ = new PixelAccumulator(length, EnumSet.of(
+                  PixelAccumulator.Statistic.SUM, PixelAccumulator.Statistic.SUM_OF_SQUARES),
+                  parallel);
+            break;
+         case ZProjector.MAX_METHOD:
+            accumulator_ = new PixelAccumulator(length,
+                  EnumSet.of(PixelAccumulator.Statistic.MAX), parallel);
+            break;
+         case ZProjector.MIN_METHOD:
+            accumulator_ = new PixelAccumulator(length,
+                  EnumSet.of(PixelAccumulator.Statistic.MIN), parallel);
+            break;
+         case ZProjector.MEDIAN_METHOD:
+            lowerPrefix_ = new int[length];
+            lowerRank_ = new int[length];
+            Arrays.fill(lowerRank_, (numberOfPlanes - 1) / 2);
+            if (numberOfPlanes <= 0xff) {
+               byteCounts_ = new byte[DIGITS * length];
+            } else if (numberOfPlanes <= 0xffff) {
+               charCounts_ = new char[DIGITS * length];
+            } else {
+               intCounts_ = new int[DIGITS * length];
+            }
+            if (numberOfPlanes % 2 == 0) {
+               upperPrefix_ = new int[length];
+               upperDigit_ = new byte[length];
+               Arrays.fill(upperDigit_, (byte) (DIGITS - 1));
+            }
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown projection method " + method);
+      }
+   }
+
+   /**
+    * Bytes per pixel that an accumulator for the given method uses.
+    */
+   static int getBytesPerPixel(int method, int numberOfPlanes) {
+      switch (method) {
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            return 8;
+         case ZProjector.SD_METHOD:
+            return 16;
+         case ZProjector.MEDIAN_METHOD:
+            final int counter = numberOfPlanes <= 0xff ? 1 : numberOfPlanes <= 0xffff ? 2 : 4;
+            return 8 + DIGITS * counter + (numberOfPlanes % 2 == 0 ? 5 : 0);
+         default:
+            return 4;
+      }
+   }
+
+   /**
+    * Number of times that all planes need to be added.
+    */
+   int getNumberOfPasses() {
+      return method_ == ZProjector.MEDIAN_METHOD ? bitDepth_ / DIGIT_BITS : 1;
+   }
+
+   /**
+    * Adds a plane in the current pass.
+    *
+    * @param pixels byte[] or short[] with the pixels of the plane
+    */
+   void add(Object pixels) {
+      if (method_ == ZProjector.MEDIAN_METHOD) {
+         final int shift = bitDepth_ - DIGIT_BITS * (pass_ + 1);
+         forEachBand((band, start, end) -> {
+            for (int i = start; i < end; i++) {
+               final int value = valueAt(pixels, i);
+               final int prefix = value >>> (shift + DIGIT_BITS);
+               final int digit = (value >>> shift) & (DIGITS - 1);
+               if (prefix == lowerPrefix_[i]) {
+                  increment(DIGITS * i + digit);
+               } else if (upperPrefix_ != null && prefix == upperPrefix_[i]
+                     && digit < upperDigit_[i]) {
+                  upperDigit_[i] = (byte) digit;
+               }
+            }
+         });
+      } else {
+         accumulator_.add(pixels);
+      }
+      planesInPass_++;
+   }
+
+   /**
+    * Ends a pass over the planes.
+    */
+   void endPass() {
+      if (planesInPass_ != numberOfPlanes_) {
+         throw new IllegalStateException("Expected " + numberOfPlanes_ + " planes, got "
+               + planesInPass_);
+      }
+      if (method_ == ZProjector.MEDIAN_METHOD) {
+         forEachBand((band, start, end) -> {
+            for (int i = start; i < end; i++) {
+               nextDigit(i);
+            }
+         });
+      }
+      pass_++;
+      planesInPass_ = 0;
+   }
+
+   private void nextDigit(int i) {
+      final int first = DIGITS * i;
+      // the digit whose values include the rank of the lower middle value
+      int below = 0;
+      int digit = 0;
+      while (lowerRank_[i] >= below + count(first + digit)) {
+         below += count(first + digit);
+         digit++;
+      }
+      lowerRank_[i] -= below;
+      if (upperPrefix_ != null) {
+         int upperDigit = upperDigit_[i];
+         if (upperPrefix_[i] == lowerPrefix_[i]) {
+            // the upper middle value is the next one, in this digit or the
+            // next one that has values
+            upperDigit = digit;
+            if (lowerRank_[i] + 1 >= count(first + digit)) {
+               do {
+                  upperDigit++;
+               } while (count(first + upperDigit) == 0);
+            }
+         }
+         upperPrefix_[i] = (upperPrefix_[i] << DIGIT_BITS) | upperDigit;
+         upperDigit_[i] = (byte) (DIGITS - 1);
+      }
+      lowerPrefix_[i] = (lowerPrefix_[i] << DIGIT_BITS) | digit;
+      if (byteCounts_ != null) {
+         Arrays.fill(byteCounts_, first, first + DIGITS, (byte) 0);
+      } else if (charCounts_ != null) {
+         Arrays.fill(charCounts_, first, first + DIGITS, (char) 0);
+      } else {
+         Arrays.fill(intCounts_, first, first + DIGITS, 0);
+      }
+   }
+
+   private void increment(int j) {
+      if (byteCounts_ != null) {
+         byteCounts_[j]++;
+      } else if (charCounts_ != null) {
+         charCounts_[j]++;
+      } else {
+         intCounts_[j]++;
+      }
+   }
+
+   private int count(int j) {
+      if (byteCounts_ != null) {
+         return byteCounts_[j] & 0xff;
+      }
+      return charCounts_ != null ? charCounts_[j] : intCounts_[j];
+   }
+
+   /**
+    * Computes the projection, once all passes have ended.
+    *
+    * @return byte[] or short[] with the projected plane
+    */
+   Object getResult() {
+      if (pass_ != getNumberOfPasses()) {
+         throw new IllegalStateException("Projection needs " + getNumberOfPasses()
+               + " passes, got " + pass_);
+      }
+      final Object result = bitDepth_ == 8 ? new byte[length_] : new short[length_];
+      final int n = numberOfPlanes_;
+      final long[] sum = accumulator_ == null ? null : accumulator_.getSum();
+      final long[] sumOfSquares = accumulator_ == null ? null : accumulator_.getSumOfSquares();
+      final int[] extreme = accumulator_ == null ? null
+            : method_ == ZProjector.MAX_METHOD ? accumulator_.getMax() : accumulator_.getMin();
+      forEachBand((band, start, end) -> {
+         for (int i = start; i < end; i++) {
+            final int value;
+            switch (method_) {
+               case ZProjector.AVG_METHOD:
+                  value = (int) (sum[i] / n);
+                  break;
+               case ZProjector.SUM_METHOD:
+                  value = (int) Math.min(maxValue_, sum[i]);
+                  break;
+               case ZProjector.SD_METHOD:
+                  final double variance = (n * (double) sumOfSquares[i]
+                        - (double) sum[i] * sum[i]) / n / (n - 1.0);
+                  value = variance > 0.0
+                        ? Math.min(maxValue_, (int) ((float) Math.sqrt(variance) + 0.5f)) : 0;
+                  break;
+               case ZProjector.MEDIAN_METHOD:
+                  value = upperPrefix_ == null ? lowerPrefix_[i]
+                        : (lowerPrefix_[i] + upperPrefix_[i] + 1) / 2;
+                  break;
+               default:
+                  value = extreme[i];
+                  break;
+            }
+            if (result instanceof short[]) {
+               ((short[]) result)[i] = (short) value;
+            } else {
+               ((byte[]) result)[i] = (byte) value;
+            }
+         }
+      });
+      return result;
+   }
+
+   private static int valueAt(Object pixels, int i) {
+      return pixels instanceof short[]
+            ? ((short[]) pixels)[i] & 0xffff : ((byte[]) pixels)[i] & 0xff;
+   }
+
+   private void forEachBand(PixelBands.Band band) {
+      PixelBands.forEach(length_, PixelBands.PIXELS_PER_BAND, parallel_, band);
+   }
+}
@@ -29,6 +29,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.SwingWorker;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
@@ -199,8 +203,10 @@ public class ZProjectorPluginExecutor {
             }
          }
 
-         findAllProjections(newStore, axes, cb, projectionAxis,
-               firstFrame, lastFrame, projectionMethod);
+         List<Coords> outputs = new ArrayList<>();
+         findAllProjections(outputs, axes, cb);
+         runProjections(newStore, outputs, projectionAxis, firstFrame, lastFrame,
+               projectionMethod);
 
       } catch (DatastoreFrozenException ex) {
          studio_.logs().showError("Can not add data to frozen datastore");
@@ -221,38 +227,95 @@ public class ZProjectorPluginExecutor {
     * Recursively figures out which projections need to be performed
     * It does so by taking the first remaining axes, cycle through all positions
     * in that axes, and recursively calling this function (omitting that axis).
-    * When no more axes are remaining, the actual projection will be executed.
+    * When no more axes are remaining, the coordinates of the projection are
+    * added to the list of outputs.
     *
-    * @param newStore Datastore to put the new projected images into
+    * @param outputs List that receives the coordinates of all projections
     * @param remainingAxes List with axes to look at
     * @param cbp      Coordinates build set to the correct position
-    * @param projectionAxis   Axis that needs to be projected
-    * @param min       lowest frame number to be included in the projection
-    * @param max        highest frame number to be included in the projection
-    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
-    * @throws IOException Can arise when saving to disk
     */
-   private void findAllProjections(Datastore newStore, List<String> remainingAxes, 
-           Coords.CoordsBuilder cbp, String projectionAxis, int min, int max, 
-           int projectionMethod) throws IOException {
+   private void findAllProjections(List<Coords> outputs, List<String> remainingAxes,
+           Coords.CoordsBuilder cbp) {
+      if (remainingAxes.isEmpty()) {
+         outputs.add(cbp.build());
+         return;
+      }
       String currentAxis = remainingAxes.get(0);
       List<String> rcAxes = new ArrayList<>(remainingAxes);
       rcAxes.remove(currentAxis);
       for (int i = 0; i < oldProvider_.getNextIndex(currentAxis); i++) {
          cbp.index(currentAxis, i);
-         if (rcAxes.isEmpty()) {
-            executeProjection(newStore, cbp, projectionAxis, min, max, projectionMethod);
+         findAllProjections(outputs, rcAxes, cbp);
+      }
+   }
+
+   /**
+    * Executes all projections, several at a time, and puts the results in
+    * the new store.  Every projection streams its planes through a
+    * ProjectionAccumulator, so that the number of projections running at the
+    * same time, and not the size of the data, determines how much memory is
+    * used.
+    *
+    * @param newStore Datastore to put the new projected images into
+    * @param outputs coordinates of the projections, with any index on the
+    *                projection axis
+    * @param projectionAxis Axis that needs to be projected
+    * @param min lowest frame number to be included in the projection
+    * @param max Highest frame number to be included in the projection
+    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
+    * @throws IOException Can arise when reading or saving images
+    */
+   private void runProjections(final Datastore newStore, List<Coords> outputs,
+           final String projectionAxis, final int min, final int max,
+           final int projectionMethod) throws IOException {
+      Image tmpImg = oldProvider_.getAnyImage();
+      if (tmpImg == null) {
+         studio_.alerts().postAlert("Projection problem", this.getClass(),
+                 "No images found while projecting");
+         return;
+      }
+      long bytesPerProjection = (long) tmpImg.getWidth() * tmpImg.getHeight()
+            * (tmpImg.getBytesPerPixel() + ProjectionAccumulator.getBytesPerPixel(
+                  projectionMethod, max - min + 1));
+      long budget = Runtime.getRuntime().maxMemory() / 4;
+      int nrThreads = (int) Math.max(1, Math.min(outputs.size(),
+            Math.min(Runtime.getRuntime().availableProcessors(),
+                  budget / Math.max(1, bytesPerProjection))));
+      // with fewer projections than processors, spread each plane over threads
+      final boolean parallelPlanes = outputs.size() < Runtime.getRuntime().availableProcessors();
+
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+      List<Future<?>> futures = new ArrayList<>(outputs.size());
+      try {
+         for (final Coords output : outputs) {
+            futures.add(executor.submit(() -> {
+               executeProjection(newStore, output.copyBuilder(), projectionAxis,
+                     min, max, projectionMethod, parallelPlanes);
+               return null;
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
             projectionNr_++;
             if (progressBar_ != null) {
-               progressBar_.setProgress(projectionNr_); 
+               progressBar_.setProgress(projectionNr_);
             }
-         } else {
-            findAllProjections(newStore, rcAxes, cbp, projectionAxis,
-                    min, max, projectionMethod);
          }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Projection was interrupted", ex);
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+         } else if (ex.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ex.getCause();
+         }
+         throw new IOException(ex.getCause());
+      } finally {
+         executor.shutdownNow();
       }
    }
-   
+
    /**
     * Do the actual projection.
     *
@@ -262,56 +325,87 @@ public class ZProjectorPluginExecutor {
     * @param min lowest frame number to be included in the projection
     * @param max Highest frame number to be included in the projection
     * @param projectionMethod Projection method (as an ImageJ ZProjector int)
+    * @param parallel whether to use several threads for a single plane
     * @throws IOException Can arise when saving to disk
     */
-   private void executeProjection(Datastore newStore, Coords.CoordsBuilder cbp, 
-           String projectionAxis, int min, int max, int projectionMethod) 
-           throws IOException {
-      cbp.index(projectionAxis, min);
-      Image tmpImg = oldProvider_.getAnyImage();
-      if (tmpImg == null) {
+   private void executeProjection(Datastore newStore, Coords.CoordsBuilder cbp,
+           String projectionAxis, int min, int max, int projectionMethod,
+           boolean parallel) throws IOException {
+      List<Coords> planes = new ArrayList<>();
+      for (int i = min; i <= max; i++) {
+         Coords coords = cbp.index(projectionAxis, i).build();
+         if (oldProvider_.hasImage(coords)) {  // images can be skipped
+            planes.add(coords);
+         }
+      }
+      Image first = planes.isEmpty() ? null : oldProvider_.getImage(planes.get(0));
+      if (first == null) {
          studio_.alerts().postAlert("Projection problem", this.getClass(),
                  "No images found while projecting");
          return;
       }
-      ImageStack stack = new ImageStack(
-               tmpImg.getWidth(), tmpImg.getHeight());
-      Metadata imgMetadata = null;
-      for (int i = min; i <= max; i++) {
-         Image img = oldProvider_.getImage(cbp.index(projectionAxis, i).build());
-         if (img != null) {  // null happens when this image was skipped
-            if (imgMetadata == null) {
-               imgMetadata = img.getMetadata().copyBuilderWithNewUUID().build();
-            }
-            ImageProcessor ip
-                    = studio_.data().getImageJConverter().createProcessor(img);
-            stack.addSlice(ip);
-         }
-      }
-      if (stack.getSize() > 0 && imgMetadata != null) {
-         ImagePlus tmp = new ImagePlus("tmp", stack);
-         ZProjector zp = new ZProjector(tmp);
-         zp.setMethod(projectionMethod);
-         zp.doProjection();
-         ImagePlus projection = zp.getProjection();
-         if (projection.getBytesPerPixel() > 2) {
-            if (tmp.getBytesPerPixel() == 1) {
-               projection.setProcessor(projection.getProcessor().convertToByte(false));
-            } else if (tmp.getBytesPerPixel() == 2) {
-               projection.setProcessor(projection.getProcessor().convertToShort(false));
+      Metadata imgMetadata = first.getMetadata().copyBuilderWithNewUUID().build();
+      Coords outCoords = cbp.index(projectionAxis, 0).build();
+      Image outImg;
+      if (first.getNumComponents() != 1 || first.getBytesPerPixel() > 2) {
+         outImg = executeImageJProjection(planes, outCoords, imgMetadata, projectionMethod);
+      } else {
+         ProjectionAccumulator accumulator = new ProjectionAccumulator(projectionMethod,
+               first.getWidth() * first.getHeight(), first.getBytesPerPixel(),
+               planes.size(), parallel);
+         for (int pass = 0; pass < accumulator.getNumberOfPasses(); pass++) {
+            for (Coords coords : planes) {
+               Image img = pass == 0 && coords == planes.get(0)
+                     ? first : oldProvider_.getImage(coords);
+               if (img.getWidth() != first.getWidth()
+                     || img.getHeight() != first.getHeight()
+                     || img.getBytesPerPixel() != first.getBytesPerPixel()) {
+                  throw new IOException("Image at " + coords + " differs in size or type");
+               }
+               accumulator.add(img.getRawPixels());
             }
+            accumulator.endPass();
          }
          // TODO: adjust the metadata with the little knowledge we have about the
          // projection axis (for instance, if z, set z position to the mean of the
          // z positions of all images?
-         Image outImg = studio_.data().getImageJConverter().createImage(
-                 projection.getProcessor(), cbp.index(projectionAxis, 0).build(),
-                 imgMetadata.copyBuilderWithNewUUID().build());
+         outImg = studio_.data().createImage(accumulator.getResult(), first.getWidth(),
+               first.getHeight(), first.getBytesPerPixel(), 1, outCoords, imgMetadata);
+      }
+      synchronized (newStore) {
          newStore.putImage(outImg);
-      } else {
-         studio_.alerts().postAlert("Projection problem", this.getClass(), 
-                                             "No images found while projecting");
       }
    }
+
+   /**
+    * Projects with ImageJ's ZProjector, which needs all planes in memory.
+    * Only used for images that ProjectionAccumulator can not handle (RGB).
+    */
+   private Image executeImageJProjection(List<Coords> planes, Coords outCoords,
+           Metadata imgMetadata, int projectionMethod) throws IOException {
+      ImageStack stack = null;
+      for (Coords coords : planes) {
+         ImageProcessor ip = studio_.data().getImageJConverter().createProcessor(
+               oldProvider_.getImage(coords));
+         if (stack == null) {
+            stack = new ImageStack(ip.getWidth(), ip.getHeight());
+         }
+         stack.addSlice(ip);
+      }
+      ImagePlus tmp = new ImagePlus("tmp", stack);
+      ZProjector zp = new ZProjector(tmp);
+      zp.setMethod(projectionMethod);
+      zp.doProjection();
+      ImagePlus projection = zp.getProjection();
+      if (projection.getBytesPerPixel() > 2) {
+         if (tmp.getBytesPerPixel() == 1) {
+            projection.setProcessor(projection.getProcessor().convertToByte(false));
+         } else if (tmp.getBytesPerPixel() == 2) {
+            projection.setProcessor(projection.getProcessor().convertToShort(false));
+         }
+      }
+      return studio_.data().getImageJConverter().createImage(
+              projection.getProcessor(), outCoords, imgMetadata.copyBuilderWithNewUUID().build());
+   }
    
 }
@@ -0,0 +1,152 @@
+package org.micromanager.zprojector;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares ProjectionAccumulator with ImageJ's ZProjector, followed by the
+ * conversion back to the pixel type of the planes that the plugin did before
+ * it used the accumulator.
+ */
+public class ProjectionAccumulatorTest {
+
+   private static final int[] METHODS = {ZProjector.AVG_METHOD, ZProjector.MAX_METHOD,
+         ZProjector.MIN_METHOD, ZProjector.SUM_METHOD, ZProjector.SD_METHOD,
+         ZProjector.MEDIAN_METHOD};
+
+   private static Object[] makePlanes(Random random, int length, int bytesPerPixel,
+         int numberOfPlanes) {
+      final int max = bytesPerPixel == 1 ? 0xff : 0xffff;
+      Object[] planes = new Object[numberOfPlanes];
+      for (int p = 0; p < numberOfPlanes; p++) {
+         int[] values = new int[length];
+         for (int i = 0; i < length; i++) {
+            switch (i % 4) {
+               case 0:
+                  // the whole range
+                  values[i] = random.nextInt(max + 1);
+                  break;
+               case 1:
+                  // few different values, so that many are equal
+                  values[i] = random.nextInt(3) * (max / 2);
+                  break;
+               case 2:
+                  // close together, differing only in the lowest bits
+                  values[i] = 1000 % max + random.nextInt(4);
+                  break;
+               default:
+                  values[i] = i % (max + 1);
+                  break;
+            }
+         }
+         if (bytesPerPixel == 1) {
+            byte[] pixels = new byte[length];
+            for (int i = 0; i < length; i++) {
+               pixels[i] = (byte) values[i];
+            }
+            planes[p] = pixels;
+         } else {
+            short[] pixels = new short[length];
+            for (int i = 0; i < length; i++) {
+               pixels[i] = (short) values[i];
+            }
+            planes[p] = pixels;
+         }
+      }
+      return planes;
+   }
+
+   private static Object imageJProjection(Object[] planes, int width, int height,
+         int method) {
+      ImageStack stack = new ImageStack(width, height);
+      for (Object plane : planes) {
+         stack.addSlice(plane instanceof byte[]
+               ? new ByteProcessor(width, height, (byte[]) plane)
+               : new ShortProcessor(width, height, (short[]) plane, null));
+      }
+      ImagePlus imp = new ImagePlus("planes", stack);
+      ZProjector projector = new ZProjector(imp);
+      projector.setMethod(method);
+      projector.doProjection();
+      ImageProcessor result = projector.getProjection().getProcessor();
+      if (result.getBitDepth() == 32) {
+         result = planes[0] instanceof byte[]
+               ? result.convertToByte(false) : result.convertToShort(false);
+      }
+      return result.getPixels();
+   }
+
+   private static Object project(Object[] planes, int method, boolean parallel) {
+      final int length = planes[0] instanceof byte[]
+            ? ((byte[]) planes[0]).length : ((short[]) planes[0]).length;
+      ProjectionAccumulator accumulator = new ProjectionAccumulator(method, length,
+            planes[0] instanceof byte[] ? 1 : 2, planes.length, parallel);
+      for (int pass = 0; pass < accumulator.getNumberOfPasses(); pass++) {
+         for (Object plane : planes) {
+            accumulator.add(plane);
+         }
+         accumulator.endPass();
+      }
+      return accumulator.getResult();
+   }
+
+   private static void check(int bytesPerPixel, int width, int height, boolean parallel) {
+      check(bytesPerPixel, width, height, parallel, new int[] {1, 2, 3, 6, 11}, METHODS);
+   }
+
+   private static void check(int bytesPerPixel, int width, int height, boolean parallel,
+         int[] numbersOfPlanes, int[] methods) {
+      final Random random = new Random(45 + bytesPerPixel);
+      for (int numberOfPlanes : numbersOfPlanes) {
+         Object[] planes = makePlanes(random, width * height, bytesPerPixel, numberOfPlanes);
+         for (int method : methods) {
+            String message = ZProjector.METHODS[method] + ", " + numberOfPlanes + " planes, "
+                  + (8 * bytesPerPixel) + " bit";
+            Object expected = imageJProjection(planes, width, height, method);
+            Object actual = project(planes, method, parallel);
+            if (bytesPerPixel == 1) {
+               Assert.assertArrayEquals(message, (byte[]) expected, (byte[]) actual);
+            } else {
+               Assert.assertArrayEquals(message, (short[]) expected, (short[]) actual);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void test8Bit() {
+      check(1, 37, 23, false);
+   }
+
+   @Test
+   public void test16Bit() {
+      check(2, 37, 23, false);
+   }
+
+   @Test
+   public void testParallel() {
+      // several bands of pixels
+      check(2, 300, 200, true);
+   }
+
+   @Test
+   public void testManyPlanes() {
+      // the median counts these in wider counters
+      check(2, 16, 8, false, new int[] {256, 301}, METHODS);
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testMissingPlane() {
+      ProjectionAccumulator accumulator = new ProjectionAccumulator(ZProjector.MAX_METHOD,
+            4, 2, 2, false);
+      accumulator.add(new short[4]);
+      accumulator.endPass();
+   }
+}